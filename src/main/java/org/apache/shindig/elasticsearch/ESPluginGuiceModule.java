@@ -7,7 +7,9 @@ import org.apache.shindig.elasticsearch.crawling.ShindigCrawler;
 import org.apache.shindig.elasticsearch.listeners.ElasticsearchListener;
 import org.apache.shindig.elasticsearch.util.ESBulkingConnector;
 import org.apache.shindig.elasticsearch.util.ESConnector;
+import org.apache.shindig.elasticsearch.util.ESConnectorHttp;
 import org.apache.shindig.elasticsearch.util.ESMappingLoader;
+import org.apache.shindig.elasticsearch.util.IAsyncESConnector;
 import org.apache.shindig.elasticsearch.util.IESConnector;
 
 import com.google.inject.AbstractModule;
@@ -42,13 +44,23 @@ public class ESPluginGuiceModule extends AbstractModule
             {
                 esConn = new ESBulkingConnector(esConfig);
             }
+            else if("rest".equals(esConnProp))
+            {
+                esConn = new ESConnectorHttp(esConfig);
+            }
             else
             {
-                //TODO: http?
                 esConn = new ESConnector(esConfig);
             }
             bind(IESConnector.class).toInstance(esConn);
             
+            //asynchronous API, if supported by the connector
+            if(esConn instanceof IAsyncESConnector)
+            {
+                bind(IAsyncESConnector.class).toInstance(
+                    (IAsyncESConnector) esConn);
+            }
+            
             ESMappingLoader mapLoader = new ESMappingLoader(esConfig, esConn);
             bind(ESMappingLoader.class).toInstance(mapLoader);
 
@@ -13,7 +13,9 @@ import java.util.logging.Logger;
 
 import org.apache.shindig.common.util.DateUtil;
 import org.apache.shindig.elasticsearch.ESConfig;
+import org.apache.shindig.elasticsearch.util.ESRouting;
 import org.apache.shindig.elasticsearch.util.IESConnector;
+import org.apache.shindig.elasticsearch.util.IESPageHandler;
 import org.apache.shindig.elasticsearch.util.ShindigEncoder;
 import org.apache.shindig.elasticsearch.util.ShindigUtil;
 import org.apache.shindig.social.opensocial.model.ActivityEntry;
@@ -35,9 +37,11 @@ import com.google.inject.Inject;
  */
 public class ActivityStreamsCrawler implements ICrawler
 {
-    private static final String SHINDIG_INDEX = "shindig.elasticsearch.index";
     private static final String ACTIVITY_TYPE = "shindig.elasticsearch.activity_type";
     
+    private static final String[] MATCH_FIELDS = {"id", "updated",
+        ShindigEncoder.FINGERPRINT_FIELD};
+    
     private static final String ADD_FRIEND_ACL = "shindig.elasticsearch.acls.add_friends";
     
     private final ActivityStreamService fActivities;
@@ -47,7 +51,12 @@ public class ActivityStreamsCrawler implements ICrawler
     
     private final ShindigUtil fShindUtil;
     
-    private final String fShindigIndex, fActivityType;
+    private final String fActivityType;
+    
+    //index written by the current crawl
+    private String fShindigIndex;
+    
+    private final ESRouting fRouting;
     
     private final boolean fAddFriendAcl;
     
@@ -95,9 +104,10 @@ public class ActivityStreamsCrawler implements ICrawler
         
         fShindUtil = shindig;
         
-        fShindigIndex = config.getProperty(SHINDIG_INDEX);
         fActivityType = config.getProperty(ACTIVITY_TYPE);
         
+        fRouting = new ESRouting(config);
+        
         fAddFriendAcl = Boolean.parseBoolean(
             config.getProperty(ADD_FRIEND_ACL));
         
@@ -105,8 +115,11 @@ public class ActivityStreamsCrawler implements ICrawler
     }
 
     @Override
-    public void crawl()
+    public boolean crawl(String index)
     {
+        boolean success = false;
+        fShindigIndex = index;
+        
         try
         {
             //TODO: use pagination
@@ -117,12 +130,7 @@ public class ActivityStreamsCrawler implements ICrawler
             Map<String, ActivityEntry> localActs = readAllActivities(activityOwners, actsByOwner);
             
             //match with results from Elasticsearch
-            Map<String, JSONObject> remoteActs = new HashMap<String, JSONObject>();
-            List<JSONObject> esActs = fEsConn.getAll(fShindigIndex, fActivityType);
-            for(JSONObject activity : esActs)
-            {
-                remoteActs.put(activity.getString("id"), activity);
-            }
+            Map<String, JSONObject> remoteActs = getAllRemote(fActivityType);
             
             //track deleted and new, remove them from lists
             handleDeleted(localActs, activityOwners, actsByOwner, remoteActs);
@@ -130,11 +138,37 @@ public class ActivityStreamsCrawler implements ICrawler
             
             //handle updated entries
             handleUpdates(localActs, activityOwners, actsByOwner, remoteActs);
+            
+            success = true;
         }
         catch(Exception e)
         {
             fLogger.log(Level.SEVERE, "error updating activity index", e);
         }
+        
+        return success;
+    }
+    
+    private Map<String, JSONObject> getAllRemote(String type) throws Exception
+    {
+        final Map<String, JSONObject> remote = new HashMap<String, JSONObject>();
+        
+        //page through the index, only retrieving what is needed for matching
+        //and for addressing routed entries
+        fEsConn.scroll(fShindigIndex, type,
+            fRouting.withRoutingField(type, MATCH_FIELDS), new IESPageHandler()
+        {
+            @Override
+            public void handlePage(List<JSONObject> page) throws Exception
+            {
+                for(JSONObject e : page)
+                {
+                    remote.put(e.getString("id"), e);
+                }
+            }
+        });
+        
+        return remote;
     }
     
     private Map<String, ActivityEntry> readAllActivities(
@@ -197,7 +231,15 @@ public class ActivityStreamsCrawler implements ICrawler
             fLogger.log(Level.FINER, "removing " + deleted.size()
                 + " deleted activities from index");
 
-            fEsConn.bulkDelete(fShindigIndex, fActivityType, deleted);
+            //routing values of the stored entries
+            Map<String, String> routing = new HashMap<String, String>();
+            for(String id : deleted)
+            {
+                routing.put(id, fRouting.getRouting(fActivityType,
+                    remoteActs.get(id)));
+            }
+            
+            fEsConn.bulkDelete(fShindigIndex, fActivityType, deleted, routing);
 
             //remove from remaining set
             for(String id : deleted)
@@ -283,7 +325,8 @@ public class ActivityStreamsCrawler implements ICrawler
             }
             
             //bulk add
-            fEsConn.bulkAdd(fShindigIndex, fActivityType, newObjs);
+            fEsConn.bulkAdd(fShindigIndex, fActivityType,
+                removeUnchanged(newObjs, remoteActs), true);
             
             //remove from remaining collections
             for(String id : newActs)
@@ -323,20 +366,42 @@ public class ActivityStreamsCrawler implements ICrawler
             updatedActs.addAll(retrieveWithAllFields(userId, aE.getValue()));
         }
         
+        //skip activities whose content is unchanged
+        updatedActs = removeUnchanged(updatedActs, remoteActs);
+        
         //execute bulk update for all users' activities
         if(!updatedActs.isEmpty())
         {
             fLogger.log(Level.FINER, "updating " + updatedActs.size()
                 + " activities in index");
             
-            //TODO: compare JSON for equality first?
-            //TODO: equality complicated if order does not match
-            //TODO: only check if both timestamps are null
-            
             fEsConn.bulkUpdate(fShindigIndex, fActivityType, updatedActs);
         }
     }
     
+    private List<JSONObject> removeUnchanged(List<JSONObject> entries,
+        Map<String, JSONObject> remote) throws Exception
+    {
+        /*
+         * fingerprints all entries, dropping those whose fingerprint matches
+         * the one stored in the index since writing them would change nothing
+         */
+        List<JSONObject> changed = new ArrayList<JSONObject>(entries.size());
+        for(JSONObject entry : entries)
+        {
+            String fingerprint = ShindigEncoder.addFingerprint(entry);
+            
+            JSONObject stored = remote.get(entry.getString("id"));
+            if(stored == null || !fingerprint.equals(stored.optString(
+                ShindigEncoder.FINGERPRINT_FIELD, null)))
+            {
+                changed.add(entry);
+            }
+        }
+        
+        return changed;
+    }
+    
     private void addToOwner(String ownerId, String entryId,
         Map<String, String> activityOwners, Map<String, Set<String>> actsByOwner)
     {
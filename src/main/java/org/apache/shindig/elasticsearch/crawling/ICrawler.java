@@ -7,7 +7,12 @@ package org.apache.shindig.elasticsearch.crawling;
 public interface ICrawler
 {
     /**
-     * Performs a full crawl operation.
+     * Performs a full crawl operation, matching all entries against the
+     * given index, which may be the live index or one being rebuilt.
+     * The given index name must not be null.
+     * 
+     * @param index name of the index to crawl into
+     * @return whether the crawl completed without errors
      */
-    public void crawl();
+    public boolean crawl(String index);
 }
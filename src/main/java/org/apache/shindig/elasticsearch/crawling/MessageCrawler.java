@@ -12,7 +12,9 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.shindig.elasticsearch.ESConfig;
+import org.apache.shindig.elasticsearch.util.ESRouting;
 import org.apache.shindig.elasticsearch.util.IESConnector;
+import org.apache.shindig.elasticsearch.util.IESPageHandler;
 import org.apache.shindig.elasticsearch.util.ShindigEncoder;
 import org.apache.shindig.social.opensocial.model.Message;
 import org.apache.shindig.social.opensocial.model.Person;
@@ -33,15 +35,22 @@ import com.google.inject.Inject;
  */
 public class MessageCrawler implements ICrawler
 {
-    private static final String SHINDIG_INDEX = "shindig.elasticsearch.index";
     private static final String MESSAGE_TYPE = "shindig.elasticsearch.message_type";
     
+    private static final String[] MATCH_FIELDS = {"id", "updated",
+        ShindigEncoder.FINGERPRINT_FIELD};
+    
     private final MessageService fMessages;
     private final IExtPersonService fPeople;
     
     private final IESConnector fEsConn;
     
-    private final String fShindigIndex, fMessageType;
+    private final String fMessageType;
+    
+    //index written by the current crawl
+    private String fShindigIndex;
+    
+    private final ESRouting fRouting;
     
     private final Logger fLogger;
     
@@ -85,9 +94,10 @@ public class MessageCrawler implements ICrawler
         fPeople = people;
         fEsConn = esConn;
         
-        fShindigIndex = config.getProperty(SHINDIG_INDEX);
         fMessageType = config.getProperty(MESSAGE_TYPE);
         
+        fRouting = new ESRouting(config);
+        
         fLogger = Logger.getLogger(this.getClass().getCanonicalName());
 
         //temporary lookips
@@ -97,8 +107,11 @@ public class MessageCrawler implements ICrawler
     }
 
     @Override
-    public void crawl()
+    public boolean crawl(String index)
     {
+        boolean success = false;
+        fShindigIndex = index;
+        
         try
         {
             //TODO: use pagination
@@ -108,12 +121,7 @@ public class MessageCrawler implements ICrawler
             Map<String, Message> localMessages = getAllMessages();
             
             //match with results from Elasticsearch
-            Map<String, JSONObject> remoteMessages = new HashMap<String, JSONObject>();
-            List<JSONObject> esMsgs = fEsConn.getAll(fShindigIndex, fMessageType);
-            for(JSONObject m : esMsgs)
-            {
-                remoteMessages.put(m.getString("id"), m);
-            }
+            Map<String, JSONObject> remoteMessages = getAllRemote(fMessageType);
 
             //track deleted and new, remove handled IDs
             handleDeleted(localMessages, remoteMessages);
@@ -121,6 +129,8 @@ public class MessageCrawler implements ICrawler
             
             //handle updated entries
             handleUpdated(localMessages, remoteMessages);
+            
+            success = true;
         }
         catch(Exception e)
         {
@@ -131,6 +141,30 @@ public class MessageCrawler implements ICrawler
         fPrimaryMsgOwners.clear();
         fAllMsgOwners.clear();
         fMsgsByOwner.clear();
+        
+        return success;
+    }
+    
+    private Map<String, JSONObject> getAllRemote(String type) throws Exception
+    {
+        final Map<String, JSONObject> remote = new HashMap<String, JSONObject>();
+        
+        //page through the index, only retrieving what is needed for matching
+        //and for addressing routed entries
+        fEsConn.scroll(fShindigIndex, type,
+            fRouting.withRoutingField(type, MATCH_FIELDS), new IESPageHandler()
+        {
+            @Override
+            public void handlePage(List<JSONObject> page) throws Exception
+            {
+                for(JSONObject e : page)
+                {
+                    remote.put(e.getString("id"), e);
+                }
+            }
+        });
+        
+        return remote;
     }
     
     private Map<String, Message> getAllMessages() throws Exception
@@ -183,7 +217,15 @@ public class MessageCrawler implements ICrawler
             fLogger.log(Level.FINER, "removing " + deleted.size()
                 + " deleted messages from index");
             
-            fEsConn.bulkDelete(fShindigIndex, fMessageType, deleted);
+            //routing values of the stored entries
+            Map<String, String> routing = new HashMap<String, String>();
+            for(String id : deleted)
+            {
+                routing.put(id, fRouting.getRouting(fMessageType,
+                    remoteMessages.get(id)));
+            }
+            
+            fEsConn.bulkDelete(fShindigIndex, fMessageType, deleted, routing);
             
             //remove from remaining set
             for(String id : deleted)
@@ -233,7 +275,8 @@ public class MessageCrawler implements ICrawler
             }
 
             //bulk add
-            fEsConn.bulkAdd(fShindigIndex, fMessageType, newObjs);
+            fEsConn.bulkAdd(fShindigIndex, fMessageType,
+                removeUnchanged(newObjs, remoteMessages), true);
             
             //remove from remaining collections
             for(String id : newMessages)
@@ -272,20 +315,42 @@ public class MessageCrawler implements ICrawler
             updatedMsgs.addAll(retrieveWithAllFields(userId, mE.getValue()));
         }
 
+        //skip messages whose content is unchanged
+        updatedMsgs = removeUnchanged(updatedMsgs, remoteMessages);
+        
         //execute bulk update
         if(!updatedMsgs.isEmpty())
         {
             fLogger.log(Level.FINER, "updating " + updatedMsgs.size()
                 + " messages in index");
             
-            //TODO: compare JSON for equality first?
-            //TODO: equality complicated if order does not match
-            //TODO: only check if both timestamps are null
-            
             fEsConn.bulkUpdate(fShindigIndex, fMessageType, updatedMsgs);
         }
     }
     
+    private List<JSONObject> removeUnchanged(List<JSONObject> entries,
+        Map<String, JSONObject> remote) throws Exception
+    {
+        /*
+         * fingerprints all entries, dropping those whose fingerprint matches
+         * the one stored in the index since writing them would change nothing
+         */
+        List<JSONObject> changed = new ArrayList<JSONObject>(entries.size());
+        for(JSONObject entry : entries)
+        {
+            String fingerprint = ShindigEncoder.addFingerprint(entry);
+            
+            JSONObject stored = remote.get(entry.getString("id"));
+            if(stored == null || !fingerprint.equals(stored.optString(
+                ShindigEncoder.FINGERPRINT_FIELD, null)))
+            {
+                changed.add(entry);
+            }
+        }
+        
+        return changed;
+    }
+    
     private void addToOwner(String ownerId, String entryId)
     {
         //add to collections enabling lookups
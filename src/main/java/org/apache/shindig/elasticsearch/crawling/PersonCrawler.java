@@ -11,7 +11,9 @@ import java.util.logging.Logger;
 import java.util.Set;
 
 import org.apache.shindig.elasticsearch.ESConfig;
+import org.apache.shindig.elasticsearch.util.ESRouting;
 import org.apache.shindig.elasticsearch.util.IESConnector;
+import org.apache.shindig.elasticsearch.util.IESPageHandler;
 import org.apache.shindig.elasticsearch.util.ShindigEncoder;
 import org.apache.shindig.elasticsearch.util.ShindigUtil;
 import org.apache.shindig.social.opensocial.model.Person;
@@ -31,16 +33,23 @@ import com.google.inject.Inject;
  */
 public class PersonCrawler implements ICrawler
 {
-    private static final String SHINDIG_INDEX = "shindig.elasticsearch.index";
     private static final String PERSON_TYPE = "shindig.elasticsearch.person_type";
     
+    private static final String[] MATCH_FIELDS = {"id", "updated",
+        ShindigEncoder.FINGERPRINT_FIELD};
+    
     private final IExtPersonService fPeople;
     
     private final IESConnector fEsConn;
     
     private final ShindigUtil fShindUtil;
     
-    private final String fShindigIndex, fPersonType;
+    private final String fPersonType;
+    
+    private final ESRouting fRouting;
+    
+    //index written by the current crawl
+    private String fShindigIndex;
     
     private final Logger fLogger;
     
@@ -74,15 +83,19 @@ public class PersonCrawler implements ICrawler
         fEsConn = esConn;
         fShindUtil = shindig;
         
-        fShindigIndex = config.getProperty(SHINDIG_INDEX);
         fPersonType = config.getProperty(PERSON_TYPE);
         
+        fRouting = new ESRouting(config);
+        
         fLogger = Logger.getLogger(this.getClass().getCanonicalName());
     }
 
     @Override
-    public void crawl()
+    public boolean crawl(String index)
     {
+        boolean success = false;
+        fShindigIndex = index;
+        
         try
         {
             //TODO: use pagination
@@ -91,12 +104,7 @@ public class PersonCrawler implements ICrawler
             Map<String, Person> localPeople = getAllPeople();
             
             //match with results from Elasticsearch
-            Map<String, JSONObject> remotePeople = new HashMap<String, JSONObject>();
-            List<JSONObject> esPeople = fEsConn.getAll(fShindigIndex, fPersonType);
-            for(JSONObject p : esPeople)
-            {
-                remotePeople.put(p.getString("id"), p);
-            }
+            Map<String, JSONObject> remotePeople = getAllRemote(fPersonType);
             
             //check who is missing where, remove handled IDs
             handleDeleted(localPeople, remotePeople);
@@ -106,11 +114,36 @@ public class PersonCrawler implements ICrawler
             
             //handle updated entries
             handleUpdated(localPeople, remotePeople);
+            
+            success = true;
         }
         catch(Exception e)
         {
             fLogger.log(Level.SEVERE, "error updating profile index", e);
         }
+        
+        return success;
+    }
+    
+    private Map<String, JSONObject> getAllRemote(String type) throws Exception
+    {
+        final Map<String, JSONObject> remote = new HashMap<String, JSONObject>();
+        
+        //page through the index, only retrieving what is needed for matching
+        fEsConn.scroll(fShindigIndex, type,
+            fRouting.withRoutingField(type, MATCH_FIELDS), new IESPageHandler()
+        {
+            @Override
+            public void handlePage(List<JSONObject> page) throws Exception
+            {
+                for(JSONObject e : page)
+                {
+                    remote.put(e.getString("id"), e);
+                }
+            }
+        });
+        
+        return remote;
     }
     
     private Map<String, Person> getAllPeople() throws Exception
@@ -147,7 +180,15 @@ public class PersonCrawler implements ICrawler
             fLogger.log(Level.FINER, "removing " + deleted.size()
                 + " deleted people from index");
             
-            fEsConn.bulkDelete(fShindigIndex, fPersonType, deleted);
+            //routing values of the stored entries
+            Map<String, String> routing = new HashMap<String, String>();
+            for(String id : deleted)
+            {
+                routing.put(id, fRouting.getRouting(fPersonType,
+                    remotePeople.get(id)));
+            }
+            
+            fEsConn.bulkDelete(fShindigIndex, fPersonType, deleted, routing);
 
             //remove from remaining set
             for(String id : deleted)
@@ -172,8 +213,9 @@ public class PersonCrawler implements ICrawler
                 + " new people to index");
 
             //retrieve all fields  and index
-            List<JSONObject> objects = retrieveWithAllFields(newPeople);
-            fEsConn.bulkAdd(fShindigIndex, fPersonType, objects);
+            List<JSONObject> objects = removeUnchanged(
+                retrieveWithAllFields(newPeople), remotePeople);
+            fEsConn.bulkAdd(fShindigIndex, fPersonType, objects, true);
             
             //remove from remaining set
             for(String id : newPeople)
@@ -212,17 +254,44 @@ public class PersonCrawler implements ICrawler
             fLogger.log(Level.FINER, "updating " + updatedPeople.size()
                 + " people in index");
             
-            //retrieve all fields and index updated people
-            List<JSONObject> objects = retrieveWithAllFields(updatedPeople);
+            //retrieve all fields, skipping people whose content is unchanged
+            List<JSONObject> objects = removeUnchanged(
+                retrieveWithAllFields(updatedPeople), remotePeople);
             
-            //TODO: compare JSON for equality first?
-            //TODO: equality complicated if order does not match
-            //TODO: only check if both timestamps are null
+            fLogger.log(Level.FINER, (updatedPeople.size() - objects.size())
+                + " people unchanged");
             
-            fEsConn.bulkUpdate(fShindigIndex, fPersonType, objects);
+            //complete profiles, versioned so newer event-based writes win
+            if(!objects.isEmpty())
+            {
+                fEsConn.bulkAdd(fShindigIndex, fPersonType, objects, true);
+            }
         }
     }
     
+    private List<JSONObject> removeUnchanged(List<JSONObject> entries,
+        Map<String, JSONObject> remote) throws Exception
+    {
+        /*
+         * fingerprints all entries, dropping those whose fingerprint matches
+         * the one stored in the index since writing them would change nothing
+         */
+        List<JSONObject> changed = new ArrayList<JSONObject>(entries.size());
+        for(JSONObject entry : entries)
+        {
+            String fingerprint = ShindigEncoder.addFingerprint(entry);
+            
+            JSONObject stored = remote.get(entry.getString("id"));
+            if(stored == null || !fingerprint.equals(stored.optString(
+                ShindigEncoder.FINGERPRINT_FIELD, null)))
+            {
+                changed.add(entry);
+            }
+        }
+        
+        return changed;
+    }
+    
     private List<JSONObject> retrieveWithAllFields(Set<String> ids) throws Exception
     {
         /*
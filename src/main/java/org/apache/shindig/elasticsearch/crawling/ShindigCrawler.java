@@ -1,13 +1,22 @@
 package org.apache.shindig.elasticsearch.crawling;
 
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.shindig.elasticsearch.ESConfig;
+import org.apache.shindig.elasticsearch.util.ESEntryId;
+import org.apache.shindig.elasticsearch.util.ESLane;
 import org.apache.shindig.elasticsearch.util.ESMappingLoader;
+import org.apache.shindig.elasticsearch.util.ESRebuildState;
 import org.apache.shindig.elasticsearch.util.IESConnector;
 
 import com.google.inject.Inject;
@@ -19,6 +28,14 @@ import com.google.inject.Singleton;
  * 
  * Currently supports monthly, weekly, daily and one-time crawls, also on
  * startup.
+ * 
+ * Instead of clearing the live index, it can be rebuilt in a new physical
+ * index while the old one keeps serving requests. The configured index name
+ * is then an alias, which is switched to the new index once it is complete.
+ * 
+ * Entries whose writes the connector had to give up are re-indexed by the
+ * next crawl. Between scheduled crawls, the connector is checked for such
+ * entries periodically, crawling early if there are any.
  */
 @Singleton
 public class ShindigCrawler implements Runnable
@@ -36,6 +53,15 @@ public class ShindigCrawler implements Runnable
     
     private static final String LOAD_MAPPING_PROP =
         "shindig.elasticsearch.mapping.load";
+    private static final String BULK_LOAD_PROP =
+        "shindig.elasticsearch.crawl.bulk_load";
+    private static final String ALIAS_REBUILD_PROP =
+        "shindig.elasticsearch.crawl.index.alias_rebuild";
+    private static final String DIRTY_CHECK_PROP =
+        "shindig.elasticsearch.crawl.dirty_check_seconds";
+    
+    //suffix of rebuilt physical indices
+    private static final String INDEX_SUFFIX_FORMAT = "yyyyMMddHHmmss";
 
     private static final String MONTHLY = "monthly";
     private static final String WEEKLY = "weekly";
@@ -46,6 +72,8 @@ public class ShindigCrawler implements Runnable
     
     private final ESMappingLoader fMapLoader;
     
+    private final ESRebuildState fRebuild;
+    
     private final String fIndex;
     
     private final String fInterval;
@@ -56,10 +84,12 @@ public class ShindigCrawler implements Runnable
     private final Object fTrigger;
     
     private final boolean fCrawlEnabled, fCrawlOnStart, fClearOnStart,
-        fLoadMapping;
+        fLoadMapping, fBulkLoad, fAliasRebuild;
     
     private final int fClearInterval;
     
+    private final long fDirtyCheckMillis;
+    
     private final Calendar fCal;
     
     private long fLastCrawl;
@@ -68,22 +98,28 @@ public class ShindigCrawler implements Runnable
     
     private int fClearCounter = 0;
     
+    private boolean fCleared = false;
+    
+    private boolean fRebuildDue = false;
+    
+    private String fMigrationIndex = null;
+    
     private final Logger fLogger;
     
     /**
      * Creates and automatically starts a crawler sequentially triggering the
      * sub-crawlers delivered by the given crawler factory.
-     * The given configuration object, the crawler factory, the connector and
-     * the mapping loader must not be null.
+     * None of the parameters may be null.
      * 
      * @param config configuration object to use
      * @param crawlerFact crawler factory providing sub-crawlers
      * @param conn elasticsearch connector to use
      * @param mapLoader mapping loader used if the index is cleared
+     * @param rebuild state of index rebuilds shared with the event listener
      */
     @Inject
     public ShindigCrawler(ESConfig config, CrawlerFactory crawlerFact,
-        IESConnector conn, ESMappingLoader mapLoader)
+        IESConnector conn, ESMappingLoader mapLoader, ESRebuildState rebuild)
     {
         if(config == null)
         {
@@ -101,9 +137,14 @@ public class ShindigCrawler implements Runnable
         {
             throw new NullPointerException("mapping loader was null");
         }
+        if(rebuild == null)
+        {
+            throw new NullPointerException("rebuild state was null");
+        }
         
         fEsConn = conn;
         fMapLoader = mapLoader;
+        fRebuild = rebuild;
         
         fIndex = config.getProperty(SHINDIG_INDEX);
         
@@ -122,6 +163,11 @@ public class ShindigCrawler implements Runnable
         fClearInterval = Integer.parseInt(config.getProperty(CLEAR_INTERVAL));
         
         fLoadMapping = Boolean.parseBoolean(config.getProperty(LOAD_MAPPING_PROP));
+        fBulkLoad = Boolean.parseBoolean(config.getProperty(BULK_LOAD_PROP));
+        fAliasRebuild = Boolean.parseBoolean(
+            config.getProperty(ALIAS_REBUILD_PROP));
+        fDirtyCheckMillis = TimeUnit.SECONDS.toMillis(
+            Long.parseLong(config.getProperty(DIRTY_CHECK_PROP)));
         
         fCal = new GregorianCalendar();
         
@@ -135,6 +181,13 @@ public class ShindigCrawler implements Runnable
     
     private void clearIndex()
     {
+        //rebuilt next to the live index by the next crawl instead
+        if(fAliasRebuild)
+        {
+            fRebuildDue = true;
+            return;
+        }
+        
         fLogger.log(Level.INFO, "clearing index");
         
         try
@@ -146,11 +199,185 @@ public class ShindigCrawler implements Runnable
             {
                 fMapLoader.loadMappings();
             }
+            
+            //the next crawl fills the empty index
+            fCleared = true;
         }
         catch(Exception e)
         {
             fLogger.log(Level.SEVERE, "could not clear index", e);
         }
+        finally
+        {
+            //entries the listener remembers as written may be gone
+            fRebuild.invalidate();
+        }
+    }
+    
+    private void rebuildIndex()
+    {
+        //a plain index is never replaced automatically, only migrated
+        boolean migrate;
+        try
+        {
+            migrate = fEsConn.indexExists(fIndex) && !fEsConn.isAlias(fIndex);
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.SEVERE, "could not check index '" + fIndex
+                + "', skipping rebuild", e);
+            crawl(fIndex, false);
+            return;
+        }
+        
+        if(migrate && fMigrationIndex != null)
+        {
+            //one copy per run is enough, keep the plain index up to date
+            fLogger.log(Level.WARNING, "index '" + fIndex + "' is still a"
+                + " plain index, '" + fMigrationIndex + "' is waiting to"
+                + " replace it");
+            crawl(fIndex, false);
+            return;
+        }
+        
+        //new physical index named by its creation time
+        String index = fIndex + "_" + new SimpleDateFormat(
+            INDEX_SUFFIX_FORMAT).format(new Date());
+        
+        fLogger.log(Level.INFO, "rebuilding index '" + fIndex + "' in '"
+            + index + "'");
+        
+        boolean built = false;
+        List<String> previous = null;
+        try
+        {
+            fEsConn.createIndex(index);
+            
+            if(!fLoadMapping || fMapLoader.loadMappings(index))
+            {
+                //live changes are written to both indices from now on
+                fRebuild.begin(index);
+                
+                built = crawl(index, true);
+                if(built && !migrate)
+                {
+                    //switch all requests over at once
+                    previous = fEsConn.setAlias(fIndex, index);
+                }
+            }
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.SEVERE, "could not rebuild index", e);
+        }
+        finally
+        {
+            fRebuild.end();
+        }
+        
+        if(previous != null)
+        {
+            fLogger.log(Level.INFO, "index '" + fIndex + "' now points to '"
+                + index + "'");
+            dropIndices(previous);
+        }
+        else if(migrate && built)
+        {
+            //switching needs the plain index deleted, left to the operator
+            fMigrationIndex = index;
+            fLogger.log(Level.WARNING, "index '" + fIndex + "' is a plain"
+                + " index and was copied to '" + index + "', to migrate it"
+                + " delete '" + fIndex + "' and add the alias '" + fIndex
+                + "' to '" + index + "', the next crawl updates it");
+        }
+        else if(built)
+        {
+            //the switch may have been applied, the index may be live
+            fLogger.log(Level.SEVERE, "could not point '" + fIndex
+                + "' to '" + index + "', keeping it for the operator");
+        }
+        else
+        {
+            //the old index keeps serving requests
+            fLogger.log(Level.WARNING, "rebuild of index '" + fIndex
+                + "' failed, discarding '" + index + "'");
+            dropIndices(Collections.singletonList(index));
+        }
+    }
+    
+    private void dropIndices(List<String> indices)
+    {
+        for(String index : indices)
+        {
+            try
+            {
+                fEsConn.deleteIndex(index);
+            }
+            catch(Exception e)
+            {
+                fLogger.log(Level.SEVERE, "could not delete index '"
+                    + index + "'", e);
+            }
+        }
+    }
+    
+    private boolean crawl(String index, boolean empty)
+    {
+        boolean success = true;
+        
+        //filling an empty index skips refreshes and replicas
+        boolean bulkLoad = fBulkLoad && empty && beginBulkLoad(index);
+        
+        //sequentially trigger sub-crawlers, writing in the
+        //background lane so live events are not held up
+        ESLane.begin(ESLane.BACKGROUND);
+        try
+        {
+            for(ICrawler crawler : fCrawlers)
+            {
+                success &= crawler.crawl(index);
+            }
+        }
+        finally
+        {
+            ESLane.end();
+            
+            if(bulkLoad)
+            {
+                endBulkLoad(index);
+            }
+        }
+        
+        return success;
+    }
+    
+    private boolean beginBulkLoad(String index)
+    {
+        boolean bulkLoad = false;
+        
+        try
+        {
+            fEsConn.beginBulkLoad(index);
+            bulkLoad = true;
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.WARNING, "could not begin bulk load", e);
+        }
+        
+        return bulkLoad;
+    }
+    
+    private void endBulkLoad(String index)
+    {
+        try
+        {
+            fEsConn.endBulkLoad(index);
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.SEVERE, "could not end bulk load", e);
+        }
     }
 
     @Override
@@ -171,6 +398,9 @@ public class ShindigCrawler implements Runnable
             //"crawl" used to determine whether to crawl at startup
             if(crawl)
             {
+                //dirty entries are re-indexed by this crawl
+                drainDirtyEntries();
+                
                 //clear index every n iterations if configured
                 if(fClearInterval > 0
                     && ++fClearCounter % fClearInterval == 0)
@@ -178,10 +408,16 @@ public class ShindigCrawler implements Runnable
                     clearIndex();
                 }
                 
-                //sequentially trigger sub-crawlers
-                for(ICrawler crawler : fCrawlers)
+                if(fRebuildDue)
+                {
+                    //crawls into a new index replacing the live one
+                    fRebuildDue = false;
+                    rebuildIndex();
+                }
+                else
                 {
-                    crawler.crawl();
+                    crawl(fIndex, fCleared);
+                    fCleared = false;
                 }
                 
                 //note time to determine next scheduled crawl
@@ -267,12 +503,9 @@ public class ShindigCrawler implements Runnable
             
             if(millisecs > 0)
             {
-                synchronized(fTrigger)
-                {
-                    fLogger.log(Level.INFO, "scheduler: waiting "
-                        + millisecs + " ms until next crawl");
-                    fTrigger.wait(millisecs);
-                }
+                fLogger.log(Level.INFO, "scheduler: waiting "
+                    + millisecs + " ms until next crawl");
+                await(millisecs);
             }
             else
             {
@@ -285,6 +518,56 @@ public class ShindigCrawler implements Runnable
         }
     }
     
+    private void await(long millisecs) throws InterruptedException
+    {
+        long until = System.currentTimeMillis() + millisecs;
+        long remaining = millisecs;
+        
+        while(fActive && remaining > 0)
+        {
+            //wake up early to check for dirty entries if configured
+            long wait = remaining;
+            if(fDirtyCheckMillis > 0)
+            {
+                wait = Math.min(wait, fDirtyCheckMillis);
+            }
+            
+            synchronized(fTrigger)
+            {
+                fTrigger.wait(wait);
+            }
+            
+            if(fActive && fDirtyCheckMillis > 0 && drainDirtyEntries())
+            {
+                fLogger.log(Level.INFO, "scheduler: crawling to re-index"
+                    + " dirty entries");
+                crawl(fIndex, false);
+            }
+            
+            remaining = until - System.currentTimeMillis();
+        }
+    }
+    
+    private boolean drainDirtyEntries()
+    {
+        //entries whose writes the connector gave up
+        Map<String, Set<ESEntryId>> dirty = fEsConn.drainDirtyEntries();
+        
+        int count = 0;
+        for(Set<ESEntryId> entries : dirty.values())
+        {
+            count += entries.size();
+        }
+        
+        if(count > 0)
+        {
+            fLogger.log(Level.WARNING, count + " dirty entries in "
+                + dirty.keySet() + " to be re-indexed by crawling");
+        }
+        
+        return count > 0;
+    }
+    
     /**
      * Stops the running crawler thread.
      */
@@ -1,12 +1,19 @@
 package org.apache.shindig.elasticsearch.listeners;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.shindig.elasticsearch.ESConfig;
+import org.apache.shindig.elasticsearch.util.ESDeadline;
+import org.apache.shindig.elasticsearch.util.ESRebuildState;
+import org.apache.shindig.elasticsearch.util.ESResult;
+import org.apache.shindig.elasticsearch.util.ESRouting;
+import org.apache.shindig.elasticsearch.util.IAsyncESConnector;
+import org.apache.shindig.elasticsearch.util.IESCallback;
 import org.apache.shindig.elasticsearch.util.IESConnector;
 import org.apache.shindig.elasticsearch.util.ShindigEncoder;
 import org.apache.shindig.elasticsearch.util.ShindigUtil;
@@ -26,6 +33,11 @@ import com.google.inject.Singleton;
 /**
  * Listener for changes regarding profiles, activities and messages making,
  * relaying any changes to an elasticsearch server.
+ * While the crawler rebuilds the index, changes are written to both the live
+ * index and the one being rebuilt.
+ * Fingerprints of written entries are only remembered once all writes were
+ * acknowledged, which with asynchronous connectors happens after the event
+ * was handled.
  */
 @Singleton
 public class ElasticsearchListener implements IEventListener
@@ -45,17 +57,31 @@ public class ElasticsearchListener implements IEventListener
     
     private static final String ADD_FRIEND_ACL = "shindig.elasticsearch.acls.add_friends";
     
+    private static final String FINGERPRINT_CACHE = "shindig.elasticsearch.fingerprint_cache.size";
+    
+    private static final String DEADLINE = "shindig.elasticsearch.listener.deadline";
+    
     private final IESConnector fConn;
     
+    private final IAsyncESConnector fAsyncConn;
+    
+    private final ESRebuildState fRebuild;
+    
     private final ShindigUtil fShindUtil;
     
     private final String fIndex;
     
     private final String fPersonType, fActivityType, fMessageType;
     
+    private final ESRouting fRouting;
+    
     private final boolean fProfsOn, fActsOn, fMsgsOn, fSkillsOn, fAddFriendAcl;
     private final boolean fEnabled;
     
+    private final long fDeadline;
+    
+    private final Map<String, String> fFingerprints;
+    
     private final Logger fLogger;
     
     /**
@@ -68,10 +94,11 @@ public class ElasticsearchListener implements IEventListener
      * @param connector elasticsearch connector to use
      * @param eventBus event bus to register to
      * @param shindig shindig utility to use
+     * @param rebuild state of index rebuilds to write changes to
      */
     @Inject
     public ElasticsearchListener(ESConfig config, IESConnector connector,
-        ShindigEventBus eventBus, ShindigUtil shindig)
+        ShindigEventBus eventBus, ShindigUtil shindig, ESRebuildState rebuild)
     {
         if(config == null)
         {
@@ -89,6 +116,10 @@ public class ElasticsearchListener implements IEventListener
         {
             throw new NullPointerException("shindig utility was null");
         }
+        if(rebuild == null)
+        {
+            throw new NullPointerException("rebuild state was null");
+        }
         
         fEnabled = Boolean.parseBoolean(config.getProperty(HANDLE_EVENTS));
         fIndex = config.getProperty(SHINDIG_INDEX);
@@ -97,7 +128,18 @@ public class ElasticsearchListener implements IEventListener
         fActivityType = config.getProperty(ACTIVITY_TYPE);
         fMessageType = config.getProperty(MESSAGE_TYPE);
         
+        fRouting = new ESRouting(config);
+        
         fConn = connector;
+        if(connector instanceof IAsyncESConnector)
+        {
+            fAsyncConn = (IAsyncESConnector) connector;
+        }
+        else
+        {
+            fAsyncConn = null;
+        }
+        fRebuild = rebuild;
         fShindUtil = shindig;
         
         fProfsOn = Boolean.parseBoolean(config.getProperty(PROFILES_ON));
@@ -108,6 +150,26 @@ public class ElasticsearchListener implements IEventListener
 
         fAddFriendAcl = Boolean.parseBoolean(config.getProperty(ADD_FRIEND_ACL));
         
+        //maximum time an event may hold up the thread firing it
+        String deadline = config.getProperty(DEADLINE);
+        fDeadline = deadline == null ? 0 : Long.parseLong(deadline);
+        
+        //last written fingerprints, least recently used entries are evicted
+        String cacheSize = config.getProperty(FINGERPRINT_CACHE);
+        final int maxFingerprints = cacheSize == null ? 0
+            : Integer.parseInt(cacheSize);
+        fFingerprints = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                return size() > maxFingerprints;
+            }
+        });
+        
         fLogger = Logger.getLogger(this.getClass().getCanonicalName());
         
 
@@ -124,6 +186,12 @@ public class ElasticsearchListener implements IEventListener
             return;
         }
         
+        //limit all connector calls made for this event
+        if(fDeadline > 0)
+        {
+            ESDeadline.begin(fDeadline);
+        }
+        
         try
         {
             switch(event.getType())
@@ -170,6 +238,10 @@ public class ElasticsearchListener implements IEventListener
         {
             fLogger.log(Level.SEVERE, "could not update index", e);
         }
+        finally
+        {
+            ESDeadline.end();
+        }
     }
     
     private ActivityEntry toActivity(Object payload)
@@ -245,6 +317,87 @@ public class ElasticsearchListener implements IEventListener
         return friendArr;
     }
 
+    private boolean isUnchanged(String type, String id, String fingerprint)
+    {
+        //only known if this entry's last write went through this listener
+        //and the index was not cleared or rebuilt since
+        return (fRebuild.getGeneration() + ":" + fingerprint).equals(
+            fFingerprints.get(type + '/' + id));
+    }
+    
+    private void written(String type, String id, String fingerprint,
+        long generation)
+    {
+        fFingerprints.put(type + '/' + id, generation + ":" + fingerprint);
+    }
+    
+    private void removed(String type, String id)
+    {
+        fFingerprints.remove(type + '/' + id);
+    }
+    
+    private void add(String type, String id, JSONObject entry,
+        String fingerprint) throws Exception
+    {
+        long version = ShindigEncoder.getVersion(entry);
+        long generation = fRebuild.getGeneration();
+        List<String> indices = fRebuild.getWriteIndices(fIndex);
+        
+        //index in Elasticsearch, ignored if a newer version exists
+        if(fAsyncConn != null)
+        {
+            WriteCallback callback = new WriteCallback(type, id, fingerprint,
+                generation, indices.size());
+            for(String index : indices)
+            {
+                fAsyncConn.addAsync(index, type, id, entry, version)
+                    .addCallback(callback);
+            }
+        }
+        else
+        {
+            for(String index : indices)
+            {
+                fConn.add(index, type, id, entry, version);
+            }
+            written(type, id, fingerprint, generation);
+        }
+    }
+    
+    private void upsert(String type, String id, JSONObject entry,
+        JSONObject initial, String fingerprint) throws Exception
+    {
+        long generation = fRebuild.getGeneration();
+        List<String> indices = fRebuild.getWriteIndices(fIndex);
+        
+        //update it if it exists, add it if it does not
+        if(fAsyncConn != null)
+        {
+            WriteCallback callback = new WriteCallback(type, id, fingerprint,
+                generation, indices.size());
+            for(String index : indices)
+            {
+                fAsyncConn.upsertAsync(index, type, id, entry, initial)
+                    .addCallback(callback);
+            }
+        }
+        else
+        {
+            for(String index : indices)
+            {
+                if(initial != null)
+                {
+                    fConn.upsert(index, type, id, entry, initial);
+                }
+                else
+                {
+                    fConn.upsert(index, type, id, entry);
+                }
+            }
+            written(type, id, fingerprint, generation);
+        }
+    }
+    
     private void activityCreated(IShindigEvent event) throws Exception
     {
         if(fActsOn)
@@ -261,8 +414,14 @@ public class ElasticsearchListener implements IEventListener
                 activity.put("whitelist", acl);
             }
             
-            //index in Elasticsearch
-            fConn.add(fIndex, fActivityType, entry.getId(), activity);
+            //skip if the same content was already written
+            String fingerprint = ShindigEncoder.addFingerprint(activity);
+            if(isUnchanged(fActivityType, entry.getId(), fingerprint))
+            {
+                return;
+            }
+            
+            add(fActivityType, entry.getId(), activity, fingerprint);
         }
     }
 
@@ -278,16 +437,14 @@ public class ElasticsearchListener implements IEventListener
             //index in Elasticsearch
             String id = entry.getId();
             
-            if(fConn.entryExists(fIndex, fActivityType, id))
-            {
-                //update it if it exists
-                fConn.update(fIndex, fActivityType, id, activity);
-            }
-            else
+            //skip if the same content was already written
+            String fingerprint = ShindigEncoder.addFingerprint(activity);
+            if(isUnchanged(fActivityType, id, fingerprint))
             {
-                //add it if it does not exist
-                fConn.add(fIndex, fActivityType, id, activity);
+                return;
             }
+            
+            upsert(fActivityType, id, activity, null, fingerprint);
         }
     }
 
@@ -297,10 +454,19 @@ public class ElasticsearchListener implements IEventListener
         {
             ActivityEntry entry = toActivity(event.getPayload());
             
+            //routed by the same values the activity was written with
+            String routing = fRouting.getRouting(fActivityType,
+                toJSON(entry, event.getProperties()));
+            
             //remove from Elasticsearch
-            if(fConn.entryExists(fIndex, fActivityType, entry.getId()))
+            removed(fActivityType, entry.getId());
+            for(String index : fRebuild.getWriteIndices(fIndex))
             {
-                fConn.delete(fIndex, fActivityType, entry.getId());
+                if(fConn.entryExists(index, fActivityType, entry.getId(),
+                    routing))
+                {
+                    fConn.delete(index, fActivityType, entry.getId(), routing);
+                }
             }
         }
     }
@@ -315,8 +481,14 @@ public class ElasticsearchListener implements IEventListener
             JSONObject profile = ShindigEncoder.toJSON(person,
                 fShindUtil.getSkills(person.getId()));
             
-            //index in Elasticsearch
-            fConn.add(fIndex, fPersonType, person.getId(), profile);
+            //skip if the same content was already written
+            String fingerprint = ShindigEncoder.addFingerprint(profile);
+            if(isUnchanged(fPersonType, person.getId(), fingerprint))
+            {
+                return;
+            }
+            
+            add(fPersonType, person.getId(), profile, fingerprint);
         }
     }
     
@@ -333,16 +505,15 @@ public class ElasticsearchListener implements IEventListener
             //index in Elasticsearch
             String id = person.getId();
             
-            if(fConn.entryExists(fIndex, fPersonType, id))
-            {
-                //update it if it exists
-                fConn.update(fIndex, fPersonType, id, profile);
-            }
-            else
+            //skip if the same content was already written
+            String fingerprint = ShindigEncoder.addFingerprint(profile);
+            if(isUnchanged(fPersonType, id, fingerprint))
             {
-                //add it if it does not exist
-                fConn.add(fIndex, fPersonType, id, profile);
+                return;
             }
+            
+            //replace complete profile
+            add(fPersonType, id, profile, fingerprint);
         }
     }
     
@@ -352,10 +523,19 @@ public class ElasticsearchListener implements IEventListener
         {
             Person person = toPerson(event.getPayload());
             
+            //routed by the same values the profile was written with
+            String routing = fRouting.getRouting(fPersonType,
+                ShindigEncoder.toJSON(person, null));
+            
             //remove from Elasticsearch
-            if(fConn.entryExists(fIndex, fPersonType, person.getId()))
+            removed(fPersonType, person.getId());
+            for(String index : fRebuild.getWriteIndices(fIndex))
             {
-                fConn.delete(fIndex, fPersonType, person.getId());
+                if(fConn.entryExists(index, fPersonType, person.getId(),
+                    routing))
+                {
+                    fConn.delete(index, fPersonType, person.getId(), routing);
+                }
             }
         }
     }
@@ -398,7 +578,14 @@ public class ElasticsearchListener implements IEventListener
             
             //TODO: add marker whether message was already sent
             
-            fConn.add(fIndex, fMessageType, message.getId(), entry);
+            //skip if the same content was already written
+            String fingerprint = ShindigEncoder.addFingerprint(entry);
+            if(isUnchanged(fMessageType, message.getId(), fingerprint))
+            {
+                return;
+            }
+            
+            add(fMessageType, message.getId(), entry, fingerprint);
         }
     }
     
@@ -413,28 +600,31 @@ public class ElasticsearchListener implements IEventListener
             
             
             String id = message.getId();
-            if(fConn.entryExists(fIndex, fMessageType, id))
-            {
-                //TODO: preserve origin
-                JSONObject oldEntry = fConn.get(fIndex, fMessageType, id);
-                JSONArray oldOrigin = (JSONArray) oldEntry.remove("origin");
-                
-                //TODO: check for updated senders and recipients? can they be updated?
-                entry.put("origin", oldOrigin);
-                
-                fConn.update(fIndex, fMessageType, id, entry);
-            }
-            else
+            
+            //existing entries keep their origin, since the partial update
+            //does not contain one
+            //TODO: check for updated senders and recipients? can they be updated?
+            entry.remove("origin");
+            
+            //skip if the same update was already written, the partial
+            //content's fingerprint is only remembered, not stored
+            String fingerprint = ShindigEncoder.getFingerprint(entry);
+            if(isUnchanged(fMessageType, id, fingerprint))
             {
-                //TODO: construct origin from sender and recipients?
-                JSONArray origin = getMessageOrigin(message);
-                entry.put("origin", origin);
-                
-                //TODO: causes a problem for messages that have been deleted by
-                //others already
-                
-                fConn.add(fIndex, fMessageType, id, entry);
+                return;
             }
+            
+            //new entries get their origin from sender and recipients
+            //TODO: causes a problem for messages that have been deleted by
+            //others already
+            JSONObject initial = new JSONObject(entry.toString());
+            initial.put("origin", getMessageOrigin(message));
+            ShindigEncoder.addFingerprint(initial);
+            
+            //the stored fingerprint no longer matches the updated entry
+            entry.put(ShindigEncoder.FINGERPRINT_FIELD, JSONObject.NULL);
+            
+            upsert(fMessageType, id, entry, initial, fingerprint);
         }
     }
     
@@ -444,39 +634,20 @@ public class ElasticsearchListener implements IEventListener
         {
             Message message = toMessage(event.getPayload());
             
-            //remove from Elasticsearch
-            if(fConn.entryExists(fIndex, fMessageType, message.getId()))
+            //only update, removing the user from the "origin" list
+            String userId = event.getProperties().get("userId");
+            
+            //origin changes, so the content has to be written again
+            removed(fMessageType, message.getId());
+            
+            //done on the server side, deleting the entry if there are no
+            //owners left, ignored if the entry does not exist
+            String routing = fRouting.getRouting(fMessageType,
+                ShindigEncoder.toJSON(message));
+            for(String index : fRebuild.getWriteIndices(fIndex))
             {
-                //TODO: only update, removing the user from the "origin" list
-                String userId = event.getProperties().get("userId");
-                
-                //TODO: test ... how?
-                
-                //get existing entry
-                JSONObject oldEntry = fConn.get(fIndex, fMessageType, message.getId());
-                
-                JSONArray oldOrigin = (JSONArray) oldEntry.remove("origin");
-                //entries can not be removed, rebuild
-                List<String> originUsers = new ArrayList<String>(oldOrigin.length());
-                for(int i = 0; i < oldOrigin.length(); ++i)
-                {
-                    String id = oldOrigin.getString(i);
-                    if(!id.equals(userId))
-                    {
-                        originUsers.add(id);
-                    }
-                }
-                oldEntry.put("origin", ShindigEncoder.toArray(originUsers));
-                
-                if(!originUsers.isEmpty())
-                {
-                    fConn.update(fIndex, fMessageType, message.getId(), oldEntry);
-                }
-                else
-                {
-                    //TODO: actually delete if there are no owners left?
-                    fConn.delete(fIndex, fMessageType, message.getId());
-                }
+                fConn.removeFromArray(index, fMessageType, message.getId(),
+                    "origin", userId, true, routing);
             }
         }
     }
@@ -496,15 +667,77 @@ public class ElasticsearchListener implements IEventListener
             //index in Elasticsearch
             String id = person.getId();
             
-            if(fConn.entryExists(fIndex, fPersonType, id))
+            //skip if the same content was already written
+            String fingerprint = ShindigEncoder.addFingerprint(profile);
+            if(isUnchanged(fPersonType, id, fingerprint))
+            {
+                return;
+            }
+            
+            //replace complete profile
+            add(fPersonType, id, profile, fingerprint);
+        }
+    }
+    
+    /**
+     * Callback remembering an entry's fingerprint once its writes to all
+     * indices were acknowledged, logging failed writes instead.
+     */
+    private class WriteCallback implements IESCallback<ESResult>
+    {
+        private final String fType, fId, fFingerprint;
+        private final long fGeneration;
+        
+        private int fPending;
+        private boolean fFailed;
+        
+        public WriteCallback(String type, String id, String fingerprint,
+            long generation, int writes)
+        {
+            fType = type;
+            fId = id;
+            fFingerprint = fingerprint;
+            fGeneration = generation;
+            fPending = writes;
+        }
+        
+        @Override
+        public void onSuccess(ESResult result)
+        {
+            if(result.isFailed())
+            {
+                fLogger.log(Level.SEVERE, "could not update index: "
+                    + result);
+            }
+            done(result.isFailed());
+        }
+        
+        @Override
+        public void onFailure(Throwable failure)
+        {
+            fLogger.log(Level.SEVERE, "could not update index", failure);
+            done(true);
+        }
+        
+        private void done(boolean failed)
+        {
+            synchronized(this)
+            {
+                fFailed |= failed;
+                if(--fPending > 0)
+                {
+                    return;
+                }
+            }
+            
+            if(fFailed)
             {
-                //update it if it exists
-                fConn.update(fIndex, fPersonType, id, profile);
+                //content in the indices is unknown
+                removed(fType, fId);
             }
             else
             {
-                //add it if it does not exist
-                fConn.add(fIndex, fPersonType, id, profile);
+                written(fType, fId, fFingerprint, fGeneration);
             }
         }
     }
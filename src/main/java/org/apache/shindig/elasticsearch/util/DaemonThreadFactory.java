@@ -0,0 +1,40 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory creating named daemon threads for background tasks of the
+ * connectors, so that they never prevent a shutdown.
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+    private final String fName;
+    
+    private final AtomicInteger fCount;
+    
+    /**
+     * Creates a thread factory naming its threads after the given name.
+     * The given name must not be null.
+     * 
+     * @param name base name of created threads
+     */
+    public DaemonThreadFactory(String name)
+    {
+        if(name == null)
+        {
+            throw new NullPointerException("name was null");
+        }
+        
+        fName = name;
+        fCount = new AtomicInteger();
+    }
+
+    @Override
+    public Thread newThread(Runnable r)
+    {
+        Thread thread = new Thread(r, fName + "-" + fCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,261 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.json.JSONObject;
+
+/**
+ * Utility switching indices to settings suited for loading them from
+ * scratch and back again, independent of the transport used, which is
+ * provided by an IESIndexAdmin implementation.
+ * While loading, periodic refreshes are disabled and no replicas are
+ * written. Afterwards the previous settings are restored, the index is
+ * refreshed and the call waits until the index reaches the configured
+ * health status, so that replicas have been rebuilt.
+ * The previous settings are stored in a document in a separate state index
+ * before they are changed, so that indices left in bulk load mode by a crash
+ * or restart are restored the next time a connector is created.
+ */
+public class ESBulkLoadSettings
+{
+    private static final String HEALTH_PROP =
+        "shindig.elasticsearch.bulk_load.health";
+    private static final String HEALTH_TIMEOUT_PROP =
+        "shindig.elasticsearch.bulk_load.health_timeout";
+    private static final String STATE_INDEX_PROP =
+        "shindig.elasticsearch.bulk_load.state_index";
+    
+    private static final String STATE_TYPE = "bulk_load";
+    private static final String STATE_ID = "originals";
+    
+    private static final String REFRESH_SETTING = "index.refresh_interval";
+    private static final String REPLICAS_SETTING = "index.number_of_replicas";
+    
+    //Elasticsearch's default if the index does not define one
+    private static final String DEFAULT_REFRESH = "1s";
+    
+    private final IESIndexAdmin fAdmin;
+    
+    private final ClusterHealthStatus fHealth;
+    private final long fHealthTimeout;
+    
+    private final String fStateIndex;
+    
+    private final Logger fLogger;
+    
+    /**
+     * Creates a bulk load utility using the given configuration, sending
+     * requests via the given index management calls.
+     * None of the parameters may be null.
+     * 
+     * @param config configuration object to use
+     * @param admin index management calls to use
+     */
+    public ESBulkLoadSettings(ESConfig config, IESIndexAdmin admin)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        if(admin == null)
+        {
+            throw new NullPointerException("index admin was null");
+        }
+        
+        fAdmin = admin;
+        
+        //empty status does not wait at all
+        String health = config.getProperty(HEALTH_PROP);
+        if(health != null && !health.isEmpty())
+        {
+            fHealth = ClusterHealthStatus.valueOf(
+                health.toUpperCase(Locale.ENGLISH));
+        }
+        else
+        {
+            fHealth = null;
+        }
+        fHealthTimeout = Long.parseLong(config.getProperty(HEALTH_TIMEOUT_PROP));
+        
+        fStateIndex = config.getProperty(STATE_INDEX_PROP);
+        
+        fLogger = Logger.getLogger(this.getClass().getCanonicalName());
+    }
+    
+    /**
+     * Stores the current settings of the given index and disables refreshes
+     * and replicas. Repeated calls for the same index are ignored until end
+     * is called. The index must exist.
+     * The given index name must not be null.
+     * 
+     * @param index name of the index to load
+     * @throws Exception if settings can not be read, stored or changed
+     */
+    public synchronized void begin(String index) throws Exception
+    {
+        JSONObject originals = loadOriginals();
+        if(originals.has(index))
+        {
+            fLogger.log(Level.WARNING, "index '" + index
+                + "' is already in bulk load mode");
+            return;
+        }
+        
+        Map<String, String> original = fAdmin.getSettings(index,
+            REFRESH_SETTING, REPLICAS_SETTING);
+        if(!original.containsKey(REFRESH_SETTING))
+        {
+            original.put(REFRESH_SETTING, DEFAULT_REFRESH);
+        }
+        
+        //persist before changing anything, so a crash can be recovered from
+        originals.put(index, new JSONObject(original));
+        storeOriginals(originals);
+        
+        Map<String, String> loading = new HashMap<String, String>();
+        loading.put(REFRESH_SETTING, "-1");
+        loading.put(REPLICAS_SETTING, "0");
+        fAdmin.updateSettings(index, loading);
+        
+        fLogger.log(Level.INFO, "index '" + index + "' in bulk load mode,"
+            + " restoring " + original + " afterwards");
+    }
+    
+    /**
+     * Restores the settings of the given index stored by begin, refreshes it
+     * and waits for the configured health status.
+     * The call is ignored if the index is not in bulk load mode.
+     * The given index name must not be null.
+     * 
+     * @param index name of the loaded index
+     * @throws Exception if settings can not be restored
+     */
+    public void end(String index) throws Exception
+    {
+        synchronized(this)
+        {
+            JSONObject originals = loadOriginals();
+            JSONObject original = originals.optJSONObject(index);
+            if(original == null)
+            {
+                return;
+            }
+            
+            fAdmin.updateSettings(index, toMap(original));
+            
+            //only forget the settings once they are restored
+            originals.remove(index);
+            storeOriginals(originals);
+        }
+        
+        //make everything loaded visible at once
+        fAdmin.refresh(index);
+        
+        if(fHealth != null
+            && !fAdmin.waitForHealth(index, fHealth, fHealthTimeout))
+        {
+            fLogger.log(Level.WARNING, "index '" + index + "' did not"
+                + " reach status " + fHealth + " after bulk load");
+        }
+        
+        fLogger.log(Level.INFO, "index '" + index + "' left bulk load mode");
+    }
+    
+    /**
+     * Restores the settings of all indices that were left in bulk load mode,
+     * for example because the server was stopped while crawling. Indices
+     * that no longer exist are forgotten. Failures are only logged, so that
+     * they are retried the next time.
+     * Loads started by begin and not yet ended are also restored, so this
+     * should only be called at startup.
+     */
+    public synchronized void restore()
+    {
+        try
+        {
+            JSONObject originals = loadOriginals();
+            if(originals.length() == 0)
+            {
+                return;
+            }
+            
+            List<String> indices = new ArrayList<String>();
+            Iterator<?> keys = originals.keys();
+            while(keys.hasNext())
+            {
+                indices.add(keys.next().toString());
+            }
+            
+            for(String index : indices)
+            {
+                try
+                {
+                    if(fAdmin.indexExists(index))
+                    {
+                        fAdmin.updateSettings(index,
+                            toMap(originals.getJSONObject(index)));
+                        
+                        fLogger.log(Level.WARNING, "index '" + index
+                            + "' was left in bulk load mode, restored "
+                            + originals.get(index));
+                    }
+                    
+                    originals.remove(index);
+                }
+                catch(Exception e)
+                {
+                    fLogger.log(Level.SEVERE, "could not restore settings of"
+                        + " index '" + index + "' after bulk load", e);
+                }
+            }
+            
+            storeOriginals(originals);
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.SEVERE, "could not check for indices left in"
+                + " bulk load mode", e);
+        }
+    }
+    
+    private JSONObject loadOriginals() throws Exception
+    {
+        JSONObject originals = fAdmin.getDocument(fStateIndex, STATE_TYPE,
+            STATE_ID);
+        
+        if(originals == null)
+        {
+            originals = new JSONObject();
+        }
+        
+        return originals;
+    }
+    
+    private void storeOriginals(JSONObject originals) throws Exception
+    {
+        fAdmin.putDocument(fStateIndex, STATE_TYPE, STATE_ID, originals);
+    }
+    
+    private Map<String, String> toMap(JSONObject settings) throws Exception
+    {
+        Map<String, String> map = new HashMap<String, String>();
+        
+        Iterator<?> keys = settings.keys();
+        while(keys.hasNext())
+        {
+            String key = keys.next().toString();
+            map.put(key, settings.getString(key));
+        }
+        
+        return map;
+    }
+}
@@ -0,0 +1,155 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+
+/**
+ * Controller adapting the number of actions per bulk and the flush interval
+ * to the observed load of the cluster, within configured bounds.
+ * Bulks that are slower than the target latency, contain rejected actions or
+ * meet full bulk thread pool queues on the nodes halve the bulk size and
+ * double the flush interval. Fast bulks without rejections grow the bulk
+ * size by a tenth of its range and shorten the flush interval accordingly.
+ */
+public class ESBulkTuner
+{
+    private static final String MIN_ACTIONS_PROP =
+        "shindig.elasticsearch.bulking.adaptive.min_actions";
+    private static final String MAX_ACTIONS_PROP =
+        "shindig.elasticsearch.bulking.adaptive.max_actions";
+    private static final String MIN_MILLIS_PROP =
+        "shindig.elasticsearch.bulking.adaptive.min_millis";
+    private static final String MAX_MILLIS_PROP =
+        "shindig.elasticsearch.bulking.adaptive.max_millis";
+    private static final String TARGET_PROP =
+        "shindig.elasticsearch.bulking.adaptive.target_millis";
+    private static final String QUEUE_PROP =
+        "shindig.elasticsearch.bulking.adaptive.max_queue";
+    
+    private final int fMinActions, fMaxActions, fActionStep;
+    private final long fMinMillis, fMaxMillis, fTargetMillis;
+    private final int fMaxQueue;
+    
+    private int fActions;
+    private long fFlushMillis;
+    private int fQueue;
+    
+    private final Logger fLogger;
+    
+    /**
+     * Creates a bulk tuner using the given configuration, starting with the
+     * given bulk size and flush interval, limited to the configured bounds.
+     * The given configuration object must not be null.
+     * 
+     * @param config configuration object to use
+     * @param actions initial number of actions per bulk
+     * @param flushMillis initial flush interval in milliseconds
+     */
+    public ESBulkTuner(ESConfig config, int actions, long flushMillis)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        
+        fMinActions = Integer.parseInt(config.getProperty(MIN_ACTIONS_PROP));
+        fMaxActions = Integer.parseInt(config.getProperty(MAX_ACTIONS_PROP));
+        fMinMillis = Long.parseLong(config.getProperty(MIN_MILLIS_PROP));
+        fMaxMillis = Long.parseLong(config.getProperty(MAX_MILLIS_PROP));
+        fTargetMillis = Long.parseLong(config.getProperty(TARGET_PROP));
+        fMaxQueue = Integer.parseInt(config.getProperty(QUEUE_PROP));
+        
+        if(fMinActions < 1 || fMinActions > fMaxActions)
+        {
+            throw new IllegalArgumentException("invalid bulk size bounds: "
+                + fMinActions + " - " + fMaxActions);
+        }
+        if(fMinMillis < 1 || fMinMillis > fMaxMillis)
+        {
+            throw new IllegalArgumentException("invalid flush interval bounds: "
+                + fMinMillis + " - " + fMaxMillis);
+        }
+        
+        fActionStep = Math.max(1, (fMaxActions - fMinActions) / 10);
+        
+        fActions = Math.max(fMinActions, Math.min(fMaxActions, actions));
+        fFlushMillis = Math.max(fMinMillis, Math.min(fMaxMillis, flushMillis));
+        fQueue = 0;
+        
+        fLogger = Logger.getLogger(this.getClass().getCanonicalName());
+    }
+    
+    /**
+     * @return current number of actions per bulk
+     */
+    public synchronized int getActions()
+    {
+        return fActions;
+    }
+    
+    /**
+     * @return current flush interval in milliseconds
+     */
+    public synchronized long getFlushMillis()
+    {
+        return fFlushMillis;
+    }
+    
+    /**
+     * @return upper bound of actions per bulk
+     */
+    public int getMaxActions()
+    {
+        return fMaxActions;
+    }
+    
+    /**
+     * @return lower bound of the flush interval in milliseconds
+     */
+    public long getMinFlushMillis()
+    {
+        return fMinMillis;
+    }
+    
+    /**
+     * Adapts bulk size and flush interval to the outcome of an executed bulk.
+     * 
+     * @param actions number of actions in the bulk
+     * @param millis round-trip time of the bulk in milliseconds
+     * @param rejected number of actions rejected by the cluster
+     */
+    public synchronized void recordBulk(int actions, long millis, int rejected)
+    {
+        if(rejected > 0 || millis > fTargetMillis || fQueue > fMaxQueue)
+        {
+            //back off quickly under pressure
+            fActions = Math.max(fMinActions, fActions / 2);
+            fFlushMillis = Math.min(fMaxMillis, fFlushMillis * 2);
+            
+            fLogger.log(Level.FINE, "bulk of " + actions + " actions took "
+                + millis + " ms with " + rejected + " rejections, shrinking"
+                + " bulks to " + fActions + " actions every "
+                + fFlushMillis + " ms");
+        }
+        else if(actions >= fActions)
+        {
+            //grow slowly while full bulks are handled well
+            fActions = Math.min(fMaxActions, fActions + fActionStep);
+            fFlushMillis = Math.max(fMinMillis,
+                fFlushMillis - fFlushMillis / 10);
+        }
+    }
+    
+    /**
+     * Records the longest bulk thread pool queue currently found on the
+     * cluster's nodes, which is taken into account for subsequent bulks.
+     * 
+     * @param queue longest bulk queue of all nodes
+     */
+    public synchronized void recordQueue(int queue)
+    {
+        fQueue = queue;
+    }
+}
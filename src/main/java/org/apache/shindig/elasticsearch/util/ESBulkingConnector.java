@@ -1,33 +1,64 @@
 package org.apache.shindig.elasticsearch.util;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesResponse;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetRequestBuilder;
 import org.elasticsearch.action.get.GetResponse;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
-import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.common.settings.ImmutableSettings;
-import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.transport.InetSocketTransportAddress;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
-import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
 import org.elasticsearch.indices.IndexMissingException;
-import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.threadpool.ThreadPoolStats;
 import org.json.JSONObject;
 
 import com.google.inject.Inject;
@@ -37,193 +68,1104 @@ import com.google.inject.Singleton;
  * Elasticsearch connector utility class using the binary transport client
  * providing indexing, updating and deletion of JSON object in the index and
  * index management functionality - implementation performing lazy bulking.
+ * Futures of asynchronous write calls complete once their bulk was executed,
+ * including retries. Retried requests are queued again regardless of the
+ * queue limits.
+ * Optionally, requests for the same entry are coalesced for a short time
+ * before being bulked, so that only their net effect is sent.
+ * Optionally, the bulk size and flush interval adapt to the observed bulk
+ * latency, rejections and bulk queues of the cluster (see ESBulkTuner).
+ * Writes are queued in one of two lanes with separate queue limits and bulk
+ * settings, selected per thread (see ESLane): interactive writes, caused by
+ * live events, and background writes like crawls, which are rate-limited and
+ * held back while interactive bulks are running, before they are queued.
+ * Reads of single entries reflect queued requests that have not been
+ * executed yet, as far as they are tracked by the pending-write overlay.
+ * Reads and index management calls wait for results only up to configurable
+ * timeouts, shortened by the calling thread's deadline (see ESDeadline).
+ * Callers blocked by a full queue give up at the write timeout with an
+ * exception. With the "dirty" queue policy, requests are dead-lettered instead
+ * and their entries are re-indexed by the crawler (see drainDirtyEntries).
  * The connection can be closed manually, but will be closed automatically on
  * shutdown.
  */
 @Singleton
-public class ESBulkingConnector implements BulkProcessor.Listener, IESConnector
+public class ESBulkingConnector implements IAsyncESConnector
 {
-    private static final String HOST_PROP = "shindig.elasticsearch.host";
-    private static final String PORT_PROP = "shindig.elasticsearch.port";
-    private static final String CNAME_PROP = "shindig.elasticsearch.cluster.name";
 
-    private static final String ACTIONS_PROP = "shindig.elasticsearch.bulking.actions";
-    private static final String MBS_PROP = "shindig.elasticsearch.bulking.megabytes";
-    private static final String SECONDS_PROP = "shindig.elasticsearch.bulking.seconds";
+    private static final String BULKING_PREFIX = "shindig.elasticsearch.bulking.";
+    private static final String BACKGROUND_PREFIX = "shindig.elasticsearch.bulking.background.";
+    private static final String ACTIONS_KEY = "actions";
+    private static final String MBS_KEY = "megabytes";
+    private static final String SECONDS_KEY = "seconds";
+    private static final String CONCURRENT_KEY = "concurrent";
+    private static final String QUEUE_SIZE_KEY = "queue.size";
+    private static final String YIELD_PROP = "shindig.elasticsearch.bulking.background.yield_millis";
+    private static final String RATE_PROP = "shindig.elasticsearch.bulking.background.max_rate";
+    private static final String QUEUE_POLICY_PROP = "shindig.elasticsearch.bulking.queue.policy";
+    private static final String WAL_PROP = "shindig.elasticsearch.bulking.wal.enabled";
+    private static final String COALESCE_PROP = "shindig.elasticsearch.bulking.coalesce_millis";
+    private static final String OVERLAY_PROP = "shindig.elasticsearch.bulking.overlay.size";
+    private static final String ADAPTIVE_PROP = "shindig.elasticsearch.bulking.adaptive";
+    private static final String STATS_PROP = "shindig.elasticsearch.bulking.adaptive.stats_seconds";
     
-    private final String fEsHost, fEsClusterName;
-    private final int fEsPort;
+    /**
+     * Policies determining what happens to new requests if the maximum number
+     * of queued, unacknowledged requests has been reached.
+     */
+    public enum QueuePolicy
+    {
+        /**
+         * the calling thread waits until there is space in the queue, up to
+         * the write timeout, and the request is rejected with an exception
+         * afterwards
+         */
+        BLOCK,
+        /**
+         * the request is dead-lettered and its entry is marked as dirty,
+         * to be re-indexed by the crawler
+         */
+        DIRTY,
+        /** the request is rejected with an exception */
+        FAIL
+    }
     
     private final Client fClient;
-    private final BulkProcessor fBulkProcessor;
+    
+    private final Lane fInteractive, fBackground;
+    private final long fYieldMillis;
+    private final int fBackgroundRate;
+    private long fNextSlot;
+    
+    private final ESScroller fScroller;
+    
+    private final Set<String> fKnownIndices;
+    
+    private final QueuePolicy fQueuePolicy;
+    private final Object fQueueLock;
+    private final ESDirtyEntries fDirtyEntries;
+    
+    private final ESRetryPolicy fRetryPolicy;
+    private final Map<ActionRequest<?>, Integer> fAttempts;
+    private final ScheduledExecutorService fScheduler;
+    private final ScheduledExecutorService fRetryScheduler;
+    private final ExecutorService fIndexChecks;
+    private volatile IDeadLetterSink fDeadLetters;
+    
+    private final ESWriteAheadLog fWal;
+    private final Map<ActionRequest<?>, Long> fLogSequences;
+    
+    private final Map<ActionRequest<?>, ESResultCollector> fCollectors;
+    
+    private final ESWriteCoalescer fCoalescer;
+    private final int fCoalesceLimit;
+    
+    private final ESPendingOverlay fOverlay;
+    
+    private final ESTimeouts fTimeouts;
+    private final ESRouting fRouting;
+    private final ESScripts fScripts;
+    
+    private final ESBulkLoadSettings fBulkLoad;
     
     private final Logger fLogger;
     
     /**
-     * Creates a new Elasticsearch connector, connecting to the server defined
+     * Creates a new Elasticsearch connector, connecting to the cluster defined
      * by the configuration object via the transport client.
+     * If the write-ahead log is enabled, requests that were not acknowledged
+     * before the last shutdown are logged again and replayed in the
+     * background.
      * The given configuration object must not be null.
      * 
      * @param config configuration object to use.
+     * @throws Exception if the write-ahead log can not be opened or replayed
      */
     @Inject
-    public ESBulkingConnector(ESConfig config)
+    public ESBulkingConnector(ESConfig config) throws Exception
     {
         if(config == null)
         {
             throw new NullPointerException("configuration object was null");
         }
         
-        fEsHost = config.getProperty(HOST_PROP);
-        fEsClusterName = config.getProperty(CNAME_PROP);
-        fEsPort = Integer.parseInt(config.getProperty(PORT_PROP));
-        
         fLogger = Logger.getLogger(this.getClass().getCanonicalName());
         
-        Settings settings = ImmutableSettings.settingsBuilder()
-            .put("cluster.name", fEsClusterName).build();
-        
-        fClient = new TransportClient(settings).addTransportAddress(
-            new InetSocketTransportAddress(fEsHost, fEsPort));
-        
-        //read bulking configuration
-        int actions = Integer.parseInt(config.getProperty(ACTIONS_PROP));
-        long megabytes = Long.parseLong(config.getProperty(MBS_PROP));
-        long seconds = Long.parseLong(config.getProperty(SECONDS_PROP));
-        
-        //create bulk processor
-        fBulkProcessor = BulkProcessor.builder(fClient, this)
-            //execute every ... requests
-            .setBulkActions(actions)
-            //execute every ... Megabytes
-            .setBulkSize(new ByteSizeValue(megabytes, ByteSizeUnit.MB))
-            //flush every ... seconds
-            .setFlushInterval(TimeValue.timeValueSeconds(seconds))
-            //n concurrent requests while bulking
-            .setConcurrentRequests(1)
-            .build();
+        //indices known to exist, saving a round trip per call
+        fKnownIndices = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+        
+        //connect to all seed nodes, sniffing further ones if configured
+        fClient = ESClientFactory.create(config);
+        
+        fScroller = new ESScroller(config, fClient);
+        
+        fTimeouts = new ESTimeouts(config);
+        fRouting = new ESRouting(config);
+        fScripts = new ESScripts(config);
+        fBulkLoad = new ESBulkLoadSettings(config,
+            new ESClientIndexAdmin(fClient, fTimeouts));
+        
+        //backpressure if a lane's queue is full
+        fQueuePolicy = QueuePolicy.valueOf(
+            config.getProperty(QUEUE_POLICY_PROP).toUpperCase());
+        fQueueLock = new Object();
+        fDirtyEntries = new ESDirtyEntries(config);
+        
+        //retries of failed actions and coalescing flushes
+        fRetryPolicy = new ESRetryPolicy(config);
+        fAttempts = Collections.synchronizedMap(
+            new IdentityHashMap<ActionRequest<?>, Integer>());
+        fScheduler = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("es-bulk-scheduler"));
+        
+        //re-queueing may wait for the bulk processors, keep it off the
+        //threads flushing them
+        fRetryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("es-bulk-retry-scheduler"));
+        
+        //index checks of asynchronous calls, in call order
+        fIndexChecks = Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("es-index-checks"));
+        fDeadLetters = new ESDeadLetterSink(config);
+        
+        //queued requests visible to reads before they are executed
+        int overlaySize = Integer.parseInt(config.getProperty(OVERLAY_PROP));
+        if(overlaySize > 0)
+        {
+            fOverlay = new ESPendingOverlay(overlaySize);
+        }
+        else
+        {
+            fOverlay = null;
+        }
+        
+        //results awaited by asynchronous callers
+        fCollectors = Collections.synchronizedMap(
+            new IdentityHashMap<ActionRequest<?>, ESResultCollector>());
+        
+        //separate lanes for live events and crawler traffic
+        boolean adaptive = Boolean.parseBoolean(
+            config.getProperty(ADAPTIVE_PROP));
+        fInteractive = new Lane(config, "interactive", BULKING_PREFIX,
+            adaptive, fScheduler);
+        fBackground = new Lane(config, "background", BACKGROUND_PREFIX,
+            adaptive, Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("es-background-scheduler")));
+        
+        fYieldMillis = Long.parseLong(config.getProperty(YIELD_PROP));
+        fBackgroundRate = Integer.parseInt(config.getProperty(RATE_PROP));
+        fNextSlot = System.nanoTime();
+        
+        //optionally watch the bulk queues of the nodes
+        long statsSeconds = Long.parseLong(config.getProperty(STATS_PROP));
+        if(adaptive && statsSeconds > 0)
+        {
+            fScheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    pollBulkQueues();
+                }
+            }, statsSeconds, statsSeconds, TimeUnit.SECONDS);
+        }
+        
+        //optional coalescing of requests for the same entry before bulking
+        long coalesceMillis = Long.parseLong(config.getProperty(COALESCE_PROP));
+        fCoalesceLimit = fInteractive.actions;
+        if(coalesceMillis > 0)
+        {
+            fCoalescer = new ESWriteCoalescer();
+            fScheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    flushCoalesced();
+                }
+            }, coalesceMillis, coalesceMillis, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            fCoalescer = null;
+        }
+        
+        //optional write-ahead log persisting queued requests
+        fLogSequences = Collections.synchronizedMap(
+            new IdentityHashMap<ActionRequest<?>, Long>());
+        if(Boolean.parseBoolean(config.getProperty(WAL_PROP)))
+        {
+            fWal = new ESWriteAheadLog(config);
+            replayLog();
+        }
+        else
+        {
+            fWal = null;
+        }
+        
+        //indices a previous run left in bulk load mode
+        fBulkLoad.restore();
     }
-
-    @Override
-    public void beforeBulk(long executionId, BulkRequest request)
+    
+    private void replayLog() throws Exception
     {
-        fLogger.log(Level.FINEST, "beforeBulk: " + executionId
-            + " - " + request);
+        final List<ActionRequest<?>> requests = fWal.recover();
+        if(requests.isEmpty())
+        {
+            fWal.deleteRecovered();
+            return;
+        }
+        
+        //log again before dropping the old segments, which are kept if this
+        //fails part way
+        for(ActionRequest<?> request : requests)
+        {
+            fLogSequences.put(request, fWal.append(request));
+        }
+        fWal.sync();
+        fWal.deleteRecovered();
+        
+        fLogger.log(Level.INFO, "replaying " + requests.size()
+            + " requests from the write-ahead log");
+        
+        //queue in the background, they are durable and were accepted before
+        new DaemonThreadFactory("es-wal-replay").newThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for(ActionRequest<?> request : requests)
+                    {
+                        requeue(fBackground, request);
+                    }
+                }
+                catch(Exception e)
+                {
+                    //remaining requests are replayed after the next start
+                    fLogger.log(Level.SEVERE, "could not replay write-ahead"
+                        + " log", e);
+                }
+            }
+        }).start();
     }
 
-    @Override
-    public void afterBulk(long executionId, BulkRequest request,
-        BulkResponse response)
+    private void beforeBulk(Lane lane, long executionId, BulkRequest request)
+    {
+        fLogger.log(Level.FINEST, "beforeBulk " + lane.name + ": "
+            + executionId + " - " + request);
+        
+        lane.inFlight.incrementAndGet();
+        
+        if(lane.tuner != null)
+        {
+            lane.unflushed.addAndGet(-request.numberOfActions());
+            lane.lastFlush = System.currentTimeMillis();
+            lane.bulkStarts.put(executionId, System.nanoTime());
+        }
+    }
+    
+    private void throttleBackground() throws InterruptedException
     {
-        fLogger.log(Level.FINEST, "afterBulk success: " + executionId
-            + " - " + request + " - " + response);
+        //let running interactive bulks finish first, without forcing any
+        synchronized(fQueueLock)
+        {
+            long until = System.currentTimeMillis() + fYieldMillis;
+            long remaining = fYieldMillis;
+            
+            while(fInteractive.inFlight.get() > 0 && remaining > 0)
+            {
+                fQueueLock.wait(remaining);
+                remaining = until - System.currentTimeMillis();
+            }
+        }
+        
+        //cap background throughput, one slot per action
+        if(fBackgroundRate > 0)
+        {
+            long delay = 0;
+            synchronized(fBackground)
+            {
+                long now = System.nanoTime();
+                long slot = Math.max(now, fNextSlot);
+                fNextSlot = slot + TimeUnit.SECONDS.toNanos(1)
+                    / fBackgroundRate;
+                delay = slot - now;
+            }
+            
+            //short delays add up until they are worth sleeping
+            if(delay >= TimeUnit.MILLISECONDS.toNanos(1))
+            {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+        }
     }
+    
+    private void afterBulk(Lane lane, long executionId, BulkRequest request,
+        BulkResponse response)
+    {
+        fLogger.log(Level.FINEST, "afterBulk success " + lane.name + ": "
+            + executionId + " - " + request + " - " + response);
+        
+        if(response.hasFailures())
+        {
+            fLogger.log(Level.WARNING, lane.name + " bulk " + executionId
+                + " finished with failures");
+        }
+        
+        int rejected = 0;
+        for(BulkItemResponse item : response.getItems())
+        {
+            if(item.isFailed() && item.getFailure().getStatus()
+                == RestStatus.TOO_MANY_REQUESTS)
+            {
+                ++rejected;
+            }
+            
 
-    @Override
-    public void afterBulk(long executionId, BulkRequest request,
+            ActionRequest<?> itemRequest =
+                request.requests().get(item.getItemId());
+            
+            if(ESRequestUtil.isStaleWrite(itemRequest, item))
+            {
+                //a newer version is already stored, nothing to retry
+                complete(itemRequest, -1, null);
+            }
+            else if(isMissingRemoval(itemRequest, item))
+            {
+                //entry does not exist (anymore), nothing to remove
+                complete(itemRequest, -1, null);
+            }
+            else if(item.isFailed())
+            {
+                //forget indices that vanished, so they are checked again
+                if(item.getFailureMessage() != null
+                    && item.getFailureMessage().contains(
+                        "IndexMissingException"))
+                {
+                    fKnownIndices.remove(item.getIndex());
+                }
+                
+                //retry temporary failures
+                handleFailure(lane, itemRequest,
+                    fRetryPolicy.isRetryable(item), item.getFailureMessage());
+            }
+            else
+            {
+                complete(itemRequest, item.getVersion(), null);
+            }
+        }
+        
+        tune(lane, executionId, request, rejected);
+        release(lane, request);
+    }
+    
+    private boolean isMissingRemoval(ActionRequest<?> request,
+        BulkItemResponse item)
+    {
+        //removals from arrays are ignored if the entry does not exist
+        return item.isFailed()
+            && item.getFailure().getStatus() == RestStatus.NOT_FOUND
+            && request instanceof UpdateRequest
+            && ESScripts.isRemoveFromArray((UpdateRequest) request);
+    }
+    
+    private void afterBulk(Lane lane, long executionId, BulkRequest request,
         Throwable failure)
     {
-        fLogger.log(Level.SEVERE, "afterBulk fail: " + executionId
-            + " - " + request, failure);
+        fLogger.log(Level.SEVERE, "afterBulk fail " + lane.name + ": "
+            + executionId + " - " + request, failure);
+        
+        if(failure instanceof IndexMissingException)
+        {
+            fKnownIndices.clear();
+        }
+        
+        //whole bulk failed, retry all actions if the failure is temporary
+        boolean retry = fRetryPolicy.isRetryable(failure);
+        for(ActionRequest<?> itemRequest : request.requests())
+        {
+            handleFailure(lane, itemRequest, retry, failure.toString());
+        }
+        
+        //a failed bulk counts as rejected as a whole
+        tune(lane, executionId, request, request.numberOfActions());
+        release(lane, request);
     }
     
-    /**
-     * Closes the connection to the Elasticsearch server.
-     */
-    public void close()
+    private void tune(Lane lane, long executionId, BulkRequest request,
+        int rejected)
     {
-        fBulkProcessor.close();
-        fClient.close();
+        if(lane.tuner != null)
+        {
+            Long start = lane.bulkStarts.remove(executionId);
+            if(start != null)
+            {
+                long millis = TimeUnit.NANOSECONDS.toMillis(
+                    System.nanoTime() - start);
+                lane.tuner.recordBulk(request.numberOfActions(), millis,
+                    rejected);
+            }
+        }
     }
     
-    /**
-     * Checks with Elasticsearch whether the index with the given name exists.
-     * The given name must not be null.
-     * 
-     * @param index name of the index
-     * @return whether the index already exists
-     * @throws Exception if the request fails
-     */
-    public boolean indexExists(String index) throws Exception
+    private void flushIfDue(Lane lane)
     {
-        boolean exists = false;
-        
+        //send whatever is buffered once the adapted interval has passed
         try
         {
-            IndicesExistsResponse er = fClient.admin().indices().exists(
-                new IndicesExistsRequest(index)).actionGet();
-            exists = er.isExists();
+            if(lane.unflushed.get() > 0 && System.currentTimeMillis()
+                - lane.lastFlush >= lane.tuner.getFlushMillis())
+            {
+                lane.processor.flush();
+            }
         }
-        catch(IndexMissingException e)
+        catch(Exception e)
         {
-            fLogger.log(Level.SEVERE, "'index exists' request is borked", e);
+            fLogger.log(Level.SEVERE, "could not flush bulk", e);
+        }
+    }
+    
+    private void pollBulkQueues()
+    {
+        //longest bulk thread pool queue of all nodes
+        fClient.admin().cluster().prepareNodesStats().clear()
+            .setThreadPool(true).execute(
+            new ActionListener<NodesStatsResponse>()
+        {
+            @Override
+            public void onResponse(NodesStatsResponse response)
+            {
+                int queue = 0;
+                for(NodeStats node : response.getNodes())
+                {
+                    if(node.getThreadPool() == null)
+                    {
+                        continue;
+                    }
+                    
+                    for(ThreadPoolStats.Stats pool : node.getThreadPool())
+                    {
+                        if(ThreadPool.Names.BULK.equals(pool.getName()))
+                        {
+                            queue = Math.max(queue, pool.getQueue());
+                        }
+                    }
+                }
+                
+                fInteractive.tuner.recordQueue(queue);
+                fBackground.tuner.recordQueue(queue);
+            }
+            
+            @Override
+            public void onFailure(Throwable e)
+            {
+                fLogger.log(Level.WARNING, "could not read node statistics",
+                    e);
+            }
+        });
+    }
+    
+    private void handleFailure(final Lane lane,
+        final ActionRequest<?> request, boolean retry, String reason)
+    {
+        Integer attempts = fAttempts.remove(request);
+        if(attempts == null)
+        {
+            attempts = 1;
         }
         
-        return exists;
+        if(retry && attempts < fRetryPolicy.getMaxAttempts())
+        {
+            //re-queue after a delay growing with each attempt
+            final int attempt = attempts + 1;
+            long delay = fRetryPolicy.getDelay(attempts);
+            
+            fLogger.log(Level.FINE, "retrying request in " + delay
+                + " ms, attempt " + attempt + ": " + reason);
+            
+            fRetryScheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        //accepted before, not held back by a full queue
+                        fAttempts.put(request, attempt);
+                        requeue(lane, request);
+                    }
+                    catch(Exception e)
+                    {
+                        fDeadLetters.deadLetter(request, e.toString());
+                        complete(request, -1, e.toString());
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            fDeadLetters.deadLetter(request, reason);
+            complete(request, -1, reason);
+        }
+    }
+    
+    private void complete(ActionRequest<?> request, long version,
+        String failure)
+    {
+        //request was executed, dead-lettered or dropped, no retry or replay
+        fAttempts.remove(request);
+        
+        if(fOverlay != null)
+        {
+            fOverlay.remove(request);
+        }
+        
+        Long seq = fLogSequences.remove(request);
+        if(seq != null)
+        {
+            fWal.acknowledge(seq);
+        }
+        
+        //report outcome to asynchronous callers
+        ESResultCollector collector = fCollectors.remove(request);
+        if(collector != null)
+        {
+            ESEntryId entry = ESRequestUtil.getEntryId(request);
+            collector.complete(request, new ESResult(
+                ESRequestUtil.getIndex(request), entry.getType(),
+                entry.getId(), version, failure));
+        }
+        
+        //requests coalesced into this one share its outcome
+        if(fCoalescer != null)
+        {
+            List<ActionRequest<?>> absorbed = fCoalescer.takeAbsorbed(request);
+            if(absorbed != null)
+            {
+                for(ActionRequest<?> original : absorbed)
+                {
+                    complete(original, version, failure);
+                }
+            }
+        }
     }
     
     /**
-     * Checks whether a document entry in the given index, with the given type
-     * and ID already exists.
-     * None of the parameters may be null.
+     * Sets the sink receiving requests that failed permanently, replacing
+     * the default sink.
+     * The given sink must not be null.
      * 
-     * @param index name of the index to query
-     * @param type type of the document entry to look for
-     * @param id ID of the document entry to look for
-     * @return whether the entry already exists
-     * @throws Exception if the request fails
+     * @param sink dead letter sink to use
      */
-    public boolean entryExists(String index, String type, String id)
-        throws Exception
+    public void setDeadLetterSink(IDeadLetterSink sink)
     {
-        boolean exists = false;
+        if(sink == null)
+        {
+            throw new NullPointerException("dead letter sink was null");
+        }
         
-        try
+        fDeadLetters = sink;
+    }
+    
+    private void release(Lane lane, BulkRequest request)
+    {
+        lane.inFlight.decrementAndGet();
+        
+        //free space in the queue and wake up waiting callers
+        synchronized(fQueueLock)
+        {
+            lane.pending -= request.numberOfActions();
+            fQueueLock.notifyAll();
+        }
+    }
+    
+    private void enqueue(ActionRequest<?> request) throws Exception
+    {
+        //lane selected by the calling thread
+        if(ESLane.current() == ESLane.BACKGROUND)
+        {
+            enqueue(fBackground, request);
+        }
+        else
+        {
+            enqueue(fInteractive, request);
+        }
+    }
+    
+    private void enqueue(Lane lane, ActionRequest<?> request) throws Exception
+    {
+        //held back before queueing, retries are not delayed again
+        if(lane == fBackground && !fAttempts.containsKey(request))
+        {
+            throttleBackground();
+        }
+        
+        //wait for, take or reject a place in the lane's queue
+        synchronized(fQueueLock)
         {
-            JSONObject entry = this.get(index, type, id);
-            if(entry != null)
+            long until = -1;
+            
+            while(lane.pending >= lane.queueSize)
             {
-                exists = true;
+                switch(fQueuePolicy)
+                {
+                    case BLOCK:
+                        //wait no longer than a single write may take
+                        if(until < 0)
+                        {
+                            until = System.currentTimeMillis()
+                                + fTimeouts.getWriteTimeout().millis();
+                        }
+                        
+                        long remaining = until - System.currentTimeMillis();
+                        if(remaining <= 0)
+                        {
+                            throw new RejectedExecutionException(lane.name
+                                + " bulk queue still full after "
+                                + fTimeouts.getWriteTimeout());
+                        }
+                        
+                        fQueueLock.wait(remaining);
+                        break;
+                    
+                    case DIRTY:
+                        markDirty(request);
+                        return;
+                    
+                    case FAIL:
+                        throw new RejectedExecutionException(lane.name
+                            + " bulk queue full, " + lane.pending
+                            + " actions pending");
+                }
             }
+            
+            ++lane.pending;
         }
-        catch(DocumentMissingException e)
+        
+        admit(lane, request);
+    }
+    
+    private void requeue(Lane lane, ActionRequest<?> request) throws Exception
+    {
+        //accepted before, queued regardless of throttling and queue limits
+        synchronized(fQueueLock)
         {
-            //document not found, false is default
+            ++lane.pending;
         }
         
-        return exists;
+        admit(lane, request);
     }
     
-    /**
-     * Creates the index with the given name. If the index already exists,
-     * the call is ignored. The given name must not be null.
-     * 
-     * @param index name of the index to create
-     * @throws Exception if index creation fails
-     */
-    public void createIndex(String index) throws Exception
+    private void admit(Lane lane, ActionRequest<?> request) throws Exception
     {
-        try
+        //make visible to reads until executed
+        if(fOverlay != null)
         {
-            fClient.admin().indices().create(
-                Requests.createIndexRequest(index)).actionGet();
-            
-            //TODO: evaluate response?
+            fOverlay.add(request);
         }
-        catch(IndexAlreadyExistsException e)
+        
+        //persist before queueing, retried requests are already logged
+        if(fWal != null && !fLogSequences.containsKey(request))
         {
-            fLogger.log(Level.WARNING, "index '"
-                + index + "' already exists", e);
+            fLogSequences.put(request, fWal.append(request));
+        }
+        
+        //retried requests are sent as they are, newer ones may be pending
+        //background writes are not held back for coalescing
+        if(fCoalescer != null && lane == fInteractive
+            && !fAttempts.containsKey(request))
+        {
+            coalesce(request);
+        }
+        else
+        {
+            addToBulk(lane, request);
         }
     }
     
-    /**
-     * Adds an entry in JSON form to the specified index under the specified
-     * type and ID. A check whether the index exists is executed and if the
-     * index does not exist, it will be created.
-     * Existing entries with matching index, type and ID will be overwritten.
-     * None of the parameters may be null.
-     * 
+    private void addToBulk(Lane lane, ActionRequest<?> request)
+    {
+        lane.processor.add(request);
+        
+        //execute early once the adapted bulk size is reached
+        if(lane.tuner != null
+            && lane.unflushed.incrementAndGet() >= lane.tuner.getActions())
+        {
+            lane.processor.flush();
+        }
+    }
+    
+    private void coalesce(ActionRequest<?> request)
+    {
+        List<ActionRequest<?>> ready = new ArrayList<ActionRequest<?>>();
+        
+        if(fCoalescer.add(request, ready))
+        {
+            //two queued requests became one
+            synchronized(fQueueLock)
+            {
+                --fInteractive.pending;
+                fQueueLock.notifyAll();
+            }
+        }
+        
+        //earlier requests that could not be combined
+        for(ActionRequest<?> earlier : ready)
+        {
+            addToBulk(fInteractive, earlier);
+        }
+        
+        if(fCoalescer.size() >= fCoalesceLimit)
+        {
+            flushCoalesced();
+        }
+    }
+    
+    private void flushCoalesced()
+    {
+        try
+        {
+            for(ActionRequest<?> request : fCoalescer.drain())
+            {
+                addToBulk(fInteractive, request);
+            }
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.SEVERE, "could not flush coalesced requests", e);
+        }
+    }
+    
+    private void syncLog() throws IOException, InterruptedException
+    {
+        //wait until queued requests are on disk before returning to callers
+        if(fWal != null)
+        {
+            fWal.sync();
+        }
+    }
+    
+    private void markDirty(ActionRequest<?> request)
+    {
+        //give up the request, its entry has to be re-indexed
+        String reason = "bulk queue full, entry marked as dirty";
+        fLogger.log(Level.WARNING, reason + ": '"
+            + ESRequestUtil.getIndex(request) + "/"
+            + ESRequestUtil.getEntryId(request) + "'");
+        
+        fDeadLetters.deadLetter(request, reason);
+        fDirtyEntries.mark(request);
+        complete(request, -1, reason);
+    }
+    
+    /**
+     * @return number of bulk requests currently being executed in all lanes
+     */
+    public int getInFlightBulks()
+    {
+        return fInteractive.inFlight.get() + fBackground.inFlight.get();
+    }
+    
+    /**
+     * @return number of queued actions in all lanes that have not been
+     *          acknowledged yet
+     */
+    public int getPendingActions()
+    {
+        synchronized(fQueueLock)
+        {
+            return fInteractive.pending + fBackground.pending;
+        }
+    }
+    
+    private void awaitPendingActions(long millis) throws Exception
+    {
+        //send everything buffered right away
+        flushQueues();
+        
+        synchronized(fQueueLock)
+        {
+            long until = System.currentTimeMillis() + millis;
+            long remaining = millis;
+            
+            while(fInteractive.pending + fBackground.pending > 0
+                && remaining > 0)
+            {
+                fQueueLock.wait(remaining);
+                remaining = until - System.currentTimeMillis();
+            }
+            
+            if(fInteractive.pending + fBackground.pending > 0)
+            {
+                fLogger.log(Level.WARNING, "still "
+                    + (fInteractive.pending + fBackground.pending)
+                    + " pending actions after " + millis + " ms");
+            }
+        }
+    }
+    
+    private void flushQueues()
+    {
+        if(fCoalescer != null)
+        {
+            flushCoalesced();
+        }
+        fInteractive.processor.flush();
+        fBackground.processor.flush();
+    }
+    
+    @Override
+    public Map<String, Set<ESEntryId>> drainDirtyEntries()
+    {
+        return fDirtyEntries.drain();
+    }
+    
+    /**
+     * Closes the connection to the Elasticsearch server.
+     * Requests not acknowledged until then remain in the write-ahead log.
+     */
+    public void close()
+    {
+        fScheduler.shutdownNow();
+        fRetryScheduler.shutdownNow();
+        fIndexChecks.shutdown();
+        fBackground.scheduler.shutdownNow();
+        
+        if(fCoalescer != null)
+        {
+            flushCoalesced();
+        }
+        
+        fInteractive.processor.close();
+        fBackground.processor.close();
+        fClient.close();
+        
+        if(fWal != null)
+        {
+            fWal.close();
+        }
+    }
+    
+    /**
+     * Checks with Elasticsearch whether the index with the given name exists.
+     * The given name must not be null.
+     * 
+     * @param index name of the index
+     * @return whether the index already exists
+     * @throws Exception if the request fails
+     */
+    public boolean indexExists(String index) throws Exception
+    {
+        boolean exists = false;
+        
+        try
+        {
+            IndicesExistsResponse er = fClient.admin().indices().exists(
+                new IndicesExistsRequest(index)).actionGet(
+                fTimeouts.getAdminTimeout());
+            exists = er.isExists();
+        }
+        catch(IndexMissingException e)
+        {
+            fLogger.log(Level.SEVERE, "'index exists' request is borked", e);
+        }
+        
+        //remember result for subsequent calls
+        if(exists)
+        {
+            fKnownIndices.add(index);
+        }
+        else
+        {
+            fKnownIndices.remove(index);
+        }
+        
+        return exists;
+    }
+    
+    private boolean isKnownIndex(String index) throws Exception
+    {
+        //only ask Elasticsearch for indices that have not been seen yet
+        return fKnownIndices.contains(index) || indexExists(index);
+    }
+    
+    private void ensureIndex(String index) throws Exception
+    {
+        //make sure index exists to avoid Exception
+        if(!isKnownIndex(index))
+        {
+            createIndex(index);
+        }
+    }
+    
+    /**
+     * Checks whether a document entry in the given index, with the given type
+     * and ID already exists.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @return whether the entry already exists
+     * @throws Exception if the request fails
+     */
+    public boolean entryExists(String index, String type, String id)
+        throws Exception
+    {
+        return entryExists(index, type, id, null);
+    }
+    
+    /**
+     * Checks whether a document entry in the given index, with the given type,
+     * ID and routing value already exists.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @param routing routing value of the entry or null
+     * @return whether the entry already exists
+     * @throws Exception if the request fails
+     */
+    public boolean entryExists(String index, String type, String id,
+        String routing) throws Exception
+    {
+        //queued requests may create or delete the entry
+        List<ActionRequest<?>> pending = getPending(index, type, id);
+        if(pending != null)
+        {
+            return getPendingView(index, type, id, pending, routing) != null;
+        }
+        
+        return getVersion(index, type, id, routing) >= 0;
+    }
+    
+    private List<ActionRequest<?>> getPending(String index, String type,
+        String id)
+    {
+        List<ActionRequest<?>> pending = null;
+        
+        if(fOverlay != null)
+        {
+            pending = fOverlay.getPending(index, type, id);
+        }
+        
+        return pending;
+    }
+    
+    private JSONObject getPendingView(String index, String type, String id,
+        List<ActionRequest<?>> pending, String routing) throws Exception
+    {
+        //apply queued requests to the stored entry, if it's needed
+        JSONObject stored = null;
+        if(ESPendingOverlay.needsStored(pending))
+        {
+            stored = getStored(index, type, id, null, routing);
+        }
+        
+        return ESPendingOverlay.apply(stored, pending);
+    }
+    
+    /**
+     * Retrieves the current version of the document entry in the given index,
+     * with the given type and ID, without retrieving its contents.
+     * Queued requests are not taken into account.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @return version of the entry or -1 if it does not exist
+     * @throws Exception if the request fails
+     */
+    public long getVersion(String index, String type, String id)
+        throws Exception
+    {
+        return getVersion(index, type, id, null);
+    }
+    
+    /**
+     * Retrieves the current version of the document entry in the given index,
+     * with the given type, ID and routing value, without retrieving its
+     * contents.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @param routing routing value of the entry or null
+     * @return version of the entry or -1 if it does not exist
+     * @throws Exception if the request fails
+     */
+    public long getVersion(String index, String type, String id,
+        String routing) throws Exception
+    {
+        long version = -1;
+        
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            try
+            {
+                //only retrieve metadata, no source or fields
+                GetResponse response = fClient.prepareGet(index, type, id)
+                    .setRouting(routing)
+                    .setFetchSource(false)
+                    .execute().actionGet(fTimeouts.getReadTimeout());
+                
+                if(response.isExists())
+                {
+                    version = response.getVersion();
+                }
+            }
+            catch(IndexMissingException e)
+            {
+                //index was removed in the meantime, entry can't exist
+                fKnownIndices.remove(index);
+            }
+        }
+        
+        return version;
+    }
+    
+    /**
+     * Creates the index with the given name. If the index already exists,
+     * the call is ignored. The given name must not be null.
+     * 
+     * @param index name of the index to create
+     * @throws Exception if index creation fails
+     */
+    public void createIndex(String index) throws Exception
+    {
+        try
+        {
+            fClient.admin().indices().create(
+                Requests.createIndexRequest(index)).actionGet(
+                fTimeouts.getAdminTimeout());
+            
+            //TODO: evaluate response?
+        }
+        catch(IndexAlreadyExistsException e)
+        {
+            fLogger.log(Level.WARNING, "index '"
+                + index + "' already exists", e);
+        }
+        
+        fKnownIndices.add(index);
+    }
+    
+    /**
+     * Adds an entry in JSON form to the specified index under the specified
+     * type and ID. A check whether the index exists is executed and if the
+     * index does not exist, it will be created.
+     * Existing entries with matching index, type and ID will be overwritten.
+     * None of the parameters may be null.
+     * 
      * @param index name of the index to add the entry to
      * @param type type of the entry to add
      * @param id ID of the entry to add
@@ -233,247 +1175,1403 @@ public class ESBulkingConnector implements BulkProcessor.Listener, IESConnector
     public void add(String index, String type, String id, JSONObject entry)
         throws Exception
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
+        add(index, type, id, entry, -1);
+    }
+    
+    /**
+     * Adds an entry in JSON form to the specified index under the specified
+     * type and ID, using an external version number. Existing entries are
+     * only overwritten if their version is not higher, otherwise the stale
+     * write is ignored. If the version is negative, no version is used.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add the entry to
+     * @param type type of the entry to add
+     * @param id ID of the entry to add
+     * @param entry source of the entry to add to the index
+     * @param version external version of the entry or -1
+     * @throws Exception if adding the entry fails
+     */
+    public void add(String index, String type, String id, JSONObject entry,
+        long version) throws Exception
+    {
+        ensureIndex(index);
+        
+        enqueue(prepareIndex(index, type, id, entry, version).request());
+        
+        syncLog();
+    }
+    
+    private IndexRequestBuilder prepareIndex(String index, String type,
+        String id, JSONObject entry, long version)
+    {
+        IndexRequestBuilder request = fClient.prepareIndex(index, type, id)
+            .setSource(entry.toString())
+            .setRouting(fRouting.getRouting(type, entry));
+        
+        //only overwrite entries with lower or equal versions
+        if(version >= 0)
+        {
+            request.setVersion(version)
+                .setVersionType(VersionType.EXTERNAL_GTE);
+        }
+        
+        return request;
+    }
+    
+    
+    /**
+     * Adds a list of entries of the given type to the specified index.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * Existing entries with matching index, type and ID will be overwritten.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add entries to
+     * @param type type of the entries to add
+     * @param entries entries to add
+     * @throws Exception if adding entries fails
+     */
+    public void bulkAdd(String index, String type, List<JSONObject> entries)
+        throws Exception
+    {
+        bulkAdd(index, type, entries, false);
+    }
+    
+    /**
+     * Adds a list of entries of the given type to the specified index,
+     * optionally using external version numbers derived from the entries'
+     * "updated" timestamps (see ShindigEncoder.getVersion). Versioned
+     * entries are only overwritten if their version is not higher, otherwise
+     * the stale write is ignored.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add entries to
+     * @param type type of the entries to add
+     * @param entries entries to add
+     * @param versioned whether to use external versions
+     * @throws Exception if adding entries fails
+     */
+    public void bulkAdd(String index, String type, List<JSONObject> entries,
+        boolean versioned) throws Exception
+    {
+        ensureIndex(index);
+        
+        //queue index requests
+        for(JSONObject entry : entries)
+        {
+            long version = -1;
+            if(versioned)
+            {
+                version = ShindigEncoder.getVersion(entry);
+            }
+            
+            enqueue(prepareIndex(index, type, entry.getString("id"), entry,
+                version).request());
+        }
+        
+        syncLog();
+    }
+    
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index. A check whether the index exists is executed and if the
+     * index does not exist, it will be created.
+     * This will fail if the entry does not already exist.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to update the entry in
+     * @param type type of the entry to update
+     * @param id ID of the entry to update
+     * @param entry updated source of the entry to update in the index
+     * @throws Exception if updating the entry fails
+     */
+    public void update(String index, String type, String id, JSONObject entry)
+        throws Exception
+    {
+        //TODO: remove? request will fail anyway
+        ensureIndex(index);
+        
+        enqueue(fClient.prepareUpdate(index, type, id)
+            .setDoc(entry.toString())
+            .setRouting(fRouting.getRouting(type, entry)).request());
+        
+        syncLog();
+    }
+    
+    /**
+     * Updates a list of entries of the given type in the specified index.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * Existing entries with matching index, type and ID will be overwritten.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to update entries in
+     * @param type type of the entries to update
+     * @param entries entries to update
+     * @throws Exception if updating entries fails
+     */
+    public void bulkUpdate(String index, String type, List<JSONObject> entries)
+        throws Exception
+    {
+        ensureIndex(index);
+        
+        //queue update requests
+        for(JSONObject entry : entries)
+        {
+            enqueue(fClient.prepareUpdate(index, type,
+                entry.getString("id")).setDoc(entry.toString())
+                .setRouting(fRouting.getRouting(type, entry)).request());
+        }
+        
+        syncLog();
+    }
+    
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index or adds it if it does not exist yet, using a single
+     * request. A check whether the index exists is executed and if the
+     * index does not exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to upsert the entry in
+     * @param type type of the entry to upsert
+     * @param id ID of the entry to upsert
+     * @param entry source of the entry to upsert in the index
+     * @throws Exception if upserting the entry fails
+     */
+    public void upsert(String index, String type, String id, JSONObject entry)
+        throws Exception
+    {
+        upsert(index, type, id, entry, null);
+    }
+    
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index or adds the given initial entry if it does not exist
+     * yet, using a single request. A check whether the index exists is
+     * executed and if the index does not exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to upsert the entry in
+     * @param type type of the entry to upsert
+     * @param id ID of the entry to upsert
+     * @param entry partial source to update an existing entry with
+     * @param initial source of the entry to add if it does not exist
+     * @throws Exception if upserting the entry fails
+     */
+    public void upsert(String index, String type, String id, JSONObject entry,
+        JSONObject initial) throws Exception
+    {
+        ensureIndex(index);
+        
+        enqueue(
+            prepareUpsert(index, type, id, entry, initial).request());
+        
+        syncLog();
+    }
+    
+    /**
+     * Updates a list of entries of the given type in the specified index,
+     * adding those that do not exist yet.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to upsert entries in
+     * @param type type of the entries to upsert
+     * @param entries entries to upsert
+     * @throws Exception if upserting entries fails
+     */
+    public void bulkUpsert(String index, String type, List<JSONObject> entries)
+        throws Exception
+    {
+        ensureIndex(index);
+        
+        //queue upsert requests
+        for(JSONObject entry : entries)
+        {
+            enqueue(prepareUpsert(index, type,
+                entry.getString("id"), entry, null).request());
+        }
+        
+        syncLog();
+    }
+    
+    private UpdateRequestBuilder prepareUpsert(String index, String type,
+        String id, JSONObject entry, JSONObject initial)
+    {
+        UpdateRequestBuilder request = fClient.prepareUpdate(index, type, id)
+            .setDoc(entry.toString());
+        
+        //partial entries may lack the routing field of the initial entry
+        String routing = fRouting.getRouting(type, entry);
+        if(routing == null)
+        {
+            routing = fRouting.getRouting(type, initial);
+        }
+        request.setRouting(routing);
+        
+        if(initial != null)
+        {
+            request.setUpsert(initial.toString());
+        }
+        else
+        {
+            //partial document is the complete document
+            request.setDocAsUpsert(true);
+        }
+        
+        return request;
+    }
+    
+    /**
+     * Removes a value from an array field of the entry with the given type
+     * and ID in the specified index. If scripts are enabled (see ESScripts),
+     * this is done on the server side using a single request without reading
+     * the entry first, otherwise queued requests for the entry are executed
+     * first and the entry is then read, modified and written back directly,
+     * retrying if it was changed in the meantime. Optionally, the entry is
+     * deleted if the array is empty afterwards.
+     * The call is ignored, if the index or the entry do not exist.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index containing the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param field name of the array field to remove the value from
+     * @param value value to remove
+     * @param deleteIfEmpty whether to delete the entry if no values are left
+     * @throws Exception if updating the entry fails
+     */
+    public void removeFromArray(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty) throws Exception
+    {
+        removeFromArray(index, type, id, field, value, deleteIfEmpty, null);
+    }
+    
+    /**
+     * Removes a value from an array field of the entry with the given type,
+     * ID and routing value in the specified index on the server side, as
+     * described above.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index containing the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param field name of the array field to remove the value from
+     * @param value value to remove
+     * @param deleteIfEmpty whether to delete the entry if no values are left
+     * @param routing routing value of the entry or null
+     * @throws Exception if updating the entry fails
+     */
+    public void removeFromArray(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty, String routing)
+        throws Exception
+    {
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            if(fScripts.isEnabled())
+            {
+                enqueue(fScripts.prepareRemoveFromArray(fClient, index,
+                    type, id, field, value, deleteIfEmpty).setRouting(routing)
+                    .request());
+            }
+            else
+            {
+                try
+                {
+                    removeFromArrayLocally(index, type, id, field, value,
+                        deleteIfEmpty, routing);
+                }
+                catch(IndexMissingException e)
+                {
+                    //index was removed in the meantime, nothing to remove
+                    fKnownIndices.remove(index);
+                }
+            }
+            
+            syncLog();
+        }
+    }
+    
+    private void removeFromArrayLocally(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty, String routing)
+        throws Exception
+    {
+        //without scripts, let queued requests for the entry be executed
+        //first, then write back the modified entry directly, only if it has
+        //not been changed in the meantime and start over otherwise
+        awaitPending(index, type, id);
+        
+        for(int attempt = 0; ; ++attempt)
+        {
+            GetResponse response = fClient.prepareGet(index, type, id)
+                .setRouting(routing)
+                .execute().actionGet(fTimeouts.getReadTimeout());
+            
+            if(!response.isExists())
+            {
+                //entry does not exist (anymore), nothing to remove
+                return;
+            }
+            
+            JSONObject entry = new JSONObject(response.getSourceAsString());
+            String stored = entry.toString();
+            entry = ESScripts.applyRemoveFromArray(entry, field, value,
+                deleteIfEmpty);
+            
+            try
+            {
+                if(entry == null)
+                {
+                    fClient.delete(new DeleteRequest(index, type, id)
+                        .routing(routing).version(response.getVersion()))
+                        .actionGet(fTimeouts.getWriteTimeout());
+                }
+                else if(!stored.equals(entry.toString()))
+                {
+                    fClient.index(new IndexRequest(index, type, id)
+                        .source(entry.toString()).routing(routing)
+                        .version(response.getVersion()))
+                        .actionGet(fTimeouts.getWriteTimeout());
+                }
+                
+                return;
+            }
+            catch(VersionConflictEngineException e)
+            {
+                if(attempt >= ESScripts.RETRIES)
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    private void awaitPending(String index, String type, String id)
+        throws Exception
+    {
+        //send everything buffered right away
+        flushQueues();
+        
+        long millis = fTimeouts.getWriteTimeout().millis();
+        synchronized(fQueueLock)
+        {
+            long until = System.currentTimeMillis() + millis;
+            long remaining = millis;
+            
+            while(hasPending(index, type, id) && remaining > 0)
+            {
+                fQueueLock.wait(remaining);
+                remaining = until - System.currentTimeMillis();
+            }
+            
+            if(hasPending(index, type, id))
+            {
+                throw new ElasticsearchTimeoutException("requests for '"
+                    + index + "/" + type + "/" + id + "' still pending after "
+                    + millis + " ms");
+            }
+        }
+    }
+    
+    private boolean hasPending(String index, String type, String id)
+    {
+        //without a complete overlay, any queued request may concern the entry
+        if(fOverlay == null || fOverlay.hasUntracked())
+        {
+            return fInteractive.pending + fBackground.pending > 0;
+        }
+        
+        return fOverlay.hasPending(index, type, id);
+    }
+    
+    /**
+     * Deletes an entry with the given type and ID from the specified index.
+     * The call is ignored, if the index does not exist.
+     * The call will fail if the entry does not exist.
+     * None of the parameters may be null.
+     * 
+     * @param index index to remove the entry from
+     * @param type type of the entry to remove
+     * @param id ID of the entry to remove
+     * @throws Exception if removing the entry fails
+     */
+    public void delete(String index, String type, String id) throws Exception
+    {
+        delete(index, type, id, null);
+    }
+    
+    /**
+     * Deletes an entry with the given type, ID and routing value from the
+     * specified index.
+     * The call is ignored, if the index does not exist.
+     * Only the routing value may be null.
+     * 
+     * @param index index to remove the entry from
+     * @param type type of the entry to remove
+     * @param id ID of the entry to remove
+     * @param routing routing value of the entry or null
+     * @throws Exception if removing the entry fails
+     */
+    public void delete(String index, String type, String id, String routing)
+        throws Exception
+    {
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+
+            enqueue(fClient.prepareDelete(index, type, id)
+                .setRouting(routing).request());
+            
+            syncLog();
+
+            //TODO: evaluate answer?
+        }
+        else
+        {
+            //TODO: log?
+        }
+    }
+    
+    /**
+     * Deletes a list of entries with the given type from the specified index,
+     * defined by a list of entry IDs.
+     * The call is ignored, if the index does not exist.
+     * None of the parameters may be null.
+     * 
+     * @param index index to remove entries from
+     * @param type type of the entries to remove
+     * @param ids IDs of entries to remove
+     * @throws Exception if removing the entries fails
+     */
+    public void bulkDelete(String index, String type, List<String> ids)
+        throws Exception
+    {
+        bulkDelete(index, type, ids, null);
+    }
+    
+    /**
+     * Deletes a list of entries with the given type from the specified index,
+     * defined by a list of entry IDs and their routing values.
+     * The call is ignored, if the index does not exist.
+     * Only the map of routing values may be null, entries without a routing
+     * value are deleted without routing.
+     * 
+     * @param index index to remove entries from
+     * @param type type of the entries to remove
+     * @param ids IDs of entries to remove
+     * @param routing routing values by entry ID or null
+     * @throws Exception if removing the entries fails
+     */
+    public void bulkDelete(String index, String type, List<String> ids,
+        Map<String, String> routing) throws Exception
+    {
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            //queue deletion requests
+            for(String id : ids)
+            {
+                enqueue(fClient.prepareDelete(index, type, id)
+                    .setRouting(routing == null ? null : routing.get(id))
+                    .request());
+            }
+            
+            syncLog();
+        }
+    }
+    
+    /**
+     * Retrieves all entries of the specified type from the specified index.
+     * If the index does not exist, an emtpy list is returned.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @return list of all available entries
+     * @throws Exception if the request fails
+     */
+    public List<JSONObject> getAll(String index, String type) throws Exception
+    {
+        return getAll(index, type, null);
+    }
+    
+    /**
+     * Retrieves all entries of the specified type from the specified index,
+     * only containing the given fields of their source.
+     * If the index does not exist, an emtpy list is returned.
+     * If the list of fields is null, the complete source is retrieved.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param fields source fields to retrieve
+     * @return list of all available entries, reduced to the given fields
+     * @throws Exception if the request fails
+     */
+    public List<JSONObject> getAll(String index, String type, String[] fields)
+        throws Exception
+    {
+        final List<JSONObject> results = new ArrayList<JSONObject>();
+        
+        //collect all pages
+        scroll(index, type, fields, new IESPageHandler()
+        {
+            @Override
+            public void handlePage(List<JSONObject> page) throws Exception
+            {
+                results.addAll(page);
+            }
+        });
+        
+        return results;
+    }
+    
+    /**
+     * Streams all entries of the specified type from the specified index,
+     * passing them to the given handler one page at a time, so that the
+     * complete type never has to be held in memory.
+     * If the index does not exist, the handler is not called.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param handler handler receiving pages of entries
+     * @throws Exception if the request or the handler fails
+     */
+    public void scroll(String index, String type, IESPageHandler handler)
+        throws Exception
+    {
+        scroll(index, type, null, handler);
+    }
+    
+    /**
+     * Streams all entries of the specified type from the specified index,
+     * only containing the given fields of their source, passing them to the
+     * given handler one page at a time.
+     * If the index does not exist, the handler is not called.
+     * If the list of fields is null, the complete source is retrieved.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param fields source fields to retrieve
+     * @param handler handler receiving pages of entries
+     * @throws Exception if the request or the handler fails
+     */
+    public void scroll(String index, String type, String[] fields,
+        IESPageHandler handler) throws Exception
+    {
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            fScroller.scroll(index, type, fields, handler);
+        }
+    }
+    
+    /**
+     * Retrieves a single entry with the given ID and type from the specified
+     * index.
+     * If the index does not exist, null is returned.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @return JSON representation of the entry
+     * @throws Exception if the request fails
+     */
+    public JSONObject get(String index, String type, String id) throws Exception
+    {
+        return get(index, type, id, null);
+    }
+    
+    /**
+     * Retrieves a single entry with the given ID and type from the specified
+     * index, only containing the given fields of its source.
+     * If the index does not exist, null is returned.
+     * If the list of fields is null, the complete source is retrieved.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @param fields source fields to retrieve
+     * @return JSON representation of the entry, reduced to the given fields
+     * @throws Exception if the request fails
+     */
+    public JSONObject get(String index, String type, String id, String[] fields)
+        throws Exception
+    {
+        return get(index, type, id, fields, null);
+    }
+    
+    /**
+     * Retrieves a single entry with the given ID, type and routing value from
+     * the specified index, optionally only containing the given fields of its
+     * source.
+     * If the index does not exist, null is returned.
+     * Only the fields and the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @param fields source fields to retrieve or null for all
+     * @param routing routing value of the entry or null
+     * @return JSON representation of the entry
+     * @throws Exception if the request fails
+     */
+    public JSONObject get(String index, String type, String id, String[] fields,
+        String routing) throws Exception
+    {
+        //reflect queued requests
+        List<ActionRequest<?>> pending = getPending(index, type, id);
+        if(pending != null)
+        {
+            return ESPendingOverlay.filter(
+                getPendingView(index, type, id, pending, routing), fields);
+        }
+        
+        return getStored(index, type, id, fields, routing);
+    }
+    
+    private JSONObject getStored(String index, String type, String id,
+        String[] fields, String routing) throws Exception
+    {
+        JSONObject result = null;
+        
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            GetResponse response = null;
+            try
+            {
+                GetRequestBuilder request = fClient.prepareGet(index, type, id)
+                    .setRouting(routing);
+                
+                //source filtering
+                if(fields != null)
+                {
+                    request.setFetchSource(fields, null);
+                }
+                
+                response = request.execute().actionGet(
+                    fTimeouts.getReadTimeout());
+            }
+            catch(IndexMissingException e)
+            {
+                //index was removed in the meantime, entry can't exist
+                fKnownIndices.remove(index);
+                return null;
+            }
+            
+            //TODO: what happens if the entry does not exist?
+            
+            result = toEntry(response, fields);
+        }
+
+        return result;
+    }
+    
+    private JSONObject toEntry(GetResponse response, String[] fields)
+        throws Exception
+    {
+        JSONObject result = null;
+        
+        if(response.getSourceAsString() != null)
+        {
+            result = new JSONObject(response.getSourceAsString());
+        }
+        else if(fields != null && response.isExists())
+        {
+            //filtered source may be empty
+            result = new JSONObject();
+        }
+        
+        return result;
+    }
+
+    /**
+     * Retrieves multiple entries, defined by their types and IDs, from the
+     * specified index using a single request.
+     * Entries that do not exist are not contained in the result.
+     * If the index does not exist, an empty map is returned.
+     * If a list of fields is given, only these fields of the source are
+     * retrieved.
+     * Only the list of fields may be null.
+     * 
+     * @param index name of the index to query
+     * @param entries types, IDs and routing values of the entries to retrieve
+     * @param fields source fields to retrieve or null for all
+     * @return map of JSON representations of the entries by ID
+     * @throws Exception if the request fails
+     */
+    public Map<String, JSONObject> multiGet(String index,
+        List<ESEntryId> entries, String[] fields) throws Exception
+    {
+        Map<String, JSONObject> results = new HashMap<String, JSONObject>();
+        
+        //entries with queued requests are resolved individually
+        List<ESEntryId> stored = new ArrayList<ESEntryId>();
+        for(ESEntryId entry : entries)
+        {
+            if(getPending(index, entry.getType(), entry.getId()) != null)
+            {
+                JSONObject result = get(index, entry.getType(),
+                    entry.getId(), fields, entry.getRouting());
+                if(result != null)
+                {
+                    results.put(entry.getId(), result);
+                }
+            }
+            else
+            {
+                stored.add(entry);
+            }
+        }
+        
+        FetchSourceContext source = null;
+        if(fields != null)
+        {
+            source = new FetchSourceContext(fields, null);
+        }
+        
+        for(GetResponse response : multiGet(index, stored, source))
+        {
+            if(response.getSourceAsString() != null)
+            {
+                results.put(response.getId(),
+                    new JSONObject(response.getSourceAsString()));
+            }
+            else if(fields != null)
+            {
+                //filtered source may be empty
+                results.put(response.getId(), new JSONObject());
+            }
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Checks for multiple entries, defined by their types and IDs, whether
+     * they exist in the specified index using a single request.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param entries types, IDs and routing values of the entries to look for
+     * @return map of whether the entries exist by ID
+     * @throws Exception if the request fails
+     */
+    public Map<String, Boolean> multiExists(String index,
+        List<ESEntryId> entries) throws Exception
+    {
+        Map<String, Boolean> results = new HashMap<String, Boolean>();
+        
+        //default for all entries, resolve those with queued requests
+        List<ESEntryId> stored = new ArrayList<ESEntryId>();
+        for(ESEntryId entry : entries)
+        {
+            if(getPending(index, entry.getType(), entry.getId()) != null)
+            {
+                results.put(entry.getId(), entryExists(index,
+                    entry.getType(), entry.getId(), entry.getRouting()));
+            }
+            else
+            {
+                results.put(entry.getId(), false);
+                stored.add(entry);
+            }
+        }
+        
+        //only retrieve metadata, no source or fields
+        for(GetResponse response : multiGet(index, stored,
+            new FetchSourceContext(false)))
+        {
+            results.put(response.getId(), true);
+        }
+        
+        return results;
+    }
+    
+    private List<GetResponse> multiGet(String index, List<ESEntryId> entries,
+        FetchSourceContext source) throws Exception
+    {
+        //returns the responses for all existing entries
+        List<GetResponse> results = new ArrayList<GetResponse>();
+        
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists && !entries.isEmpty())
+        {
+            MultiGetRequestBuilder request = fClient.prepareMultiGet();
+            
+            for(ESEntryId entry : entries)
+            {
+                MultiGetRequest.Item item = new MultiGetRequest.Item(index,
+                    entry.getType(), entry.getId())
+                    .routing(entry.getRouting());
+                
+                if(source != null)
+                {
+                    item.fetchSourceContext(source);
+                }
+                
+                request.add(item);
+            }
+            
+            MultiGetResponse response = request.execute().actionGet(
+                fTimeouts.getReadTimeout());
+            
+            for(MultiGetItemResponse item : response.getResponses())
+            {
+                if(item.isFailed())
+                {
+                    fLogger.log(Level.WARNING, "could not retrieve entry '"
+                        + item.getId() + "': " + item.getFailure().getMessage());
+                    
+                    if(item.getFailure().getMessage() != null
+                        && item.getFailure().getMessage().contains(
+                            "IndexMissingException"))
+                    {
+                        fKnownIndices.remove(index);
+                    }
+                }
+                else if(item.getResponse().isExists())
+                {
+                    results.add(item.getResponse());
+                }
+            }
+        }
+        
+        return results;
+    }
+
+    @Override
+    public ESFuture<ESResult> addAsync(String index, String type, String id,
+        JSONObject entry)
+    {
+        return addAsync(index, type, id, entry, -1);
+    }
+    
+    @Override
+    public ESFuture<ESResult> addAsync(final String index, final String type,
+        final String id, final JSONObject entry, final long version)
+    {
+        final ESFuture<ESResult> future = new ESFuture<ESResult>();
+        
+        checkIndexAsync(index, true).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                List<ActionRequest<?>> requests =
+                    new ArrayList<ActionRequest<?>>();
+                requests.add(prepareIndex(index, type, id, entry, version)
+                    .request());
+                
+                forward(single(enqueueAsync(requests)), future);
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<List<ESResult>> bulkAddAsync(String index, String type,
+        List<JSONObject> entries)
+    {
+        return bulkAddAsync(index, type, entries, false);
+    }
+    
+    @Override
+    public ESFuture<List<ESResult>> bulkAddAsync(final String index,
+        final String type, final List<JSONObject> entries,
+        final boolean versioned)
+    {
+        final ESFuture<List<ESResult>> future =
+            new ESFuture<List<ESResult>>();
+        
+        checkIndexAsync(index, true).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                List<ActionRequest<?>> requests =
+                    new ArrayList<ActionRequest<?>>();
+                for(JSONObject entry : entries)
+                {
+                    long version = -1;
+                    if(versioned)
+                    {
+                        version = ShindigEncoder.getVersion(entry);
+                    }
+                    
+                    requests.add(prepareIndex(index, type,
+                        entry.getString("id"), entry, version).request());
+                }
+                
+                forward(enqueueAsync(requests), future);
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<ESResult> updateAsync(final String index,
+        final String type, final String id, final JSONObject entry)
+    {
+        final ESFuture<ESResult> future = new ESFuture<ESResult>();
+        
+        checkIndexAsync(index, true).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                List<ActionRequest<?>> requests =
+                    new ArrayList<ActionRequest<?>>();
+                requests.add(fClient.prepareUpdate(index, type, id)
+                    .setDoc(entry.toString())
+                    .setRouting(fRouting.getRouting(type, entry)).request());
+                
+                forward(single(enqueueAsync(requests)), future);
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<List<ESResult>> bulkUpdateAsync(final String index,
+        final String type, final List<JSONObject> entries)
+    {
+        final ESFuture<List<ESResult>> future =
+            new ESFuture<List<ESResult>>();
+        
+        checkIndexAsync(index, true).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                List<ActionRequest<?>> requests =
+                    new ArrayList<ActionRequest<?>>();
+                for(JSONObject entry : entries)
+                {
+                    requests.add(fClient.prepareUpdate(index, type,
+                        entry.getString("id")).setDoc(entry.toString())
+                        .setRouting(fRouting.getRouting(type, entry))
+                        .request());
+                }
+                
+                forward(enqueueAsync(requests), future);
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<ESResult> upsertAsync(final String index,
+        final String type, final String id, final JSONObject entry,
+        final JSONObject initial)
+    {
+        final ESFuture<ESResult> future = new ESFuture<ESResult>();
+        
+        checkIndexAsync(index, true).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                List<ActionRequest<?>> requests =
+                    new ArrayList<ActionRequest<?>>();
+                requests.add(
+                    prepareUpsert(index, type, id, entry, initial).request());
+                
+                forward(single(enqueueAsync(requests)), future);
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<ESResult> deleteAsync(String index, String type, String id)
+    {
+        return deleteAsync(index, type, id, null);
+    }
+    
+    @Override
+    public ESFuture<ESResult> deleteAsync(final String index,
+        final String type, final String id, final String routing)
+    {
+        final ESFuture<ESResult> future = new ESFuture<ESResult>();
+        
+        checkIndexAsync(index, false).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                //nothing to delete if there is no index
+                if(!exists)
+                {
+                    future.set(new ESResult(index, type, id, -1, null));
+                    return;
+                }
+                
+                List<ActionRequest<?>> requests =
+                    new ArrayList<ActionRequest<?>>();
+                requests.add(fClient.prepareDelete(index, type, id)
+                    .setRouting(routing).request());
+                
+                forward(single(enqueueAsync(requests)), future);
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<List<ESResult>> bulkDeleteAsync(String index, String type,
+        List<String> ids)
+    {
+        return bulkDeleteAsync(index, type, ids, null);
+    }
+    
+    @Override
+    public ESFuture<List<ESResult>> bulkDeleteAsync(final String index,
+        final String type, final List<String> ids,
+        final Map<String, String> routing)
+    {
+        final ESFuture<List<ESResult>> future =
+            new ESFuture<List<ESResult>>();
         
-        if(!exists)
+        checkIndexAsync(index, false).addCallback(new IndexCallback(future)
         {
-            createIndex(index);
-        }
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                List<ActionRequest<?>> requests =
+                    new ArrayList<ActionRequest<?>>();
+                
+                //nothing to delete if there is no index
+                if(exists)
+                {
+                    for(String id : ids)
+                    {
+                        requests.add(fClient.prepareDelete(index, type, id)
+                            .setRouting(routing == null
+                                ? null : routing.get(id)).request());
+                    }
+                }
+                
+                forward(enqueueAsync(requests), future);
+            }
+        });
         
-        fBulkProcessor.add(
-            fClient.prepareIndex(index, type, id)
-            .setSource(entry.toString()).request());
+        return future;
     }
     
-    /**
-     * Adds a list of entries of the given type to the specified index.
-     * A check whether the index exists is executed and if the index does not
-     * exist, it will be created.
-     * Existing entries with matching index, type and ID will be overwritten.
-     * None of the parameters may be null.
-     * 
-     * @param index name of the index to add entries to
-     * @param type type of the entries to add
-     * @param entries entries to add
-     * @throws Exception if adding entries fails
-     */
-    public void bulkAdd(String index, String type, List<JSONObject> entries)
-        throws Exception
+    @Override
+    public ESFuture<JSONObject> getAsync(String index, String type,
+        String id, String[] fields)
+    {
+        return getAsync(index, type, id, fields, null);
+    }
+    
+    @Override
+    public ESFuture<JSONObject> getAsync(final String index,
+        final String type, final String id, final String[] fields,
+        final String routing)
     {
+        final ESFuture<JSONObject> future = new ESFuture<JSONObject>();
+        
         //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
+        checkIndexAsync(index, false).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                //queued requests are resolved locally
+                if(getPending(index, type, id) != null)
+                {
+                    future.set(get(index, type, id, fields, routing));
+                    return;
+                }
+                
+                if(!exists)
+                {
+                    future.set(null);
+                    return;
+                }
+                
+                GetRequestBuilder request = fClient.prepareGet(index, type,
+                    id).setRouting(routing);
+                
+                //source filtering
+                if(fields != null)
+                {
+                    request.setFetchSource(fields, null);
+                }
+                
+                request.execute(new ActionListener<GetResponse>()
+                {
+                    @Override
+                    public void onResponse(GetResponse response)
+                    {
+                        try
+                        {
+                            future.set(toEntry(response, fields));
+                        }
+                        catch(Exception e)
+                        {
+                            future.fail(e);
+                        }
+                    }
+                    
+                    @Override
+                    public void onFailure(Throwable e)
+                    {
+                        if(ExceptionsHelper.unwrapCause(e)
+                            instanceof IndexMissingException)
+                        {
+                            //index was removed in the meantime
+                            fKnownIndices.remove(index);
+                            future.set(null);
+                        }
+                        else
+                        {
+                            future.fail(e);
+                        }
+                    }
+                });
+            }
+        });
         
-        if(!exists)
+        return future;
+    }
+    
+    private ESFuture<Boolean> checkIndexAsync(final String index,
+        final boolean create)
+    {
+        //known indices need no round trip
+        if(fKnownIndices.contains(index))
         {
-            createIndex(index);
+            return ESFuture.completed(true);
         }
         
-        //queue index requests
-        for(JSONObject entry : entries)
+        //check or create on a separate thread instead of the caller's
+        final ESFuture<Boolean> future = new ESFuture<Boolean>();
+        
+        try
+        {
+            fIndexChecks.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        if(create)
+                        {
+                            ensureIndex(index);
+                            future.set(true);
+                        }
+                        else
+                        {
+                            future.set(isKnownIndex(index));
+                        }
+                    }
+                    catch(Exception e)
+                    {
+                        future.fail(e);
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException e)
         {
-            fBulkProcessor.add(
-                fClient.prepareIndex(index, type, entry.getString("id"))
-                .setSource(entry.toString()).request());
+            //connector was closed
+            future.fail(e);
         }
         
+        return future;
     }
     
-    /**
-     * Updates an entry with the given type and ID in JSON form in the
-     * specified index. A check whether the index exists is executed and if the
-     * index does not exist, it will be created.
-     * This will fail if the entry does not already exist.
-     * None of the parameters may be null.
-     * 
-     * @param index name of the index to update the entry in
-     * @param type type of the entry to update
-     * @param id ID of the entry to update
-     * @param entry updated source of the entry to update in the index
-     * @throws Exception if updating the entry fails
-     */
-    public void update(String index, String type, String id, JSONObject entry)
-        throws Exception
+    private <T> void forward(ESFuture<T> from, final ESFuture<T> to)
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
-        
-        if(!exists)
+        from.addCallback(new IESCallback<T>()
         {
-            //TODO: remove? request will fail anyway
-            createIndex(index);
-        }
-        
-        fBulkProcessor.add(fClient.prepareUpdate(index, type, id)
-            .setDoc(entry.toString()).request());
+            @Override
+            public void onSuccess(T result)
+            {
+                to.set(result);
+            }
+            
+            @Override
+            public void onFailure(Throwable failure)
+            {
+                to.fail(failure);
+            }
+        });
     }
     
-    /**
-     * Updates a list of entries of the given type in the specified index.
-     * A check whether the index exists is executed and if the index does not
-     * exist, it will be created.
-     * Existing entries with matching index, type and ID will be overwritten.
-     * None of the parameters may be null.
-     * 
-     * @param index name of the index to update entries in
-     * @param type type of the entries to update
-     * @param entries entries to update
-     * @throws Exception if updating entries fails
-     */
-    public void bulkUpdate(String index, String type, List<JSONObject> entries)
-        throws Exception
+    private ESFuture<List<ESResult>> enqueueAsync(
+        List<ActionRequest<?>> requests) throws Exception
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
+        ESResultCollector collector = new ESResultCollector(requests.size());
         
-        if(!exists)
+        //register before queueing, bulks may complete right away
+        for(ActionRequest<?> request : requests)
         {
-            createIndex(index);
+            collector.add(request);
+            fCollectors.put(request, collector);
         }
         
-        //queue update requests
-        for(JSONObject entry : entries)
+        for(int i = 0; i < requests.size(); ++i)
         {
-            fBulkProcessor.add(fClient.prepareUpdate(index, type,
-                entry.getString("id")).setDoc(entry.toString()).request());
+            try
+            {
+                enqueue(requests.get(i));
+            }
+            catch(Exception e)
+            {
+                //report this and all remaining requests as failed
+                for(ActionRequest<?> request
+                    : requests.subList(i, requests.size()))
+                {
+                    complete(request, -1, e.toString());
+                }
+                break;
+            }
         }
+        
+        syncLog();
+        
+        return collector.getFuture();
     }
     
-    /**
-     * Deletes an entry with the given type and ID from the specified index.
-     * The call is ignored, if the index does not exist.
-     * The call will fail if the entry does not exist.
-     * None of the parameters may be null.
-     * 
-     * @param index index to remove the entry from
-     * @param type type of the entry to remove
-     * @param id ID of the entry to remove
-     * @throws Exception if removing the entry fails
-     */
-    public void delete(String index, String type, String id) throws Exception
+    private ESFuture<ESResult> single(ESFuture<List<ESResult>> results)
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
+        final ESFuture<ESResult> future = new ESFuture<ESResult>();
         
-        if(exists)
+        results.addCallback(new IESCallback<List<ESResult>>()
         {
+            @Override
+            public void onSuccess(List<ESResult> result)
+            {
+                future.set(result.get(0));
+            }
+            
+            @Override
+            public void onFailure(Throwable failure)
+            {
+                future.fail(failure);
+            }
+        });
+        
+        return future;
+    }
 
-            fBulkProcessor.add(
-                fClient.prepareDelete(index, type, id).request());
-
-            //TODO: evaluate answer?
+    @Override
+    public void deleteIndex(String index) throws Exception
+    {
+        try
+        {
+            fClient.admin().indices().delete(
+                Requests.deleteIndexRequest(index)).actionGet(
+                fTimeouts.getAdminTimeout());
         }
-        else
+        catch(IndexMissingException e)
         {
-            //TODO: log?
+            //nothing to delete
         }
+        
+        fKnownIndices.remove(index);
     }
     
-    /**
-     * Deletes a list of entries with the given type from the specified index,
-     * defined by a list of entry IDs.
-     * The call is ignored, if the index does not exist.
-     * None of the parameters may be null.
-     * 
-     * @param index index to remove entries from
-     * @param type type of the entries to remove
-     * @param ids IDs of entries to remove
-     * @throws Exception if removing the entries fails
-     */
-    public void bulkDelete(String index, String type, List<String> ids)
-        throws Exception
+    @Override
+    public boolean isAlias(String name) throws Exception
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
-        
-        if(exists)
-        {
-            //queue deletion requests
-            for(String id : ids)
-            {
-                fBulkProcessor.add(
-                    fClient.prepareDelete(index, type, id).request());
-            }
-        }
+        return fClient.admin().indices().prepareAliasesExist(name)
+            .execute().actionGet(fTimeouts.getAdminTimeout()).isExists();
     }
     
-    /**
-     * Retrieves all entries of the specified type from the specified index.
-     * If the index does not exist, an emtpy list is returned.
-     * None of the parameters may be null.
-     * 
-     * @param index name of the index to query
-     * @param type type of the entries to retrieve
-     * @return list of all available entries
-     * @throws Exception if the request fails
-     */
-    public List<JSONObject> getAll(String index, String type) throws Exception
+    @Override
+    public List<String> setAlias(String alias, String index) throws Exception
     {
-        List<JSONObject> results = new ArrayList<JSONObject>();
-        boolean exists = indexExists(index);
+        //indices currently carrying the alias
+        GetAliasesResponse response = fClient.admin().indices()
+            .prepareGetAliases(alias)
+            .execute().actionGet(fTimeouts.getAdminTimeout());
         
-        if(exists)
+        boolean aliased = false;
+        List<String> previous = new ArrayList<String>();
+        Iterator<String> names = response.getAliases().keysIt();
+        while(names.hasNext())
         {
-            SearchResponse response = fClient.prepareSearch(index).setTypes(type)
-                .setSearchType(SearchType.DFS_QUERY_THEN_FETCH)
-                .setSize(Integer.MAX_VALUE).execute()
-                .actionGet();
-
-            //TODO: pagination?
-//              .setFrom(0).setSize(60)
-            
-            SearchHit[] hits = response.getHits().getHits();
-            
-            for(SearchHit hit : hits)
+            String name = names.next();
+            if(!response.getAliases().get(name).isEmpty())
             {
-                results.add(new JSONObject(hit.getSourceAsString()));
+                aliased = true;
+                if(!name.equals(index))
+                {
+                    previous.add(name);
+                }
             }
         }
         
-        return results;
+        //never delete a plain index of the same name that is still in use
+        if(!aliased && indexExists(alias))
+        {
+            throw new IllegalStateException("'" + alias + "' is a plain"
+                + " index, not an alias");
+        }
+        
+        //switch in a single request
+        IndicesAliasesRequestBuilder request =
+            fClient.admin().indices().prepareAliases();
+        for(String name : previous)
+        {
+            request.removeAlias(name, alias);
+        }
+        request.addAlias(index, alias);
+        request.execute().actionGet(fTimeouts.getAdminTimeout());
+        
+        fKnownIndices.add(alias);
+        
+        return previous;
     }
     
-    /**
-     * Retrieves a single entry with the given ID and type from the specified
-     * index.
-     * If the index does not exist, null is returned.
-     * None of the parameters may be null.
-     * 
-     * @param index name of the index to query
-     * @param type type of the entry to retrieve
-     * @param id ID of the entry to retrieve
-     * @return JSON representation of the entry
-     * @throws Exception if the request fails
-     */
-    public JSONObject get(String index, String type, String id) throws Exception
+    @Override
+    public void beginBulkLoad(String index) throws Exception
     {
-        JSONObject result = null;
-        
-        //make sure index exists to avoid Exception
-        boolean exists = indexExists(index);
+        fBulkLoad.begin(index);
+    }
+    
+    @Override
+    public void endBulkLoad(String index) throws Exception
+    {
+        //loaded entries still buffered in the lanes have to be written first
+        awaitPendingActions(fTimeouts.getBulkTimeout().millis());
         
-        if(exists)
-        {
-            GetResponse response = fClient.prepareGet(index, type, id)
-                .execute().actionGet();
-            
-            //TODO: what happens if the entry does not exist?
-            
-            if(response.getSourceAsString() != null)
-            {
-                result = new JSONObject(response.getSourceAsString());
-            }
-        }
-
-        return result;
+        fBulkLoad.end(index);
     }
-
+    
     @Override
     public void clearIndex(String index) throws Exception
     {
@@ -481,7 +2579,9 @@ public class ESBulkingConnector implements BulkProcessor.Listener, IESConnector
         if(indexExists(index))
         {
             fClient.admin().indices().delete(
-                Requests.deleteIndexRequest(index)).actionGet();
+                Requests.deleteIndexRequest(index)).actionGet(
+                fTimeouts.getAdminTimeout());
+            fKnownIndices.remove(index);
         }
         
         //create index
@@ -497,7 +2597,8 @@ public class ESBulkingConnector implements BulkProcessor.Listener, IESConnector
         {
           fClient.admin().indices().prepareCreate(index)
               .addMapping(type, mapping.toString())
-              .execute().actionGet();
+              .execute().actionGet(fTimeouts.getAdminTimeout());
+          fKnownIndices.add(index);
         }
         else
         {
@@ -505,7 +2606,153 @@ public class ESBulkingConnector implements BulkProcessor.Listener, IESConnector
             fClient.admin().indices().preparePutMapping(index)
                 .setIgnoreConflicts(true)
                 .setType(type).setSource(mapping.toString())
-                .execute().actionGet();
+                .execute().actionGet(fTimeouts.getAdminTimeout());
+        }
+    }
+    
+    /**
+     * Callback continuing an asynchronous call once it is known whether the
+     * index exists, failing the call's future if that could not be
+     * determined or if the continuation fails.
+     */
+    private abstract class IndexCallback implements IESCallback<Boolean>
+    {
+        private final ESFuture<?> fFuture;
+        
+        private IndexCallback(ESFuture<?> future)
+        {
+            fFuture = future;
+        }
+        
+        @Override
+        public void onSuccess(Boolean exists)
+        {
+            try
+            {
+                onIndex(exists);
+            }
+            catch(Exception e)
+            {
+                fFuture.fail(e);
+            }
+        }
+        
+        @Override
+        public void onFailure(Throwable failure)
+        {
+            fFuture.fail(failure);
+        }
+        
+        protected abstract void onIndex(boolean exists) throws Exception;
+    }
+    
+    /**
+     * Write lane with its own queue limit, bulk processor and bulk settings,
+     * read from the configuration keys starting with the given prefix.
+     */
+    private class Lane implements BulkProcessor.Listener
+    {
+        private final String name;
+        private final int actions;
+        private final int queueSize;
+        private int pending;
+        private final AtomicInteger inFlight;
+        private final ScheduledExecutorService scheduler;
+        private final BulkProcessor processor;
+        
+        private final ESBulkTuner tuner;
+        private final AtomicInteger unflushed;
+        private final Map<Long, Long> bulkStarts;
+        private volatile long lastFlush;
+        
+        private Lane(ESConfig config, String name, String prefix,
+            boolean adaptive, ScheduledExecutorService scheduler)
+        {
+            this.name = name;
+            this.scheduler = scheduler;
+            
+            //read bulking configuration
+            actions = Integer.parseInt(
+                config.getProperty(prefix + ACTIONS_KEY));
+            long megabytes = Long.parseLong(
+                config.getProperty(prefix + MBS_KEY));
+            long seconds = Long.parseLong(
+                config.getProperty(prefix + SECONDS_KEY));
+            int concurrent = Integer.parseInt(
+                config.getProperty(prefix + CONCURRENT_KEY));
+            
+            //queue limit
+            queueSize = Integer.parseInt(
+                config.getProperty(prefix + QUEUE_SIZE_KEY));
+            pending = 0;
+            inFlight = new AtomicInteger();
+            
+            //optional adaptation of bulk size and flush interval
+            if(adaptive)
+            {
+                tuner = new ESBulkTuner(config, actions, seconds * 1000);
+            }
+            else
+            {
+                tuner = null;
+            }
+            unflushed = new AtomicInteger();
+            bulkStarts = new ConcurrentHashMap<Long, Long>();
+            lastFlush = System.currentTimeMillis();
+            
+            //create bulk processor
+            BulkProcessor.Builder builder = BulkProcessor.builder(fClient, this)
+                //execute every ... Megabytes
+                .setBulkSize(new ByteSizeValue(megabytes, ByteSizeUnit.MB))
+                //n concurrent requests while bulking
+                .setConcurrentRequests(concurrent);
+            
+            if(tuner != null)
+            {
+                //adapted sizes and intervals are enforced by flushing manually
+                builder.setBulkActions(tuner.getMaxActions());
+                
+                long tick = tuner.getMinFlushMillis();
+                scheduler.scheduleWithFixedDelay(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        flushIfDue(Lane.this);
+                    }
+                }, tick, tick, TimeUnit.MILLISECONDS);
+            }
+            else
+            {
+                //execute every ... requests
+                builder.setBulkActions(actions)
+                    //flush every ... seconds
+                    .setFlushInterval(TimeValue.timeValueSeconds(seconds));
+            }
+            
+            processor = builder.build();
+        }
+        
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request)
+        {
+            ESBulkingConnector.this.beforeBulk(this, executionId, request);
+        }
+        
+        @Override
+        public void afterBulk(long executionId, BulkRequest request,
+            BulkResponse response)
+        {
+            ESBulkingConnector.this.afterBulk(this, executionId, request,
+                response);
+        }
+        
+        @Override
+        public void afterBulk(long executionId, BulkRequest request,
+            Throwable failure)
+        {
+            ESBulkingConnector.this.afterBulk(this, executionId, request,
+                failure);
         }
     }
 }
\ No newline at end of file
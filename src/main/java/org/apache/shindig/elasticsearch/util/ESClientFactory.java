@@ -0,0 +1,125 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+
+/**
+ * Utility creating transport clients for the connectors, connecting to a
+ * list of seed nodes and optionally sniffing the rest of the cluster.
+ * Requests are distributed round-robin over all connected nodes by the
+ * client, failing over to the next node if one becomes unavailable.
+ */
+public class ESClientFactory
+{
+    private static final String HOST_PROP = "shindig.elasticsearch.host";
+    private static final String PORT_PROP = "shindig.elasticsearch.port";
+    private static final String HOSTS_PROP = "shindig.elasticsearch.hosts";
+    private static final String CNAME_PROP = "shindig.elasticsearch.cluster.name";
+    private static final String SNIFF_PROP = "shindig.elasticsearch.sniff";
+    private static final String PING_TIMEOUT_PROP =
+        "shindig.elasticsearch.ping.timeout";
+    private static final String PING_INTERVAL_PROP =
+        "shindig.elasticsearch.ping.interval";
+    
+    /**
+     * Creates a transport client for the cluster defined by the given
+     * configuration, connected to all configured seed nodes.
+     * Seed nodes are given as a comma-separated list of "host[:port]"
+     * entries, the single configured host is used if the list is empty.
+     * The given configuration object must not be null.
+     * 
+     * @param config configuration object to use
+     * @return new transport client
+     */
+    public static TransportClient create(ESConfig config)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        
+        Settings settings = ImmutableSettings.settingsBuilder()
+            .put("cluster.name", config.getProperty(CNAME_PROP))
+            .put("client.transport.sniff",
+                Boolean.parseBoolean(config.getProperty(SNIFF_PROP)))
+            .put("client.transport.ping_timeout",
+                getSeconds(config, PING_TIMEOUT_PROP, 5) + "s")
+            .put("client.transport.nodes_sampler_interval",
+                getSeconds(config, PING_INTERVAL_PROP, 5) + "s")
+            .build();
+        
+        TransportClient client = new TransportClient(settings);
+        
+        List<InetSocketTransportAddress> seeds = getSeeds(config);
+        for(InetSocketTransportAddress seed : seeds)
+        {
+            client.addTransportAddress(seed);
+        }
+        
+        Logger.getLogger(ESClientFactory.class.getCanonicalName()).log(
+            Level.INFO, "connected to " + client.connectedNodes().size()
+            + " of " + seeds.size() + " seed nodes");
+        
+        return client;
+    }
+    
+    private static List<InetSocketTransportAddress> getSeeds(ESConfig config)
+    {
+        int defaultPort = Integer.parseInt(config.getProperty(PORT_PROP));
+        
+        List<InetSocketTransportAddress> seeds =
+            new ArrayList<InetSocketTransportAddress>();
+        
+        String hosts = config.getProperty(HOSTS_PROP);
+        if(hosts != null)
+        {
+            for(String host : hosts.split(","))
+            {
+                host = host.trim();
+                if(host.isEmpty())
+                {
+                    continue;
+                }
+                
+                //optional port after the last colon
+                int port = defaultPort;
+                int colon = host.lastIndexOf(':');
+                if(colon > 0)
+                {
+                    port = Integer.parseInt(host.substring(colon + 1));
+                    host = host.substring(0, colon);
+                }
+                
+                seeds.add(new InetSocketTransportAddress(host, port));
+            }
+        }
+        
+        //fall back to single host
+        if(seeds.isEmpty())
+        {
+            seeds.add(new InetSocketTransportAddress(
+                config.getProperty(HOST_PROP), defaultPort));
+        }
+        
+        return seeds;
+    }
+    
+    private static long getSeconds(ESConfig config, String key, long defValue)
+    {
+        String value = config.getProperty(key);
+        if(value == null || value.isEmpty())
+        {
+            return defValue;
+        }
+        
+        return Long.parseLong(value);
+    }
+}
@@ -0,0 +1,140 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.indices.IndexMissingException;
+import org.json.JSONObject;
+
+/**
+ * Index management calls for bulk loads using a transport client, shared by
+ * the transport client connectors.
+ */
+public class ESClientIndexAdmin implements IESIndexAdmin
+{
+    private final Client fClient;
+    private final ESTimeouts fTimeouts;
+    
+    /**
+     * Creates index management calls sending requests via the given client
+     * and waiting for them using the given timeouts.
+     * None of the parameters may be null.
+     * 
+     * @param client client to send requests with
+     * @param timeouts timeouts for admin requests
+     */
+    public ESClientIndexAdmin(Client client, ESTimeouts timeouts)
+    {
+        if(client == null)
+        {
+            throw new NullPointerException("client was null");
+        }
+        if(timeouts == null)
+        {
+            throw new NullPointerException("timeouts were null");
+        }
+        
+        fClient = client;
+        fTimeouts = timeouts;
+    }
+    
+    @Override
+    public boolean indexExists(String index) throws Exception
+    {
+        return fClient.admin().indices().prepareExists(index)
+            .execute().actionGet(fTimeouts.getAdminTimeout()).isExists();
+    }
+    
+    @Override
+    public Map<String, String> getSettings(String index, String... names)
+        throws Exception
+    {
+        GetSettingsResponse response = fClient.admin().indices()
+            .prepareGetSettings(index)
+            .execute().actionGet(fTimeouts.getAdminTimeout());
+        
+        Map<String, String> settings = new HashMap<String, String>();
+        for(String name : names)
+        {
+            String value = response.getSetting(index, name);
+            if(value != null)
+            {
+                settings.put(name, value);
+            }
+        }
+        
+        return settings;
+    }
+    
+    @Override
+    public void updateSettings(String index, Map<String, String> settings)
+        throws Exception
+    {
+        fClient.admin().indices().prepareUpdateSettings(index)
+            .setSettings(ImmutableSettings.settingsBuilder()
+                .put(settings).build())
+            .execute().actionGet(fTimeouts.getAdminTimeout());
+    }
+    
+    @Override
+    public void refresh(String index) throws Exception
+    {
+        fClient.admin().indices().prepareRefresh(index)
+            .execute().actionGet(fTimeouts.getAdminTimeout());
+    }
+    
+    @Override
+    public boolean waitForHealth(String index, ClusterHealthStatus status,
+        long seconds) throws Exception
+    {
+        //the server-side wait is limited by its own timeout
+        ClusterHealthResponse health = fClient.admin().cluster()
+            .prepareHealth(index)
+            .setWaitForStatus(status)
+            .setTimeout(TimeValue.timeValueSeconds(seconds))
+            .execute().actionGet(TimeValue.timeValueMillis(seconds * 1000
+                + fTimeouts.getAdminTimeout().millis()));
+        
+        return !health.isTimedOut();
+    }
+    
+    @Override
+    public JSONObject getDocument(String index, String type, String id)
+        throws Exception
+    {
+        JSONObject source = null;
+        
+        try
+        {
+            GetResponse response = fClient.prepareGet(index, type, id)
+                .execute().actionGet(fTimeouts.getReadTimeout());
+            
+            if(response.isExists())
+            {
+                source = new JSONObject(response.getSourceAsString());
+            }
+        }
+        catch(IndexMissingException e)
+        {
+            //nothing stored yet
+        }
+        
+        return source;
+    }
+    
+    @Override
+    public void putDocument(String index, String type, String id,
+        JSONObject source) throws Exception
+    {
+        fClient.prepareIndex(index, type, id)
+            .setSource(source.toString())
+            .execute().actionGet(fTimeouts.getWriteTimeout());
+    }
+}
@@ -1,28 +1,57 @@
 package org.apache.shindig.elasticsearch.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetRequestBuilder;
 import org.elasticsearch.action.get.GetResponse;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
+import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
-import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.common.settings.ImmutableSettings;
-import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.index.VersionType;
 import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
 import org.elasticsearch.indices.IndexMissingException;
-import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
 import org.json.JSONObject;
 
 import com.google.inject.Inject;
@@ -32,25 +61,49 @@ import com.google.inject.Singleton;
  * Elasticsearch connector utility class using the binary transport client
  * providing indexing, updating and deletion of JSON object in the index and
  * index management functionality.
+ * Asynchronous calls are executed directly, bulk calls among them are not
+ * retried, failures are reported in their results instead.
+ * Optionally, concurrent synchronous single-entry calls are merged into bulk
+ * requests, with every caller still waiting for its own result.
+ * Calls wait for results only up to configurable timeouts, shortened by the
+ * calling thread's deadline (see ESDeadline). Writes that time out fail,
+ * since they may still be applied later. Versioned ones among them are
+ * resent in the background, the entries of the others are marked as dirty
+ * (see drainDirtyEntries). Bulk retries that would exceed the deadline
+ * continue in the background.
  * The connection can be closed manually, but will be closed automatically on
  * shutdown.
  */
 @Singleton
-public class ESConnector implements IESConnector
+public class ESConnector implements IAsyncESConnector
 {
-    private static final String HOST_PROP = "shindig.elasticsearch.host";
-    private static final String PORT_PROP = "shindig.elasticsearch.port";
-    private static final String CNAME_PROP = "shindig.elasticsearch.cluster.name";
-    
-    private final String fEsHost, fEsClusterName;
-    private final int fEsPort;
+    private static final String GROUP_COMMIT_PROP =
+        "shindig.elasticsearch.group_commit.enabled";
     
     private final Client fClient;
     
+    private final ESScroller fScroller;
+    
+    private final Set<String> fKnownIndices;
+    
+    private final ESRetryPolicy fRetryPolicy;
+    private volatile IDeadLetterSink fDeadLetters;
+    private final ScheduledExecutorService fScheduler;
+    private final Set<BulkRequest> fRetries;
+    private final ESDirtyEntries fDirtyEntries;
+    
+    private final ESTimeouts fTimeouts;
+    private final ESRouting fRouting;
+    private final ESScripts fScripts;
+    
+    private final ESBulkLoadSettings fBulkLoad;
+    
+    private final ESGroupCommitter fCommitter;
+    
     private final Logger fLogger;
     
     /**
-     * Creates a new Elasticsearch connector, connecting to the server defined
+     * Creates a new Elasticsearch connector, connecting to the cluster defined
      * by the configuration object via the transport client.
      * The given configuration object must not be null.
      * 
@@ -64,24 +117,68 @@ public class ESConnector implements IESConnector
             throw new NullPointerException("configuration object was null");
         }
         
-        fEsHost = config.getProperty(HOST_PROP);
-        fEsClusterName = config.getProperty(CNAME_PROP);
-        fEsPort = Integer.parseInt(config.getProperty(PORT_PROP));
-        
         fLogger = Logger.getLogger(this.getClass().getCanonicalName());
         
-        Settings settings = ImmutableSettings.settingsBuilder()
-            .put("cluster.name", fEsClusterName).build();
+        //indices known to exist, saving a round trip per call
+        fKnownIndices = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+        
+        //connect to all seed nodes, sniffing further ones if configured
+        fClient = ESClientFactory.create(config);
+        
+        fScroller = new ESScroller(config, fClient);
+        
+        //retries of failed bulk actions
+        fRetryPolicy = new ESRetryPolicy(config);
+        fDeadLetters = new ESDeadLetterSink(config);
+        fScheduler = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("es-retry-scheduler"));
+        fRetries = Collections.newSetFromMap(
+            new ConcurrentHashMap<BulkRequest, Boolean>());
+        fDirtyEntries = new ESDirtyEntries(config);
+        
+        fTimeouts = new ESTimeouts(config);
+        fRouting = new ESRouting(config);
+        fScripts = new ESScripts(config);
+        fBulkLoad = new ESBulkLoadSettings(config,
+            new ESClientIndexAdmin(fClient, fTimeouts));
+        
+        //optionally merge concurrent single-entry calls into bulks
+        if(Boolean.parseBoolean(config.getProperty(GROUP_COMMIT_PROP)))
+        {
+            fCommitter = new ESGroupCommitter(config, fClient);
+        }
+        else
+        {
+            fCommitter = null;
+        }
         
-        fClient = new TransportClient(settings).addTransportAddress(
-            new InetSocketTransportAddress(fEsHost, fEsPort));
+        //indices a previous run left in bulk load mode
+        fBulkLoad.restore();
     }
     
     /**
      * Closes the connection to the Elasticsearch server.
+     * Scheduled retries that did not run yet are handed to the dead letter
+     * sink, as are retries of bulks still running.
      */
     public void close()
     {
+        if(fCommitter != null)
+        {
+            fCommitter.close();
+        }
+        
+        //retries could not be sent anymore
+        fScheduler.shutdownNow();
+        for(BulkRequest request : fRetries)
+        {
+            if(fRetries.remove(request))
+            {
+                deadLetter(request, "connector closed before retry");
+            }
+        }
+        
         fClient.close();
     }
     
@@ -100,7 +197,8 @@ public class ESConnector implements IESConnector
         try
         {
             IndicesExistsResponse er = fClient.admin().indices().exists(
-                new IndicesExistsRequest(index)).actionGet();
+                new IndicesExistsRequest(index)).actionGet(
+                fTimeouts.getAdminTimeout());
             exists = er.isExists();
         }
         catch(IndexMissingException e)
@@ -108,9 +206,34 @@ public class ESConnector implements IESConnector
             fLogger.log(Level.SEVERE, "'index exists' request is borked", e);
         }
         
+        //remember result for subsequent calls
+        if(exists)
+        {
+            fKnownIndices.add(index);
+        }
+        else
+        {
+            fKnownIndices.remove(index);
+        }
+        
         return exists;
     }
     
+    private boolean isKnownIndex(String index) throws Exception
+    {
+        //only ask Elasticsearch for indices that have not been seen yet
+        return fKnownIndices.contains(index) || indexExists(index);
+    }
+    
+    private void ensureIndex(String index) throws Exception
+    {
+        //make sure index exists to avoid Exception
+        if(!isKnownIndex(index))
+        {
+            createIndex(index);
+        }
+    }
+    
     /**
      * Checks whether a document entry in the given index, with the given type
      * and ID already exists.
@@ -125,22 +248,88 @@ public class ESConnector implements IESConnector
     public boolean entryExists(String index, String type, String id)
         throws Exception
     {
-        boolean exists = false;
+        return entryExists(index, type, id, null);
+    }
+    
+    /**
+     * Checks whether a document entry in the given index, with the given type,
+     * ID and routing value already exists.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @param routing routing value of the entry or null
+     * @return whether the entry already exists
+     * @throws Exception if the request fails
+     */
+    public boolean entryExists(String index, String type, String id,
+        String routing) throws Exception
+    {
+        return getVersion(index, type, id, routing) >= 0;
+    }
+    
+    /**
+     * Retrieves the current version of the document entry in the given index,
+     * with the given type and ID, without retrieving its contents.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @return version of the entry or -1 if it does not exist
+     * @throws Exception if the request fails
+     */
+    public long getVersion(String index, String type, String id)
+        throws Exception
+    {
+        return getVersion(index, type, id, null);
+    }
+    
+    /**
+     * Retrieves the current version of the document entry in the given index,
+     * with the given type, ID and routing value, without retrieving its
+     * contents.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @param routing routing value of the entry or null
+     * @return version of the entry or -1 if it does not exist
+     * @throws Exception if the request fails
+     */
+    public long getVersion(String index, String type, String id,
+        String routing) throws Exception
+    {
+        long version = -1;
         
-        try
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
         {
-            JSONObject entry = this.get(index, type, id);
-            if(entry != null)
+            try
             {
-                exists = true;
+                //only retrieve metadata, no source or fields
+                GetResponse response = fClient.prepareGet(index, type, id)
+                    .setRouting(routing)
+                    .setFetchSource(false)
+                    .execute().actionGet(fTimeouts.getReadTimeout());
+                
+                if(response.isExists())
+                {
+                    version = response.getVersion();
+                }
+            }
+            catch(IndexMissingException e)
+            {
+                //index was removed in the meantime, entry can't exist
+                fKnownIndices.remove(index);
             }
-        }
-        catch(DocumentMissingException e)
-        {
-            //document not found, false is default
         }
         
-        return exists;
+        return version;
     }
     
     /**
@@ -155,7 +344,8 @@ public class ESConnector implements IESConnector
         try
         {
             fClient.admin().indices().create(
-                Requests.createIndexRequest(index)).actionGet();
+                Requests.createIndexRequest(index)).actionGet(
+                fTimeouts.getAdminTimeout());
             
             //TODO: evaluate response?
         }
@@ -164,6 +354,8 @@ public class ESConnector implements IESConnector
             fLogger.log(Level.WARNING, "index '"
                 + index + "' already exists", e);
         }
+        
+        fKnownIndices.add(index);
     }
     
     /**
@@ -182,20 +374,73 @@ public class ESConnector implements IESConnector
     public void add(String index, String type, String id, JSONObject entry)
         throws Exception
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
+        add(index, type, id, entry, -1);
+    }
+    
+    /**
+     * Adds an entry in JSON form to the specified index under the specified
+     * type and ID, using an external version number. Existing entries are
+     * only overwritten if their version is not higher, otherwise the stale
+     * write is ignored. If the version is negative, no version is used.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add the entry to
+     * @param type type of the entry to add
+     * @param id ID of the entry to add
+     * @param entry source of the entry to add to the index
+     * @param version external version of the entry or -1
+     * @throws Exception if adding the entry fails
+     */
+    public void add(String index, String type, String id, JSONObject entry,
+        long version) throws Exception
+    {
+        ensureIndex(index);
         
-        if(!exists)
+        try
         {
-            createIndex(index);
+            try
+            {
+                execute(prepareIndex(index, type, id, entry, version)
+                    .request());
+            }
+            catch(IndexMissingException e)
+            {
+                //index was removed in the meantime, create it and try again
+                fKnownIndices.remove(index);
+                ensureIndex(index);
+                
+                execute(prepareIndex(index, type, id, entry, version)
+                    .request());
+            }
         }
-        
-        fClient.prepareIndex(index, type, id)
+        catch(VersionConflictEngineException e)
+        {
+            //a newer version is already stored
+            fLogger.log(Level.FINE, "ignoring stale write of '" + type + "/"
+                + id + "' with version " + version);
+        }
+    }
+    
+    private IndexRequestBuilder prepareIndex(String index, String type,
+        String id, JSONObject entry, long version)
+    {
+        IndexRequestBuilder request = fClient.prepareIndex(index, type, id)
             .setSource(entry.toString())
-            .execute().actionGet();
+            .setRouting(fRouting.getRouting(type, entry));
+        
+        //only overwrite entries with lower or equal versions
+        if(version >= 0)
+        {
+            request.setVersion(version)
+                .setVersionType(VersionType.EXTERNAL_GTE);
+        }
+        
+        return request;
     }
     
+    
     /**
      * Adds a list of entries of the given type to the specified index.
      * A check whether the index exists is executed and if the index does not
@@ -211,33 +456,47 @@ public class ESConnector implements IESConnector
     public void bulkAdd(String index, String type, List<JSONObject> entries)
         throws Exception
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
-        
-        if(!exists)
-        {
-            createIndex(index);
-        }
+        bulkAdd(index, type, entries, false);
+    }
+    
+    /**
+     * Adds a list of entries of the given type to the specified index,
+     * optionally using external version numbers derived from the entries'
+     * "updated" timestamps (see ShindigEncoder.getVersion). Versioned
+     * entries are only overwritten if their version is not higher, otherwise
+     * the stale write is ignored.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add entries to
+     * @param type type of the entries to add
+     * @param entries entries to add
+     * @param versioned whether to use external versions
+     * @throws Exception if adding entries fails
+     */
+    public void bulkAdd(String index, String type, List<JSONObject> entries,
+        boolean versioned) throws Exception
+    {
+        ensureIndex(index);
         
         //queue index requests
         BulkRequestBuilder bulkRequest = fClient.prepareBulk();
         
         for(JSONObject entry : entries)
         {
-            bulkRequest.add(fClient.prepareIndex(index, type,
-                entry.getString("id")).setSource(entry.toString()));
+            long version = -1;
+            if(versioned)
+            {
+                version = ShindigEncoder.getVersion(entry);
+            }
+            
+            bulkRequest.add(prepareIndex(index, type, entry.getString("id"),
+                entry, version));
         }
         
         //execute as bulk
-        BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-        
-        if(bulkResponse.hasFailures())
-        {
-            //TODO: Exception?
-            fLogger.log(Level.SEVERE, "error during bulk indexing:\n"
-                + bulkResponse.buildFailureMessage());
-        }
+        executeBulk(index, bulkRequest.request(), "indexing");
     }
     
     /**
@@ -256,19 +515,21 @@ public class ESConnector implements IESConnector
     public void update(String index, String type, String id, JSONObject entry)
         throws Exception
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
+        //TODO: remove? request will fail anyway
+        ensureIndex(index);
         
-        if(!exists)
+        try
         {
-            //TODO: remove? request will fail anyway
-            createIndex(index);
+            execute(fClient.prepareUpdate(index, type, id)
+                .setDoc(entry.toString())
+                .setRouting(fRouting.getRouting(type, entry)).request());
+        }
+        catch(IndexMissingException e)
+        {
+            //index was removed in the meantime, forget it and pass on
+            fKnownIndices.remove(index);
+            throw e;
         }
-        
-        fClient.prepareUpdate(index, type, id)
-            .setDoc(entry.toString())
-            .execute().actionGet();
         
         //TODO: evaluate answer?
     }
@@ -288,14 +549,7 @@ public class ESConnector implements IESConnector
     public void bulkUpdate(String index, String type, List<JSONObject> entries)
         throws Exception
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
-        
-        if(!exists)
-        {
-            createIndex(index);
-        }
+        ensureIndex(index);
         
         //queue update requests
         BulkRequestBuilder bulkRequest = fClient.prepareBulk();
@@ -303,128 +557,513 @@ public class ESConnector implements IESConnector
         for(JSONObject entry : entries)
         {
             bulkRequest.add(fClient.prepareUpdate(index, type,
-                entry.getString("id")).setDoc(entry.toString()));
+                entry.getString("id")).setDoc(entry.toString())
+                .setRouting(fRouting.getRouting(type, entry)));
         }
         
         //execute as bulk
-        BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-        
-        if(bulkResponse.hasFailures())
-        {
-            //TODO: Exception?
-            fLogger.log(Level.SEVERE, "error during bulk updating:\n"
-                + bulkResponse.buildFailureMessage());
-        }
+        executeBulk(index, bulkRequest.request(), "updating");
     }
     
     /**
-     * Deletes an entry with the given type and ID from the specified index.
-     * The call is ignored, if the index does not exist.
-     * The call will fail if the entry does not exist.
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index or adds it if it does not exist yet, using a single
+     * request. A check whether the index exists is executed and if the
+     * index does not exist, it will be created.
      * None of the parameters may be null.
      * 
-     * @param index index to remove the entry from
-     * @param type type of the entry to remove
-     * @param id ID of the entry to remove
-     * @throws Exception if removing the entry fails
+     * @param index name of the index to upsert the entry in
+     * @param type type of the entry to upsert
+     * @param id ID of the entry to upsert
+     * @param entry source of the entry to upsert in the index
+     * @throws Exception if upserting the entry fails
      */
-    public void delete(String index, String type, String id) throws Exception
+    public void upsert(String index, String type, String id, JSONObject entry)
+        throws Exception
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
+        upsert(index, type, id, entry, null);
+    }
+    
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index or adds the given initial entry if it does not exist
+     * yet, using a single request. A check whether the index exists is
+     * executed and if the index does not exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to upsert the entry in
+     * @param type type of the entry to upsert
+     * @param id ID of the entry to upsert
+     * @param entry partial source to update an existing entry with
+     * @param initial source of the entry to add if it does not exist
+     * @throws Exception if upserting the entry fails
+     */
+    public void upsert(String index, String type, String id, JSONObject entry,
+        JSONObject initial) throws Exception
+    {
+        ensureIndex(index);
         
-        if(exists)
+        try
         {
-            fClient.prepareDelete(index, type, id)
-                .execute().actionGet();
-
-            //TODO: evaluate answer?
+            execute(prepareUpsert(index, type, id, entry, initial).request());
         }
-        else
+        catch(IndexMissingException e)
         {
-            //TODO: log?
+            //index was removed in the meantime, forget it and pass on
+            fKnownIndices.remove(index);
+            throw e;
         }
     }
     
     /**
-     * Deletes a list of entries with the given type from the specified index,
-     * defined by a list of entry IDs.
-     * The call is ignored, if the index does not exist.
+     * Updates a list of entries of the given type in the specified index,
+     * adding those that do not exist yet.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
      * None of the parameters may be null.
      * 
-     * @param index index to remove entries from
-     * @param type type of the entries to remove
-     * @param ids IDs of entries to remove
-     * @throws Exception if removing the entries fails
+     * @param index name of the index to upsert entries in
+     * @param type type of the entries to upsert
+     * @param entries entries to upsert
+     * @throws Exception if upserting entries fails
      */
-    public void bulkDelete(String index, String type, List<String> ids)
+    public void bulkUpsert(String index, String type, List<JSONObject> entries)
         throws Exception
     {
-        //make sure index exists to avoid Exception
-        //TODO: don't check before every call?
-        boolean exists = indexExists(index);
+        ensureIndex(index);
         
-        if(exists)
+        //queue upsert requests
+        BulkRequestBuilder bulkRequest = fClient.prepareBulk();
+        
+        for(JSONObject entry : entries)
         {
-            //queue deletion requests
-            BulkRequestBuilder bulkRequest = fClient.prepareBulk();
+            bulkRequest.add(prepareUpsert(index, type, entry.getString("id"),
+                entry, null));
+        }
+        
+        //execute as bulk
+        executeBulk(index, bulkRequest.request(), "upserting");
+    }
+    
+    private void execute(ActionRequest<?> request) throws Exception
+    {
+        try
+        {
+            send(request);
+        }
+        catch(ElasticsearchTimeoutException e)
+        {
+            //the request may still be applied, so only versioned writes can
+            //be resent without overwriting newer ones
+            String entry = "'" + ESRequestUtil.getIndex(request) + "/"
+                + ESRequestUtil.getEntryId(request) + "'";
             
-            for(String id : ids)
+            if(isVersioned(request))
             {
-                bulkRequest.add(fClient.prepareDelete(index, type, id));
+                fLogger.log(Level.WARNING, "writing " + entry
+                    + " timed out, retrying in the background");
+                
+                BulkRequest retry = new BulkRequest();
+                retry.add(request);
+                retryInBackground(retry, 1);
             }
-            
-            //execute as bulk
-            BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-            
-            if(bulkResponse.hasFailures())
+            else
             {
-                //TODO: Exception?
-                fLogger.log(Level.SEVERE, "error during bulk deletion:\n"
-                    + bulkResponse.buildFailureMessage());
+                String reason = "write timed out, entry marked as dirty";
+                fLogger.log(Level.WARNING, reason + ": " + entry);
+                
+                fDeadLetters.deadLetter(request, reason);
+                fDirtyEntries.mark(request);
             }
+            
+            //not acknowledged either way
+            throw e;
         }
     }
     
-    /**
-     * Retrieves all entries of the specified type from the specified index.
-     * If the index does not exist, an emtpy list is returned.
-     * None of the parameters may be null.
-     * 
-     * @param index name of the index to query
-     * @param type type of the entries to retrieve
-     * @return list of all available entries
-     * @throws Exception if the request fails
-     */
-    public List<JSONObject> getAll(String index, String type) throws Exception
+    private boolean isVersioned(ActionRequest<?> request)
     {
-        List<JSONObject> results = new ArrayList<JSONObject>();
-        boolean exists = indexExists(index);
-        
-        if(exists)
+        return request instanceof IndexRequest
+            && ((IndexRequest) request).versionType() != VersionType.INTERNAL;
+    }
+    
+    private void send(ActionRequest<?> request) throws Exception
+    {
+        //merge with concurrent calls if configured, send directly otherwise
+        if(fCommitter != null)
         {
-            SearchResponse response = fClient.prepareSearch(index).setTypes(type)
-                .setSearchType(SearchType.DFS_QUERY_THEN_FETCH)
-                .setSize(Integer.MAX_VALUE).execute()
-                .actionGet();
-
-            //TODO: pagination?
-//              .setFrom(0).setSize(60)
-            
-            SearchHit[] hits = response.getHits().getHits();
-            
-            for(SearchHit hit : hits)
-            {
-                results.add(new JSONObject(hit.getSourceAsString()));
-            }
+            fCommitter.execute(request, fTimeouts.getWriteTimeout());
+        }
+        else if(request instanceof IndexRequest)
+        {
+            fClient.index((IndexRequest) request).actionGet(
+                fTimeouts.getWriteTimeout());
+        }
+        else if(request instanceof UpdateRequest)
+        {
+            fClient.update((UpdateRequest) request).actionGet(
+                fTimeouts.getWriteTimeout());
+        }
+        else if(request instanceof DeleteRequest)
+        {
+            fClient.delete((DeleteRequest) request).actionGet(
+                fTimeouts.getWriteTimeout());
+        }
+        else
+        {
+            throw new IllegalArgumentException("unsupported request type: "
+                + request.getClass().getName());
         }
-        
-        return results;
     }
     
-    /**
-     * Retrieves a single entry with the given ID and type from the specified
+    private UpdateRequestBuilder prepareUpsert(String index, String type,
+        String id, JSONObject entry, JSONObject initial)
+    {
+        UpdateRequestBuilder request = fClient.prepareUpdate(index, type, id)
+            .setDoc(entry.toString());
+        
+        //partial entries may lack the routing field of the initial entry
+        String routing = fRouting.getRouting(type, entry);
+        if(routing == null)
+        {
+            routing = fRouting.getRouting(type, initial);
+        }
+        request.setRouting(routing);
+        
+        if(initial != null)
+        {
+            request.setUpsert(initial.toString());
+        }
+        else
+        {
+            //partial document is the complete document
+            request.setDocAsUpsert(true);
+        }
+        
+        return request;
+    }
+    
+    /**
+     * Removes a value from an array field of the entry with the given type
+     * and ID in the specified index. If scripts are enabled (see ESScripts),
+     * this is done on the server side using a single request without reading
+     * the entry first, otherwise the entry is read, modified and written
+     * back. Optionally, the entry is deleted if the array is empty
+     * afterwards.
+     * The call is ignored, if the index or the entry do not exist.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index containing the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param field name of the array field to remove the value from
+     * @param value value to remove
+     * @param deleteIfEmpty whether to delete the entry if no values are left
+     * @throws Exception if updating the entry fails
+     */
+    public void removeFromArray(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty) throws Exception
+    {
+        removeFromArray(index, type, id, field, value, deleteIfEmpty, null);
+    }
+    
+    /**
+     * Removes a value from an array field of the entry with the given type,
+     * ID and routing value in the specified index on the server side, as
+     * described above.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index containing the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param field name of the array field to remove the value from
+     * @param value value to remove
+     * @param deleteIfEmpty whether to delete the entry if no values are left
+     * @param routing routing value of the entry or null
+     * @throws Exception if updating the entry fails
+     */
+    public void removeFromArray(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty, String routing)
+        throws Exception
+    {
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            try
+            {
+                if(fScripts.isEnabled())
+                {
+                    execute(fScripts.prepareRemoveFromArray(fClient, index,
+                        type, id, field, value, deleteIfEmpty)
+                        .setRouting(routing).request());
+                }
+                else
+                {
+                    removeFromArrayLocally(index, type, id, field, value,
+                        deleteIfEmpty, routing);
+                }
+            }
+            catch(DocumentMissingException e)
+            {
+                //entry does not exist (anymore), nothing to remove
+            }
+            catch(IndexMissingException e)
+            {
+                //index was removed in the meantime, nothing to remove
+                fKnownIndices.remove(index);
+            }
+        }
+    }
+    
+    private void removeFromArrayLocally(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty, String routing)
+        throws Exception
+    {
+        //without scripts, write back the modified entry only if it has not
+        //been changed in the meantime and start over otherwise
+        for(int attempt = 0; ; ++attempt)
+        {
+            GetResponse response = fClient.prepareGet(index, type, id)
+                .setRouting(routing)
+                .execute().actionGet(fTimeouts.getReadTimeout());
+            
+            if(!response.isExists())
+            {
+                //entry does not exist (anymore), nothing to remove
+                return;
+            }
+            
+            JSONObject entry = new JSONObject(response.getSourceAsString());
+            String stored = entry.toString();
+            entry = ESScripts.applyRemoveFromArray(entry, field, value,
+                deleteIfEmpty);
+            
+            try
+            {
+                if(entry == null)
+                {
+                    fClient.delete(new DeleteRequest(index, type, id)
+                        .routing(routing).version(response.getVersion()))
+                        .actionGet(fTimeouts.getWriteTimeout());
+                }
+                else if(!stored.equals(entry.toString()))
+                {
+                    fClient.index(new IndexRequest(index, type, id)
+                        .source(entry.toString()).routing(routing)
+                        .version(response.getVersion()))
+                        .actionGet(fTimeouts.getWriteTimeout());
+                }
+                
+                return;
+            }
+            catch(VersionConflictEngineException e)
+            {
+                if(attempt >= ESScripts.RETRIES)
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Deletes an entry with the given type and ID from the specified index.
+     * The call is ignored, if the index does not exist.
+     * The call will fail if the entry does not exist.
+     * None of the parameters may be null.
+     * 
+     * @param index index to remove the entry from
+     * @param type type of the entry to remove
+     * @param id ID of the entry to remove
+     * @throws Exception if removing the entry fails
+     */
+    public void delete(String index, String type, String id) throws Exception
+    {
+        delete(index, type, id, null);
+    }
+    
+    /**
+     * Deletes an entry with the given type, ID and routing value from the
+     * specified index.
+     * The call is ignored, if the index does not exist.
+     * Only the routing value may be null.
+     * 
+     * @param index index to remove the entry from
+     * @param type type of the entry to remove
+     * @param id ID of the entry to remove
+     * @param routing routing value of the entry or null
+     * @throws Exception if removing the entry fails
+     */
+    public void delete(String index, String type, String id, String routing)
+        throws Exception
+    {
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            try
+            {
+                execute(fClient.prepareDelete(index, type, id)
+                    .setRouting(routing).request());
+            }
+            catch(IndexMissingException e)
+            {
+                //index was removed in the meantime, nothing to delete
+                fKnownIndices.remove(index);
+            }
+
+            //TODO: evaluate answer?
+        }
+        else
+        {
+            //TODO: log?
+        }
+    }
+    
+    /**
+     * Deletes a list of entries with the given type from the specified index,
+     * defined by a list of entry IDs.
+     * The call is ignored, if the index does not exist.
+     * None of the parameters may be null.
+     * 
+     * @param index index to remove entries from
+     * @param type type of the entries to remove
+     * @param ids IDs of entries to remove
+     * @throws Exception if removing the entries fails
+     */
+    public void bulkDelete(String index, String type, List<String> ids)
+        throws Exception
+    {
+        bulkDelete(index, type, ids, null);
+    }
+    
+    /**
+     * Deletes a list of entries with the given type from the specified index,
+     * defined by a list of entry IDs and their routing values.
+     * The call is ignored, if the index does not exist.
+     * Only the map of routing values may be null, entries without a routing
+     * value are deleted without routing.
+     * 
+     * @param index index to remove entries from
+     * @param type type of the entries to remove
+     * @param ids IDs of entries to remove
+     * @param routing routing values by entry ID or null
+     * @throws Exception if removing the entries fails
+     */
+    public void bulkDelete(String index, String type, List<String> ids,
+        Map<String, String> routing) throws Exception
+    {
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            //queue deletion requests
+            BulkRequestBuilder bulkRequest = fClient.prepareBulk();
+            
+            for(String id : ids)
+            {
+                bulkRequest.add(fClient.prepareDelete(index, type, id)
+                    .setRouting(routing == null ? null : routing.get(id)));
+            }
+            
+            //execute as bulk
+            executeBulk(index, bulkRequest.request(), "deletion");
+        }
+    }
+    
+    /**
+     * Retrieves all entries of the specified type from the specified index.
+     * If the index does not exist, an emtpy list is returned.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @return list of all available entries
+     * @throws Exception if the request fails
+     */
+    public List<JSONObject> getAll(String index, String type) throws Exception
+    {
+        return getAll(index, type, null);
+    }
+    
+    /**
+     * Retrieves all entries of the specified type from the specified index,
+     * only containing the given fields of their source.
+     * If the index does not exist, an emtpy list is returned.
+     * If the list of fields is null, the complete source is retrieved.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param fields source fields to retrieve
+     * @return list of all available entries, reduced to the given fields
+     * @throws Exception if the request fails
+     */
+    public List<JSONObject> getAll(String index, String type, String[] fields)
+        throws Exception
+    {
+        final List<JSONObject> results = new ArrayList<JSONObject>();
+        
+        //collect all pages
+        scroll(index, type, fields, new IESPageHandler()
+        {
+            @Override
+            public void handlePage(List<JSONObject> page) throws Exception
+            {
+                results.addAll(page);
+            }
+        });
+        
+        return results;
+    }
+    
+    /**
+     * Streams all entries of the specified type from the specified index,
+     * passing them to the given handler one page at a time, so that the
+     * complete type never has to be held in memory.
+     * If the index does not exist, the handler is not called.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param handler handler receiving pages of entries
+     * @throws Exception if the request or the handler fails
+     */
+    public void scroll(String index, String type, IESPageHandler handler)
+        throws Exception
+    {
+        scroll(index, type, null, handler);
+    }
+    
+    /**
+     * Streams all entries of the specified type from the specified index,
+     * only containing the given fields of their source, passing them to the
+     * given handler one page at a time.
+     * If the index does not exist, the handler is not called.
+     * If the list of fields is null, the complete source is retrieved.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param fields source fields to retrieve
+     * @param handler handler receiving pages of entries
+     * @throws Exception if the request or the handler fails
+     */
+    public void scroll(String index, String type, String[] fields,
+        IESPageHandler handler) throws Exception
+    {
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            fScroller.scroll(index, type, fields, handler);
+        }
+    }
+    
+    /**
+     * Retrieves a single entry with the given ID and type from the specified
      * index.
      * If the index does not exist, null is returned.
      * None of the parameters may be null.
@@ -436,60 +1075,1109 @@ public class ESConnector implements IESConnector
      * @throws Exception if the request fails
      */
     public JSONObject get(String index, String type, String id) throws Exception
+    {
+        return get(index, type, id, null);
+    }
+    
+    /**
+     * Retrieves a single entry with the given ID and type from the specified
+     * index, only containing the given fields of its source.
+     * If the index does not exist, null is returned.
+     * If the list of fields is null, the complete source is retrieved.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @param fields source fields to retrieve
+     * @return JSON representation of the entry, reduced to the given fields
+     * @throws Exception if the request fails
+     */
+    public JSONObject get(String index, String type, String id, String[] fields)
+        throws Exception
+    {
+        return get(index, type, id, fields, null);
+    }
+    
+    /**
+     * Retrieves a single entry with the given ID, type and routing value from
+     * the specified index, optionally only containing the given fields of its
+     * source.
+     * If the index does not exist, null is returned.
+     * Only the fields and the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @param fields source fields to retrieve or null for all
+     * @param routing routing value of the entry or null
+     * @return JSON representation of the entry
+     * @throws Exception if the request fails
+     */
+    public JSONObject get(String index, String type, String id, String[] fields,
+        String routing) throws Exception
     {
         JSONObject result = null;
         
         //make sure index exists to avoid Exception
-        boolean exists = indexExists(index);
+        boolean exists = isKnownIndex(index);
         
         if(exists)
         {
-            GetResponse response = fClient.prepareGet(index, type, id)
-                .execute().actionGet();
+            GetResponse response = null;
+            try
+            {
+                GetRequestBuilder request = fClient.prepareGet(index, type, id)
+                    .setRouting(routing);
+                
+                //source filtering
+                if(fields != null)
+                {
+                    request.setFetchSource(fields, null);
+                }
+                
+                response = request.execute().actionGet(
+                    fTimeouts.getReadTimeout());
+            }
+            catch(IndexMissingException e)
+            {
+                //index was removed in the meantime, entry can't exist
+                fKnownIndices.remove(index);
+                return null;
+            }
             
             //TODO: what happens if the entry does not exist?
             
-            if(response.getSourceAsString() != null)
-            {
-                result = new JSONObject(response.getSourceAsString());
-            }
+            result = toEntry(response, fields);
         }
 
         return result;
     }
-
-    @Override
-    public void clearIndex(String index) throws Exception
+    
+    private JSONObject toEntry(GetResponse response, String[] fields)
+        throws Exception
     {
-        //drop index
-        if(indexExists(index))
+        JSONObject result = null;
+        
+        if(response.getSourceAsString() != null)
         {
-            fClient.admin().indices().delete(
-                Requests.deleteIndexRequest(index)).actionGet();
+            result = new JSONObject(response.getSourceAsString());
+        }
+        else if(fields != null && response.isExists())
+        {
+            //filtered source may be empty
+            result = new JSONObject();
         }
         
-        //create index
-        createIndex(index);
+        return result;
     }
 
-    @Override
-    public void setMapping(String index, String type, JSONObject mapping)
-        throws Exception
+    /**
+     * Retrieves multiple entries, defined by their types and IDs, from the
+     * specified index using a single request.
+     * Entries that do not exist are not contained in the result.
+     * If the index does not exist, an empty map is returned.
+     * If a list of fields is given, only these fields of the source are
+     * retrieved.
+     * Only the list of fields may be null.
+     * 
+     * @param index name of the index to query
+     * @param entries types, IDs and routing values of the entries to retrieve
+     * @param fields source fields to retrieve or null for all
+     * @return map of JSON representations of the entries by ID
+     * @throws Exception if the request fails
+     */
+    public Map<String, JSONObject> multiGet(String index,
+        List<ESEntryId> entries, String[] fields) throws Exception
     {
-        //check if index exists, create if not
-        if(!indexExists(index))
+        Map<String, JSONObject> results = new HashMap<String, JSONObject>();
+        
+        FetchSourceContext source = null;
+        if(fields != null)
         {
-          fClient.admin().indices().prepareCreate(index)
-              .addMapping(type, mapping.toString())
-              .execute().actionGet();
+            source = new FetchSourceContext(fields, null);
         }
-        else
+        
+        for(GetResponse response : multiGet(index, entries, source))
+        {
+            if(response.getSourceAsString() != null)
+            {
+                results.put(response.getId(),
+                    new JSONObject(response.getSourceAsString()));
+            }
+            else if(fields != null)
+            {
+                //filtered source may be empty
+                results.put(response.getId(), new JSONObject());
+            }
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Checks for multiple entries, defined by their types and IDs, whether
+     * they exist in the specified index using a single request.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param entries types, IDs and routing values of the entries to look for
+     * @return map of whether the entries exist by ID
+     * @throws Exception if the request fails
+     */
+    public Map<String, Boolean> multiExists(String index,
+        List<ESEntryId> entries) throws Exception
+    {
+        Map<String, Boolean> results = new HashMap<String, Boolean>();
+        
+        //default for all entries
+        for(ESEntryId entry : entries)
+        {
+            results.put(entry.getId(), false);
+        }
+        
+        //only retrieve metadata, no source or fields
+        for(GetResponse response : multiGet(index, entries,
+            new FetchSourceContext(false)))
+        {
+            results.put(response.getId(), true);
+        }
+        
+        return results;
+    }
+    
+    private List<GetResponse> multiGet(String index, List<ESEntryId> entries,
+        FetchSourceContext source) throws Exception
+    {
+        //returns the responses for all existing entries
+        List<GetResponse> results = new ArrayList<GetResponse>();
+        
+        //make sure index exists to avoid Exception
+        boolean exists = isKnownIndex(index);
+        
+        if(exists && !entries.isEmpty())
+        {
+            MultiGetRequestBuilder request = fClient.prepareMultiGet();
+            
+            for(ESEntryId entry : entries)
+            {
+                MultiGetRequest.Item item = new MultiGetRequest.Item(index,
+                    entry.getType(), entry.getId())
+                    .routing(entry.getRouting());
+                
+                if(source != null)
+                {
+                    item.fetchSourceContext(source);
+                }
+                
+                request.add(item);
+            }
+            
+            MultiGetResponse response = request.execute().actionGet(
+                fTimeouts.getReadTimeout());
+            
+            for(MultiGetItemResponse item : response.getResponses())
+            {
+                if(item.isFailed())
+                {
+                    fLogger.log(Level.WARNING, "could not retrieve entry '"
+                        + item.getId() + "': " + item.getFailure().getMessage());
+                    
+                    if(item.getFailure().getMessage() != null
+                        && item.getFailure().getMessage().contains(
+                            "IndexMissingException"))
+                    {
+                        fKnownIndices.remove(index);
+                    }
+                }
+                else if(item.getResponse().isExists())
+                {
+                    results.add(item.getResponse());
+                }
+            }
+        }
+        
+        return results;
+    }
+
+    @Override
+    public void deleteIndex(String index) throws Exception
+    {
+        try
+        {
+            fClient.admin().indices().delete(
+                Requests.deleteIndexRequest(index)).actionGet(
+                fTimeouts.getAdminTimeout());
+        }
+        catch(IndexMissingException e)
+        {
+            //nothing to delete
+        }
+        
+        fKnownIndices.remove(index);
+    }
+    
+    @Override
+    public boolean isAlias(String name) throws Exception
+    {
+        return fClient.admin().indices().prepareAliasesExist(name)
+            .execute().actionGet(fTimeouts.getAdminTimeout()).isExists();
+    }
+    
+    @Override
+    public List<String> setAlias(String alias, String index) throws Exception
+    {
+        //indices currently carrying the alias
+        GetAliasesResponse response = fClient.admin().indices()
+            .prepareGetAliases(alias)
+            .execute().actionGet(fTimeouts.getAdminTimeout());
+        
+        boolean aliased = false;
+        List<String> previous = new ArrayList<String>();
+        Iterator<String> names = response.getAliases().keysIt();
+        while(names.hasNext())
+        {
+            String name = names.next();
+            if(!response.getAliases().get(name).isEmpty())
+            {
+                aliased = true;
+                if(!name.equals(index))
+                {
+                    previous.add(name);
+                }
+            }
+        }
+        
+        //never delete a plain index of the same name that is still in use
+        if(!aliased && indexExists(alias))
+        {
+            throw new IllegalStateException("'" + alias + "' is a plain"
+                + " index, not an alias");
+        }
+        
+        //switch in a single request
+        IndicesAliasesRequestBuilder request =
+            fClient.admin().indices().prepareAliases();
+        for(String name : previous)
+        {
+            request.removeAlias(name, alias);
+        }
+        request.addAlias(index, alias);
+        request.execute().actionGet(fTimeouts.getAdminTimeout());
+        
+        fKnownIndices.add(alias);
+        
+        return previous;
+    }
+    
+    @Override
+    public void beginBulkLoad(String index) throws Exception
+    {
+        fBulkLoad.begin(index);
+    }
+    
+    @Override
+    public void endBulkLoad(String index) throws Exception
+    {
+        fBulkLoad.end(index);
+    }
+    
+    @Override
+    public void clearIndex(String index) throws Exception
+    {
+        //drop index
+        if(indexExists(index))
+        {
+            fClient.admin().indices().delete(
+                Requests.deleteIndexRequest(index)).actionGet(
+                fTimeouts.getAdminTimeout());
+            fKnownIndices.remove(index);
+        }
+        
+        //create index
+        createIndex(index);
+    }
+
+    @Override
+    public void setMapping(String index, String type, JSONObject mapping)
+        throws Exception
+    {
+        //check if index exists, create if not
+        if(!indexExists(index))
+        {
+          fClient.admin().indices().prepareCreate(index)
+              .addMapping(type, mapping.toString())
+              .execute().actionGet(fTimeouts.getAdminTimeout());
+          fKnownIndices.add(index);
+        }
+        else
         {
             //update mapping
             fClient.admin().indices().preparePutMapping(index)
                 .setIgnoreConflicts(true)
                 .setType(type).setSource(mapping.toString())
-                .execute().actionGet();
+                .execute().actionGet(fTimeouts.getAdminTimeout());
+        }
+    }
+    
+    @Override
+    public ESFuture<ESResult> addAsync(String index, String type, String id,
+        JSONObject entry)
+    {
+        return addAsync(index, type, id, entry, -1);
+    }
+    
+    @Override
+    public ESFuture<ESResult> addAsync(final String index, final String type,
+        final String id, final JSONObject entry, final long version)
+    {
+        final ESFuture<ESResult> future = new ESFuture<ESResult>();
+        
+        ensureIndexAsync(index).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                prepareIndex(index, type, id, entry, version).execute(
+                    new ResultListener<IndexResponse>(index, type, id,
+                        future));
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<List<ESResult>> bulkAddAsync(String index, String type,
+        List<JSONObject> entries)
+    {
+        return bulkAddAsync(index, type, entries, false);
+    }
+    
+    @Override
+    public ESFuture<List<ESResult>> bulkAddAsync(final String index,
+        final String type, final List<JSONObject> entries,
+        final boolean versioned)
+    {
+        final ESFuture<List<ESResult>> future =
+            new ESFuture<List<ESResult>>();
+        
+        ensureIndexAsync(index).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                BulkRequestBuilder bulkRequest = fClient.prepareBulk();
+                for(JSONObject entry : entries)
+                {
+                    long version = -1;
+                    if(versioned)
+                    {
+                        version = ShindigEncoder.getVersion(entry);
+                    }
+                    
+                    bulkRequest.add(prepareIndex(index, type,
+                        entry.getString("id"), entry, version));
+                }
+                
+                executeBulkAsync(index, bulkRequest.request(), future);
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<ESResult> updateAsync(final String index,
+        final String type, final String id, final JSONObject entry)
+    {
+        final ESFuture<ESResult> future = new ESFuture<ESResult>();
+        
+        ensureIndexAsync(index).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                fClient.prepareUpdate(index, type, id)
+                    .setDoc(entry.toString())
+                    .setRouting(fRouting.getRouting(type, entry))
+                    .execute(new ResultListener<UpdateResponse>(index, type,
+                        id, future));
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<List<ESResult>> bulkUpdateAsync(final String index,
+        final String type, final List<JSONObject> entries)
+    {
+        final ESFuture<List<ESResult>> future =
+            new ESFuture<List<ESResult>>();
+        
+        ensureIndexAsync(index).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                BulkRequestBuilder bulkRequest = fClient.prepareBulk();
+                for(JSONObject entry : entries)
+                {
+                    bulkRequest.add(fClient.prepareUpdate(index, type,
+                        entry.getString("id")).setDoc(entry.toString())
+                        .setRouting(fRouting.getRouting(type, entry)));
+                }
+                
+                executeBulkAsync(index, bulkRequest.request(), future);
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<ESResult> upsertAsync(final String index,
+        final String type, final String id, final JSONObject entry,
+        final JSONObject initial)
+    {
+        final ESFuture<ESResult> future = new ESFuture<ESResult>();
+        
+        ensureIndexAsync(index).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                prepareUpsert(index, type, id, entry, initial)
+                    .execute(new ResultListener<UpdateResponse>(index, type,
+                        id, future));
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<ESResult> deleteAsync(String index, String type, String id)
+    {
+        return deleteAsync(index, type, id, null);
+    }
+    
+    @Override
+    public ESFuture<ESResult> deleteAsync(final String index,
+        final String type, final String id, final String routing)
+    {
+        final ESFuture<ESResult> future = new ESFuture<ESResult>();
+        
+        isKnownIndexAsync(index).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                if(exists)
+                {
+                    fClient.prepareDelete(index, type, id)
+                        .setRouting(routing)
+                        .execute(new ResultListener<DeleteResponse>(index,
+                            type, id, future));
+                }
+                else
+                {
+                    //nothing to delete
+                    future.set(new ESResult(index, type, id, -1, null));
+                }
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<List<ESResult>> bulkDeleteAsync(String index, String type,
+        List<String> ids)
+    {
+        return bulkDeleteAsync(index, type, ids, null);
+    }
+    
+    @Override
+    public ESFuture<List<ESResult>> bulkDeleteAsync(final String index,
+        final String type, final List<String> ids,
+        final Map<String, String> routing)
+    {
+        final ESFuture<List<ESResult>> future =
+            new ESFuture<List<ESResult>>();
+        
+        isKnownIndexAsync(index).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                BulkRequestBuilder bulkRequest = fClient.prepareBulk();
+                
+                //nothing to delete if there is no index
+                if(exists)
+                {
+                    for(String id : ids)
+                    {
+                        bulkRequest.add(fClient.prepareDelete(index, type, id)
+                            .setRouting(routing == null
+                                ? null : routing.get(id)));
+                    }
+                }
+                
+                executeBulkAsync(index, bulkRequest.request(), future);
+            }
+        });
+        
+        return future;
+    }
+    
+    @Override
+    public ESFuture<JSONObject> getAsync(String index, String type,
+        String id, String[] fields)
+    {
+        return getAsync(index, type, id, fields, null);
+    }
+    
+    @Override
+    public ESFuture<JSONObject> getAsync(final String index,
+        final String type, final String id, final String[] fields,
+        final String routing)
+    {
+        final ESFuture<JSONObject> future = new ESFuture<JSONObject>();
+        
+        //make sure index exists to avoid Exception
+        isKnownIndexAsync(index).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                if(!exists)
+                {
+                    future.set(null);
+                    return;
+                }
+                
+                GetRequestBuilder request = fClient.prepareGet(index, type,
+                    id).setRouting(routing);
+                
+                //source filtering
+                if(fields != null)
+                {
+                    request.setFetchSource(fields, null);
+                }
+                
+                request.execute(new ActionListener<GetResponse>()
+                {
+                    @Override
+                    public void onResponse(GetResponse response)
+                    {
+                        try
+                        {
+                            future.set(toEntry(response, fields));
+                        }
+                        catch(Exception e)
+                        {
+                            future.fail(e);
+                        }
+                    }
+                    
+                    @Override
+                    public void onFailure(Throwable e)
+                    {
+                        if(ExceptionsHelper.unwrapCause(e)
+                            instanceof IndexMissingException)
+                        {
+                            //index was removed in the meantime
+                            fKnownIndices.remove(index);
+                            future.set(null);
+                        }
+                        else
+                        {
+                            future.fail(e);
+                        }
+                    }
+                });
+            }
+        });
+        
+        return future;
+    }
+    
+    private ESFuture<Boolean> isKnownIndexAsync(final String index)
+    {
+        //only ask Elasticsearch for indices that have not been seen yet
+        if(fKnownIndices.contains(index))
+        {
+            return ESFuture.completed(true);
+        }
+        
+        final ESFuture<Boolean> future = new ESFuture<Boolean>();
+        
+        fClient.admin().indices().exists(new IndicesExistsRequest(index),
+            new ActionListener<IndicesExistsResponse>()
+        {
+            @Override
+            public void onResponse(IndicesExistsResponse response)
+            {
+                if(response.isExists())
+                {
+                    fKnownIndices.add(index);
+                }
+                future.set(response.isExists());
+            }
+            
+            @Override
+            public void onFailure(Throwable e)
+            {
+                future.fail(e);
+            }
+        });
+        
+        return future;
+    }
+    
+    private ESFuture<Boolean> ensureIndexAsync(final String index)
+    {
+        final ESFuture<Boolean> future = new ESFuture<Boolean>();
+        
+        //create the index if it does not exist, without blocking the caller
+        isKnownIndexAsync(index).addCallback(new IndexCallback(future)
+        {
+            @Override
+            protected void onIndex(boolean exists) throws Exception
+            {
+                if(exists)
+                {
+                    future.set(true);
+                    return;
+                }
+                
+                fClient.admin().indices().create(
+                    Requests.createIndexRequest(index),
+                    new ActionListener<CreateIndexResponse>()
+                {
+                    @Override
+                    public void onResponse(CreateIndexResponse response)
+                    {
+                        fKnownIndices.add(index);
+                        future.set(true);
+                    }
+                    
+                    @Override
+                    public void onFailure(Throwable e)
+                    {
+                        if(ExceptionsHelper.unwrapCause(e)
+                            instanceof IndexAlreadyExistsException)
+                        {
+                            //created concurrently
+                            fKnownIndices.add(index);
+                            future.set(true);
+                        }
+                        else
+                        {
+                            future.fail(e);
+                        }
+                    }
+                });
+            }
+        });
+        
+        return future;
+    }
+    
+    private ESFuture<List<ESResult>> executeBulkAsync(final String index,
+        final BulkRequest request, final ESFuture<List<ESResult>> future)
+    {
+        if(request.numberOfActions() == 0)
+        {
+            future.set(new ArrayList<ESResult>());
+            return future;
+        }
+        
+        fClient.bulk(request, new ActionListener<BulkResponse>()
+        {
+            @Override
+            public void onResponse(BulkResponse response)
+            {
+                checkMissingIndex(index, response);
+                
+                //one result per item, in request order
+                List<ESResult> results = new ArrayList<ESResult>();
+                for(BulkItemResponse item : response.getItems())
+                {
+                    //a newer version is already stored, nothing failed
+                    String failure = item.getFailureMessage();
+                    if(ESRequestUtil.isStaleWrite(
+                        request.requests().get(item.getItemId()), item))
+                    {
+                        failure = null;
+                    }
+                    
+                    results.add(new ESResult(item.getIndex(), item.getType(),
+                        item.getId(), item.isFailed() ? -1 : item.getVersion(),
+                        failure));
+                }
+                
+                future.set(results);
+            }
+            
+            @Override
+            public void onFailure(Throwable e)
+            {
+                fLogger.log(Level.SEVERE, "asynchronous bulk failed", e);
+                future.fail(e);
+            }
+        });
+        
+        return future;
+    }
+    
+    /**
+     * Callback continuing an asynchronous call once it is known whether the
+     * index exists, failing the call's future if that could not be
+     * determined or if the continuation fails.
+     */
+    private abstract class IndexCallback implements IESCallback<Boolean>
+    {
+        private final ESFuture<?> fFuture;
+        
+        private IndexCallback(ESFuture<?> future)
+        {
+            fFuture = future;
+        }
+        
+        @Override
+        public void onSuccess(Boolean exists)
+        {
+            try
+            {
+                onIndex(exists);
+            }
+            catch(Exception e)
+            {
+                fFuture.fail(e);
+            }
+        }
+        
+        @Override
+        public void onFailure(Throwable failure)
+        {
+            fFuture.fail(failure);
+        }
+        
+        protected abstract void onIndex(boolean exists) throws Exception;
+    }
+    
+    /**
+     * Listener completing a future with the result of a single document
+     * operation, failures included.
+     */
+    private class ResultListener<T extends ActionResponse>
+        implements ActionListener<T>
+    {
+        private final String fIndex, fType, fId;
+        private final ESFuture<ESResult> fFuture;
+        
+        private ResultListener(String index, String type, String id,
+            ESFuture<ESResult> future)
+        {
+            fIndex = index;
+            fType = type;
+            fId = id;
+            fFuture = future;
+        }
+        
+        @Override
+        public void onResponse(T response)
+        {
+            long version = -1;
+            
+            if(response instanceof IndexResponse)
+            {
+                version = ((IndexResponse) response).getVersion();
+            }
+            else if(response instanceof UpdateResponse)
+            {
+                version = ((UpdateResponse) response).getVersion();
+            }
+            else if(response instanceof DeleteResponse)
+            {
+                version = ((DeleteResponse) response).getVersion();
+            }
+            
+            fFuture.set(new ESResult(fIndex, fType, fId, version, null));
+        }
+        
+        @Override
+        public void onFailure(Throwable e)
+        {
+            //forget indices that vanished, so they are checked again
+            if(ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException)
+            {
+                fKnownIndices.remove(fIndex);
+            }
+            else if(ExceptionsHelper.unwrapCause(e)
+                instanceof VersionConflictEngineException)
+            {
+                //stale versioned write, a newer version is already stored
+                fFuture.set(new ESResult(fIndex, fType, fId, -1, null));
+                return;
+            }
+            
+            fFuture.set(new ESResult(fIndex, fType, fId, -1,
+                ExceptionsHelper.detailedMessage(e)));
+        }
+    }
+    
+    private void executeBulk(String index, BulkRequest request, String action)
+        throws Exception
+    {
+        int attempt = 1;
+        
+        while(request != null)
+        {
+            BulkResponse bulkResponse = null;
+            
+            try
+            {
+                bulkResponse = fClient.bulk(request).actionGet(
+                    fTimeouts.getBulkTimeout());
+            }
+            catch(Exception e)
+            {
+                //whole bulk failed, retry if the failure is temporary
+                if(fRetryPolicy.isRetryable(e)
+                    && attempt < fRetryPolicy.getMaxAttempts())
+                {
+                    fLogger.log(Level.WARNING, "bulk " + action
+                        + " failed, retrying", e);
+                    
+                    if(!backOff(request, attempt))
+                    {
+                        return;
+                    }
+                    ++attempt;
+                    continue;
+                }
+                
+                //give up on all actions, like on permanently failed items
+                fLogger.log(Level.SEVERE, "bulk " + action + " failed", e);
+                if(e instanceof IndexMissingException)
+                {
+                    fKnownIndices.remove(index);
+                }
+                deadLetter(request, ExceptionsHelper.detailedMessage(e));
+                return;
+            }
+            
+            //collect temporarily failed items for retry
+            BulkRequest retry = getRetries(index, request, bulkResponse,
+                attempt, action);
+            
+            //back off before retrying
+            if(retry != null)
+            {
+                fLogger.log(Level.WARNING, "retrying "
+                    + retry.numberOfActions() + " failed actions");
+                
+                if(!backOff(retry, attempt))
+                {
+                    return;
+                }
+                ++attempt;
+            }
+            
+            request = retry;
+        }
+    }
+    
+    private BulkRequest getRetries(String index, BulkRequest request,
+        BulkResponse bulkResponse, int attempt, String action)
+    {
+        //returns the temporarily failed items, dead letters the others
+        BulkRequest retry = null;
+        
+        if(bulkResponse.hasFailures())
+        {
+            fLogger.log(Level.SEVERE, "error during bulk " + action + ":\n"
+                + bulkResponse.buildFailureMessage());
+            
+            checkMissingIndex(index, bulkResponse);
+            
+            for(BulkItemResponse item : bulkResponse.getItems())
+            {
+                if(item.isFailed())
+                {
+                    ActionRequest<?> itemRequest =
+                        request.requests().get(item.getItemId());
+                    
+                    if(ESRequestUtil.isStaleWrite(itemRequest, item))
+                    {
+                        //a newer version is already stored
+                        continue;
+                    }
+                    
+                    if(fRetryPolicy.isRetryable(item)
+                        && attempt < fRetryPolicy.getMaxAttempts())
+                    {
+                        if(retry == null)
+                        {
+                            retry = new BulkRequest();
+                        }
+                        retry.add(itemRequest);
+                    }
+                    else
+                    {
+                        fDeadLetters.deadLetter(itemRequest,
+                            item.getFailureMessage());
+                    }
+                }
+            }
+        }
+        
+        return retry;
+    }
+    
+    private boolean backOff(BulkRequest request, int attempt)
+        throws InterruptedException
+    {
+        //wait before the next attempt, unless the caller's deadline is near
+        long delay = fRetryPolicy.getDelay(attempt);
+        
+        if(ESDeadline.remaining() <= delay)
+        {
+            retryInBackground(request, attempt);
+            return false;
+        }
+        
+        Thread.sleep(delay);
+        return true;
+    }
+    
+    private void retryInBackground(final BulkRequest request,
+        final int attempt)
+    {
+        //the given attempt failed, schedule the next one if there is any
+        if(attempt >= fRetryPolicy.getMaxAttempts())
+        {
+            deadLetter(request, "retries exhausted");
+            return;
+        }
+        
+        final String index = ESRequestUtil.getIndex(request.requests().get(0));
+        
+        fRetries.add(request);
+        try
+        {
+            fScheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    //dead-lettered by close in the meantime
+                    if(!fRetries.remove(request))
+                    {
+                        return;
+                    }
+                    
+                    try
+                    {
+                        fClient.bulk(request,
+                            new ActionListener<BulkResponse>()
+                        {
+                            @Override
+                            public void onResponse(BulkResponse response)
+                            {
+                                BulkRequest retry = getRetries(index,
+                                    request, response, attempt + 1, "retry");
+                                
+                                if(retry != null)
+                                {
+                                    retryInBackground(retry, attempt + 1);
+                                }
+                            }
+                            
+                            @Override
+                            public void onFailure(Throwable e)
+                            {
+                                retryFailed(request, attempt, e);
+                            }
+                        });
+                    }
+                    catch(Throwable e)
+                    {
+                        //thrown right away, for example if no node is
+                        //connected or the client was closed
+                        retryFailed(request, attempt, e);
+                    }
+                }
+            }, fRetryPolicy.getDelay(attempt), TimeUnit.MILLISECONDS);
+        }
+        catch(RejectedExecutionException e)
+        {
+            //connector was closed
+            if(fRetries.remove(request))
+            {
+                deadLetter(request, "connector closed before retry");
+            }
+        }
+    }
+    
+    private void retryFailed(BulkRequest request, int attempt, Throwable e)
+    {
+        //the retry after the given attempt failed as a whole
+        if(fRetryPolicy.isRetryable(e))
+        {
+            retryInBackground(request, attempt + 1);
+        }
+        else
+        {
+            deadLetter(request, ExceptionsHelper.detailedMessage(e));
+        }
+    }
+    
+    private void deadLetter(BulkRequest request, String reason)
+    {
+        for(ActionRequest<?> itemRequest : request.requests())
+        {
+            fDeadLetters.deadLetter(itemRequest, reason);
+        }
+    }
+    
+    /**
+     * Sets the sink receiving requests that failed permanently, replacing
+     * the default sink.
+     * The given sink must not be null.
+     * 
+     * @param sink dead letter sink to use
+     */
+    public void setDeadLetterSink(IDeadLetterSink sink)
+    {
+        if(sink == null)
+        {
+            throw new NullPointerException("dead letter sink was null");
+        }
+        
+        fDeadLetters = sink;
+    }
+    
+    @Override
+    public Map<String, Set<ESEntryId>> drainDirtyEntries()
+    {
+        return fDirtyEntries.drain();
+    }
+    
+    private void checkMissingIndex(String index, BulkResponse response)
+    {
+        //forget index if it vanished, so it is checked again next time
+        for(BulkItemResponse item : response.getItems())
+        {
+            if(item.isFailed() && item.getFailureMessage() != null
+                && item.getFailureMessage().contains("IndexMissingException"))
+            {
+                fKnownIndices.remove(index);
+                break;
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -1,84 +1,2007 @@
 package org.apache.shindig.elasticsearch.util;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.script.ScriptService;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
 /**
- * Deprecated elasticsearch connector using the ES REST API.
+ * Elasticsearch connector utility class using the REST API over HTTP,
+ * providing the same functionality as the transport client connectors for
+ * setups where only the HTTP port is reachable.
+ * Bulk calls are streamed as newline-delimited JSON to the "_bulk" endpoint,
+ * request and response bodies are optionally gzip-compressed and connections
+ * are kept alive between requests. Requests are distributed round-robin over
+ * all configured nodes, skipping nodes that can not be reached or do not
+ * answer in time.
  */
-public class ESConnectorHttp
+@Singleton
+public class ESConnectorHttp implements IESConnector
 {
     private static final String URL_PROP = "shindig.elasticsearch.url";
+    private static final String GZIP_PROP = "shindig.elasticsearch.http.gzip";
+    private static final String SIZE_PROP = "shindig.elasticsearch.scroll.size";
+    private static final String KEEP_ALIVE_PROP =
+        "shindig.elasticsearch.scroll.keep_alive";
+    private static final String CONNECT_TIMEOUT_PROP =
+        "shindig.elasticsearch.http.connect_timeout";
+    
+    private static final int NOT_FOUND = 404;
+    private static final int CONFLICT = 409;
+    private static final int REQUEST_TIMEOUT = 408;
+    
+    private final List<String> fUrls;
+    private final AtomicInteger fNextUrl;
+    
+    private final boolean fGzip;
+    
+    private final ESTimeouts fTimeouts;
+    private final long fConnectTimeout;
     
-    private final String fEsUrl;
+    private final int fPageSize;
+    private final String fKeepAlive;
+    
+    private final Set<String> fKnownIndices;
+    
+    private final ESRouting fRouting;
+    private final ESScripts fScripts;
+    
+    private final ESBulkLoadSettings fBulkLoad;
+    
+    private final ESRetryPolicy fRetryPolicy;
+    private volatile IDeadLetterSink fDeadLetters;
     
     private final Logger fLogger;
     
+    /**
+     * Creates a new Elasticsearch connector, sending requests to the nodes
+     * defined by the configuration object via HTTP.
+     * The given configuration object must not be null.
+     * 
+     * @param config configuration object to use.
+     */
+    @Inject
     public ESConnectorHttp(ESConfig config)
     {
-        fEsUrl = config.getProperty(URL_PROP);
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        
+        //base URLs of all nodes, ending with a slash
+        fUrls = new ArrayList<String>();
+        for(String url : config.getProperty(URL_PROP).split(","))
+        {
+            url = url.trim();
+            if(!url.isEmpty())
+            {
+                fUrls.add(url.endsWith("/") ? url : url + "/");
+            }
+        }
+        if(fUrls.isEmpty())
+        {
+            throw new IllegalArgumentException("no elasticsearch URL configured");
+        }
+        fNextUrl = new AtomicInteger();
+        
+        fGzip = Boolean.parseBoolean(config.getProperty(GZIP_PROP));
+        
+        //connection attempts fail over to the next node quickly
+        fTimeouts = new ESTimeouts(config);
+        fConnectTimeout = Long.parseLong(
+            config.getProperty(CONNECT_TIMEOUT_PROP));
+        
+        fPageSize = Integer.parseInt(config.getProperty(SIZE_PROP));
+        fKeepAlive = Long.parseLong(config.getProperty(KEEP_ALIVE_PROP)) + "s";
         
         fLogger = Logger.getLogger(this.getClass().getCanonicalName());
+        
+        //indices known to exist, saving a round trip per call
+        fKnownIndices = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+        
+        fRouting = new ESRouting(config);
+        fScripts = new ESScripts(config);
+        
+        fBulkLoad = new ESBulkLoadSettings(config, new HttpIndexAdmin());
+        
+        //retries of failed bulk actions
+        fRetryPolicy = new ESRetryPolicy(config);
+        fDeadLetters = new ESDeadLetterSink(config);
+        
+        //indices a previous run left in bulk load mode
+        fBulkLoad.restore();
+    }
+    
+    /**
+     * Releases the connector. Pooled HTTP connections are managed by the JVM.
+     */
+    public void close()
+    {
+        //nothing to release
+    }
+    
+    /**
+     * Checks with Elasticsearch whether the index with the given name exists.
+     * The given name must not be null.
+     * 
+     * @param index name of the index
+     * @return whether the index already exists
+     * @throws Exception if the request fails
+     */
+    public boolean indexExists(String index) throws Exception
+    {
+        boolean exists = false;
+        
+        try
+        {
+            send("HEAD", path(index), null, fTimeouts.getAdminTimeout());
+            exists = true;
+        }
+        catch(ESHttpException e)
+        {
+            if(e.getStatus() != NOT_FOUND)
+            {
+                throw e;
+            }
+        }
+        
+        //remember result for subsequent calls
+        if(exists)
+        {
+            fKnownIndices.add(index);
+        }
+        else
+        {
+            fKnownIndices.remove(index);
+        }
+        
+        return exists;
+    }
+    
+    private boolean isKnownIndex(String index) throws Exception
+    {
+        //only ask Elasticsearch for indices that have not been seen yet
+        return fKnownIndices.contains(index) || indexExists(index);
+    }
+    
+    private void ensureIndex(String index) throws Exception
+    {
+        //make sure index exists to avoid errors
+        if(!isKnownIndex(index))
+        {
+            createIndex(index);
+        }
+    }
+    
+    private boolean isIndexMissing(String index, ESHttpException e)
+    {
+        //forget indices that vanished, so they are checked again
+        boolean missing = e.getStatus() == NOT_FOUND
+            && e.isCausedBy("IndexMissingException");
+        if(missing)
+        {
+            fKnownIndices.remove(index);
+        }
+        
+        return missing;
     }
     
+    /**
+     * Checks whether a document entry in the given index, with the given type
+     * and ID already exists.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @return whether the entry already exists
+     * @throws Exception if the request fails
+     */
+    public boolean entryExists(String index, String type, String id)
+        throws Exception
+    {
+        return entryExists(index, type, id, null);
+    }
+    
+    /**
+     * Checks whether a document entry in the given index, with the given type,
+     * ID and routing value already exists.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @param routing routing value of the entry or null
+     * @return whether the entry already exists
+     * @throws Exception if the request fails
+     */
+    public boolean entryExists(String index, String type, String id,
+        String routing) throws Exception
+    {
+        return getVersion(index, type, id, routing) >= 0;
+    }
+    
+    /**
+     * Retrieves the current version of the document entry in the given index,
+     * with the given type and ID, without retrieving its contents.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @return version of the entry or -1 if it does not exist
+     * @throws Exception if the request fails
+     */
+    public long getVersion(String index, String type, String id)
+        throws Exception
+    {
+        return getVersion(index, type, id, null);
+    }
+    
+    /**
+     * Retrieves the current version of the document entry in the given index,
+     * with the given type, ID and routing value, without retrieving its
+     * contents.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @param routing routing value of the entry or null
+     * @return version of the entry or -1 if it does not exist
+     * @throws Exception if the request fails
+     */
+    public long getVersion(String index, String type, String id,
+        String routing) throws Exception
+    {
+        long version = -1;
+        
+        //make sure index exists to avoid errors
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            try
+            {
+                //only retrieve metadata, no source
+                JSONObject response = send("GET", withRouting(
+                    path(index, type, id) + "?_source=false", routing), null,
+                    fTimeouts.getReadTimeout());
+                
+                if(response.optBoolean("found"))
+                {
+                    version = response.getLong("_version");
+                }
+            }
+            catch(ESHttpException e)
+            {
+                //missing entries and indices are reported as "not found"
+                isIndexMissing(index, e);
+                if(e.getStatus() != NOT_FOUND)
+                {
+                    throw e;
+                }
+            }
+        }
+        
+        return version;
+    }
+    
+    /**
+     * Creates the index with the given name. If the index already exists,
+     * the call is ignored. The given name must not be null.
+     * 
+     * @param index name of the index to create
+     * @throws Exception if index creation fails
+     */
+    public void createIndex(String index) throws Exception
+    {
+        try
+        {
+            send("PUT", path(index), null, fTimeouts.getAdminTimeout());
+        }
+        catch(ESHttpException e)
+        {
+            if(!e.isCausedBy("IndexAlreadyExistsException"))
+            {
+                throw e;
+            }
+            
+            fLogger.log(Level.WARNING, "index '"
+                + index + "' already exists", e);
+        }
+        
+        fKnownIndices.add(index);
+    }
+    
+    /**
+     * Adds an entry in JSON form to the specified index under the specified
+     * type and ID. A check whether the index exists is executed and if the
+     * index does not exist, it will be created.
+     * Existing entries with matching index, type and ID will be overwritten.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add the entry to
+     * @param type type of the entry to add
+     * @param id ID of the entry to add
+     * @param entry source of the entry to add to the index
+     * @throws Exception if adding the entry fails
+     */
     public void add(String index, String type, String id, JSONObject entry)
         throws Exception
     {
-        final String pushUrl = fEsUrl + index + "/" + type + "/";
+        add(index, type, id, entry, -1);
+    }
+    
+    /**
+     * Adds an entry in JSON form to the specified index under the specified
+     * type and ID, using an external version number. Existing entries are
+     * only overwritten if their version is not higher, otherwise the stale
+     * write is ignored. If the version is negative, no version is used.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add the entry to
+     * @param type type of the entry to add
+     * @param id ID of the entry to add
+     * @param entry source of the entry to add to the index
+     * @param version external version of the entry or -1
+     * @throws Exception if adding the entry fails
+     */
+    public void add(String index, String type, String id, JSONObject entry,
+        long version) throws Exception
+    {
+        ensureIndex(index);
+        
+        IndexRequest request = prepareIndex(index, type, id, entry, version);
+        
+        try
+        {
+            try
+            {
+                execute(request);
+            }
+            catch(ESHttpException e)
+            {
+                if(!isIndexMissing(index, e))
+                {
+                    throw e;
+                }
+                
+                //index was removed in the meantime, create it and try again
+                ensureIndex(index);
+                execute(request);
+            }
+        }
+        catch(ESHttpException e)
+        {
+            if(e.getStatus() != CONFLICT)
+            {
+                throw e;
+            }
+            
+            //a newer version is already stored
+            fLogger.log(Level.FINE, "ignoring stale write of '" + type + "/"
+                + id + "' with version " + version);
+        }
+    }
+    
+    private IndexRequest prepareIndex(String index, String type, String id,
+        JSONObject entry, long version)
+    {
+        IndexRequest request = Requests.indexRequest(index).type(type).id(id)
+            .source(entry.toString())
+            .routing(fRouting.getRouting(type, entry));
         
-        //send data
-        String content = entry.toString();
+        //only overwrite entries with lower or equal versions
+        if(version >= 0)
+        {
+            request.version(version).versionType(VersionType.EXTERNAL_GTE);
+        }
         
-        URL url = new URL(pushUrl + entry.getString("id"));
+        return request;
+    }
+    
+    /**
+     * Adds a list of entries of the given type to the specified index.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * Existing entries with matching index, type and ID will be overwritten.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add entries to
+     * @param type type of the entries to add
+     * @param entries entries to add
+     * @throws Exception if adding entries fails
+     */
+    public void bulkAdd(String index, String type, List<JSONObject> entries)
+        throws Exception
+    {
+        bulkAdd(index, type, entries, false);
+    }
+    
+    /**
+     * Adds a list of entries of the given type to the specified index,
+     * optionally using external version numbers derived from the entries'
+     * "updated" timestamps (see ShindigEncoder.getVersion). Versioned
+     * entries are only overwritten if their version is not higher, otherwise
+     * the stale write is ignored.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add entries to
+     * @param type type of the entries to add
+     * @param entries entries to add
+     * @param versioned whether to use external versions
+     * @throws Exception if adding entries fails
+     */
+    public void bulkAdd(String index, String type, List<JSONObject> entries,
+        boolean versioned) throws Exception
+    {
+        ensureIndex(index);
         
-        //TODO: check if update is even required ?
+        List<ActionRequest<?>> requests =
+            new ArrayList<ActionRequest<?>>(entries.size());
         
-        //TODO: put or post? - update or new?
-        //send
-        //System.out.println("\nsending:\n" + content);
-        String response = HttpUtil.sendJson(url, "PUT", content);
+        for(JSONObject entry : entries)
+        {
+            long version = -1;
+            if(versioned)
+            {
+                version = ShindigEncoder.getVersion(entry);
+            }
+            
+            requests.add(prepareIndex(index, type, entry.getString("id"),
+                entry, version));
+        }
         
-        //TODO: log answer?
-//        fLogger.log(Level.WARNING, "entry added, response:\n" + response);
+        //execute as bulk
+        executeBulk(index, requests, "indexing");
     }
     
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index. A check whether the index exists is executed and if the
+     * index does not exist, it will be created.
+     * This will fail if the entry does not already exist.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to update the entry in
+     * @param type type of the entry to update
+     * @param id ID of the entry to update
+     * @param entry updated source of the entry to update in the index
+     * @throws Exception if updating the entry fails
+     */
     public void update(String index, String type, String id, JSONObject entry)
         throws Exception
     {
-        final String pushUrl = fEsUrl + index + "/" + type + "/";
+        ensureIndex(index);
         
-        //send data
-        String content = entry.toString();
+        try
+        {
+            execute(new UpdateRequest(index, type, id).doc(entry.toString())
+                .routing(fRouting.getRouting(type, entry)));
+        }
+        catch(ESHttpException e)
+        {
+            //forget a vanished index and pass on
+            isIndexMissing(index, e);
+            throw e;
+        }
+    }
+    
+    /**
+     * Updates a list of entries of the given type in the specified index.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * Existing entries with matching index, type and ID will be overwritten.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to update entries in
+     * @param type type of the entries to update
+     * @param entries entries to update
+     * @throws Exception if updating entries fails
+     */
+    public void bulkUpdate(String index, String type, List<JSONObject> entries)
+        throws Exception
+    {
+        ensureIndex(index);
         
-        URL url = new URL(pushUrl + entry.getString("id"));
+        List<ActionRequest<?>> requests =
+            new ArrayList<ActionRequest<?>>(entries.size());
         
-        //TODO: check if update is even required ?
+        for(JSONObject entry : entries)
+        {
+            requests.add(new UpdateRequest(index, type, entry.getString("id"))
+                .doc(entry.toString())
+                .routing(fRouting.getRouting(type, entry)));
+        }
         
-        //TODO: put or post? - update or new?
-        //send
-        //System.out.println("\nsending:\n" + content);
-        String response = HttpUtil.sendJson(url, "PUT", content);
+        //execute as bulk
+        executeBulk(index, requests, "updating");
+    }
+    
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index or adds it if it does not exist yet, using a single
+     * request. A check whether the index exists is executed and if the
+     * index does not exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to upsert the entry in
+     * @param type type of the entry to upsert
+     * @param id ID of the entry to upsert
+     * @param entry source of the entry to upsert in the index
+     * @throws Exception if upserting the entry fails
+     */
+    public void upsert(String index, String type, String id, JSONObject entry)
+        throws Exception
+    {
+        upsert(index, type, id, entry, null);
+    }
+    
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index or adds the given initial entry if it does not exist
+     * yet, using a single request. A check whether the index exists is
+     * executed and if the index does not exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to upsert the entry in
+     * @param type type of the entry to upsert
+     * @param id ID of the entry to upsert
+     * @param entry partial source to update an existing entry with
+     * @param initial source of the entry to add if it does not exist
+     * @throws Exception if upserting the entry fails
+     */
+    public void upsert(String index, String type, String id, JSONObject entry,
+        JSONObject initial) throws Exception
+    {
+        ensureIndex(index);
         
-        //TODO: log answer?
-//        fLogger.log(Level.WARNING, "entry updated, response:\n" + response);
+        try
+        {
+            execute(prepareUpsert(index, type, id, entry, initial));
+        }
+        catch(ESHttpException e)
+        {
+            //forget a vanished index and pass on
+            isIndexMissing(index, e);
+            throw e;
+        }
     }
     
+    private UpdateRequest prepareUpsert(String index, String type, String id,
+        JSONObject entry, JSONObject initial)
+    {
+        UpdateRequest request = new UpdateRequest(index, type, id)
+            .doc(entry.toString());
+        
+        //partial entries may lack the routing field of the initial entry
+        String routing = fRouting.getRouting(type, entry);
+        if(routing == null)
+        {
+            routing = fRouting.getRouting(type, initial);
+        }
+        request.routing(routing);
+        
+        if(initial != null)
+        {
+            request.upsert(initial.toString());
+        }
+        else
+        {
+            //partial document is the complete document
+            request.docAsUpsert(true);
+        }
+        
+        return request;
+    }
+    
+    /**
+     * Updates a list of entries of the given type in the specified index,
+     * adding those that do not exist yet.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to upsert entries in
+     * @param type type of the entries to upsert
+     * @param entries entries to upsert
+     * @throws Exception if upserting entries fails
+     */
+    public void bulkUpsert(String index, String type, List<JSONObject> entries)
+        throws Exception
+    {
+        ensureIndex(index);
+        
+        List<ActionRequest<?>> requests =
+            new ArrayList<ActionRequest<?>>(entries.size());
+        
+        for(JSONObject entry : entries)
+        {
+            requests.add(prepareUpsert(index, type, entry.getString("id"),
+                entry, null));
+        }
+        
+        //execute as bulk
+        executeBulk(index, requests, "upserting");
+    }
+    
+    /**
+     * Removes a value from an array field of the entry with the given type
+     * and ID in the specified index. If scripts are enabled (see ESScripts),
+     * this is done on the server side using a single request without reading
+     * the entry first, otherwise the entry is read, modified and written
+     * back. Optionally, the entry is deleted if the array is empty
+     * afterwards.
+     * The call is ignored, if the index or the entry do not exist.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index containing the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param field name of the array field to remove the value from
+     * @param value value to remove
+     * @param deleteIfEmpty whether to delete the entry if no values are left
+     * @throws Exception if updating the entry fails
+     */
+    public void removeFromArray(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty) throws Exception
+    {
+        removeFromArray(index, type, id, field, value, deleteIfEmpty, null);
+    }
+    
+    /**
+     * Removes a value from an array field of the entry with the given type,
+     * ID and routing value in the specified index on the server side, as
+     * described above.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index containing the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param field name of the array field to remove the value from
+     * @param value value to remove
+     * @param deleteIfEmpty whether to delete the entry if no values are left
+     * @param routing routing value of the entry or null
+     * @throws Exception if updating the entry fails
+     */
+    public void removeFromArray(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty, String routing)
+        throws Exception
+    {
+        //make sure index exists to avoid errors
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            try
+            {
+                if(fScripts.isEnabled())
+                {
+                    execute(fScripts.removeFromArray(index, type, id, field,
+                        value, deleteIfEmpty).routing(routing));
+                }
+                else
+                {
+                    removeFromArrayLocally(index, type, id, field, value,
+                        deleteIfEmpty, routing);
+                }
+            }
+            catch(ESHttpException e)
+            {
+                //entry or index do not exist (anymore), nothing to remove
+                isIndexMissing(index, e);
+                if(e.getStatus() != NOT_FOUND)
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    private void removeFromArrayLocally(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty, String routing)
+        throws Exception
+    {
+        //without scripts, write back the modified entry only if it has not
+        //been changed in the meantime and start over otherwise
+        for(int attempt = 0; ; ++attempt)
+        {
+            //missing entries are reported as "not found"
+            JSONObject response = send("GET", withRouting(
+                path(index, type, id), routing), null,
+                fTimeouts.getReadTimeout());
+            
+            JSONObject entry = response.getJSONObject("_source");
+            String stored = entry.toString();
+            entry = ESScripts.applyRemoveFromArray(entry, field, value,
+                deleteIfEmpty);
+            
+            String versioned = withRouting(path(index, type, id)
+                + "?version=" + response.getLong("_version"), routing);
+            
+            try
+            {
+                if(entry == null)
+                {
+                    send("DELETE", versioned, null,
+                        fTimeouts.getWriteTimeout());
+                }
+                else if(!stored.equals(entry.toString()))
+                {
+                    send("PUT", versioned, toBody(entry.toString()),
+                        fTimeouts.getWriteTimeout());
+                }
+                
+                return;
+            }
+            catch(ESHttpException e)
+            {
+                if(e.getStatus() != CONFLICT || attempt >= ESScripts.RETRIES)
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Deletes an entry with the given type and ID from the specified index.
+     * The call is ignored, if the index or the entry do not exist.
+     * None of the parameters may be null.
+     * 
+     * @param index index to remove the entry from
+     * @param type type of the entry to remove
+     * @param id ID of the entry to remove
+     * @throws Exception if removing the entry fails
+     */
     public void delete(String index, String type, String id) throws Exception
     {
+        delete(index, type, id, null);
+    }
+    
+    /**
+     * Deletes an entry with the given type, ID and routing value from the
+     * specified index.
+     * The call is ignored, if the index or the entry do not exist.
+     * Only the routing value may be null.
+     * 
+     * @param index index to remove the entry from
+     * @param type type of the entry to remove
+     * @param id ID of the entry to remove
+     * @param routing routing value of the entry or null
+     * @throws Exception if removing the entry fails
+     */
+    public void delete(String index, String type, String id, String routing)
+        throws Exception
+    {
+        //make sure index exists to avoid errors
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            try
+            {
+                execute(Requests.deleteRequest(index).type(type).id(id)
+                    .routing(routing));
+            }
+            catch(ESHttpException e)
+            {
+                //entry or index do not exist (anymore), nothing to delete
+                isIndexMissing(index, e);
+                if(e.getStatus() != NOT_FOUND)
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Deletes a list of entries with the given type from the specified index,
+     * defined by a list of entry IDs.
+     * The call is ignored, if the index does not exist.
+     * None of the parameters may be null.
+     * 
+     * @param index index to remove entries from
+     * @param type type of the entries to remove
+     * @param ids IDs of entries to remove
+     * @throws Exception if removing the entries fails
+     */
+    public void bulkDelete(String index, String type, List<String> ids)
+        throws Exception
+    {
+        bulkDelete(index, type, ids, null);
+    }
+    
+    /**
+     * Deletes a list of entries with the given type from the specified index,
+     * defined by a list of entry IDs and their routing values.
+     * The call is ignored, if the index does not exist.
+     * Only the map of routing values may be null, entries without a routing
+     * value are deleted without routing.
+     * 
+     * @param index index to remove entries from
+     * @param type type of the entries to remove
+     * @param ids IDs of entries to remove
+     * @param routing routing values by entry ID or null
+     * @throws Exception if removing the entries fails
+     */
+    public void bulkDelete(String index, String type, List<String> ids,
+        Map<String, String> routing) throws Exception
+    {
+        //make sure index exists to avoid errors
+        boolean exists = isKnownIndex(index);
         
+        if(exists)
+        {
+            List<ActionRequest<?>> requests =
+                new ArrayList<ActionRequest<?>>(ids.size());
+            
+            for(String id : ids)
+            {
+                requests.add(Requests.deleteRequest(index).type(type).id(id)
+                    .routing(routing == null ? null : routing.get(id)));
+            }
+            
+            //execute as bulk
+            executeBulk(index, requests, "deletion");
+        }
     }
     
+    /**
+     * Retrieves all entries of the specified type from the specified index.
+     * If the index does not exist, an emtpy list is returned.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @return list of all available entries
+     * @throws Exception if the request fails
+     */
     public List<JSONObject> getAll(String index, String type) throws Exception
     {
-        return null;
+        return getAll(index, type, null);
+    }
+    
+    /**
+     * Retrieves all entries of the specified type from the specified index,
+     * only containing the given fields of their source.
+     * If the index does not exist, an emtpy list is returned.
+     * If the list of fields is null, the complete source is retrieved.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param fields source fields to retrieve
+     * @return list of all available entries, reduced to the given fields
+     * @throws Exception if the request fails
+     */
+    public List<JSONObject> getAll(String index, String type, String[] fields)
+        throws Exception
+    {
+        final List<JSONObject> results = new ArrayList<JSONObject>();
+        
+        //collect all pages
+        scroll(index, type, fields, new IESPageHandler()
+        {
+            @Override
+            public void handlePage(List<JSONObject> page) throws Exception
+            {
+                results.addAll(page);
+            }
+        });
+        
+        return results;
+    }
+    
+    /**
+     * Streams all entries of the specified type from the specified index,
+     * passing them to the given handler one page at a time, so that the
+     * complete type never has to be held in memory.
+     * If the index does not exist, the handler is not called.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param handler handler receiving pages of entries
+     * @throws Exception if the request or the handler fails
+     */
+    public void scroll(String index, String type, IESPageHandler handler)
+        throws Exception
+    {
+        scroll(index, type, null, handler);
+    }
+    
+    /**
+     * Streams all entries of the specified type from the specified index,
+     * only containing the given fields of their source, passing them to the
+     * given handler one page at a time.
+     * If the index does not exist, the handler is not called.
+     * If the list of fields is null, the complete source is retrieved.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param fields source fields to retrieve
+     * @param handler handler receiving pages of entries
+     * @throws Exception if the request or the handler fails
+     */
+    public void scroll(String index, String type, String[] fields,
+        IESPageHandler handler) throws Exception
+    {
+        boolean exists = isKnownIndex(index);
+        
+        if(!exists)
+        {
+            return;
+        }
+        
+        //scan does not score or sort, page size is per shard
+        JSONObject query = new JSONObject();
+        query.put("query", new JSONObject().put("match_all", new JSONObject()));
+        
+        //source filtering
+        if(fields != null)
+        {
+            query.put("_source", new JSONArray(Arrays.asList(fields)));
+        }
+        
+        JSONObject response = send("POST",
+            path(index, type, "_search") + "?search_type=scan&scroll="
+            + fKeepAlive + "&size=" + fPageSize, toBody(query.toString()),
+            fTimeouts.getReadTimeout());
+        
+        String scrollId = response.optString("_scroll_id", null);
+        
+        try
+        {
+            //the initial scan response does not contain any hits
+            response = scrollPage(scrollId);
+            JSONArray hits = response.getJSONObject("hits").getJSONArray("hits");
+            
+            while(hits.length() > 0)
+            {
+                List<JSONObject> page = new ArrayList<JSONObject>(hits.length());
+                for(int i = 0; i < hits.length(); ++i)
+                {
+                    //filtered sources may be empty
+                    JSONObject source = hits.getJSONObject(i)
+                        .optJSONObject("_source");
+                    if(source != null)
+                    {
+                        page.add(source);
+                    }
+                    else
+                    {
+                        page.add(new JSONObject());
+                    }
+                }
+                handler.handlePage(page);
+                
+                //continue with the latest scroll ID
+                scrollId = response.optString("_scroll_id", scrollId);
+                response = scrollPage(scrollId);
+                hits = response.getJSONObject("hits").getJSONArray("hits");
+            }
+            
+            scrollId = response.optString("_scroll_id", scrollId);
+        }
+        finally
+        {
+            clearScroll(scrollId);
+        }
+    }
+    
+    private JSONObject scrollPage(String scrollId) throws Exception
+    {
+        return send("POST", "_search/scroll?scroll=" + fKeepAlive,
+            toBody(scrollId), fTimeouts.getReadTimeout());
+    }
+    
+    private void clearScroll(String scrollId)
+    {
+        //release server-side resources, even if scrolling was aborted
+        try
+        {
+            if(scrollId != null)
+            {
+                send("DELETE", path("_search", "scroll", scrollId), null,
+                    fTimeouts.getReadTimeout());
+            }
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.WARNING, "could not clear scroll", e);
+        }
     }
     
+    /**
+     * Retrieves a single entry with the given ID and type from the specified
+     * index.
+     * If the index or the entry do not exist, null is returned.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @return JSON representation of the entry
+     * @throws Exception if the request fails
+     */
     public JSONObject get(String index, String type, String id) throws Exception
     {
-        return null;
+        return get(index, type, id, null);
+    }
+    
+    /**
+     * Retrieves a single entry with the given ID and type from the specified
+     * index, only containing the given fields of its source.
+     * If the index or the entry do not exist, null is returned.
+     * If the list of fields is null, the complete source is retrieved.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @param fields source fields to retrieve
+     * @return JSON representation of the entry, reduced to the given fields
+     * @throws Exception if the request fails
+     */
+    public JSONObject get(String index, String type, String id, String[] fields)
+        throws Exception
+    {
+        return get(index, type, id, fields, null);
+    }
+    
+    /**
+     * Retrieves a single entry with the given ID, type and routing value from
+     * the specified index, optionally only containing the given fields of its
+     * source.
+     * If the index or the entry do not exist, null is returned.
+     * Only the fields and the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @param fields source fields to retrieve or null for all
+     * @param routing routing value of the entry or null
+     * @return JSON representation of the entry
+     * @throws Exception if the request fails
+     */
+    public JSONObject get(String index, String type, String id, String[] fields,
+        String routing) throws Exception
+    {
+        JSONObject result = null;
+        
+        //make sure index exists to avoid errors
+        boolean exists = isKnownIndex(index);
+        
+        if(exists)
+        {
+            String path = path(index, type, id);
+            
+            //source filtering
+            if(fields != null)
+            {
+                path += "?_source=" + join(fields);
+            }
+            path = withRouting(path, routing);
+            
+            try
+            {
+                result = toEntry(send("GET", path, null,
+                    fTimeouts.getReadTimeout()), fields);
+            }
+            catch(ESHttpException e)
+            {
+                //missing entries and indices are reported as "not found"
+                isIndexMissing(index, e);
+                if(e.getStatus() != NOT_FOUND)
+                {
+                    throw e;
+                }
+            }
+        }
+        
+        return result;
+    }
+    
+    private JSONObject toEntry(JSONObject response, String[] fields)
+    {
+        JSONObject result = null;
+        
+        if(response.optBoolean("found"))
+        {
+            result = response.optJSONObject("_source");
+            
+            //filtered source may be empty
+            if(result == null && fields != null)
+            {
+                result = new JSONObject();
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Retrieves multiple entries, defined by their types and IDs, from the
+     * specified index using a single request.
+     * Entries that do not exist are not contained in the result.
+     * If the index does not exist, an empty map is returned.
+     * If a list of fields is given, only these fields of the source are
+     * retrieved.
+     * Only the list of fields may be null.
+     * 
+     * @param index name of the index to query
+     * @param entries types, IDs and routing values of the entries to retrieve
+     * @param fields source fields to retrieve or null for all
+     * @return map of JSON representations of the entries by ID
+     * @throws Exception if the request fails
+     */
+    public Map<String, JSONObject> multiGet(String index,
+        List<ESEntryId> entries, String[] fields) throws Exception
+    {
+        Map<String, JSONObject> results = new HashMap<String, JSONObject>();
+        
+        Object source = null;
+        if(fields != null)
+        {
+            source = new JSONArray(Arrays.asList(fields));
+        }
+        
+        for(JSONObject doc : multiGet(index, entries, source))
+        {
+            results.put(doc.getString("_id"), toEntry(doc, fields));
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Checks for multiple entries, defined by their types and IDs, whether
+     * they exist in the specified index using a single request.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param entries types, IDs and routing values of the entries to look for
+     * @return map of whether the entries exist by ID
+     * @throws Exception if the request fails
+     */
+    public Map<String, Boolean> multiExists(String index,
+        List<ESEntryId> entries) throws Exception
+    {
+        Map<String, Boolean> results = new HashMap<String, Boolean>();
+        
+        //default for all entries
+        for(ESEntryId entry : entries)
+        {
+            results.put(entry.getId(), false);
+        }
+        
+        //only retrieve metadata, no source
+        for(JSONObject doc : multiGet(index, entries, Boolean.FALSE))
+        {
+            results.put(doc.getString("_id"), true);
+        }
+        
+        return results;
+    }
+    
+    private List<JSONObject> multiGet(String index, List<ESEntryId> entries,
+        Object source) throws Exception
+    {
+        //returns the documents of all existing entries
+        List<JSONObject> results = new ArrayList<JSONObject>();
+        
+        //make sure index exists to avoid errors
+        boolean exists = isKnownIndex(index);
+        
+        if(exists && !entries.isEmpty())
+        {
+            JSONArray docs = new JSONArray();
+            for(ESEntryId entry : entries)
+            {
+                JSONObject doc = new JSONObject();
+                doc.put("_type", entry.getType());
+                doc.put("_id", entry.getId());
+                if(entry.getRouting() != null)
+                {
+                    doc.put("_routing", entry.getRouting());
+                }
+                
+                if(source != null)
+                {
+                    doc.put("_source", source);
+                }
+                
+                docs.put(doc);
+            }
+            
+            JSONObject response = send("POST", path(index, "_mget"),
+                toBody(new JSONObject().put("docs", docs).toString()),
+                fTimeouts.getReadTimeout());
+            
+            docs = response.getJSONArray("docs");
+            for(int i = 0; i < docs.length(); ++i)
+            {
+                JSONObject doc = docs.getJSONObject(i);
+                
+                String error = doc.optString("error", null);
+                if(error != null)
+                {
+                    fLogger.log(Level.WARNING, "could not retrieve entry '"
+                        + doc.optString("_id") + "': " + error);
+                    
+                    if(error.contains("IndexMissingException"))
+                    {
+                        fKnownIndices.remove(index);
+                    }
+                }
+                else if(doc.optBoolean("found"))
+                {
+                    results.add(doc);
+                }
+            }
+        }
+        
+        return results;
+    }
+    
+    @Override
+    public void deleteIndex(String index) throws Exception
+    {
+        try
+        {
+            send("DELETE", path(index), null, fTimeouts.getAdminTimeout());
+        }
+        catch(ESHttpException e)
+        {
+            //nothing to delete
+            if(e.getStatus() != NOT_FOUND)
+            {
+                throw e;
+            }
+        }
+        
+        fKnownIndices.remove(index);
+    }
+    
+    @Override
+    public boolean isAlias(String name) throws Exception
+    {
+        boolean exists = false;
+        
+        try
+        {
+            send("HEAD", path("_alias", name), null,
+                fTimeouts.getAdminTimeout());
+            exists = true;
+        }
+        catch(ESHttpException e)
+        {
+            if(e.getStatus() != NOT_FOUND)
+            {
+                throw e;
+            }
+        }
+        
+        return exists;
+    }
+    
+    @Override
+    public List<String> setAlias(String alias, String index) throws Exception
+    {
+        //indices currently carrying the alias, keyed by index name
+        boolean aliased = false;
+        List<String> previous = new ArrayList<String>();
+        try
+        {
+            JSONObject response = send("GET", path("_alias", alias), null,
+                fTimeouts.getAdminTimeout());
+            if(response != null)
+            {
+                Iterator<?> names = response.keys();
+                while(names.hasNext())
+                {
+                    String name = (String) names.next();
+                    aliased = true;
+                    if(!name.equals(index))
+                    {
+                        previous.add(name);
+                    }
+                }
+            }
+        }
+        catch(ESHttpException e)
+        {
+            if(e.getStatus() != NOT_FOUND)
+            {
+                throw e;
+            }
+        }
+        
+        //never delete a plain index of the same name that is still in use
+        if(!aliased && indexExists(alias))
+        {
+            throw new IllegalStateException("'" + alias + "' is a plain"
+                + " index, not an alias");
+        }
+        
+        //switch in a single request
+        JSONArray actions = new JSONArray();
+        for(String name : previous)
+        {
+            actions.put(new JSONObject().put("remove", new JSONObject()
+                .put("index", name).put("alias", alias)));
+        }
+        actions.put(new JSONObject().put("add", new JSONObject()
+            .put("index", index).put("alias", alias)));
+        
+        send("POST", "_aliases", toBody(new JSONObject()
+            .put("actions", actions).toString()),
+            fTimeouts.getAdminTimeout());
+        
+        fKnownIndices.add(alias);
+        
+        return previous;
+    }
+    
+    @Override
+    public void beginBulkLoad(String index) throws Exception
+    {
+        fBulkLoad.begin(index);
+    }
+    
+    @Override
+    public void endBulkLoad(String index) throws Exception
+    {
+        fBulkLoad.end(index);
+    }
+    
+    @Override
+    public void clearIndex(String index) throws Exception
+    {
+        //drop index
+        if(indexExists(index))
+        {
+            send("DELETE", path(index), null, fTimeouts.getAdminTimeout());
+            fKnownIndices.remove(index);
+        }
+        
+        //create index
+        createIndex(index);
+    }
+    
+    @Override
+    public void setMapping(String index, String type, JSONObject mapping)
+        throws Exception
+    {
+        JSONObject typeMapping = new JSONObject().put(type, mapping);
+        
+        //check if index exists, create if not
+        if(!indexExists(index))
+        {
+            send("PUT", path(index), toBody(new JSONObject()
+                .put("mappings", typeMapping).toString()),
+                fTimeouts.getAdminTimeout());
+            fKnownIndices.add(index);
+        }
+        else
+        {
+            //update mapping
+            send("PUT", path(index, "_mapping", type) + "?ignore_conflicts=true",
+                toBody(typeMapping.toString()), fTimeouts.getAdminTimeout());
+        }
+    }
+    
+    /**
+     * Sets the sink receiving requests that failed permanently, replacing
+     * the default sink.
+     * The given sink must not be null.
+     * 
+     * @param sink dead letter sink to use
+     */
+    public void setDeadLetterSink(IDeadLetterSink sink)
+    {
+        if(sink == null)
+        {
+            throw new NullPointerException("dead letter sink was null");
+        }
+        
+        fDeadLetters = sink;
+    }
+    
+    @Override
+    public Map<String, Set<ESEntryId>> drainDirtyEntries()
+    {
+        //writes are never given up silently
+        return Collections.emptyMap();
+    }
+    
+    private void execute(ActionRequest<?> request) throws Exception
+    {
+        //single-document endpoints matching the bulk actions
+        ESEntryId entry = ESRequestUtil.getEntryId(request);
+        String path = path(ESRequestUtil.getIndex(request), entry.getType(),
+            entry.getId());
+        
+        if(request instanceof IndexRequest)
+        {
+            IndexRequest r = (IndexRequest) request;
+            
+            if(r.versionType() != VersionType.INTERNAL)
+            {
+                path += "?version=" + r.version() + "&version_type="
+                    + getVersionType(r);
+            }
+            
+            send("PUT", withRouting(path, r.routing()),
+                toBody(r.source().toUtf8()), fTimeouts.getWriteTimeout());
+        }
+        else if(request instanceof UpdateRequest)
+        {
+            UpdateRequest r = (UpdateRequest) request;
+            
+            path += "/_update";
+            if(r.retryOnConflict() > 0)
+            {
+                path += "?retry_on_conflict=" + r.retryOnConflict();
+            }
+            
+            send("POST", withRouting(path, r.routing()),
+                toBody(getUpdateBody(r)), fTimeouts.getWriteTimeout());
+        }
+        else if(request instanceof DeleteRequest)
+        {
+            send("DELETE", withRouting(path,
+                ((DeleteRequest) request).routing()), null,
+                fTimeouts.getWriteTimeout());
+        }
+        else
+        {
+            throw new IllegalArgumentException("unsupported request type: "
+                + request.getClass().getName());
+        }
+    }
+    
+    private void executeBulk(String index, List<ActionRequest<?>> requests,
+        String action) throws Exception
+    {
+        int attempt = 1;
+        
+        while(requests != null && !requests.isEmpty())
+        {
+            JSONObject bulkResponse = null;
+            
+            try
+            {
+                bulkResponse = send("POST", "_bulk", toBulkBody(requests),
+                    fTimeouts.getBulkTimeout());
+            }
+            catch(IOException e)
+            {
+                //whole bulk failed, retry if the failure is temporary
+                if(isRetryable(e) && attempt < fRetryPolicy.getMaxAttempts())
+                {
+                    fLogger.log(Level.WARNING, "bulk " + action
+                        + " failed, retrying", e);
+                    
+                    Thread.sleep(fRetryPolicy.getDelay(attempt));
+                    ++attempt;
+                    continue;
+                }
+                
+                //give up on all actions, like on permanently failed items
+                fLogger.log(Level.SEVERE, "bulk " + action + " failed", e);
+                if(e instanceof ESHttpException)
+                {
+                    isIndexMissing(index, (ESHttpException) e);
+                }
+                for(ActionRequest<?> request : requests)
+                {
+                    fDeadLetters.deadLetter(request, e.toString());
+                }
+                return;
+            }
+            
+            //collect temporarily failed items for retry
+            List<ActionRequest<?>> retry = null;
+            
+            if(bulkResponse.optBoolean("errors"))
+            {
+                //one result per item, in request order
+                JSONArray items = bulkResponse.getJSONArray("items");
+                int failed = 0;
+                
+                for(int i = 0; i < items.length(); ++i)
+                {
+                    //results are keyed by their operation
+                    JSONObject item = items.getJSONObject(i);
+                    JSONObject result = item.getJSONObject(
+                        (String) item.keys().next());
+                    
+                    String error = result.optString("error", null);
+                    if(error == null)
+                    {
+                        continue;
+                    }
+                    
+                    ActionRequest<?> itemRequest = requests.get(i);
+                    int status = result.optInt("status");
+                    
+                    //forget index if it vanished, so it is checked again
+                    if(error.contains("IndexMissingException"))
+                    {
+                        fKnownIndices.remove(index);
+                    }
+                    
+                    if(status == CONFLICT && isVersioned(itemRequest))
+                    {
+                        //a newer version is already stored
+                        continue;
+                    }
+                    
+                    ++failed;
+                    
+                    if(fRetryPolicy.isRetryable(status, error)
+                        && attempt < fRetryPolicy.getMaxAttempts())
+                    {
+                        if(retry == null)
+                        {
+                            retry = new ArrayList<ActionRequest<?>>();
+                        }
+                        retry.add(itemRequest);
+                    }
+                    else
+                    {
+                        fDeadLetters.deadLetter(itemRequest, error);
+                    }
+                }
+                
+                if(failed > 0)
+                {
+                    fLogger.log(Level.SEVERE, "error during bulk " + action
+                        + ": " + failed + " of " + items.length()
+                        + " actions failed");
+                }
+            }
+            
+            //back off before retrying
+            if(retry != null)
+            {
+                fLogger.log(Level.WARNING, "retrying " + retry.size()
+                    + " failed actions");
+                
+                Thread.sleep(fRetryPolicy.getDelay(attempt));
+                ++attempt;
+            }
+            
+            requests = retry;
+        }
+    }
+    
+    private boolean isRetryable(IOException e)
+    {
+        boolean retry = false;
+        
+        if(e instanceof ESHttpException)
+        {
+            ESHttpException he = (ESHttpException) e;
+            retry = fRetryPolicy.isRetryable(he.getStatus(), he.getBody());
+        }
+        else
+        {
+            //no node reachable or no answer in time
+            retry = e instanceof ConnectException
+                || e instanceof SocketTimeoutException;
+        }
+        
+        return retry;
+    }
+    
+    private boolean isVersioned(ActionRequest<?> request)
+    {
+        return request instanceof IndexRequest
+            && ((IndexRequest) request).versionType() != VersionType.INTERNAL;
+    }
+    
+    private String getVersionType(IndexRequest request)
+    {
+        //REST parameters use lower case names, e.g. "external_gte"
+        return request.versionType().name().toLowerCase(Locale.ENGLISH);
+    }
+    
+    private IHttpBodyWriter toBulkBody(final List<ActionRequest<?>> requests)
+    {
+        //newline-delimited action and source lines, written one by one
+        return new IHttpBodyWriter()
+        {
+            @Override
+            public void writeBody(Writer writer) throws Exception
+            {
+                for(ActionRequest<?> request : requests)
+                {
+                    writeBulkItem(request, writer);
+                }
+            }
+        };
+    }
+    
+    private void writeBulkItem(ActionRequest<?> request, Writer writer)
+        throws Exception
+    {
+        ESEntryId entry = ESRequestUtil.getEntryId(request);
+        
+        JSONObject meta = new JSONObject();
+        meta.put("_index", ESRequestUtil.getIndex(request));
+        meta.put("_type", entry.getType());
+        meta.put("_id", entry.getId());
+        
+        String routing = ESRequestUtil.getRouting(request);
+        if(routing != null)
+        {
+            meta.put("_routing", routing);
+        }
+        
+        String operation = null;
+        String source = null;
+        
+        if(request instanceof IndexRequest)
+        {
+            IndexRequest r = (IndexRequest) request;
+            operation = "index";
+            source = r.source().toUtf8();
+            
+            if(r.versionType() != VersionType.INTERNAL)
+            {
+                meta.put("_version", r.version());
+                meta.put("_version_type", getVersionType(r));
+            }
+        }
+        else if(request instanceof UpdateRequest)
+        {
+            UpdateRequest r = (UpdateRequest) request;
+            operation = "update";
+            source = getUpdateBody(r);
+            
+            if(r.retryOnConflict() > 0)
+            {
+                meta.put("_retry_on_conflict", r.retryOnConflict());
+            }
+        }
+        else if(request instanceof DeleteRequest)
+        {
+            operation = "delete";
+        }
+        else
+        {
+            throw new IllegalArgumentException("unsupported request type: "
+                + request.getClass().getName());
+        }
+        
+        writer.write(new JSONObject().put(operation, meta).toString());
+        writer.write('\n');
+        
+        //deletions have no source line
+        if(source != null)
+        {
+            writer.write(source);
+            writer.write('\n');
+        }
+    }
+    
+    private String getUpdateBody(UpdateRequest request) throws Exception
+    {
+        //sources are inserted as they are instead of parsing them again
+        StringBuilder body = new StringBuilder("{");
+        
+        if(request.doc() != null)
+        {
+            body.append("\"doc\":").append(request.doc().source().toUtf8());
+            
+            if(request.docAsUpsert())
+            {
+                body.append(",\"doc_as_upsert\":true");
+            }
+        }
+        
+        if(request.upsertRequest() != null)
+        {
+            if(body.length() > 1)
+            {
+                body.append(',');
+            }
+            body.append("\"upsert\":")
+                .append(request.upsertRequest().source().toUtf8());
+        }
+        
+        if(request.script() != null)
+        {
+            if(body.length() > 1)
+            {
+                body.append(',');
+            }
+            //file scripts are referenced by name
+            if(request.scriptType() == ScriptService.ScriptType.FILE)
+            {
+                body.append("\"script_file\":");
+            }
+            else
+            {
+                body.append("\"script\":");
+            }
+            body.append(JSONObject.quote(request.script()));
+            
+            if(request.scriptLang() != null)
+            {
+                body.append(",\"lang\":")
+                    .append(JSONObject.quote(request.scriptLang()));
+            }
+            if(request.scriptParams() != null)
+            {
+                body.append(",\"params\":")
+                    .append(new JSONObject(request.scriptParams()));
+            }
+        }
+        
+        return body.append('}').toString();
+    }
+    
+    private static IHttpBodyWriter toBody(final String content)
+    {
+        return new IHttpBodyWriter()
+        {
+            @Override
+            public void writeBody(Writer writer) throws Exception
+            {
+                writer.write(content);
+            }
+        };
+    }
+    
+    private JSONObject send(String method, String path, IHttpBodyWriter body,
+        TimeValue timeout) throws IOException
+    {
+        //round-robin, trying the next node if one can not be reached or
+        //does not answer in time
+        IOException failure = null;
+        
+        for(int i = 0; i < fUrls.size(); ++i)
+        {
+            String base = fUrls.get(
+                Math.abs(fNextUrl.getAndIncrement() % fUrls.size()));
+            
+            //all attempts together must not exceed the caller's deadline
+            long readTimeout = ESDeadline.bound(timeout.millis());
+            if(readTimeout <= 0)
+            {
+                if(failure == null)
+                {
+                    failure = new SocketTimeoutException("deadline exceeded");
+                }
+                break;
+            }
+            long connectTimeout = Math.min(fConnectTimeout, readTimeout);
+            
+            try
+            {
+                return HttpUtil.send(new URL(base + path), method, body,
+                    fGzip, (int) connectTimeout,
+                    (int) Math.min(readTimeout, Integer.MAX_VALUE));
+            }
+            catch(ConnectException e)
+            {
+                fLogger.log(Level.WARNING, "could not connect to " + base, e);
+                failure = e;
+            }
+            catch(SocketTimeoutException e)
+            {
+                fLogger.log(Level.WARNING, "no answer from " + base + " within "
+                    + readTimeout + " ms", e);
+                failure = e;
+            }
+        }
+        
+        throw failure;
+    }
+
+    
+    private static String path(String... parts) throws IOException
+    {
+        StringBuilder path = new StringBuilder();
+        
+        for(String part : parts)
+        {
+            if(path.length() > 0)
+            {
+                path.append('/');
+            }
+            path.append(encode(part));
+        }
+        
+        return path.toString();
+    }
+    
+    private static String withRouting(String path, String routing)
+        throws IOException
+    {
+        if(routing == null)
+        {
+            return path;
+        }
+        
+        //append to existing parameters
+        return path + (path.indexOf('?') < 0 ? '?' : '&') + "routing="
+            + encode(routing);
+    }
+    
+    private static String join(String[] values) throws IOException
+    {
+        StringBuilder joined = new StringBuilder();
+        
+        for(String value : values)
+        {
+            if(joined.length() > 0)
+            {
+                joined.append(',');
+            }
+            joined.append(encode(value));
+        }
+        
+        return joined.toString();
+    }
+    
+    private static String encode(String value) throws IOException
+    {
+        //path segments and parameters, spaces are not encoded as '+' there
+        return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+    }
+    
+    /**
+     * Index management calls for bulk loads via the REST API.
+     */
+    private class HttpIndexAdmin implements IESIndexAdmin
+    {
+        @Override
+        public boolean indexExists(String index) throws Exception
+        {
+            return ESConnectorHttp.this.indexExists(index);
+        }
+        
+        @Override
+        public Map<String, String> getSettings(String index, String... names)
+            throws Exception
+        {
+            JSONObject current = send("GET", path(index, "_settings")
+                + "?flat_settings=true", null, fTimeouts.getAdminTimeout())
+                .getJSONObject(index).getJSONObject("settings");
+            
+            Map<String, String> settings = new HashMap<String, String>();
+            for(String name : names)
+            {
+                if(current.has(name))
+                {
+                    settings.put(name, current.getString(name));
+                }
+            }
+            
+            return settings;
+        }
+        
+        @Override
+        public void updateSettings(String index, Map<String, String> settings)
+            throws Exception
+        {
+            send("PUT", path(index, "_settings"),
+                toBody(new JSONObject(settings).toString()),
+                fTimeouts.getAdminTimeout());
+        }
+        
+        @Override
+        public void refresh(String index) throws Exception
+        {
+            send("POST", path(index, "_refresh"), null,
+                fTimeouts.getAdminTimeout());
+        }
+        
+        @Override
+        public boolean waitForHealth(String index, ClusterHealthStatus status,
+            long seconds) throws Exception
+        {
+            boolean reached = true;
+            
+            //the server waits for the status itself, give it time to answer
+            TimeValue timeout = TimeValue.timeValueMillis(seconds * 1000
+                + fTimeouts.getAdminTimeout().millis());
+            
+            try
+            {
+                send("GET", path("_cluster", "health", index)
+                    + "?wait_for_status="
+                    + status.name().toLowerCase(Locale.ENGLISH)
+                    + "&timeout=" + seconds + "s", null, timeout);
+            }
+            catch(ESHttpException e)
+            {
+                //reported as "request timeout" if the status was not reached
+                if(e.getStatus() != REQUEST_TIMEOUT)
+                {
+                    throw e;
+                }
+                reached = false;
+            }
+            
+            return reached;
+        }
+        
+        @Override
+        public JSONObject getDocument(String index, String type, String id)
+            throws Exception
+        {
+            JSONObject source = null;
+            
+            try
+            {
+                JSONObject response = send("GET", path(index, type, id), null,
+                    fTimeouts.getReadTimeout());
+                
+                if(response.optBoolean("found"))
+                {
+                    source = response.getJSONObject("_source");
+                }
+            }
+            catch(ESHttpException e)
+            {
+                //missing documents and indices are reported as "not found"
+                if(e.getStatus() != NOT_FOUND)
+                {
+                    throw e;
+                }
+            }
+            
+            return source;
+        }
+        
+        @Override
+        public void putDocument(String index, String type, String id,
+            JSONObject source) throws Exception
+        {
+            send("PUT", path(index, type, id), toBody(source.toString()),
+                fTimeouts.getWriteTimeout());
+        }
     }
 }
@@ -0,0 +1,85 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.action.ActionRequest;
+import org.json.JSONObject;
+
+/**
+ * Default dead letter sink, logging failed requests and appending them to a
+ * file as one JSON object per line, if a file is configured.
+ */
+public class ESDeadLetterSink implements IDeadLetterSink
+{
+    private static final String FILE_PROP = "shindig.elasticsearch.dead_letter.file";
+    
+    private final String fFile;
+    
+    private final Logger fLogger;
+    
+    /**
+     * Creates a dead letter sink using the given configuration.
+     * The given configuration object must not be null.
+     * 
+     * @param config configuration object to use
+     */
+    public ESDeadLetterSink(ESConfig config)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        
+        String file = config.getProperty(FILE_PROP);
+        if(file != null && !file.isEmpty())
+        {
+            fFile = file;
+        }
+        else
+        {
+            fFile = null;
+        }
+        
+        fLogger = Logger.getLogger(this.getClass().getCanonicalName());
+    }
+
+    @Override
+    public synchronized void deadLetter(ActionRequest<?> request, String reason)
+    {
+        try
+        {
+            JSONObject entry = ESRequestUtil.toJSON(request);
+            entry.put("reason", reason);
+            entry.put("time", System.currentTimeMillis());
+            
+            fLogger.log(Level.SEVERE, "request failed permanently: " + entry);
+            
+            if(fFile != null)
+            {
+                //append as a single line
+                Writer writer = new OutputStreamWriter(
+                    new FileOutputStream(fFile, true), Charset.forName("UTF-8"));
+                try
+                {
+                    writer.write(entry.toString());
+                    writer.write('\n');
+                }
+                finally
+                {
+                    writer.close();
+                }
+            }
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.SEVERE, "could not store failed request: "
+                + request + " - " + reason, e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.apache.shindig.elasticsearch.util;
+
+/**
+ * Deadline for all connector calls made by the current thread, for callers
+ * that must not be held up longer than a certain time in total, like event
+ * handlers running on request threads.
+ * Operation timeouts are shortened to the time remaining until the deadline.
+ * Deadlines are not nested, an earlier deadline that is already set wins.
+ */
+public class ESDeadline
+{
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<Long>();
+    
+    /**
+     * Sets a deadline the given number of milliseconds from now for the
+     * current thread, which has to be cleared using end() afterwards.
+     * 
+     * @param millis milliseconds until the deadline
+     */
+    public static void begin(long millis)
+    {
+        long deadline = System.currentTimeMillis() + millis;
+        
+        Long current = DEADLINE.get();
+        if(current == null || deadline < current)
+        {
+            DEADLINE.set(deadline);
+        }
+    }
+    
+    /**
+     * Clears the current thread's deadline.
+     */
+    public static void end()
+    {
+        DEADLINE.remove();
+    }
+    
+    /**
+     * @return milliseconds left until the current thread's deadline, at least
+     *          0, or Long.MAX_VALUE if there is no deadline
+     */
+    public static long remaining()
+    {
+        Long deadline = DEADLINE.get();
+        if(deadline == null)
+        {
+            return Long.MAX_VALUE;
+        }
+        
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+    
+    /**
+     * Shortens the given timeout to the time left until the current thread's
+     * deadline.
+     * 
+     * @param timeout timeout in milliseconds
+     * @return timeout in milliseconds, limited by the deadline
+     */
+    public static long bound(long timeout)
+    {
+        return Math.min(timeout, remaining());
+    }
+}
@@ -0,0 +1,118 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.action.ActionRequest;
+
+/**
+ * Bounded record of entries whose writes were given up by a connector, for
+ * example because its queue was full, grouped by index, until they are
+ * drained to be re-indexed (see IESConnector.drainDirtyEntries).
+ * If the maximum number of entries is reached, further entries are only
+ * counted, since re-indexing is done by crawling all entries anyway.
+ */
+public class ESDirtyEntries
+{
+    private static final String MAX_ENTRIES_PROP =
+        "shindig.elasticsearch.dirty.max_entries";
+    
+    private final int fMaxEntries;
+    
+    private Map<String, Set<ESEntryId>> fEntries;
+    private int fSize;
+    private int fUnrecorded;
+    
+    private final Logger fLogger;
+    
+    /**
+     * Creates an empty record using the given configuration.
+     * The given configuration object must not be null.
+     * 
+     * @param config configuration object to use
+     */
+    public ESDirtyEntries(ESConfig config)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        
+        fMaxEntries = Integer.parseInt(config.getProperty(MAX_ENTRIES_PROP));
+        if(fMaxEntries <= 0)
+        {
+            throw new IllegalArgumentException(
+                "maximum number of dirty entries must be positive");
+        }
+        
+        fEntries = new HashMap<String, Set<ESEntryId>>();
+        
+        fLogger = Logger.getLogger(this.getClass().getCanonicalName());
+    }
+    
+    /**
+     * Marks the entry concerned by the given request as dirty. Requests not
+     * concerning a single entry are ignored.
+     * The given request must not be null.
+     * 
+     * @param request request that was given up
+     */
+    public synchronized void mark(ActionRequest<?> request)
+    {
+        ESEntryId entry = ESRequestUtil.getEntryId(request);
+        if(entry == null)
+        {
+            return;
+        }
+        
+        String index = ESRequestUtil.getIndex(request);
+        Set<ESEntryId> entries = fEntries.get(index);
+        
+        if(entries != null && entries.contains(entry))
+        {
+            return;
+        }
+        
+        //bounded, further entries are only counted
+        if(fSize >= fMaxEntries)
+        {
+            ++fUnrecorded;
+            return;
+        }
+        
+        if(entries == null)
+        {
+            entries = new HashSet<ESEntryId>();
+            fEntries.put(index, entries);
+        }
+        entries.add(entry);
+        ++fSize;
+    }
+    
+    /**
+     * Returns all recorded entries and clears the record.
+     * 
+     * @return map of dirty entries by index, empty if there are none
+     */
+    public synchronized Map<String, Set<ESEntryId>> drain()
+    {
+        Map<String, Set<ESEntryId>> entries = fEntries;
+        
+        if(fUnrecorded > 0)
+        {
+            fLogger.log(Level.WARNING, fUnrecorded + " further dirty entries"
+                + " were not recorded");
+        }
+        
+        fEntries = new HashMap<String, Set<ESEntryId>>();
+        fSize = 0;
+        fUnrecorded = 0;
+        
+        return entries;
+    }
+}
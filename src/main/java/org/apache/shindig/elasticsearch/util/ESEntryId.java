@@ -0,0 +1,100 @@
+package org.apache.shindig.elasticsearch.util;
+
+/**
+ * Reference to a single document entry in an index by its type and ID, used
+ * for requests concerning multiple entries.
+ * Entries of routed types additionally carry their routing value, which is
+ * needed to address them but not part of their identity.
+ */
+public class ESEntryId
+{
+    private final String fType, fId, fRouting;
+    
+    /**
+     * Creates a reference to the entry with the given type and ID, without a
+     * routing value.
+     * None of the parameters may be null.
+     * 
+     * @param type type of the entry
+     * @param id ID of the entry
+     */
+    public ESEntryId(String type, String id)
+    {
+        this(type, id, null);
+    }
+    
+    /**
+     * Creates a reference to the entry with the given type, ID and routing
+     * value.
+     * Only the routing value may be null.
+     * 
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param routing routing value of the entry or null
+     */
+    public ESEntryId(String type, String id, String routing)
+    {
+        if(type == null)
+        {
+            throw new NullPointerException("type was null");
+        }
+        if(id == null)
+        {
+            throw new NullPointerException("ID was null");
+        }
+        
+        fType = type;
+        fId = id;
+        fRouting = routing;
+    }
+    
+    /**
+     * @return type of the entry
+     */
+    public String getType()
+    {
+        return fType;
+    }
+    
+    /**
+     * @return ID of the entry
+     */
+    public String getId()
+    {
+        return fId;
+    }
+    
+    /**
+     * @return routing value of the entry or null
+     */
+    public String getRouting()
+    {
+        return fRouting;
+    }
+    
+    @Override
+    public boolean equals(Object obj)
+    {
+        boolean equal = false;
+        
+        if(obj instanceof ESEntryId)
+        {
+            ESEntryId other = (ESEntryId) obj;
+            equal = fType.equals(other.fType) && fId.equals(other.fId);
+        }
+        
+        return equal;
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        return 31 * fType.hashCode() + fId.hashCode();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return fType + "/" + fId;
+    }
+}
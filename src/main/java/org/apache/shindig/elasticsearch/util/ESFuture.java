@@ -0,0 +1,214 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future for the result of an asynchronous connector call, which can
+ * additionally notify callbacks on completion. Calls can not be cancelled
+ * once they have been issued.
+ * 
+ * @param <T> type of the result
+ */
+public class ESFuture<T> implements Future<T>
+{
+    private final List<IESCallback<T>> fCallbacks;
+    
+    private boolean fDone;
+    private T fResult;
+    private Throwable fFailure;
+    
+    /**
+     * Creates a new, uncompleted future.
+     */
+    public ESFuture()
+    {
+        fCallbacks = new ArrayList<IESCallback<T>>();
+        fDone = false;
+    }
+    
+    /**
+     * Creates a future that has already been completed with the given
+     * result.
+     * 
+     * @param result result of the call
+     * @return completed future
+     */
+    public static <T> ESFuture<T> completed(T result)
+    {
+        ESFuture<T> future = new ESFuture<T>();
+        future.set(result);
+        return future;
+    }
+    
+    /**
+     * Creates a future that has already failed with the given cause.
+     * 
+     * @param failure cause of the failure
+     * @return failed future
+     */
+    public static <T> ESFuture<T> failed(Throwable failure)
+    {
+        ESFuture<T> future = new ESFuture<T>();
+        future.fail(failure);
+        return future;
+    }
+    
+    /**
+     * Completes the future with the given result, notifying waiting threads
+     * and callbacks. Calls on completed futures are ignored.
+     * 
+     * @param result result of the call
+     */
+    public void set(T result)
+    {
+        List<IESCallback<T>> callbacks = null;
+        
+        synchronized(this)
+        {
+            if(fDone)
+            {
+                return;
+            }
+            
+            fResult = result;
+            fDone = true;
+            callbacks = new ArrayList<IESCallback<T>>(fCallbacks);
+            fCallbacks.clear();
+            notifyAll();
+        }
+        
+        //notify outside of the lock
+        for(IESCallback<T> callback : callbacks)
+        {
+            callback.onSuccess(result);
+        }
+    }
+    
+    /**
+     * Completes the future with the given failure, notifying waiting threads
+     * and callbacks. Calls on completed futures are ignored.
+     * 
+     * @param failure cause of the failure
+     */
+    public void fail(Throwable failure)
+    {
+        List<IESCallback<T>> callbacks = null;
+        
+        synchronized(this)
+        {
+            if(fDone)
+            {
+                return;
+            }
+            
+            fFailure = failure;
+            fDone = true;
+            callbacks = new ArrayList<IESCallback<T>>(fCallbacks);
+            fCallbacks.clear();
+            notifyAll();
+        }
+        
+        //notify outside of the lock
+        for(IESCallback<T> callback : callbacks)
+        {
+            callback.onFailure(failure);
+        }
+    }
+    
+    /**
+     * Adds a callback to notify on completion. If the future has already
+     * been completed, the callback is executed immediately.
+     * The given callback must not be null.
+     * 
+     * @param callback callback to add
+     */
+    public void addCallback(IESCallback<T> callback)
+    {
+        if(callback == null)
+        {
+            throw new NullPointerException("callback was null");
+        }
+        
+        synchronized(this)
+        {
+            if(!fDone)
+            {
+                fCallbacks.add(callback);
+                return;
+            }
+        }
+        
+        if(fFailure != null)
+        {
+            callback.onFailure(fFailure);
+        }
+        else
+        {
+            callback.onSuccess(fResult);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        //requests can not be taken back
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone()
+    {
+        return fDone;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException
+    {
+        while(!fDone)
+        {
+            wait();
+        }
+        
+        return getResult();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        
+        while(!fDone)
+        {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0)
+            {
+                throw new TimeoutException("call did not complete in time");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        
+        return getResult();
+    }
+    
+    private T getResult() throws ExecutionException
+    {
+        if(fFailure != null)
+        {
+            throw new ExecutionException(fFailure);
+        }
+        
+        return fResult;
+    }
+}
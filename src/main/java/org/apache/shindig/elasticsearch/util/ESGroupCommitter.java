@@ -0,0 +1,303 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.indices.IndexMissingException;
+
+/**
+ * Merges single-entry requests issued concurrently by several threads into
+ * bulk requests, while every caller still blocks until the result for its
+ * own request is known. Requests arriving within a short linger time after
+ * the first one or while the previous bulk is being executed are sent
+ * together, up to a maximum number of actions per bulk.
+ */
+public class ESGroupCommitter
+{
+    private static final String LINGER_PROP =
+        "shindig.elasticsearch.group_commit.linger_millis";
+    private static final String MAX_ACTIONS_PROP =
+        "shindig.elasticsearch.group_commit.max_actions";
+    
+    private final Client fClient;
+    
+    private final long fLingerNanos;
+    private final int fMaxActions;
+    
+    private final ESTimeouts fTimeouts;
+    
+    private final BlockingQueue<Pending> fQueue;
+    private final Thread fFlusher;
+    private volatile boolean fActive;
+    
+    private final Logger fLogger;
+    
+    /**
+     * Creates a group committer sending bulks via the given client and
+     * starts its background thread.
+     * None of the parameters may be null.
+     * 
+     * @param config configuration object to use
+     * @param client client to send bulk requests with
+     */
+    public ESGroupCommitter(ESConfig config, Client client)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        if(client == null)
+        {
+            throw new NullPointerException("client was null");
+        }
+        
+        fClient = client;
+        
+        fLingerNanos = TimeUnit.MILLISECONDS.toNanos(
+            Long.parseLong(config.getProperty(LINGER_PROP)));
+        fMaxActions = Integer.parseInt(config.getProperty(MAX_ACTIONS_PROP));
+        
+        fTimeouts = new ESTimeouts(config);
+        
+        fQueue = new LinkedBlockingQueue<Pending>();
+        
+        fLogger = Logger.getLogger(this.getClass().getCanonicalName());
+        
+        fActive = true;
+        fFlusher = new DaemonThreadFactory("es-group-commit").newThread(
+            new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    flushLoop();
+                }
+            });
+        fFlusher.start();
+    }
+    
+    /**
+     * Sends the given index, update or delete request as part of the next
+     * bulk and waits for its result.
+     * A failure of the request is thrown as the corresponding exception,
+     * where known, missing indices and documents are reported as
+     * IndexMissingException and DocumentMissingException respectively.
+     * Externally versioned writes rejected as stale do not cause an
+     * exception.
+     * If no result is known within the given timeout, an
+     * ElasticsearchTimeoutException is thrown, while the request may still
+     * be sent unless it was still waiting for the next bulk.
+     * None of the parameters may be null.
+     * 
+     * @param request request to execute
+     * @param timeout maximum time to wait for the result
+     * @return response for the request
+     * @throws Exception if the request or its bulk fail
+     */
+    public BulkItemResponse execute(ActionRequest<?> request,
+        TimeValue timeout) throws Exception
+    {
+        if(!fActive)
+        {
+            throw new IllegalStateException("group committer was closed");
+        }
+        
+        Pending pending = new Pending(request);
+        fQueue.put(pending);
+        
+        //closed concurrently, the request will not be picked up
+        if(!fActive && fQueue.remove(pending))
+        {
+            throw new IllegalStateException("group committer was closed");
+        }
+        
+        BulkItemResponse item = null;
+        try
+        {
+            item = pending.future.get(timeout.millis(),
+                TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            //withdraw the request if it has not been picked up yet
+            fQueue.remove(pending);
+            throw new ElasticsearchTimeoutException("group commit timed out"
+                + " after " + timeout);
+        }
+        catch(ExecutionException e)
+        {
+            //pass on the failure of the whole bulk
+            if(e.getCause() instanceof Exception)
+            {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        
+        //stale versioned writes are ignored, like for direct requests
+        if(item.isFailed() && !ESRequestUtil.isStaleWrite(request, item))
+        {
+            throw toException(item);
+        }
+        
+        return item;
+    }
+    
+    private Exception toException(BulkItemResponse item)
+    {
+        //bulk items only carry the failure's message
+        Exception e = null;
+        String message = item.getFailureMessage();
+        
+        if(message != null && message.startsWith("IndexMissingException"))
+        {
+            e = new IndexMissingException(new Index(item.getIndex()));
+        }
+        else if(message != null
+            && message.startsWith("DocumentMissingException"))
+        {
+            e = new DocumentMissingException(null, item.getType(),
+                item.getId());
+        }
+        else
+        {
+            e = new ElasticsearchException(message);
+        }
+        
+        return e;
+    }
+    
+    private void flushLoop()
+    {
+        List<Pending> batch = new ArrayList<Pending>();
+        
+        while(fActive)
+        {
+            try
+            {
+                //wait for the first request, then linger for further ones
+                batch.add(fQueue.take());
+                long deadline = System.nanoTime() + fLingerNanos;
+                
+                while(batch.size() < fMaxActions)
+                {
+                    //take whatever is already waiting
+                    if(fQueue.drainTo(batch, fMaxActions - batch.size()) > 0)
+                    {
+                        continue;
+                    }
+                    
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0)
+                    {
+                        break;
+                    }
+                    
+                    Pending next = fQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null)
+                    {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                
+                flush(batch);
+            }
+            catch(InterruptedException e)
+            {
+                //closed, requests already taken were not sent either
+                failClosed(batch);
+                break;
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+        
+        //fail everything that was not sent
+        List<Pending> remaining = new ArrayList<Pending>();
+        fQueue.drainTo(remaining);
+        failClosed(remaining);
+    }
+    
+    private void failClosed(List<Pending> pendings)
+    {
+        for(Pending pending : pendings)
+        {
+            pending.future.fail(new IllegalStateException(
+                "group committer was closed"));
+        }
+    }
+    
+    private void flush(List<Pending> batch)
+    {
+        BulkRequest request = new BulkRequest();
+        for(Pending pending : batch)
+        {
+            request.add(pending.request);
+        }
+        
+        try
+        {
+            BulkResponse response = fClient.bulk(request).actionGet(
+                fTimeouts.getBulkTimeout());
+            
+            //hand every caller its own item
+            for(BulkItemResponse item : response.getItems())
+            {
+                batch.get(item.getItemId()).future.set(item);
+            }
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.WARNING, "group commit of " + batch.size()
+                + " actions failed", e);
+            
+            for(Pending pending : batch)
+            {
+                pending.future.fail(e);
+            }
+        }
+    }
+    
+    /**
+     * Stops the background thread. Requests that have not been sent yet
+     * fail.
+     */
+    public void close()
+    {
+        fActive = false;
+        fFlusher.interrupt();
+    }
+    
+    private static class Pending
+    {
+        private final ActionRequest<?> request;
+        private final ESFuture<BulkItemResponse> future;
+        
+        private Pending(ActionRequest<?> request)
+        {
+            this.request = request;
+            future = new ESFuture<BulkItemResponse>();
+        }
+    }
+}
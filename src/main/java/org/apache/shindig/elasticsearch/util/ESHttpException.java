@@ -0,0 +1,58 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.io.IOException;
+
+/**
+ * Exception signalling that Elasticsearch answered an HTTP request with an
+ * error status, carrying the status code and the response body.
+ */
+public class ESHttpException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+    
+    private final int fStatus;
+    private final String fBody;
+    
+    /**
+     * Creates an exception for the given status code and response body.
+     * The body may be null.
+     * 
+     * @param status HTTP status code of the response
+     * @param body body of the response or null
+     */
+    public ESHttpException(int status, String body)
+    {
+        super("HTTP " + status + ": " + body);
+        
+        fStatus = status;
+        fBody = body;
+    }
+    
+    /**
+     * @return HTTP status code of the response
+     */
+    public int getStatus()
+    {
+        return fStatus;
+    }
+    
+    /**
+     * @return body of the response or null
+     */
+    public String getBody()
+    {
+        return fBody;
+    }
+    
+    /**
+     * Checks whether the error message in the response body names the given
+     * Elasticsearch exception, for example "IndexMissingException".
+     * 
+     * @param name simple class name of the exception
+     * @return whether the response reports the given exception
+     */
+    public boolean isCausedBy(String name)
+    {
+        return fBody != null && fBody.contains(name);
+    }
+}
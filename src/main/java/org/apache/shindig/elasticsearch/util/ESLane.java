@@ -0,0 +1,56 @@
+package org.apache.shindig.elasticsearch.util;
+
+/**
+ * Write lanes of the bulking connector, selected per thread.
+ * Writes use the interactive lane unless the calling thread selected the
+ * background lane, for example while crawling.
+ */
+public enum ESLane
+{
+    /** live writes caused by events, sent as soon as possible */
+    INTERACTIVE,
+    /** bulk traffic like crawls, rate-limited and yielding to live writes */
+    BACKGROUND;
+    
+    private static final ThreadLocal<ESLane> CURRENT =
+        new ThreadLocal<ESLane>();
+    
+    /**
+     * Selects the given lane for all writes of the current thread, until
+     * end() is called.
+     * The given lane must not be null.
+     * 
+     * @param lane lane to use
+     */
+    public static void begin(ESLane lane)
+    {
+        if(lane == null)
+        {
+            throw new NullPointerException("lane was null");
+        }
+        
+        CURRENT.set(lane);
+    }
+    
+    /**
+     * Resets the current thread to the interactive lane.
+     */
+    public static void end()
+    {
+        CURRENT.remove();
+    }
+    
+    /**
+     * @return lane selected for the current thread
+     */
+    public static ESLane current()
+    {
+        ESLane lane = CURRENT.get();
+        if(lane == null)
+        {
+            lane = INTERACTIVE;
+        }
+        
+        return lane;
+    }
+}
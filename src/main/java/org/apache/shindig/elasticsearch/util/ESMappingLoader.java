@@ -23,6 +23,8 @@ public class ESMappingLoader
     
     private final IESConnector fConn;
     
+    private final ESRouting fRouting;
+    
     private final String fIndex, fTypesString;
     
     private final Logger fLogger;
@@ -47,6 +49,7 @@ public class ESMappingLoader
         }
         
         fConn = connector;
+        fRouting = new ESRouting(config);
         
         fIndex = config.getProperty(INDEX_NAME);
         fTypesString = config.getProperty(TYPES_PROP);
@@ -60,6 +63,21 @@ public class ESMappingLoader
      */
     public void loadMappings()
     {
+        loadMappings(fIndex);
+    }
+    
+    /**
+     * Loads the configured mappings from the classpath and sets them for the
+     * given index in elasticsearch, for example one that is being rebuilt.
+     * The given index name must not be null.
+     * 
+     * @param index name of the index to set mappings for
+     * @return whether all mappings could be set
+     */
+    public boolean loadMappings(String index)
+    {
+        boolean success = false;
+        
         try
         {
             fLogger.log(Level.INFO,
@@ -76,7 +94,13 @@ public class ESMappingLoader
                 JSONObject m = mappings.optJSONObject(type);
                 if(m != null)
                 {
-                    fConn.setMapping(fIndex, type, m);
+                    //only require routing if it is configured for the type
+                    if(!fRouting.isRouted(type))
+                    {
+                        m.remove("_routing");
+                    }
+                    
+                    fConn.setMapping(index, type, m);
                 }
                 else
                 {
@@ -84,11 +108,15 @@ public class ESMappingLoader
                         "failed to load mapping for: " + type);
                 }
             }
+            
+            success = true;
         }
         catch(Exception e)
         {
             fLogger.log(Level.SEVERE, "failed to load mappings", e);
         }
+        
+        return success;
     }
     
     private JSONObject getMappings() throws Exception
@@ -0,0 +1,350 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.json.JSONObject;
+
+/**
+ * Bounded record of queued requests that have not been executed yet, by
+ * the entry they concern, so that reads can reflect their effect before
+ * they reach the index.
+ * If the maximum number of entries is reached, requests for further entries
+ * are not tracked and reads for them only see the state of the index.
+ * Untracked requests are remembered until they are removed, so that callers
+ * can tell whether the overlay knows about every queued request.
+ */
+public class ESPendingOverlay
+{
+    private final int fMaxEntries;
+    
+    private final Map<List<String>, List<ActionRequest<?>>> fPending;
+    private final Set<ActionRequest<?>> fUntracked;
+    
+    /**
+     * Creates an overlay tracking requests for up to the given number of
+     * entries at a time.
+     * 
+     * @param maxEntries maximum number of tracked entries
+     */
+    public ESPendingOverlay(int maxEntries)
+    {
+        fMaxEntries = maxEntries;
+        fPending = new HashMap<List<String>, List<ActionRequest<?>>>();
+        fUntracked = Collections.newSetFromMap(
+            new IdentityHashMap<ActionRequest<?>, Boolean>());
+    }
+    
+    private List<String> getKey(ActionRequest<?> request)
+    {
+        ESEntryId entry = ESRequestUtil.getEntryId(request);
+        return Arrays.asList(ESRequestUtil.getIndex(request), entry.getType(),
+            entry.getId());
+    }
+    
+    /**
+     * Records a queued index, update or delete request. Requests that are
+     * already recorded are ignored.
+     * The given request must not be null.
+     * 
+     * @param request queued request
+     */
+    public synchronized void add(ActionRequest<?> request)
+    {
+        List<String> key = getKey(request);
+        List<ActionRequest<?>> requests = fPending.get(key);
+        
+        if(requests == null)
+        {
+            //bounded, further entries are not tracked
+            if(fPending.size() >= fMaxEntries)
+            {
+                fUntracked.add(request);
+                return;
+            }
+            
+            requests = new ArrayList<ActionRequest<?>>();
+            fPending.put(key, requests);
+        }
+        
+        for(ActionRequest<?> r : requests)
+        {
+            if(r == request)
+            {
+                return;
+            }
+        }
+        
+        requests.add(request);
+    }
+    
+    /**
+     * Removes a request that was executed or will not be executed anymore.
+     * The given request must not be null.
+     * 
+     * @param request request to remove
+     */
+    public synchronized void remove(ActionRequest<?> request)
+    {
+        fUntracked.remove(request);
+        
+        List<String> key = getKey(request);
+        List<ActionRequest<?>> requests = fPending.get(key);
+        
+        if(requests != null)
+        {
+            Iterator<ActionRequest<?>> iter = requests.iterator();
+            while(iter.hasNext())
+            {
+                if(iter.next() == request)
+                {
+                    iter.remove();
+                    break;
+                }
+            }
+            
+            if(requests.isEmpty())
+            {
+                fPending.remove(key);
+            }
+        }
+    }
+    
+    /**
+     * Returns the pending requests for an entry, in the order they were
+     * queued, if their effect can be determined locally.
+     * None of the parameters may be null.
+     * 
+     * @param index index of the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @return list of pending requests or null if there are none or if their
+     *         effect can't be determined
+     */
+    public synchronized List<ActionRequest<?>> getPending(String index,
+        String type, String id)
+    {
+        List<ActionRequest<?>> requests = fPending.get(
+            Arrays.asList(index, type, id));
+        
+        if(requests == null)
+        {
+            return null;
+        }
+        
+        //only known scripts can be applied locally
+        for(ActionRequest<?> request : requests)
+        {
+            if(request instanceof UpdateRequest
+                && ((UpdateRequest) request).script() != null
+                && !ESScripts.isRemoveFromArray((UpdateRequest) request))
+            {
+                return null;
+            }
+        }
+        
+        return new ArrayList<ActionRequest<?>>(requests);
+    }
+    
+    /**
+     * Checks whether any requests for an entry are recorded, regardless of
+     * whether their effect can be determined locally.
+     * None of the parameters may be null.
+     * 
+     * @param index index of the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @return whether requests for the entry are pending
+     */
+    public synchronized boolean hasPending(String index, String type,
+        String id)
+    {
+        return fPending.containsKey(Arrays.asList(index, type, id));
+    }
+    
+    /**
+     * Checks whether requests were not recorded because the maximum number
+     * of entries was reached and have not been removed yet. While this is
+     * the case, any queued request may concern any entry.
+     * 
+     * @return whether untracked requests are pending
+     */
+    public synchronized boolean hasUntracked()
+    {
+        return !fUntracked.isEmpty();
+    }
+    
+    /**
+     * Determines whether the stored state of the entry is needed to apply
+     * the given requests, which is the case unless one of them replaces or
+     * deletes the entry.
+     * The given list must not be null.
+     * 
+     * @param pending list of pending requests
+     * @return whether the stored entry is needed
+     */
+    public static boolean needsStored(List<ActionRequest<?>> pending)
+    {
+        boolean needed = true;
+        
+        for(ActionRequest<?> request : pending)
+        {
+            if(request instanceof IndexRequest
+                || request instanceof DeleteRequest)
+            {
+                needed = false;
+                break;
+            }
+        }
+        
+        return needed;
+    }
+    
+    /**
+     * Applies the given pending requests to the stored state of an entry.
+     * The stored state is not modified.
+     * Only the list of requests must not be null.
+     * 
+     * @param stored stored entry or null if it does not exist
+     * @param pending pending requests to apply, in order
+     * @return resulting entry or null if it will not exist
+     * @throws Exception if applying the requests fails
+     */
+    public static JSONObject apply(JSONObject stored,
+        List<ActionRequest<?>> pending) throws Exception
+    {
+        JSONObject entry = null;
+        if(stored != null)
+        {
+            entry = new JSONObject(stored.toString());
+        }
+        
+        for(ActionRequest<?> request : pending)
+        {
+            if(request instanceof IndexRequest)
+            {
+                entry = toJSON((IndexRequest) request);
+            }
+            else if(request instanceof DeleteRequest)
+            {
+                entry = null;
+            }
+            else if(request instanceof UpdateRequest)
+            {
+                entry = applyUpdate(entry, (UpdateRequest) request);
+            }
+        }
+        
+        return entry;
+    }
+    
+    private static JSONObject applyUpdate(JSONObject entry,
+        UpdateRequest update) throws Exception
+    {
+        if(update.script() != null)
+        {
+            return applyRemoveFromArray(entry, update.scriptParams());
+        }
+        
+        JSONObject doc = toJSON(update.doc());
+        
+        if(entry != null)
+        {
+            ESRequestUtil.mergeSource(entry, doc);
+        }
+        else if(update.docAsUpsert())
+        {
+            entry = doc;
+        }
+        else if(update.upsertRequest() != null)
+        {
+            entry = toJSON(update.upsertRequest());
+        }
+        //otherwise the update fails and the entry does not exist
+        
+        return entry;
+    }
+    
+    private static JSONObject applyRemoveFromArray(JSONObject entry,
+        Map<String, Object> params) throws Exception
+    {
+        return ESScripts.applyRemoveFromArray(entry,
+            (String) params.get("field"), params.get("value"),
+            Boolean.TRUE.equals(params.get("delete_empty")));
+    }
+    
+    /**
+     * Reduces an entry to the given source fields, which may be paths of
+     * nested fields separated by dots. Returns the entry itself if no fields
+     * are given.
+     * 
+     * @param entry entry to filter or null
+     * @param fields fields to keep or null for all
+     * @return filtered entry or null if there was no entry
+     * @throws Exception if filtering fails
+     */
+    public static JSONObject filter(JSONObject entry, String[] fields)
+        throws Exception
+    {
+        if(entry == null || fields == null)
+        {
+            return entry;
+        }
+        
+        JSONObject filtered = new JSONObject();
+        
+        for(String field : fields)
+        {
+            String[] path = field.split("\\.");
+            
+            //walk down the path, copying objects along the way
+            JSONObject source = entry;
+            JSONObject target = filtered;
+            for(int i = 0; i < path.length && source != null; ++i)
+            {
+                Object value = source.opt(path[i]);
+                
+                if(i == path.length - 1)
+                {
+                    if(value != null)
+                    {
+                        target.put(path[i], value);
+                    }
+                }
+                else if(value instanceof JSONObject)
+                {
+                    JSONObject next = target.optJSONObject(path[i]);
+                    if(next == null)
+                    {
+                        next = new JSONObject();
+                        target.put(path[i], next);
+                    }
+                    source = (JSONObject) value;
+                    target = next;
+                }
+                else
+                {
+                    source = null;
+                }
+            }
+        }
+        
+        return filtered;
+    }
+    
+    private static JSONObject toJSON(IndexRequest request) throws Exception
+    {
+        return new JSONObject(request.source().toUtf8());
+    }
+}
@@ -0,0 +1,97 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Singleton;
+
+/**
+ * State shared between the crawler and the event listener while an index is
+ * rebuilt in a new physical index next to the live one.
+ * During a rebuild, live changes have to be written to both the live index
+ * and the new index, so that none are lost when the alias is switched.
+ * It also counts generations of the indices' contents, which change whenever
+ * an index is cleared or a rebuild begins, so that knowledge about
+ * previously written entries can be discarded.
+ */
+@Singleton
+public class ESRebuildState
+{
+    private volatile String fIndex;
+    
+    private final AtomicLong fGeneration = new AtomicLong();
+    
+    /**
+     * Marks the start of a rebuild into the physical index with the given
+     * name. The given name must not be null.
+     * 
+     * @param index name of the index being rebuilt
+     */
+    public void begin(String index)
+    {
+        if(index == null)
+        {
+            throw new NullPointerException("index name was null");
+        }
+        
+        fIndex = index;
+        
+        //the new index starts out empty
+        fGeneration.incrementAndGet();
+    }
+    
+    /**
+     * Marks the end of the current rebuild, whether it succeeded or not.
+     */
+    public void end()
+    {
+        fIndex = null;
+    }
+    
+    /**
+     * Marks that the contents of the live index were discarded, for example
+     * because it was cleared.
+     */
+    public void invalidate()
+    {
+        fGeneration.incrementAndGet();
+    }
+    
+    /**
+     * @return current generation of the indices' contents
+     */
+    public long getGeneration()
+    {
+        return fGeneration.get();
+    }
+    
+    /**
+     * @return name of the index currently being rebuilt or null
+     */
+    public String getIndex()
+    {
+        return fIndex;
+    }
+    
+    /**
+     * Returns the indices live changes have to be written to, which are the
+     * given live index and, during a rebuild, the index being rebuilt.
+     * The given index name must not be null.
+     * 
+     * @param live name of the live index or alias
+     * @return list of indices to write to
+     */
+    public List<String> getWriteIndices(String live)
+    {
+        String rebuilt = fIndex;
+        
+        if(rebuilt == null)
+        {
+            return Collections.singletonList(live);
+        }
+        
+        return Arrays.asList(live, rebuilt);
+    }
+}
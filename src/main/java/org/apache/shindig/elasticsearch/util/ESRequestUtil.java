@@ -0,0 +1,215 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.Iterator;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.rest.RestStatus;
+import org.json.JSONObject;
+
+/**
+ * Utility class extracting information from queued single-document requests
+ * (index, update and delete requests) for tracking and logging purposes.
+ */
+public class ESRequestUtil
+{
+    /**
+     * Returns the name of the index a single-document request is targeting.
+     * Returns null for unsupported request types.
+     * The given request must not be null.
+     * 
+     * @param request request to inspect
+     * @return index of the request or null
+     */
+    public static String getIndex(ActionRequest<?> request)
+    {
+        String index = null;
+        
+        if(request instanceof IndexRequest)
+        {
+            index = ((IndexRequest) request).index();
+        }
+        else if(request instanceof UpdateRequest)
+        {
+            index = ((UpdateRequest) request).index();
+        }
+        else if(request instanceof DeleteRequest)
+        {
+            index = ((DeleteRequest) request).index();
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Returns type, ID and routing value of the entry a single-document
+     * request is targeting. Returns null for unsupported request types.
+     * The given request must not be null.
+     * 
+     * @param request request to inspect
+     * @return reference to the targeted entry or null
+     */
+    public static ESEntryId getEntryId(ActionRequest<?> request)
+    {
+        ESEntryId entry = null;
+        
+        if(request instanceof IndexRequest)
+        {
+            IndexRequest r = (IndexRequest) request;
+            entry = new ESEntryId(r.type(), r.id(), r.routing());
+        }
+        else if(request instanceof UpdateRequest)
+        {
+            UpdateRequest r = (UpdateRequest) request;
+            entry = new ESEntryId(r.type(), r.id(), r.routing());
+        }
+        else if(request instanceof DeleteRequest)
+        {
+            DeleteRequest r = (DeleteRequest) request;
+            entry = new ESEntryId(r.type(), r.id(), r.routing());
+        }
+        
+        return entry;
+    }
+    
+    /**
+     * Returns the routing value of a single-document request. Returns null
+     * for unsupported request types or requests without routing.
+     * The given request must not be null.
+     * 
+     * @param request request to inspect
+     * @return routing value of the request or null
+     */
+    public static String getRouting(ActionRequest<?> request)
+    {
+        String routing = null;
+        
+        if(request instanceof IndexRequest)
+        {
+            routing = ((IndexRequest) request).routing();
+        }
+        else if(request instanceof UpdateRequest)
+        {
+            routing = ((UpdateRequest) request).routing();
+        }
+        else if(request instanceof DeleteRequest)
+        {
+            routing = ((DeleteRequest) request).routing();
+        }
+        
+        return routing;
+    }
+    
+    /**
+     * Creates a JSON description of a single-document request, containing the
+     * operation, index, type, ID, routing and source or partial document if
+     * available.
+     * The given request must not be null.
+     * 
+     * @param request request to describe
+     * @return JSON description of the request
+     * @throws Exception if conversion fails
+     */
+    public static JSONObject toJSON(ActionRequest<?> request) throws Exception
+    {
+        JSONObject json = new JSONObject();
+        
+        json.put("index", getIndex(request));
+        
+        ESEntryId entry = getEntryId(request);
+        if(entry != null)
+        {
+            json.put("type", entry.getType());
+            json.put("id", entry.getId());
+        }
+        
+        String routing = getRouting(request);
+        if(routing != null)
+        {
+            json.put("routing", routing);
+        }
+        
+        if(request instanceof IndexRequest)
+        {
+            IndexRequest r = (IndexRequest) request;
+            json.put("op", "index");
+            json.put("source", r.source().toUtf8());
+        }
+        else if(request instanceof UpdateRequest)
+        {
+            UpdateRequest r = (UpdateRequest) request;
+            json.put("op", "update");
+            if(r.doc() != null)
+            {
+                json.put("doc", r.doc().source().toUtf8());
+            }
+            if(r.script() != null)
+            {
+                json.put("script", r.script());
+            }
+        }
+        else if(request instanceof DeleteRequest)
+        {
+            json.put("op", "delete");
+        }
+        else
+        {
+            json.put("op", request.getClass().getSimpleName());
+        }
+        
+        return json;
+    }
+    
+    /**
+     * Determines whether a bulk item failed because it was an externally
+     * versioned write older than the stored entry, which is not an error.
+     * None of the parameters may be null.
+     * 
+     * @param request request of the bulk item
+     * @param item response for the bulk item
+     * @return whether the write was rejected as stale
+     */
+    public static boolean isStaleWrite(ActionRequest<?> request,
+        BulkItemResponse item)
+    {
+        return item.isFailed()
+            && item.getFailure().getStatus() == RestStatus.CONFLICT
+            && request instanceof IndexRequest
+            && ((IndexRequest) request).versionType() != VersionType.INTERNAL;
+    }
+    
+    /**
+     * Applies a partial document to a document source the way Elasticsearch
+     * does for partial updates: nested objects are merged, all other values
+     * are replaced. The target is modified.
+     * None of the parameters may be null.
+     * 
+     * @param target source to update
+     * @param changes partial document to apply
+     * @throws Exception if merging fails
+     */
+    public static void mergeSource(JSONObject target, JSONObject changes)
+        throws Exception
+    {
+        Iterator<?> keys = changes.keys();
+        while(keys.hasNext())
+        {
+            String key = (String) keys.next();
+            Object value = changes.get(key);
+            Object current = target.opt(key);
+            
+            if(value instanceof JSONObject && current instanceof JSONObject)
+            {
+                mergeSource((JSONObject) current, (JSONObject) value);
+            }
+            else
+            {
+                target.put(key, value);
+            }
+        }
+    }
+}
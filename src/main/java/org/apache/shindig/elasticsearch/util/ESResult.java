@@ -0,0 +1,97 @@
+package org.apache.shindig.elasticsearch.util;
+
+/**
+ * Outcome of a write operation concerning a single document entry, either
+ * containing the entry's new version or a failure message.
+ */
+public class ESResult
+{
+    private final String fIndex, fType, fId;
+    private final long fVersion;
+    private final String fFailure;
+    
+    /**
+     * Creates a result for the entry with the given index, type and ID.
+     * If the failure message is null, the operation was successful.
+     * 
+     * @param index index of the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param version version of the entry after the operation or -1
+     * @param failure failure message or null
+     */
+    public ESResult(String index, String type, String id, long version,
+        String failure)
+    {
+        fIndex = index;
+        fType = type;
+        fId = id;
+        fVersion = version;
+        fFailure = failure;
+    }
+    
+    /**
+     * @return index of the entry
+     */
+    public String getIndex()
+    {
+        return fIndex;
+    }
+    
+    /**
+     * @return type of the entry
+     */
+    public String getType()
+    {
+        return fType;
+    }
+    
+    /**
+     * @return ID of the entry
+     */
+    public String getId()
+    {
+        return fId;
+    }
+    
+    /**
+     * @return version of the entry after the operation or -1 if unknown
+     */
+    public long getVersion()
+    {
+        return fVersion;
+    }
+    
+    /**
+     * @return whether the operation failed
+     */
+    public boolean isFailed()
+    {
+        return fFailure != null;
+    }
+    
+    /**
+     * @return failure message or null if the operation was successful
+     */
+    public String getFailure()
+    {
+        return fFailure;
+    }
+    
+    @Override
+    public String toString()
+    {
+        String result = fIndex + "/" + fType + "/" + fId;
+        
+        if(fFailure != null)
+        {
+            result += " failed: " + fFailure;
+        }
+        else
+        {
+            result += " version " + fVersion;
+        }
+        
+        return result;
+    }
+}
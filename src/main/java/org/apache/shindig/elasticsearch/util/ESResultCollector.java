@@ -0,0 +1,86 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionRequest;
+
+/**
+ * Collects the results of a fixed set of individually executed requests and
+ * completes a future with all of them, in the order the requests were added,
+ * once the last one is known.
+ */
+public class ESResultCollector
+{
+    private final Map<ActionRequest<?>, Integer> fPositions;
+    private final ESResult[] fResults;
+    private final ESFuture<List<ESResult>> fFuture;
+    private int fRemaining;
+    
+    /**
+     * Creates a collector for the given number of requests.
+     * 
+     * @param size number of requests
+     */
+    public ESResultCollector(int size)
+    {
+        fPositions = new IdentityHashMap<ActionRequest<?>, Integer>();
+        fResults = new ESResult[size];
+        fFuture = new ESFuture<List<ESResult>>();
+        fRemaining = size;
+        
+        if(size == 0)
+        {
+            fFuture.set(Arrays.asList(fResults));
+        }
+    }
+    
+    /**
+     * Registers a request whose result is to be collected.
+     * 
+     * @param request request to collect the result for
+     */
+    public synchronized void add(ActionRequest<?> request)
+    {
+        fPositions.put(request, fPositions.size());
+    }
+    
+    /**
+     * Records the result of a registered request, completing the future if
+     * it was the last outstanding one.
+     * 
+     * @param request request the result belongs to
+     * @param result result of the request
+     */
+    public void complete(ActionRequest<?> request, ESResult result)
+    {
+        boolean done = false;
+        
+        synchronized(this)
+        {
+            Integer pos = fPositions.remove(request);
+            if(pos == null)
+            {
+                return;
+            }
+            
+            fResults[pos] = result;
+            done = --fRemaining == 0;
+        }
+        
+        if(done)
+        {
+            fFuture.set(Arrays.asList(fResults));
+        }
+    }
+    
+    /**
+     * @return future completed with all results
+     */
+    public ESFuture<List<ESResult>> getFuture()
+    {
+        return fFuture;
+    }
+}
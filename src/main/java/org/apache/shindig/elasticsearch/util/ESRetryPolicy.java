@@ -0,0 +1,154 @@
+package org.apache.shindig.elasticsearch.util;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.NoShardAvailableActionException;
+import org.elasticsearch.action.UnavailableShardsException;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.node.NodeClosedException;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.ConnectTransportException;
+
+/**
+ * Policy deciding which failures are temporary and how often and after
+ * which delay failed requests are retried, using a bounded exponential
+ * backoff.
+ */
+public class ESRetryPolicy
+{
+    private static final String ATTEMPTS_PROP = "shindig.elasticsearch.retry.attempts";
+    private static final String DELAY_PROP = "shindig.elasticsearch.retry.initial_delay";
+    private static final String MAX_DELAY_PROP = "shindig.elasticsearch.retry.max_delay";
+    
+    private final int fMaxAttempts;
+    private final long fInitialDelay, fMaxDelay;
+    
+    /**
+     * Creates a retry policy using the given configuration.
+     * The given configuration object must not be null.
+     * 
+     * @param config configuration object to use
+     */
+    public ESRetryPolicy(ESConfig config)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        
+        fMaxAttempts = Integer.parseInt(config.getProperty(ATTEMPTS_PROP));
+        fInitialDelay = Long.parseLong(config.getProperty(DELAY_PROP));
+        fMaxDelay = Long.parseLong(config.getProperty(MAX_DELAY_PROP));
+    }
+    
+    /**
+     * Determines whether a failed bulk item may succeed if it is sent again,
+     * for example if it was rejected because the cluster is overloaded.
+     * The given item must not be null.
+     * 
+     * @param item failed bulk item
+     * @return whether the item should be retried
+     */
+    public boolean isRetryable(BulkItemResponse item)
+    {
+        boolean retry = false;
+        
+        BulkItemResponse.Failure failure = item.getFailure();
+        if(failure != null)
+        {
+            retry = isRetryable(failure.getStatus().getStatus(),
+                failure.getMessage());
+        }
+        
+        return retry;
+    }
+    
+    /**
+     * Determines whether a request that failed with the given HTTP status
+     * and error message may succeed if it is sent again, for example if it
+     * was rejected because the cluster is overloaded.
+     * The message may be null.
+     * 
+     * @param status HTTP status code of the failure
+     * @param message error message or null
+     * @return whether the request should be retried
+     */
+    public boolean isRetryable(int status, String message)
+    {
+        boolean retry = status == RestStatus.TOO_MANY_REQUESTS.getStatus()
+            || status == RestStatus.SERVICE_UNAVAILABLE.getStatus()
+            || status == RestStatus.GATEWAY_TIMEOUT.getStatus();
+        
+        //status is not always set properly for remote failures
+        if(!retry && message != null)
+        {
+            retry = message.contains("EsRejectedExecutionException")
+                || message.contains("UnavailableShardsException");
+        }
+        
+        return retry;
+    }
+    
+    /**
+     * Determines whether a failed request may succeed if it is sent again,
+     * for example if no node was reachable or the cluster is overloaded.
+     * The given failure must not be null.
+     * 
+     * @param failure failure that occurred
+     * @return whether the request should be retried
+     */
+    public boolean isRetryable(Throwable failure)
+    {
+        boolean retry = false;
+        
+        //check wrapped causes as well
+        Throwable t = failure;
+        while(t != null && !retry)
+        {
+            retry = t instanceof EsRejectedExecutionException
+                || t instanceof NoNodeAvailableException
+                || t instanceof ConnectTransportException
+                || t instanceof NodeClosedException
+                || t instanceof UnavailableShardsException
+                || t instanceof NoShardAvailableActionException
+                || t instanceof ElasticsearchTimeoutException;
+            
+            if(t.getCause() == t)
+            {
+                break;
+            }
+            t = t.getCause();
+        }
+        
+        return retry;
+    }
+    
+    /**
+     * @return maximum number of attempts per request, including the first one
+     */
+    public int getMaxAttempts()
+    {
+        return fMaxAttempts;
+    }
+    
+    /**
+     * Calculates the delay before the given retry, doubling for each
+     * attempt, but never exceeding the configured maximum.
+     * 
+     * @param attempt number of the upcoming retry, starting at 1
+     * @return delay in milliseconds
+     */
+    public long getDelay(int attempt)
+    {
+        long delay = fInitialDelay;
+        
+        for(int i = 1; i < attempt && delay < fMaxDelay; ++i)
+        {
+            delay *= 2;
+        }
+        
+        return Math.min(delay, fMaxDelay);
+    }
+}
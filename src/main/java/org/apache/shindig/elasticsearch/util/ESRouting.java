@@ -0,0 +1,115 @@
+package org.apache.shindig.elasticsearch.util;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.json.JSONObject;
+
+/**
+ * Routing configuration deciding which types are stored on the shard of
+ * their owner instead of being distributed by ID, so that queries and
+ * deletes for a single owner only hit one shard.
+ * The owner is read from a configured field of each entry, for example the
+ * "origin" of activities or the "senderId" of messages.
+ */
+public class ESRouting
+{
+    private static final String ROUTING_PREFIX = "shindig.elasticsearch.routing.";
+    
+    private final ESConfig fConfig;
+    
+    /**
+     * Creates a routing configuration using the given configuration.
+     * The given configuration object must not be null.
+     * 
+     * @param config configuration object to use
+     */
+    public ESRouting(ESConfig config)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        
+        fConfig = config;
+    }
+    
+    /**
+     * Returns the name of the field containing the routing value for the
+     * given type or null if the type is not routed.
+     * The given type must not be null.
+     * 
+     * @param type type of entries
+     * @return routing field or null
+     */
+    public String getField(String type)
+    {
+        String field = fConfig.getProperty(ROUTING_PREFIX + type);
+        if(field != null && field.isEmpty())
+        {
+            field = null;
+        }
+        
+        return field;
+    }
+    
+    /**
+     * @param type type of entries
+     * @return whether entries of the given type are routed
+     */
+    public boolean isRouted(String type)
+    {
+        return getField(type) != null;
+    }
+    
+    /**
+     * Returns the routing value of the given entry of the given type or null
+     * if the type is not routed or the entry does not contain a value.
+     * The entry may be null.
+     * 
+     * @param type type of the entry
+     * @param entry source of the entry or null
+     * @return routing value or null
+     */
+    public String getRouting(String type, JSONObject entry)
+    {
+        String routing = null;
+        
+        String field = getField(type);
+        if(field != null && entry != null)
+        {
+            routing = entry.optString(field, null);
+        }
+        
+        return routing;
+    }
+    
+    /**
+     * Adds the routing field of the given type to a list of fields to
+     * retrieve, so that retrieved entries can be addressed again.
+     * The list of fields may be null, meaning all fields are retrieved.
+     * 
+     * @param type type of the entries
+     * @param fields fields to retrieve or null
+     * @return fields including the routing field or null
+     */
+    public String[] withRoutingField(String type, String[] fields)
+    {
+        String field = getField(type);
+        if(fields == null || field == null)
+        {
+            return fields;
+        }
+        
+        for(String f : fields)
+        {
+            if(f.equals(field))
+            {
+                return fields;
+            }
+        }
+        
+        String[] result = new String[fields.length + 1];
+        System.arraycopy(fields, 0, result, 0, fields.length);
+        result[fields.length] = field;
+        return result;
+    }
+}
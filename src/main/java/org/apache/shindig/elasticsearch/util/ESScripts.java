@@ -0,0 +1,248 @@
+package org.apache.shindig.elasticsearch.util;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.script.ScriptService;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Scripts for server-side partial updates, used by the connectors.
+ * Depending on the configured mode, scripts are referenced as file scripts,
+ * which have to be copied from the "scripts" resource folder into the
+ * "config/scripts" folder of all Elasticsearch nodes, or sent inline, which
+ * requires dynamic Groovy scripting ("script.groovy.sandbox.enabled: true").
+ * If scripts are disabled, the connectors read, modify and write back the
+ * entries themselves using optimistic concurrency control instead.
+ */
+public class ESScripts
+{
+    private static final String MODE_PROP = "shindig.elasticsearch.scripts.mode";
+    
+    /**
+     * Ways of executing scripts.
+     */
+    public enum Mode
+    {
+        /**
+         * Scripts installed on the Elasticsearch nodes.
+         */
+        FILE,
+        /**
+         * Scripts sent with each request.
+         */
+        INLINE,
+        /**
+         * No scripts, updates are applied by the connectors.
+         */
+        NONE
+    }
+    
+    /**
+     * Script language of all scripts.
+     */
+    public static final String LANG = "groovy";
+    
+    /**
+     * Name of the file script removing a value from an array field.
+     */
+    public static final String REMOVE_FROM_ARRAY_FILE = "shindig_remove_from_array";
+    
+    /**
+     * Script removing a value from an array field, deleting the document if
+     * the array is empty afterwards and if "delete_empty" is set.
+     * A single value instead of an array is treated like an array.
+     * Parameters: "field", "value", "delete_empty".
+     */
+    public static final String REMOVE_FROM_ARRAY =
+        "def values = ctx._source[field]; "
+        + "if(values instanceof List) { "
+        + "if(!values.removeAll([value])) { ctx.op = 'none' } } "
+        + "else if(values != null && values == value) { "
+        + "values = []; ctx._source[field] = values } "
+        + "else { ctx.op = 'none' }; "
+        + "if(delete_empty && values instanceof List && values.isEmpty()) "
+        + "{ ctx.op = 'delete' }";
+    
+    /**
+     * Retries in case of concurrent modifications of the same entry.
+     */
+    public static final int RETRIES = 5;
+    
+    private final Mode fMode;
+    
+    /**
+     * Creates a script configuration using the given configuration.
+     * The given configuration object must not be null.
+     * 
+     * @param config configuration object to use
+     */
+    public ESScripts(ESConfig config)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        
+        String mode = config.getProperty(MODE_PROP);
+        if(mode != null && !mode.isEmpty())
+        {
+            fMode = Mode.valueOf(mode.toUpperCase());
+        }
+        else
+        {
+            fMode = Mode.NONE;
+        }
+    }
+    
+    /**
+     * @return whether updates can be sent as scripts
+     */
+    public boolean isEnabled()
+    {
+        return fMode != Mode.NONE;
+    }
+    
+    /**
+     * Prepares an update request removing a value from an array field of the
+     * entry in the given index with the given type and ID.
+     * Must only be called if scripts are enabled.
+     * None of the parameters may be null.
+     * 
+     * @param client client to prepare the request with
+     * @param index name of the index containing the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param field name of the array field
+     * @param value value to remove from the array
+     * @param deleteIfEmpty whether to delete the entry if the array is empty
+     * @return prepared update request
+     */
+    public UpdateRequestBuilder prepareRemoveFromArray(Client client,
+        String index, String type, String id, String field, String value,
+        boolean deleteIfEmpty)
+    {
+        return client.prepareUpdate(index, type, id)
+            .setScript(getRemoveFromArray(), getScriptType())
+            .setScriptLang(LANG)
+            .addScriptParam("field", field)
+            .addScriptParam("value", value)
+            .addScriptParam("delete_empty", deleteIfEmpty)
+            .setRetryOnConflict(RETRIES);
+    }
+    
+    /**
+     * Creates an update request removing a value from an array field of the
+     * entry in the given index with the given type and ID, without a client.
+     * Must only be called if scripts are enabled.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index containing the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param field name of the array field
+     * @param value value to remove from the array
+     * @param deleteIfEmpty whether to delete the entry if the array is empty
+     * @return update request
+     */
+    public UpdateRequest removeFromArray(String index, String type,
+        String id, String field, String value, boolean deleteIfEmpty)
+    {
+        return new UpdateRequest(index, type, id)
+            .script(getRemoveFromArray(), getScriptType())
+            .scriptLang(LANG)
+            .addScriptParam("field", field)
+            .addScriptParam("value", value)
+            .addScriptParam("delete_empty", deleteIfEmpty)
+            .retryOnConflict(RETRIES);
+    }
+    
+    private String getRemoveFromArray()
+    {
+        if(fMode == Mode.FILE)
+        {
+            return REMOVE_FROM_ARRAY_FILE;
+        }
+        
+        return REMOVE_FROM_ARRAY;
+    }
+    
+    private ScriptService.ScriptType getScriptType()
+    {
+        if(fMode == Mode.FILE)
+        {
+            return ScriptService.ScriptType.FILE;
+        }
+        
+        return ScriptService.ScriptType.INLINE;
+    }
+    
+    /**
+     * Determines whether the given update request executes the script
+     * removing a value from an array field, in any mode.
+     * The given request must not be null.
+     * 
+     * @param request update request to check
+     * @return whether the request removes a value from an array field
+     */
+    public static boolean isRemoveFromArray(UpdateRequest request)
+    {
+        return REMOVE_FROM_ARRAY.equals(request.script())
+            || REMOVE_FROM_ARRAY_FILE.equals(request.script());
+    }
+    
+    /**
+     * Local equivalent of the script removing a value from an array field,
+     * modifying the given entry.
+     * Only the entry may be null.
+     * 
+     * @param entry entry to modify or null if it does not exist
+     * @param field name of the array field
+     * @param value value to remove from the array
+     * @param deleteIfEmpty whether to delete the entry if the array is empty
+     * @return modified entry or null if it does not exist (anymore)
+     * @throws Exception if modifying the entry fails
+     */
+    public static JSONObject applyRemoveFromArray(JSONObject entry,
+        String field, Object value, boolean deleteIfEmpty) throws Exception
+    {
+        if(entry == null)
+        {
+            return null;
+        }
+        
+        Object values = entry.opt(field);
+        JSONArray remaining = null;
+        
+        if(values instanceof JSONArray)
+        {
+            JSONArray array = (JSONArray) values;
+            remaining = new JSONArray();
+            for(int i = 0; i < array.length(); ++i)
+            {
+                if(!array.get(i).equals(value))
+                {
+                    remaining.put(array.get(i));
+                }
+            }
+        }
+        else if(values != null && values.equals(value))
+        {
+            remaining = new JSONArray();
+        }
+        
+        if(remaining != null)
+        {
+            entry.put(field, remaining);
+            
+            if(deleteIfEmpty && remaining.length() == 0)
+            {
+                entry = null;
+            }
+        }
+        
+        return entry;
+    }
+}
@@ -0,0 +1,162 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.json.JSONObject;
+
+/**
+ * Utility streaming all entries of a type from an index using a scan search
+ * and scrolling, handing them to a page handler one page at a time.
+ * Used by the transport client connectors.
+ */
+public class ESScroller
+{
+    private static final String SIZE_PROP = "shindig.elasticsearch.scroll.size";
+    private static final String KEEP_ALIVE_PROP =
+        "shindig.elasticsearch.scroll.keep_alive";
+    
+    private final Client fClient;
+    
+    private final int fPageSize;
+    private final TimeValue fKeepAlive;
+    
+    private final ESTimeouts fTimeouts;
+    
+    private final Logger fLogger;
+    
+    /**
+     * Creates a scroller using the given client, reading page size and scroll
+     * keep-alive from the given configuration.
+     * None of the parameters may be null.
+     * 
+     * @param config configuration object to use
+     * @param client client to query with
+     */
+    public ESScroller(ESConfig config, Client client)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        if(client == null)
+        {
+            throw new NullPointerException("client was null");
+        }
+        
+        fClient = client;
+        
+        fPageSize = Integer.parseInt(config.getProperty(SIZE_PROP));
+        fKeepAlive = TimeValue.timeValueSeconds(
+            Long.parseLong(config.getProperty(KEEP_ALIVE_PROP)));
+        
+        fTimeouts = new ESTimeouts(config);
+        
+        fLogger = Logger.getLogger(this.getClass().getCanonicalName());
+    }
+    
+    /**
+     * Scrolls through all entries of the specified type in the specified
+     * index, passing them to the given handler page by page.
+     * If a list of fields is given, only these fields of the source are
+     * retrieved.
+     * The index must exist.
+     * Only the list of fields may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param fields source fields to retrieve or null for all
+     * @param handler handler to pass pages to
+     * @throws Exception if the request or the handler fails
+     */
+    public void scroll(String index, String type, String[] fields,
+        IESPageHandler handler) throws Exception
+    {
+        //scan does not score or sort, page size is per shard
+        SearchRequestBuilder request = fClient.prepareSearch(index)
+            .setTypes(type)
+            .setSearchType(SearchType.SCAN)
+            .setQuery(QueryBuilders.matchAllQuery())
+            .setScroll(fKeepAlive)
+            .setSize(fPageSize);
+        
+        //source filtering
+        if(fields != null)
+        {
+            request.setFetchSource(fields, null);
+        }
+        
+        SearchResponse response = request.execute().actionGet(
+            fTimeouts.getReadTimeout());
+        
+        String scrollId = response.getScrollId();
+        
+        try
+        {
+            //the initial scan response does not contain any hits
+            response = fClient.prepareSearchScroll(scrollId)
+                .setScroll(fKeepAlive).execute().actionGet(
+                fTimeouts.getReadTimeout());
+            SearchHit[] hits = response.getHits().getHits();
+            
+            while(hits.length > 0)
+            {
+                List<JSONObject> page = new ArrayList<JSONObject>(hits.length);
+                for(SearchHit hit : hits)
+                {
+                    //filtered sources may be empty
+                    String source = hit.getSourceAsString();
+                    if(source != null)
+                    {
+                        page.add(new JSONObject(source));
+                    }
+                    else
+                    {
+                        page.add(new JSONObject());
+                    }
+                }
+                handler.handlePage(page);
+                
+                //continue with the latest scroll ID
+                scrollId = response.getScrollId();
+                response = fClient.prepareSearchScroll(scrollId)
+                    .setScroll(fKeepAlive).execute().actionGet(
+                    fTimeouts.getReadTimeout());
+                hits = response.getHits().getHits();
+            }
+            
+            scrollId = response.getScrollId();
+        }
+        finally
+        {
+            clearScroll(scrollId);
+        }
+    }
+    
+    private void clearScroll(String scrollId)
+    {
+        //release server-side resources, even if scrolling was aborted
+        try
+        {
+            if(scrollId != null)
+            {
+                fClient.prepareClearScroll().addScrollId(scrollId)
+                    .execute().actionGet(fTimeouts.getReadTimeout());
+            }
+        }
+        catch(Exception e)
+        {
+            fLogger.log(Level.WARNING, "could not clear scroll", e);
+        }
+    }
+}
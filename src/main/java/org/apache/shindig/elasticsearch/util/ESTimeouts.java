@@ -0,0 +1,70 @@
+package org.apache.shindig.elasticsearch.util;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Timeouts for waiting on the results of the different kinds of
+ * Elasticsearch operations, shortened by the calling thread's deadline if
+ * one is set (see ESDeadline).
+ */
+public class ESTimeouts
+{
+    private static final String READ_PROP = "shindig.elasticsearch.timeout.read";
+    private static final String WRITE_PROP = "shindig.elasticsearch.timeout.write";
+    private static final String BULK_PROP = "shindig.elasticsearch.timeout.bulk";
+    private static final String ADMIN_PROP = "shindig.elasticsearch.timeout.admin";
+    
+    private final long fRead, fWrite, fBulk, fAdmin;
+    
+    /**
+     * Creates a set of timeouts using the given configuration.
+     * The given configuration object must not be null.
+     * 
+     * @param config configuration object to use
+     */
+    public ESTimeouts(ESConfig config)
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        
+        fRead = Long.parseLong(config.getProperty(READ_PROP));
+        fWrite = Long.parseLong(config.getProperty(WRITE_PROP));
+        fBulk = Long.parseLong(config.getProperty(BULK_PROP));
+        fAdmin = Long.parseLong(config.getProperty(ADMIN_PROP));
+    }
+    
+    /**
+     * @return timeout for reading entries
+     */
+    public TimeValue getReadTimeout()
+    {
+        return TimeValue.timeValueMillis(ESDeadline.bound(fRead));
+    }
+    
+    /**
+     * @return timeout for writing single entries
+     */
+    public TimeValue getWriteTimeout()
+    {
+        return TimeValue.timeValueMillis(ESDeadline.bound(fWrite));
+    }
+    
+    /**
+     * @return timeout for bulk requests
+     */
+    public TimeValue getBulkTimeout()
+    {
+        return TimeValue.timeValueMillis(ESDeadline.bound(fBulk));
+    }
+    
+    /**
+     * @return timeout for index management requests
+     */
+    public TimeValue getAdminTimeout()
+    {
+        return TimeValue.timeValueMillis(ESDeadline.bound(fAdmin));
+    }
+}
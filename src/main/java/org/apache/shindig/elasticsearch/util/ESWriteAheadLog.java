@@ -0,0 +1,577 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+
+/**
+ * Append-only log persisting queued index, update and delete requests to
+ * local segment files before they are acknowledged to the caller, so that
+ * they can be replayed after a restart or an outage.
+ * 
+ * Requests are stored in their binary transport format, so logs can only be
+ * replayed by the same Elasticsearch client version. Writes are synced to
+ * disk in batches by a background thread; callers wait for the next sync.
+ * Segments are deleted once all of their requests have been acknowledged,
+ * so a replay may repeat requests that had already been executed.
+ */
+public class ESWriteAheadLog
+{
+    private static final String DIR_PROP = "shindig.elasticsearch.bulking.wal.dir";
+    private static final String SEGMENT_PROP =
+        "shindig.elasticsearch.bulking.wal.segment_entries";
+    private static final String SYNC_PROP =
+        "shindig.elasticsearch.bulking.wal.sync_millis";
+    
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    
+    //request types as used in the bulk transport format
+    private static final byte INDEX = 0;
+    private static final byte DELETE = 1;
+    private static final byte UPDATE = 2;
+    
+    //sanity limit for corrupted length fields
+    private static final int MAX_ENTRY_SIZE = 256 * 1024 * 1024;
+    
+    private final File fDir;
+    private final int fSegmentEntries;
+    private final long fSyncMillis;
+    
+    private final Object fLock;
+    private final TreeMap<Long, Segment> fSegments;
+    private Segment fCurrent;
+    private long fNextSeq, fWrittenSeq, fSyncedSeq;
+    private IOException fSyncFailure;
+    
+    private final List<File> fRecovered;
+    
+    private volatile boolean fActive;
+    
+    private final Logger fLogger;
+    
+    /**
+     * Creates a write-ahead log storing its segments in the configured
+     * directory, which is created if necessary. Existing segments are not
+     * touched until they are recovered.
+     * The given configuration object must not be null.
+     * 
+     * @param config configuration object to use
+     * @throws IOException if the directory can not be created
+     */
+    public ESWriteAheadLog(ESConfig config) throws IOException
+    {
+        if(config == null)
+        {
+            throw new NullPointerException("configuration object was null");
+        }
+        
+        fDir = new File(config.getProperty(DIR_PROP));
+        fSegmentEntries = Integer.parseInt(config.getProperty(SEGMENT_PROP));
+        fSyncMillis = Long.parseLong(config.getProperty(SYNC_PROP));
+        
+        if(!fDir.isDirectory() && !fDir.mkdirs())
+        {
+            throw new IOException("could not create log directory " + fDir);
+        }
+        
+        fLock = new Object();
+        fSegments = new TreeMap<Long, Segment>();
+        fNextSeq = 1;
+        fWrittenSeq = 0;
+        fSyncedSeq = 0;
+        
+        fRecovered = new ArrayList<File>();
+        
+        fLogger = Logger.getLogger(this.getClass().getCanonicalName());
+        
+        //background thread syncing batches of writes
+        fActive = true;
+        Thread syncer = new DaemonThreadFactory("es-wal-sync").newThread(
+            new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    syncLoop();
+                }
+            });
+        syncer.start();
+    }
+    
+    /**
+     * Reads all requests from existing segments, in the order they were
+     * written. The segments are kept until deleteRecovered is called, which
+     * should happen once the requests have been written to the log again.
+     * Reading a segment stops at the first incomplete or corrupted entry.
+     * 
+     * @return list of recovered requests
+     * @throws IOException if reading fails
+     */
+    public List<ActionRequest<?>> recover() throws IOException
+    {
+        List<ActionRequest<?>> requests = new ArrayList<ActionRequest<?>>();
+        
+        File[] files = fDir.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        
+        if(files == null)
+        {
+            return requests;
+        }
+        
+        //names contain zero-padded sequence numbers
+        Arrays.sort(files);
+        
+        long maxSeq = 0;
+        for(File file : files)
+        {
+            //segments without readable entries still occupy their name
+            maxSeq = Math.max(maxSeq, getFirstSeq(file));
+            maxSeq = Math.max(maxSeq, readSegment(file, requests));
+            fRecovered.add(file);
+        }
+        
+        //continue after the highest recovered sequence number and segment
+        synchronized(fLock)
+        {
+            fNextSeq = Math.max(fNextSeq, maxSeq + 1);
+        }
+        
+        if(!requests.isEmpty())
+        {
+            fLogger.log(Level.INFO, "recovered " + requests.size()
+                + " requests from " + files.length + " log segments");
+        }
+        
+        return requests;
+    }
+    
+    private long getFirstSeq(File file)
+    {
+        String name = file.getName();
+        try
+        {
+            return Long.parseLong(name.substring(PREFIX.length(),
+                name.length() - SUFFIX.length()));
+        }
+        catch(NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+    
+    private long readSegment(File file, List<ActionRequest<?>> requests)
+        throws IOException
+    {
+        long maxSeq = 0;
+        
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file)));
+        try
+        {
+            while(true)
+            {
+                int length = in.readInt();
+                if(length < 0 || length > MAX_ENTRY_SIZE)
+                {
+                    throw new IOException("invalid entry length " + length);
+                }
+                
+                long seq = in.readLong();
+                byte type = in.readByte();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int checksum = in.readInt();
+                
+                if(checksum != checksum(type, payload))
+                {
+                    throw new IOException("checksum mismatch in entry " + seq);
+                }
+                
+                requests.add(deserialize(type, payload));
+                maxSeq = Math.max(maxSeq, seq);
+            }
+        }
+        catch(EOFException e)
+        {
+            //end of segment or incomplete last entry
+        }
+        catch(IOException e)
+        {
+            fLogger.log(Level.WARNING, "stopped reading corrupted log segment "
+                + file, e);
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        return maxSeq;
+    }
+    
+    /**
+     * Deletes all segments read by recover, except for segments that are
+     * written to again.
+     */
+    public void deleteRecovered()
+    {
+        List<File> live = new ArrayList<File>();
+        synchronized(fLock)
+        {
+            for(Segment segment : fSegments.values())
+            {
+                live.add(segment.file);
+            }
+        }
+        
+        for(File file : fRecovered)
+        {
+            if(live.contains(file))
+            {
+                continue;
+            }
+            
+            if(!file.delete())
+            {
+                fLogger.log(Level.WARNING, "could not delete log segment "
+                    + file);
+            }
+        }
+        fRecovered.clear();
+    }
+    
+    /**
+     * Appends a request to the log without waiting for it to be synced.
+     * Only index, update and delete requests are supported.
+     * The given request must not be null.
+     * 
+     * @param request request to append
+     * @return sequence number of the request
+     * @throws IOException if writing fails
+     */
+    public long append(ActionRequest<?> request) throws IOException
+    {
+        byte type = getType(request);
+        
+        //serialize outside of the lock
+        BytesStreamOutput bytes = new BytesStreamOutput();
+        request.writeTo(bytes);
+        byte[] payload = bytes.bytes().toBytes();
+        int checksum = checksum(type, payload);
+        
+        synchronized(fLock)
+        {
+            if(fCurrent == null || fCurrent.entries >= fSegmentEntries)
+            {
+                roll();
+            }
+            
+            long seq = fNextSeq++;
+            
+            DataOutputStream out = fCurrent.out;
+            out.writeInt(payload.length);
+            out.writeLong(seq);
+            out.writeByte(type);
+            out.write(payload);
+            out.writeInt(checksum);
+            
+            ++fCurrent.entries;
+            ++fCurrent.outstanding;
+            fWrittenSeq = seq;
+            
+            return seq;
+        }
+    }
+    
+    /**
+     * Waits until all requests appended so far have been synced to disk.
+     * Fails if the last attempt to sync them failed.
+     * 
+     * @throws IOException if syncing failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void sync() throws IOException, InterruptedException
+    {
+        synchronized(fLock)
+        {
+            long target = fWrittenSeq;
+            while(fSyncedSeq < target && fActive)
+            {
+                if(fSyncFailure != null)
+                {
+                    throw new IOException("could not sync log", fSyncFailure);
+                }
+                
+                fLock.wait();
+            }
+        }
+    }
+    
+    /**
+     * Marks the request with the given sequence number as executed.
+     * Segments are deleted once all of their requests have been marked.
+     * 
+     * @param seq sequence number of the request
+     */
+    public void acknowledge(long seq)
+    {
+        synchronized(fLock)
+        {
+            Map.Entry<Long, Segment> entry = fSegments.floorEntry(seq);
+            if(entry == null)
+            {
+                return;
+            }
+            
+            Segment segment = entry.getValue();
+            --segment.outstanding;
+            
+            if(segment.outstanding <= 0)
+            {
+                try
+                {
+                    //start a new segment, deleting the completed one
+                    if(segment == fCurrent)
+                    {
+                        roll();
+                    }
+                    else
+                    {
+                        delete(segment);
+                    }
+                }
+                catch(IOException e)
+                {
+                    fLogger.log(Level.WARNING, "could not truncate log", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Syncs and closes the current segment and stops the sync thread.
+     * Unacknowledged requests remain in the log.
+     */
+    public void close()
+    {
+        synchronized(fLock)
+        {
+            try
+            {
+                if(fCurrent != null)
+                {
+                    fCurrent.close();
+                    if(fCurrent.outstanding <= 0)
+                    {
+                        delete(fCurrent);
+                    }
+                    fCurrent = null;
+                }
+            }
+            catch(IOException e)
+            {
+                fLogger.log(Level.WARNING, "could not close log segment", e);
+            }
+            
+            fActive = false;
+            fLock.notifyAll();
+        }
+    }
+    
+    private void roll() throws IOException
+    {
+        //sync and close the current segment, delete it if it is completed
+        if(fCurrent != null)
+        {
+            fCurrent.close();
+            fSyncedSeq = fWrittenSeq;
+            fSyncFailure = null;
+            fLock.notifyAll();
+            
+            if(fCurrent.outstanding <= 0)
+            {
+                delete(fCurrent);
+            }
+        }
+        
+        fCurrent = new Segment(fNextSeq);
+        fSegments.put(fNextSeq, fCurrent);
+    }
+    
+    private void delete(Segment segment)
+    {
+        fSegments.remove(segment.first);
+        
+        if(!segment.file.delete())
+        {
+            fLogger.log(Level.WARNING, "could not delete log segment "
+                + segment.file);
+        }
+    }
+    
+    private void syncLoop()
+    {
+        while(fActive)
+        {
+            synchronized(fLock)
+            {
+                //sync all writes since the last sync at once
+                if(fWrittenSeq > fSyncedSeq && fCurrent != null)
+                {
+                    try
+                    {
+                        fCurrent.sync();
+                        fSyncedSeq = fWrittenSeq;
+                        fSyncFailure = null;
+                    }
+                    catch(IOException e)
+                    {
+                        //fail waiting callers instead of blocking them
+                        fLogger.log(Level.SEVERE, "could not sync log", e);
+                        fSyncFailure = e;
+                    }
+                    fLock.notifyAll();
+                }
+            }
+            
+            try
+            {
+                Thread.sleep(fSyncMillis);
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+    
+    private byte getType(ActionRequest<?> request)
+    {
+        byte type;
+        
+        if(request instanceof IndexRequest)
+        {
+            type = INDEX;
+        }
+        else if(request instanceof DeleteRequest)
+        {
+            type = DELETE;
+        }
+        else if(request instanceof UpdateRequest)
+        {
+            type = UPDATE;
+        }
+        else
+        {
+            throw new IllegalArgumentException("unsupported request type: "
+                + request.getClass().getName());
+        }
+        
+        return type;
+    }
+    
+    private ActionRequest<?> deserialize(byte type, byte[] payload)
+        throws IOException
+    {
+        ActionRequest<?> request;
+        
+        switch(type)
+        {
+            case INDEX:
+                request = new IndexRequest();
+                break;
+            case DELETE:
+                request = new DeleteRequest();
+                break;
+            case UPDATE:
+                request = new UpdateRequest();
+                break;
+            default:
+                throw new IOException("unknown request type " + type);
+        }
+        
+        request.readFrom(new BytesStreamInput(new BytesArray(payload)));
+        
+        return request;
+    }
+    
+    private int checksum(byte type, byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+    
+    private class Segment
+    {
+        private final long first;
+        private final File file;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private int entries;
+        private int outstanding;
+        
+        private Segment(long first) throws IOException
+        {
+            this.first = first;
+            file = new File(fDir, String.format("%s%020d%s", PREFIX, first,
+                SUFFIX));
+            
+            //never truncate a segment that has not been replayed yet
+            if(file.exists())
+            {
+                throw new IOException("log segment " + file
+                    + " already exists");
+            }
+            
+            fileOut = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            entries = 0;
+            outstanding = 0;
+        }
+        
+        private void sync() throws IOException
+        {
+            out.flush();
+            fileOut.getChannel().force(false);
+        }
+        
+        private void close() throws IOException
+        {
+            sync();
+            out.close();
+        }
+    }
+}
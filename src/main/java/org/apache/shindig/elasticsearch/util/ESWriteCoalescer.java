@@ -0,0 +1,307 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.index.VersionType;
+import org.json.JSONObject;
+
+/**
+ * Buffer coalescing queued requests concerning the same document entry, so
+ * that only their net effect is sent. Index and delete requests supersede
+ * earlier requests, partial updates are merged into earlier index requests
+ * and partial updates. Scripted updates are never merged; pending requests
+ * they can not be combined with are released to be sent first.
+ * Tracks which requests were absorbed by a combined request, so that they
+ * can share its outcome.
+ */
+public class ESWriteCoalescer
+{
+    private final Map<List<String>, ActionRequest<?>> fPending;
+    private final Map<ActionRequest<?>, List<ActionRequest<?>>> fAbsorbed;
+    
+    /**
+     * Creates an empty coalescing buffer.
+     */
+    public ESWriteCoalescer()
+    {
+        fPending = new LinkedHashMap<List<String>, ActionRequest<?>>();
+        fAbsorbed = new IdentityHashMap<ActionRequest<?>,
+            List<ActionRequest<?>>>();
+    }
+    
+    /**
+     * Adds an index, update or delete request to the buffer, combining it
+     * with a pending request for the same entry if possible. If the pending
+     * request can not be combined with the new one, it is added to the given
+     * list of requests to send right away.
+     * None of the parameters may be null.
+     * 
+     * @param request request to add
+     * @param ready list receiving requests to send immediately
+     * @return whether the request was combined with a pending one
+     */
+    public synchronized boolean add(ActionRequest<?> request,
+        List<ActionRequest<?>> ready)
+    {
+        ESEntryId entry = ESRequestUtil.getEntryId(request);
+        List<String> key = Arrays.asList(ESRequestUtil.getIndex(request),
+            entry.getType(), entry.getId());
+        
+        ActionRequest<?> earlier = fPending.get(key);
+        if(earlier == null)
+        {
+            fPending.put(key, request);
+            return false;
+        }
+        
+        ActionRequest<?> merged = merge(earlier, request);
+        if(merged == null)
+        {
+            //send earlier request first to preserve the order
+            ready.add(earlier);
+            fPending.remove(key);
+            fPending.put(key, request);
+            return false;
+        }
+        
+        //remember everything the combined request stands for
+        List<ActionRequest<?>> originals = new ArrayList<ActionRequest<?>>();
+        collectOriginals(earlier, originals);
+        collectOriginals(request, originals);
+        
+        Iterator<ActionRequest<?>> iter = originals.iterator();
+        while(iter.hasNext())
+        {
+            if(iter.next() == merged)
+            {
+                iter.remove();
+            }
+        }
+        fAbsorbed.put(merged, originals);
+        
+        fPending.put(key, merged);
+        return true;
+    }
+    
+    private void collectOriginals(ActionRequest<?> request,
+        List<ActionRequest<?>> originals)
+    {
+        //combined requests only stand for the requests they absorbed
+        List<ActionRequest<?>> absorbed = fAbsorbed.remove(request);
+        if(absorbed != null)
+        {
+            originals.addAll(absorbed);
+        }
+        else
+        {
+            originals.add(request);
+        }
+    }
+    
+    private ActionRequest<?> merge(ActionRequest<?> earlier,
+        ActionRequest<?> later)
+    {
+        //returns the combined request or null if they can't be combined
+        ActionRequest<?> merged = null;
+        
+        try
+        {
+            if(isOlder(later, earlier))
+            {
+                //stale versioned write, would be rejected anyway
+                merged = earlier;
+            }
+            else if(later instanceof IndexRequest
+                || later instanceof DeleteRequest)
+            {
+                //complete replacement or deletion, earlier ones are obsolete
+                merged = later;
+            }
+            else if(later instanceof UpdateRequest
+                && isPartialUpdate((UpdateRequest) later))
+            {
+                UpdateRequest update = (UpdateRequest) later;
+                
+                if(earlier instanceof IndexRequest)
+                {
+                    merged = mergeIntoIndex((IndexRequest) earlier, update);
+                }
+                else if(earlier instanceof UpdateRequest
+                    && isPartialUpdate((UpdateRequest) earlier))
+                {
+                    merged = mergeUpdates((UpdateRequest) earlier, update);
+                }
+                else if(earlier instanceof DeleteRequest)
+                {
+                    merged = recreate(update);
+                }
+            }
+        }
+        catch(Exception e)
+        {
+            //sources can't be combined, send separately
+            merged = null;
+        }
+        
+        return merged;
+    }
+    
+    private boolean isOlder(ActionRequest<?> later, ActionRequest<?> earlier)
+    {
+        //compares external versions of two index requests
+        boolean older = false;
+        
+        if(later instanceof IndexRequest && earlier instanceof IndexRequest)
+        {
+            IndexRequest l = (IndexRequest) later;
+            IndexRequest e = (IndexRequest) earlier;
+            
+            older = l.versionType() != VersionType.INTERNAL
+                && e.versionType() != VersionType.INTERNAL
+                && l.version() < e.version();
+        }
+        
+        return older;
+    }
+    
+    private boolean isPartialUpdate(UpdateRequest update)
+    {
+        return update.script() == null && update.doc() != null;
+    }
+    
+    private ActionRequest<?> mergeIntoIndex(IndexRequest index,
+        UpdateRequest update) throws Exception
+    {
+        //a versioned write may be rejected, which must not take the update
+        //with it, so only unconditional index requests are combined
+        if(index.versionType() != VersionType.INTERNAL
+            || index.version() != Versions.MATCH_ANY)
+        {
+            return null;
+        }
+        
+        //entry will exist, apply the update to the complete source
+        JSONObject source = toJSON(index);
+        ESRequestUtil.mergeSource(source, toJSON(update.doc()));
+        
+        return new IndexRequest(index.index(), index.type(), index.id())
+            .routing(index.routing())
+            .source(source.toString());
+    }
+    
+    private ActionRequest<?> mergeUpdates(UpdateRequest earlier,
+        UpdateRequest later) throws Exception
+    {
+        JSONObject laterDoc = toJSON(later.doc());
+        
+        //combined changes for existing entries
+        JSONObject doc = toJSON(earlier.doc());
+        ESRequestUtil.mergeSource(doc, laterDoc);
+        
+        UpdateRequest merged = new UpdateRequest(earlier.index(),
+            earlier.type(), earlier.id())
+            .routing(earlier.routing())
+            .retryOnConflict(Math.max(earlier.retryOnConflict(),
+                later.retryOnConflict()))
+            .doc(doc.toString());
+        
+        //what is created if the entry does not exist
+        if(earlier.docAsUpsert())
+        {
+            merged.docAsUpsert(true);
+        }
+        else if(earlier.upsertRequest() != null)
+        {
+            JSONObject upsert = toJSON(earlier.upsertRequest());
+            ESRequestUtil.mergeSource(upsert, laterDoc);
+            merged.upsert(upsert.toString());
+        }
+        else if(later.docAsUpsert())
+        {
+            //earlier update would have failed, only the later one applies
+            merged.upsert(laterDoc.toString());
+        }
+        else if(later.upsertRequest() != null)
+        {
+            merged.upsert(toJSON(later.upsertRequest()).toString());
+        }
+        
+        return merged;
+    }
+    
+    private ActionRequest<?> recreate(UpdateRequest update) throws Exception
+    {
+        //after a deletion, only an upsert has an effect
+        JSONObject source = null;
+        
+        if(update.docAsUpsert())
+        {
+            source = toJSON(update.doc());
+        }
+        else if(update.upsertRequest() != null)
+        {
+            source = toJSON(update.upsertRequest());
+        }
+        
+        IndexRequest index = null;
+        if(source != null)
+        {
+            index = new IndexRequest(update.index(), update.type(),
+                update.id())
+                .routing(update.routing())
+                .source(source.toString());
+        }
+        
+        return index;
+    }
+    
+    private JSONObject toJSON(IndexRequest request) throws Exception
+    {
+        return new JSONObject(request.source().toUtf8());
+    }
+    
+    /**
+     * Removes and returns all pending requests.
+     * 
+     * @return list of pending requests in the order they were first added
+     */
+    public synchronized List<ActionRequest<?>> drain()
+    {
+        List<ActionRequest<?>> requests =
+            new ArrayList<ActionRequest<?>>(fPending.values());
+        fPending.clear();
+        return requests;
+    }
+    
+    /**
+     * Removes and returns the requests absorbed by the given combined
+     * request, which share its outcome.
+     * 
+     * @param request combined request
+     * @return list of absorbed requests or null if there are none
+     */
+    public synchronized List<ActionRequest<?>> takeAbsorbed(
+        ActionRequest<?> request)
+    {
+        return fAbsorbed.remove(request);
+    }
+    
+    /**
+     * @return number of pending requests
+     */
+    public synchronized int size()
+    {
+        return fPending.size();
+    }
+}
@@ -1,81 +1,306 @@
 package org.apache.shindig.elasticsearch.util;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
- * Utility for sending HTTP requests, used by the deprecated elasticsearch
- * HTTP connector.
+ * Utility for sending HTTP requests with JSON bodies, used by the
+ * elasticsearch HTTP connector.
+ * Request bodies are streamed to the connection using chunked transfer
+ * encoding and responses are parsed directly from the connection by
+ * Elasticsearch's streaming JSON parser, so that neither has to be held in
+ * memory as text.
+ * Connections are kept alive and reused by the JVM, responses are always
+ * read completely to allow this.
+ * Connecting and waiting for data are limited by timeouts, so that
+ * unresponsive nodes can not block callers indefinitely.
  */
 public class HttpUtil
 {
-    public static String getText(URL url) throws IOException
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    //size of transfer chunks and stream buffers
+    private static final int CHUNK_SIZE = 16 * 1024;
+    
+    /**
+     * Sends a request with the given method and optional body to the given
+     * URL and parses the JSON body of the response.
+     * If compression is enabled, the body is gzip-compressed while it is
+     * written and compressed responses are accepted.
+     * Error responses are reported as ESHttpExceptions, timeouts as
+     * SocketTimeoutExceptions. Both timeouts must be positive.
+     * Only the body may be null.
+     * 
+     * @param url URL to send the request to
+     * @param method HTTP method to use
+     * @param body writer for the request body or null
+     * @param gzip whether to use gzip compression
+     * @param connectTimeout milliseconds to wait for a connection
+     * @param readTimeout milliseconds to wait for data from the server
+     * @return parsed response or null if there is no response body
+     * @throws IOException if the request fails or returns an error status
+     */
+    public static JSONObject send(URL url, String method,
+        IHttpBodyWriter body, boolean gzip, int connectTimeout,
+        int readTimeout) throws IOException
     {
-        final StringBuffer buffer = new StringBuffer();
+        //zero would mean waiting forever
+        if(connectTimeout <= 0 || readTimeout <= 0)
+        {
+            throw new IllegalArgumentException("timeouts must be positive");
+        }
         
         HttpURLConnection connection = (HttpURLConnection)
             url.openConnection();
-
-        //read response
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(
-            connection.getInputStream()));
-
-        String line = reader.readLine();
-        while (line != null)
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        
+        if(gzip)
         {
-            buffer.append(line);
-            line = reader.readLine();
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        
+        if(body != null)
+        {
+            writeBody(connection, body, gzip);
+        }
+        
+        //error responses have their own stream
+        int status = connection.getResponseCode();
+        InputStream in = status >= 400 ? connection.getErrorStream()
+            : connection.getInputStream();
+        
+        if(in == null)
+        {
+            if(status >= 400)
+            {
+                throw new ESHttpException(status, null);
+            }
+            return null;
+        }
+        
+        JSONObject response = null;
+        try
+        {
+            if("gzip".equals(connection.getContentEncoding()))
+            {
+                in = new GZIPInputStream(in, CHUNK_SIZE);
+            }
+            
+            if(status >= 400)
+            {
+                //error bodies are small, keep them for the exception
+                throw new ESHttpException(status, readText(in));
+            }
+            
+            if(!"HEAD".equals(method) && connection.getContentLength() != 0)
+            {
+                response = parse(in);
+            }
+            
+            //read remainder so the connection can be reused
+            drain(in);
+        }
+        finally
+        {
+            in.close();
         }
-
-        reader.close();
         
-        return buffer.toString();
+        return response;
     }
     
-    public static String sendJson(URL url, String method, String data)
-        throws IOException
+    private static void writeBody(HttpURLConnection connection,
+        IHttpBodyWriter body, boolean gzip) throws IOException
     {
-        final StringBuffer buffer = new StringBuffer();
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        if(gzip)
+        {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
         
-        HttpURLConnection connection = (HttpURLConnection)
-            url.openConnection();
-
-        //send json data
-        connection.setRequestMethod(method);
+        //length is not known in advance, stream in chunks
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
         
-        if(data != null)
+        OutputStream out = connection.getOutputStream();
+        if(gzip)
         {
-            connection.setDoInput(true);
-            connection.setDoOutput(true);
-            connection.setUseCaches(false);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Content-Length",
-                String.valueOf(data.getBytes().length));
-
-            OutputStreamWriter writer = new OutputStreamWriter(
-                connection.getOutputStream());
-            writer.write(data);
-            writer.flush();
+            out = new GZIPOutputStream(out, CHUNK_SIZE);
+        }
+        
+        //encoded once, while written
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8),
+            CHUNK_SIZE);
+        try
+        {
+            body.writeBody(writer);
+        }
+        catch(IOException e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new IOException("could not write request body", e);
+        }
+        finally
+        {
+            //also finishes compression
             writer.close();
         }
-
-        //read response
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(
-            connection.getInputStream()));
-
-        String line = reader.readLine();
-        while (line != null)
+    }
+    
+    private static JSONObject parse(InputStream in) throws IOException
+    {
+        //the stream is closed by the caller once it is drained
+        XContentParser parser = XContentFactory.xContent(XContentType.JSON)
+            .createParser(new FilterInputStream(in)
+            {
+                @Override
+                public void close()
+                {
+                    //kept open
+                }
+            });
+        
+        try
         {
-            buffer.append(line);
-            line = reader.readLine();
+            //builds the response token by token instead of buffering the text
+            if(next(parser) != Token.START_OBJECT)
+            {
+                throw new IOException("response is not a JSON object");
+            }
+            
+            return readObject(parser);
         }
-
-        reader.close();
+        catch(JSONException e)
+        {
+            throw new IOException("could not parse response", e);
+        }
+        finally
+        {
+            parser.close();
+        }
+    }
+    
+    private static JSONObject readObject(XContentParser parser)
+        throws IOException, JSONException
+    {
+        JSONObject object = new JSONObject();
+        
+        Token token = next(parser);
+        while(token != Token.END_OBJECT)
+        {
+            String name = parser.currentName();
+            object.put(name, readValue(parser, next(parser)));
+            token = next(parser);
+        }
+        
+        return object;
+    }
+    
+    private static JSONArray readArray(XContentParser parser)
+        throws IOException, JSONException
+    {
+        JSONArray array = new JSONArray();
         
-        return buffer.toString();
+        Token token = next(parser);
+        while(token != Token.END_ARRAY)
+        {
+            array.put(readValue(parser, token));
+            token = next(parser);
+        }
+        
+        return array;
+    }
+    
+    private static Object readValue(XContentParser parser, Token token)
+        throws IOException, JSONException
+    {
+        Object value;
+        
+        switch(token)
+        {
+            case START_OBJECT:
+                value = readObject(parser);
+                break;
+            case START_ARRAY:
+                value = readArray(parser);
+                break;
+            case VALUE_STRING:
+                value = parser.text();
+                break;
+            case VALUE_NUMBER:
+                value = parser.numberValue();
+                break;
+            case VALUE_BOOLEAN:
+                value = Boolean.valueOf(parser.booleanValue());
+                break;
+            case VALUE_NULL:
+                value = JSONObject.NULL;
+                break;
+            default:
+                throw new IOException("unexpected token " + token
+                    + " in response");
+        }
+        
+        return value;
+    }
+    
+    private static Token next(XContentParser parser) throws IOException
+    {
+        Token token = parser.nextToken();
+        if(token == null)
+        {
+            throw new IOException("response ended unexpectedly");
+        }
+        return token;
+    }
+    
+    private static String readText(InputStream in) throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        
+        Reader reader = new InputStreamReader(in, UTF8);
+        char[] buffer = new char[CHUNK_SIZE];
+        int read = reader.read(buffer);
+        while(read >= 0)
+        {
+            text.append(buffer, 0, read);
+            read = reader.read(buffer);
+        }
+        
+        return text.toString();
+    }
+    
+    private static void drain(InputStream in) throws IOException
+    {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        while(in.read(buffer) >= 0)
+        {
+            //discard
+        }
     }
 }
@@ -0,0 +1,214 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Interface for elasticsearch connectors additionally offering asynchronous
+ * variants of their calls, returning futures instead of blocking.
+ * Write calls complete with one result per document entry, carrying its
+ * success or failure. Their futures only fail if the call or a whole bulk
+ * could not be executed.
+ * When the returned future completes depends on the implementation, bulking
+ * implementations complete it once the surrounding bulk was executed.
+ * Index checks and creation do not block the calling thread, so calls are
+ * not guaranteed to be executed in the order they were made.
+ */
+public interface IAsyncESConnector extends IESConnector
+{
+    /**
+     * Adds an entry in JSON form to the specified index under the specified
+     * type and ID, creating the index if necessary.
+     * Existing entries with matching index, type and ID will be overwritten.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add the entry to
+     * @param type type of the entry to add
+     * @param id ID of the entry to add
+     * @param entry source of the entry to add to the index
+     * @return future for the result of the operation
+     */
+    public ESFuture<ESResult> addAsync(String index, String type, String id,
+        JSONObject entry);
+    
+    /**
+     * Adds an entry in JSON form to the specified index under the specified
+     * type and ID, using an external version number, creating the index if
+     * necessary. Existing entries are only overwritten if their version is
+     * not higher, otherwise the stale write is ignored and reported as
+     * successful. If the version is negative, no version is used.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add the entry to
+     * @param type type of the entry to add
+     * @param id ID of the entry to add
+     * @param entry source of the entry to add to the index
+     * @param version external version of the entry or -1
+     * @return future for the result of the operation
+     */
+    public ESFuture<ESResult> addAsync(String index, String type, String id,
+        JSONObject entry, long version);
+    
+    /**
+     * Adds a list of entries of the given type to the specified index,
+     * creating the index if necessary.
+     * Existing entries with matching index, type and ID will be overwritten.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add entries to
+     * @param type type of the entries to add
+     * @param entries entries to add
+     * @return future for the results, in the order of the entries
+     */
+    public ESFuture<List<ESResult>> bulkAddAsync(String index, String type,
+        List<JSONObject> entries);
+    
+    /**
+     * Adds a list of entries of the given type to the specified index,
+     * optionally using external version numbers derived from the entries'
+     * "updated" timestamps (see ShindigEncoder.getVersion), creating the
+     * index if necessary. Stale writes of versioned entries are ignored and
+     * reported as successful.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add entries to
+     * @param type type of the entries to add
+     * @param entries entries to add
+     * @param versioned whether to use external versions
+     * @return future for the results, in the order of the entries
+     */
+    public ESFuture<List<ESResult>> bulkAddAsync(String index, String type,
+        List<JSONObject> entries, boolean versioned);
+    
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index. The result will be a failure if the entry does not
+     * already exist.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to update the entry in
+     * @param type type of the entry to update
+     * @param id ID of the entry to update
+     * @param entry updated source of the entry to update in the index
+     * @return future for the result of the operation
+     */
+    public ESFuture<ESResult> updateAsync(String index, String type,
+        String id, JSONObject entry);
+    
+    /**
+     * Updates a list of entries of the given type in the specified index.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to update entries in
+     * @param type type of the entries to update
+     * @param entries entries to update
+     * @return future for the results, in the order of the entries
+     */
+    public ESFuture<List<ESResult>> bulkUpdateAsync(String index, String type,
+        List<JSONObject> entries);
+    
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index or adds the initial entry if it does not exist yet.
+     * If no initial entry is given, the partial entry is added.
+     * Only the initial entry may be null.
+     * 
+     * @param index name of the index to upsert the entry in
+     * @param type type of the entry to upsert
+     * @param id ID of the entry to upsert
+     * @param entry partial source to update an existing entry with
+     * @param initial source of the entry to add if it does not exist or null
+     * @return future for the result of the operation
+     */
+    public ESFuture<ESResult> upsertAsync(String index, String type, String id,
+        JSONObject entry, JSONObject initial);
+    
+    /**
+     * Deletes an entry with the given type and ID from the specified index.
+     * None of the parameters may be null.
+     * 
+     * @param index index to remove the entry from
+     * @param type type of the entry to remove
+     * @param id ID of the entry to remove
+     * @return future for the result of the operation
+     */
+    public ESFuture<ESResult> deleteAsync(String index, String type, String id);
+    
+    /**
+     * Deletes an entry with the given type, ID and routing value from the
+     * specified index.
+     * Only the routing value may be null.
+     * 
+     * @param index index to remove the entry from
+     * @param type type of the entry to remove
+     * @param id ID of the entry to remove
+     * @param routing routing value of the entry or null
+     * @return future for the result of the operation
+     */
+    public ESFuture<ESResult> deleteAsync(String index, String type, String id,
+        String routing);
+    
+    /**
+     * Deletes a list of entries with the given type from the specified index,
+     * defined by a list of entry IDs.
+     * If the index does not exist, the future completes with an empty list.
+     * None of the parameters may be null.
+     * 
+     * @param index index to remove entries from
+     * @param type type of the entries to remove
+     * @param ids IDs of entries to remove
+     * @return future for the results, in the order of the IDs
+     */
+    public ESFuture<List<ESResult>> bulkDeleteAsync(String index, String type,
+        List<String> ids);
+    
+    /**
+     * Deletes a list of entries with the given type from the specified index,
+     * defined by a list of entry IDs, using the routing values mapped to
+     * their IDs.
+     * If the index does not exist, the future completes with an empty list.
+     * Only the routing map may be null.
+     * 
+     * @param index index to remove entries from
+     * @param type type of the entries to remove
+     * @param ids IDs of entries to remove
+     * @param routing routing values by ID or null
+     * @return future for the results, in the order of the IDs
+     */
+    public ESFuture<List<ESResult>> bulkDeleteAsync(String index, String type,
+        List<String> ids, Map<String, String> routing);
+    
+    /**
+     * Retrieves a single entry with the given ID and type from the specified
+     * index, only containing the given fields of its source.
+     * The future completes with null if the entry or index do not exist.
+     * If the list of fields is null, the complete source is retrieved.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @param fields source fields to retrieve
+     * @return future for the JSON representation of the entry
+     */
+    public ESFuture<JSONObject> getAsync(String index, String type, String id,
+        String[] fields);
+    
+    /**
+     * Retrieves a single entry with the given ID, type and routing value from
+     * the specified index, optionally only containing the given fields of its
+     * source.
+     * The future completes with null if the entry or index do not exist.
+     * Only the fields and the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @param fields source fields to retrieve or null for all
+     * @param routing routing value of the entry or null
+     * @return future for the JSON representation of the entry
+     */
+    public ESFuture<JSONObject> getAsync(String index, String type, String id,
+        String[] fields, String routing);
+}
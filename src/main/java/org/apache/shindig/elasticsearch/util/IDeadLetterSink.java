@@ -0,0 +1,19 @@
+package org.apache.shindig.elasticsearch.util;
+
+import org.elasticsearch.action.ActionRequest;
+
+/**
+ * Interface for receivers of requests that could not be executed and will
+ * not be retried, so that they can be inspected or replayed later.
+ */
+public interface IDeadLetterSink
+{
+    /**
+     * Receives a request that failed permanently.
+     * None of the parameters may be null.
+     * 
+     * @param request request that failed
+     * @param reason failure message
+     */
+    public void deadLetter(ActionRequest<?> request, String reason);
+}
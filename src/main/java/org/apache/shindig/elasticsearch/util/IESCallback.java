@@ -0,0 +1,26 @@
+package org.apache.shindig.elasticsearch.util;
+
+/**
+ * Callback interface for consumers of asynchronous connector calls, notified
+ * once the result of a call is available.
+ * Callbacks are executed on the thread completing the call and should not
+ * block.
+ * 
+ * @param <T> type of the result
+ */
+public interface IESCallback<T>
+{
+    /**
+     * Called when the call completed.
+     * 
+     * @param result result of the call
+     */
+    public void onSuccess(T result);
+    
+    /**
+     * Called when the call could not be executed.
+     * 
+     * @param failure cause of the failure
+     */
+    public void onFailure(Throwable failure);
+}
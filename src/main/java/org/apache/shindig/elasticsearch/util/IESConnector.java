@@ -1,12 +1,20 @@
 package org.apache.shindig.elasticsearch.util;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.json.JSONObject;
 
 /**
  * Generic interface for elasticsearch connectors.
  * Caution: not all implementations will behave the identically.
+ * Entries of types configured for routing (see ESRouting) are written with
+ * the routing value read from their source. Calls only addressing such
+ * entries by ID need to be given the routing value.
+ * Bulk actions that fail permanently, one by one or as a whole bulk, are
+ * handed to a dead letter sink (see IDeadLetterSink) instead of failing the
+ * bulk call.
  */
 public interface IESConnector
 {
@@ -39,6 +47,51 @@ public interface IESConnector
     public boolean entryExists(String index, String type, String id)
         throws Exception;
     
+    /**
+     * Checks whether a document entry in the given index, with the given type,
+     * ID and routing value already exists.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @param routing routing value of the entry or null
+     * @return whether the entry already exists
+     * @throws Exception if the request fails
+     */
+    public boolean entryExists(String index, String type, String id,
+        String routing) throws Exception;
+    
+    /**
+     * Retrieves the current version of the document entry in the given index,
+     * with the given type and ID, without retrieving its contents.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @return version of the entry or -1 if it does not exist
+     * @throws Exception if the request fails
+     */
+    public long getVersion(String index, String type, String id)
+        throws Exception;
+    
+    /**
+     * Retrieves the current version of the document entry in the given index,
+     * with the given type, ID and routing value, without retrieving its
+     * contents.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the document entry to look for
+     * @param id ID of the document entry to look for
+     * @param routing routing value of the entry or null
+     * @return version of the entry or -1 if it does not exist
+     * @throws Exception if the request fails
+     */
+    public long getVersion(String index, String type, String id,
+        String routing) throws Exception;
+    
     /**
      * Creates the index with the given name. If the index already exists,
      * the call is ignored. The given name must not be null.
@@ -64,6 +117,25 @@ public interface IESConnector
     public void add(String index, String type, String id, JSONObject entry)
         throws Exception;
     
+    /**
+     * Adds an entry in JSON form to the specified index under the specified
+     * type and ID, using an external version number. Existing entries are
+     * only overwritten if their version is not higher, otherwise the stale
+     * write is ignored. If the version is negative, no version is used.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add the entry to
+     * @param type type of the entry to add
+     * @param id ID of the entry to add
+     * @param entry source of the entry to add to the index
+     * @param version external version of the entry or -1
+     * @throws Exception if adding the entry fails
+     */
+    public void add(String index, String type, String id, JSONObject entry,
+        long version) throws Exception;
+    
     /**
      * Adds a list of entries of the given type to the specified index.
      * A check whether the index exists is executed and if the index does not
@@ -79,6 +151,25 @@ public interface IESConnector
     public void bulkAdd(String index, String type, List<JSONObject> entries)
         throws Exception;
     
+    /**
+     * Adds a list of entries of the given type to the specified index,
+     * optionally using external version numbers derived from the entries'
+     * "updated" timestamps (see ShindigEncoder.getVersion). Versioned
+     * entries are only overwritten if their version is not higher, otherwise
+     * the stale write is ignored.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to add entries to
+     * @param type type of the entries to add
+     * @param entries entries to add
+     * @param versioned whether to use external versions
+     * @throws Exception if adding entries fails
+     */
+    public void bulkAdd(String index, String type, List<JSONObject> entries,
+        boolean versioned) throws Exception;
+    
     /**
      * Updates an entry with the given type and ID in JSON form in the
      * specified index. A check whether the index exists is executed and if the
@@ -110,6 +201,94 @@ public interface IESConnector
     public void bulkUpdate(String index, String type, List<JSONObject> entries)
         throws Exception;
     
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index or adds it if it does not exist yet, using a single
+     * request. A check whether the index exists is executed and if the
+     * index does not exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to upsert the entry in
+     * @param type type of the entry to upsert
+     * @param id ID of the entry to upsert
+     * @param entry source of the entry to upsert in the index
+     * @throws Exception if upserting the entry fails
+     */
+    public void upsert(String index, String type, String id, JSONObject entry)
+        throws Exception;
+    
+    /**
+     * Updates an entry with the given type and ID in JSON form in the
+     * specified index or adds the given initial entry if it does not exist
+     * yet, using a single request. A check whether the index exists is
+     * executed and if the index does not exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to upsert the entry in
+     * @param type type of the entry to upsert
+     * @param id ID of the entry to upsert
+     * @param entry partial source to update an existing entry with
+     * @param initial source of the entry to add if it does not exist
+     * @throws Exception if upserting the entry fails
+     */
+    public void upsert(String index, String type, String id, JSONObject entry,
+        JSONObject initial) throws Exception;
+    
+    /**
+     * Updates a list of entries of the given type in the specified index,
+     * adding those that do not exist yet.
+     * A check whether the index exists is executed and if the index does not
+     * exist, it will be created.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to upsert entries in
+     * @param type type of the entries to upsert
+     * @param entries entries to upsert
+     * @throws Exception if upserting entries fails
+     */
+    public void bulkUpsert(String index, String type, List<JSONObject> entries)
+        throws Exception;
+    
+    /**
+     * Removes a value from an array field of the entry with the given type
+     * and ID in the specified index. If scripts are enabled (see ESScripts),
+     * this is done on the server side using a single request without reading
+     * the entry first, otherwise the entry is read, modified and written
+     * back. Optionally, the entry is deleted if the array is empty
+     * afterwards.
+     * The call is ignored, if the index or the entry do not exist.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index containing the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param field name of the array field to remove the value from
+     * @param value value to remove
+     * @param deleteIfEmpty whether to delete the entry if no values are left
+     * @throws Exception if updating the entry fails
+     */
+    public void removeFromArray(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty) throws Exception;
+    
+    /**
+     * Removes a value from an array field of the entry with the given type,
+     * ID and routing value in the specified index on the server side, as
+     * described above.
+     * Only the routing value may be null.
+     * 
+     * @param index name of the index containing the entry
+     * @param type type of the entry
+     * @param id ID of the entry
+     * @param field name of the array field to remove the value from
+     * @param value value to remove
+     * @param deleteIfEmpty whether to delete the entry if no values are left
+     * @param routing routing value of the entry or null
+     * @throws Exception if updating the entry fails
+     */
+    public void removeFromArray(String index, String type, String id,
+        String field, String value, boolean deleteIfEmpty, String routing)
+        throws Exception;
+    
     /**
      * Deletes an entry with the given type and ID from the specified index.
      * The call is ignored, if the index does not exist.
@@ -123,6 +302,21 @@ public interface IESConnector
      */
     public void delete(String index, String type, String id) throws Exception;
     
+    /**
+     * Deletes an entry with the given type, ID and routing value from the
+     * specified index.
+     * The call is ignored, if the index does not exist.
+     * Only the routing value may be null.
+     * 
+     * @param index index to remove the entry from
+     * @param type type of the entry to remove
+     * @param id ID of the entry to remove
+     * @param routing routing value of the entry or null
+     * @throws Exception if removing the entry fails
+     */
+    public void delete(String index, String type, String id, String routing)
+        throws Exception;
+    
     /**
      * Deletes a list of entries with the given type from the specified index,
      * defined by a list of entry IDs.
@@ -137,6 +331,22 @@ public interface IESConnector
     public void bulkDelete(String index, String type, List<String> ids)
         throws Exception;
     
+    /**
+     * Deletes a list of entries with the given type from the specified index,
+     * defined by a list of entry IDs and their routing values.
+     * The call is ignored, if the index does not exist.
+     * Only the map of routing values may be null, entries without a routing
+     * value are deleted without routing.
+     * 
+     * @param index index to remove entries from
+     * @param type type of the entries to remove
+     * @param ids IDs of entries to remove
+     * @param routing routing values by entry ID or null
+     * @throws Exception if removing the entries fails
+     */
+    public void bulkDelete(String index, String type, List<String> ids,
+        Map<String, String> routing) throws Exception;
+    
     /**
      * Retrieves all entries of the specified type from the specified index.
      * If the index does not exist, an emtpy list is returned.
@@ -149,6 +359,52 @@ public interface IESConnector
      */
     public List<JSONObject> getAll(String index, String type) throws Exception;
     
+    /**
+     * Retrieves all entries of the specified type from the specified index,
+     * only containing the given fields of their source.
+     * If the index does not exist, an emtpy list is returned.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param fields source fields to retrieve
+     * @return list of all available entries, reduced to the given fields
+     * @throws Exception if the request fails
+     */
+    public List<JSONObject> getAll(String index, String type, String[] fields)
+        throws Exception;
+    
+    /**
+     * Streams all entries of the specified type from the specified index,
+     * passing them to the given handler one page at a time, so that the
+     * complete type never has to be held in memory.
+     * If the index does not exist, the handler is not called.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param handler handler receiving pages of entries
+     * @throws Exception if the request or the handler fails
+     */
+    public void scroll(String index, String type, IESPageHandler handler)
+        throws Exception;
+    
+    /**
+     * Streams all entries of the specified type from the specified index,
+     * only containing the given fields of their source, passing them to the
+     * given handler one page at a time.
+     * If the index does not exist, the handler is not called.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entries to retrieve
+     * @param fields source fields to retrieve
+     * @param handler handler receiving pages of entries
+     * @throws Exception if the request or the handler fails
+     */
+    public void scroll(String index, String type, String[] fields,
+        IESPageHandler handler) throws Exception;
+    
     /**
      * Retrieves a single entry with the given ID and type from the specified
      * index.
@@ -163,6 +419,71 @@ public interface IESConnector
      */
     public JSONObject get(String index, String type, String id) throws Exception;
     
+    /**
+     * Retrieves a single entry with the given ID and type from the specified
+     * index, only containing the given fields of its source.
+     * If the index does not exist, null is returned.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @param fields source fields to retrieve
+     * @return JSON representation of the entry, reduced to the given fields
+     * @throws Exception if the request fails
+     */
+    public JSONObject get(String index, String type, String id, String[] fields)
+        throws Exception;
+    
+    /**
+     * Retrieves a single entry with the given ID, type and routing value from
+     * the specified index, optionally only containing the given fields of its
+     * source.
+     * If the index does not exist, null is returned.
+     * Only the fields and the routing value may be null.
+     * 
+     * @param index name of the index to query
+     * @param type type of the entry to retrieve
+     * @param id ID of the entry to retrieve
+     * @param fields source fields to retrieve or null for all
+     * @param routing routing value of the entry or null
+     * @return JSON representation of the entry
+     * @throws Exception if the request fails
+     */
+    public JSONObject get(String index, String type, String id, String[] fields,
+        String routing) throws Exception;
+    
+    /**
+     * Retrieves multiple entries, defined by their types and IDs, from the
+     * specified index using a single request.
+     * Entries that do not exist are not contained in the result.
+     * If the index does not exist, an empty map is returned.
+     * If a list of fields is given, only these fields of the source are
+     * retrieved.
+     * Only the list of fields may be null.
+     * 
+     * @param index name of the index to query
+     * @param entries types, IDs and routing values of the entries to retrieve
+     * @param fields source fields to retrieve or null for all
+     * @return map of JSON representations of the entries by ID
+     * @throws Exception if the request fails
+     */
+    public Map<String, JSONObject> multiGet(String index,
+        List<ESEntryId> entries, String[] fields) throws Exception;
+    
+    /**
+     * Checks for multiple entries, defined by their types and IDs, whether
+     * they exist in the specified index using a single request.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index to query
+     * @param entries types, IDs and routing values of the entries to look for
+     * @return map of whether the entries exist by ID
+     * @throws Exception if the request fails
+     */
+    public Map<String, Boolean> multiExists(String index,
+        List<ESEntryId> entries) throws Exception;
+    
     /**
      * Deletes the index with the given name completely and re-creates it.
      * 
@@ -171,6 +492,65 @@ public interface IESConnector
      */
     public void clearIndex(String index) throws Exception;
     
+    /**
+     * Deletes the index with the given name completely.
+     * The call is ignored if the index does not exist.
+     * The given name must not be null.
+     * 
+     * @param index index to delete
+     * @throws Exception if deleting the index fails
+     */
+    public void deleteIndex(String index) throws Exception;
+    
+    /**
+     * Checks with Elasticsearch whether an alias with the given name exists,
+     * distinguishing aliases from plain indices of that name.
+     * The given name must not be null.
+     * 
+     * @param name name of the alias
+     * @return whether the alias exists
+     * @throws Exception if the request fails
+     */
+    public boolean isAlias(String name) throws Exception;
+    
+    /**
+     * Atomically points the given alias to the given index only, removing
+     * it from all indices it pointed to before. A plain index with the
+     * alias' name is never replaced, since it may still be written to;
+     * migrating it to an alias is left to the operator.
+     * None of the parameters may be null.
+     * 
+     * @param alias name of the alias
+     * @param index name of the index the alias should point to
+     * @return names of the indices the alias pointed to before
+     * @throws IllegalStateException if a plain index has the alias' name
+     * @throws Exception if the alias can not be changed
+     */
+    public List<String> setAlias(String alias, String index) throws Exception;
+    
+    /**
+     * Prepares the index with the given name for being filled from scratch,
+     * disabling periodic refreshes and replicas until endBulkLoad is called.
+     * The previous settings are remembered, repeated calls are ignored.
+     * The index must exist and the given name must not be null.
+     * 
+     * @param index name of the index to load
+     * @throws Exception if the index settings can not be changed
+     */
+    public void beginBulkLoad(String index) throws Exception;
+    
+    /**
+     * Ends the bulk load of the index with the given name, waiting for
+     * pending writes, restoring the settings remembered by beginBulkLoad,
+     * refreshing the index and waiting for the configured health status.
+     * The call is ignored if the index is not being bulk loaded.
+     * The given name must not be null.
+     * 
+     * @param index name of the loaded index
+     * @throws Exception if the index settings can not be restored
+     */
+    public void endBulkLoad(String index) throws Exception;
+    
     /**
      * Sets the mapping for a type in an index.
      * None of the parameters may be null.
@@ -181,4 +561,15 @@ public interface IESConnector
      * @throws Exception if setting fails
      */
     public void setMapping(String index, String type, JSONObject mapping) throws Exception;
+    
+    /**
+     * Returns all entries whose writes were given up, for example because a
+     * queue was full or because a write timed out and could not be resent
+     * safely, and forgets them. The requests themselves have been handed to
+     * the dead letter sink. The entries are grouped by index and need to be
+     * re-indexed by the caller, for example by a crawl.
+     * 
+     * @return map of dirty entries by index, empty if there are none
+     */
+    public Map<String, Set<ESEntryId>> drainDirtyEntries();
 }
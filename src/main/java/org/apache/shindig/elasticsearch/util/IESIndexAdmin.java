@@ -0,0 +1,100 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.Map;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.json.JSONObject;
+
+/**
+ * Interface for the index management calls needed to switch indices in and
+ * out of bulk load mode and to remember their original settings, implemented
+ * for each way of talking to Elasticsearch, so that the surrounding logic
+ * only exists once.
+ */
+public interface IESIndexAdmin
+{
+    /**
+     * Checks whether the index with the given name exists.
+     * The given name must not be null.
+     * 
+     * @param index name of the index
+     * @return whether the index exists
+     * @throws Exception if the request fails
+     */
+    public boolean indexExists(String index) throws Exception;
+    
+    /**
+     * Reads the values of the given settings of an index.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index
+     * @param names names of the settings to read, e.g.
+     *        "index.refresh_interval"
+     * @return map of settings that are set, by name
+     * @throws Exception if the settings can not be read
+     */
+    public Map<String, String> getSettings(String index, String... names)
+        throws Exception;
+    
+    /**
+     * Changes dynamic settings of an index.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index
+     * @param settings new values by setting name
+     * @throws Exception if the settings can not be changed
+     */
+    public void updateSettings(String index, Map<String, String> settings)
+        throws Exception;
+    
+    /**
+     * Refreshes an index, making all changes visible to searches.
+     * The given index name must not be null.
+     * 
+     * @param index name of the index
+     * @throws Exception if the refresh fails
+     */
+    public void refresh(String index) throws Exception;
+    
+    /**
+     * Waits until an index reaches at least the given health status or the
+     * given number of seconds has passed.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index
+     * @param status health status to wait for
+     * @param seconds maximum number of seconds to wait
+     * @return whether the status was reached in time
+     * @throws Exception if the status can not be retrieved
+     */
+    public boolean waitForHealth(String index,
+        ClusterHealthStatus status, long seconds) throws Exception;
+    
+    /**
+     * Retrieves the source of a single document, used to keep state in
+     * Elasticsearch itself.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index
+     * @param type type of the document
+     * @param id ID of the document
+     * @return source of the document or null if it or the index do not exist
+     * @throws Exception if the request fails
+     */
+    public JSONObject getDocument(String index, String type, String id)
+        throws Exception;
+    
+    /**
+     * Stores the source of a single document, replacing an existing one and
+     * creating the index if necessary.
+     * None of the parameters may be null.
+     * 
+     * @param index name of the index
+     * @param type type of the document
+     * @param id ID of the document
+     * @param source source of the document
+     * @throws Exception if the request fails
+     */
+    public void putDocument(String index, String type, String id,
+        JSONObject source) throws Exception;
+}
@@ -0,0 +1,21 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * Callback interface for consumers of paged entry retrieval, receiving one
+ * page of entries at a time instead of a complete list.
+ */
+public interface IESPageHandler
+{
+    /**
+     * Handles a single page of retrieved entries.
+     * The list is only valid for the duration of the call.
+     * 
+     * @param page list of entries on the current page
+     * @throws Exception if handling the page fails, aborting retrieval
+     */
+    public void handlePage(List<JSONObject> page) throws Exception;
+}
@@ -0,0 +1,20 @@
+package org.apache.shindig.elasticsearch.util;
+
+import java.io.Writer;
+
+/**
+ * Callback writing the body of an HTTP request directly to the connection,
+ * so that large bodies never have to be built in memory as a whole.
+ * It may be called more than once if a request is sent to another node.
+ */
+public interface IHttpBodyWriter
+{
+    /**
+     * Writes the complete request body to the given writer, which must not
+     * be closed.
+     * 
+     * @param writer writer to write the body to
+     * @throws Exception if writing fails
+     */
+    public void writeBody(Writer writer) throws Exception;
+}
@@ -1,7 +1,13 @@
 package org.apache.shindig.elasticsearch.util;
 
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
+import javax.xml.bind.DatatypeConverter;
+
 import org.apache.shindig.social.opensocial.model.ActivityEntry;
 import org.apache.shindig.social.opensocial.model.ActivityObject;
 import org.apache.shindig.social.opensocial.model.ListField;
@@ -21,6 +27,11 @@ import org.json.JSONObject;
  */
 public class ShindigEncoder
 {
+    /**
+     * Name of the field holding an entry's content fingerprint.
+     */
+    public static final String FINGERPRINT_FIELD = "fingerprint";
+
     /**
      * Converts the given activitystreams entry to JSON.
      * The given entry must not be null.
@@ -248,6 +259,155 @@ public class ShindigEncoder
         return profile;
     }
     
+    /**
+     * Derives an external version number for an encoded entry from its
+     * "updated" timestamp, which is given in epoch milliseconds or, for
+     * activities, as an ISO 8601 date string.
+     * Returns -1 if the entry has no usable timestamp.
+     * The given entry must not be null.
+     * 
+     * @param entry encoded entry
+     * @return version of the entry or -1
+     */
+    public static long getVersion(JSONObject entry)
+    {
+        long version = -1;
+        Object updated = entry.opt("updated");
+        
+        if(updated instanceof Number)
+        {
+            version = ((Number) updated).longValue();
+        }
+        else if(updated instanceof String)
+        {
+            try
+            {
+                version = DatatypeConverter.parseDateTime(
+                    (String) updated).getTimeInMillis();
+            }
+            catch(IllegalArgumentException e)
+            {
+                //no valid date
+            }
+        }
+        
+        return version;
+    }
+    
+    /**
+     * Computes a fingerprint of an encoded entry, independent of the order of
+     * its keys, as a hexadecimal SHA-1 hash of a canonical serialization with
+     * sorted keys. An existing "fingerprint" field is ignored.
+     * The given entry must not be null.
+     * 
+     * @param entry encoded entry
+     * @return fingerprint of the entry
+     * @throws Exception if serialization or hashing fails
+     */
+    public static String getFingerprint(JSONObject entry) throws Exception
+    {
+        StringBuilder buffer = new StringBuilder();
+        canonicalize(entry, buffer, true);
+        
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        byte[] hash = digest.digest(buffer.toString().getBytes("UTF-8"));
+        
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for(byte b : hash)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        
+        return hex.toString();
+    }
+    
+    /**
+     * Computes the fingerprint of an encoded entry and stores it in the
+     * entry's "fingerprint" field.
+     * The given entry must not be null.
+     * 
+     * @param entry encoded entry
+     * @return fingerprint of the entry
+     * @throws Exception if serialization or hashing fails
+     */
+    public static String addFingerprint(JSONObject entry) throws Exception
+    {
+        String fingerprint = getFingerprint(entry);
+        entry.put(FINGERPRINT_FIELD, fingerprint);
+        return fingerprint;
+    }
+    
+    private static void canonicalize(Object value, StringBuilder buffer,
+        boolean root) throws Exception
+    {
+        if(value instanceof JSONObject)
+        {
+            JSONObject object = (JSONObject) value;
+            
+            //sort keys so that insertion order does not matter
+            List<String> keys = new ArrayList<String>();
+            Iterator<?> keyIter = object.keys();
+            while(keyIter.hasNext())
+            {
+                keys.add(keyIter.next().toString());
+            }
+            Collections.sort(keys);
+            
+            buffer.append('{');
+            boolean first = true;
+            for(String key : keys)
+            {
+                if(root && FINGERPRINT_FIELD.equals(key))
+                {
+                    continue;
+                }
+                
+                if(!first)
+                {
+                    buffer.append(',');
+                }
+                first = false;
+                
+                buffer.append(JSONObject.quote(key)).append(':');
+                canonicalize(object.opt(key), buffer, false);
+            }
+            buffer.append('}');
+        }
+        else if(value instanceof JSONArray)
+        {
+            //array order is significant
+            JSONArray array = (JSONArray) value;
+            
+            buffer.append('[');
+            for(int i = 0; i < array.length(); ++i)
+            {
+                if(i > 0)
+                {
+                    buffer.append(',');
+                }
+                canonicalize(array.opt(i), buffer, false);
+            }
+            buffer.append(']');
+        }
+        else if(value instanceof Number)
+        {
+            buffer.append(JSONObject.numberToString((Number) value));
+        }
+        else if(value instanceof Boolean)
+        {
+            buffer.append(value.toString());
+        }
+        else if(value == null || JSONObject.NULL.equals(value))
+        {
+            buffer.append("null");
+        }
+        else
+        {
+            buffer.append(JSONObject.quote(value.toString()));
+        }
+    }
+    
     /**
      * Converts a list of Strings to a JSONArray of Strings.
      * If the given list is null, null will be returned.
@@ -0,0 +1,15 @@
+// removes "value" from the array field "field", deleting the document if the
+// array is empty afterwards and "delete_empty" is set
+// a single value instead of an array is treated like an array
+// install in config/scripts on all nodes (see ESScripts)
+def values = ctx._source[field];
+if(values instanceof List) {
+    if(!values.removeAll([value])) { ctx.op = 'none' }
+}
+else if(values != null && values == value) {
+    values = []; ctx._source[field] = values
+}
+else { ctx.op = 'none' };
+if(delete_empty && values instanceof List && values.isEmpty()) {
+    ctx.op = 'delete'
+}
@@ -0,0 +1,72 @@
+package org.apache.shindig.elasticsearch.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for the record of dirty entries, checking that entries are grouped,
+ * recorded once, bounded and forgotten once drained.
+ */
+public class ESDirtyEntriesTest
+{
+    private ESDirtyEntries fDirty;
+    
+    /**
+     * Creates a record of up to three entries.
+     */
+    @Before
+    public void setUp()
+    {
+        ESConfig config = new ESConfig(true);
+        config.setProperty("shindig.elasticsearch.dirty.max_entries", "3");
+        
+        fDirty = new ESDirtyEntries(config);
+    }
+    
+    /**
+     * Tests that entries are grouped by index and recorded only once,
+     * regardless of the request type.
+     */
+    @Test
+    public void markTest()
+    {
+        fDirty.mark(new IndexRequest("a", "type", "1").source("{}"));
+        fDirty.mark(new UpdateRequest("a", "type", "1").doc("{}"));
+        fDirty.mark(new DeleteRequest("b", "type", "1"));
+        
+        Map<String, Set<ESEntryId>> dirty = fDirty.drain();
+        assertEquals(2, dirty.size());
+        assertEquals(1, dirty.get("a").size());
+        assertTrue(dirty.get("a").contains(new ESEntryId("type", "1")));
+        assertEquals(1, dirty.get("b").size());
+    }
+    
+    /**
+     * Tests that no more than the maximum number of entries is recorded and
+     * that draining starts a new record.
+     */
+    @Test
+    public void boundAndDrainTest()
+    {
+        for(int i = 0; i < 5; ++i)
+        {
+            fDirty.mark(new DeleteRequest("a", "type", Integer.toString(i)));
+        }
+        
+        assertEquals(3, fDirty.drain().get("a").size());
+        assertTrue(fDirty.drain().isEmpty());
+        
+        fDirty.mark(new DeleteRequest("a", "type", "4"));
+        assertEquals(1, fDirty.drain().get("a").size());
+    }
+}
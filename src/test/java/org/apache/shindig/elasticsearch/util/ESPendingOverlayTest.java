@@ -0,0 +1,281 @@
+package org.apache.shindig.elasticsearch.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.script.ScriptService;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for the pending request overlay, checking how queued requests are
+ * tracked, applied to stored entries and filtered.
+ */
+public class ESPendingOverlayTest
+{
+    private ESPendingOverlay fOverlay;
+    private ESScripts fScripts;
+    
+    /**
+     * Creates an overlay for two entries and file scripts.
+     */
+    @Before
+    public void setUp()
+    {
+        fOverlay = new ESPendingOverlay(2);
+        
+        ESConfig config = new ESConfig(true);
+        config.setProperty("shindig.elasticsearch.scripts.mode", "file");
+        fScripts = new ESScripts(config);
+    }
+    
+    /**
+     * Tests that requests are tracked per entry, in order and only once, and
+     * that no more than the maximum number of entries is tracked, while
+     * untracked requests are still noticed.
+     */
+    @Test
+    public void trackingTest()
+    {
+        IndexRequest first = index("1", "{\"a\":1}");
+        UpdateRequest second = update("1", "{\"b\":2}");
+        
+        fOverlay.add(first);
+        fOverlay.add(second);
+        fOverlay.add(first);
+        
+        List<ActionRequest<?>> pending = fOverlay.getPending("index", "type",
+            "1");
+        assertEquals(2, pending.size());
+        assertSame(first, pending.get(0));
+        assertSame(second, pending.get(1));
+        
+        //bounded number of entries, untracked requests are remembered
+        fOverlay.add(index("2", "{}"));
+        IndexRequest untracked = index("3", "{}");
+        fOverlay.add(untracked);
+        assertNotNull(fOverlay.getPending("index", "type", "2"));
+        assertNull(fOverlay.getPending("index", "type", "3"));
+        assertFalse(fOverlay.hasPending("index", "type", "3"));
+        assertTrue(fOverlay.hasUntracked());
+        fOverlay.remove(untracked);
+        assertFalse(fOverlay.hasUntracked());
+        
+        //entries are forgotten once all requests are removed
+        fOverlay.remove(first);
+        assertEquals(1, fOverlay.getPending("index", "type", "1").size());
+        assertTrue(fOverlay.hasPending("index", "type", "1"));
+        fOverlay.remove(second);
+        assertNull(fOverlay.getPending("index", "type", "1"));
+        assertFalse(fOverlay.hasPending("index", "type", "1"));
+    }
+    
+    /**
+     * Tests that pending requests are only returned if all of their scripts
+     * can be applied locally.
+     */
+    @Test
+    public void scriptsTest()
+    {
+        fOverlay.add(fScripts.removeFromArray("index", "type", "1", "tags",
+            "a", false));
+        assertNotNull(fOverlay.getPending("index", "type", "1"));
+        
+        fOverlay.add(new UpdateRequest("index", "type", "2")
+            .script("ctx._source.counter += 1",
+                ScriptService.ScriptType.INLINE));
+        assertNull(fOverlay.getPending("index", "type", "2"));
+        
+        //still known to be pending
+        assertTrue(fOverlay.hasPending("index", "type", "2"));
+    }
+    
+    /**
+     * Tests that the stored entry is only needed if no request replaces or
+     * deletes it.
+     */
+    @Test
+    public void needsStoredTest()
+    {
+        List<ActionRequest<?>> pending = new ArrayList<ActionRequest<?>>();
+        pending.add(update("1", "{\"a\":1}"));
+        assertTrue(ESPendingOverlay.needsStored(pending));
+        
+        pending.add(new DeleteRequest("index", "type", "1"));
+        assertFalse(ESPendingOverlay.needsStored(pending));
+        
+        pending.clear();
+        pending.add(index("1", "{\"a\":1}"));
+        assertFalse(ESPendingOverlay.needsStored(pending));
+    }
+    
+    /**
+     * Tests that partial updates are merged into the stored entry without
+     * modifying it.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void applyUpdateTest() throws Exception
+    {
+        JSONObject stored = new JSONObject("{\"a\":1,\"n\":{\"x\":1}}");
+        
+        JSONObject entry = ESPendingOverlay.apply(stored,
+            list(update("1", "{\"b\":2,\"n\":{\"y\":2}}")));
+        
+        assertEquals(1, entry.getInt("a"));
+        assertEquals(2, entry.getInt("b"));
+        assertEquals(1, entry.getJSONObject("n").getInt("x"));
+        assertEquals(2, entry.getJSONObject("n").getInt("y"));
+        
+        //stored state is not modified
+        assertFalse(stored.has("b"));
+    }
+    
+    /**
+     * Tests that index and delete requests replace the entry.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void applyIndexAndDeleteTest() throws Exception
+    {
+        JSONObject stored = new JSONObject("{\"a\":1}");
+        
+        JSONObject entry = ESPendingOverlay.apply(stored,
+            list(index("1", "{\"b\":2}")));
+        assertFalse(entry.has("a"));
+        assertEquals(2, entry.getInt("b"));
+        
+        assertNull(ESPendingOverlay.apply(stored,
+            list(new DeleteRequest("index", "type", "1"))));
+        
+        //recreated after deletion
+        entry = ESPendingOverlay.apply(stored, list(
+            new DeleteRequest("index", "type", "1"),
+            index("1", "{\"c\":3}")));
+        assertEquals(3, entry.getInt("c"));
+    }
+    
+    /**
+     * Tests updates of entries that do not exist, which only create them as
+     * upserts.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void applyUpsertTest() throws Exception
+    {
+        assertNull(ESPendingOverlay.apply(null,
+            list(update("1", "{\"a\":1}"))));
+        
+        UpdateRequest docAsUpsert = update("1", "{\"a\":1}");
+        docAsUpsert.docAsUpsert(true);
+        assertEquals(1, ESPendingOverlay.apply(null, list(docAsUpsert))
+            .getInt("a"));
+        
+        JSONObject entry = ESPendingOverlay.apply(null,
+            list(update("1", "{\"a\":1}").upsert("{\"u\":1}")));
+        assertEquals(1, entry.getInt("u"));
+        assertFalse(entry.has("a"));
+    }
+    
+    /**
+     * Tests removing values from arrays, like the server-side script.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void applyRemoveFromArrayTest() throws Exception
+    {
+        JSONObject stored = new JSONObject(
+            "{\"tags\":[\"a\",\"b\",\"a\"],\"single\":\"a\"}");
+        
+        JSONObject entry = ESPendingOverlay.apply(stored, list(
+            fScripts.removeFromArray("index", "type", "1", "tags", "a",
+                false)));
+        JSONArray tags = entry.getJSONArray("tags");
+        assertEquals(1, tags.length());
+        assertEquals("b", tags.get(0));
+        
+        //single values are treated like arrays
+        entry = ESPendingOverlay.apply(stored, list(
+            fScripts.removeFromArray("index", "type", "1", "single", "a",
+                false)));
+        assertEquals(0, entry.getJSONArray("single").length());
+        
+        //missing values leave the entry unchanged
+        entry = ESPendingOverlay.apply(stored, list(
+            fScripts.removeFromArray("index", "type", "1", "tags", "x",
+                true)));
+        assertEquals(3, entry.getJSONArray("tags").length());
+        
+        //entry is deleted once the array is empty
+        assertNull(ESPendingOverlay.apply(stored, list(
+            fScripts.removeFromArray("index", "type", "1", "single", "a",
+                true))));
+        
+        //nothing to remove from missing entries
+        assertNull(ESPendingOverlay.apply(null, list(
+            fScripts.removeFromArray("index", "type", "1", "tags", "a",
+                false))));
+    }
+    
+    /**
+     * Tests reducing entries to top-level and nested fields.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void filterTest() throws Exception
+    {
+        JSONObject entry = new JSONObject(
+            "{\"a\":1,\"b\":2,\"n\":{\"x\":1,\"y\":2},\"s\":\"text\"}");
+        
+        assertSame(entry, ESPendingOverlay.filter(entry, null));
+        assertNull(ESPendingOverlay.filter(null, new String[] {"a"}));
+        
+        JSONObject filtered = ESPendingOverlay.filter(entry,
+            new String[] {"a", "n.y", "s.z", "missing"});
+        assertEquals(1, filtered.getInt("a"));
+        assertFalse(filtered.has("b"));
+        assertFalse(filtered.getJSONObject("n").has("x"));
+        assertEquals(2, filtered.getJSONObject("n").getInt("y"));
+        assertFalse(filtered.has("s"));
+        assertFalse(filtered.has("missing"));
+    }
+    
+    private IndexRequest index(String id, String source)
+    {
+        return new IndexRequest("index", "type", id).source(source);
+    }
+    
+    private UpdateRequest update(String id, String doc)
+    {
+        return new UpdateRequest("index", "type", id).doc(doc);
+    }
+    
+    private List<ActionRequest<?>> list(ActionRequest<?>... requests)
+    {
+        List<ActionRequest<?>> list = new ArrayList<ActionRequest<?>>();
+        for(ActionRequest<?> request : requests)
+        {
+            list.add(request);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,102 @@
+package org.apache.shindig.elasticsearch.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Test for the local equivalent of the script removing a value from an
+ * array field, checking that it behaves like the server-side script.
+ */
+public class ESScriptsTest
+{
+    /**
+     * Tests that all occurrences of the value are removed, keeping the order
+     * of the remaining values.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void removeTest() throws Exception
+    {
+        JSONObject entry = new JSONObject(
+            "{\"owners\":[\"a\",\"b\",\"a\",\"c\"],\"x\":1}");
+        
+        JSONObject result = ESScripts.applyRemoveFromArray(entry, "owners",
+            "a", false);
+        assertSame(entry, result);
+        
+        JSONArray owners = result.getJSONArray("owners");
+        assertEquals(2, owners.length());
+        assertEquals("b", owners.get(0));
+        assertEquals("c", owners.get(1));
+        assertEquals(1, result.getInt("x"));
+    }
+    
+    /**
+     * Tests that entries without the value or without the field are left
+     * unchanged, even if they should be deleted when empty.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void notContainedTest() throws Exception
+    {
+        JSONObject entry = new JSONObject("{\"owners\":[\"b\"]}");
+        assertSame(entry, ESScripts.applyRemoveFromArray(entry, "owners",
+            "a", true));
+        assertEquals(1, entry.getJSONArray("owners").length());
+        
+        entry = new JSONObject("{\"owners\":\"b\"}");
+        assertSame(entry, ESScripts.applyRemoveFromArray(entry, "owners",
+            "a", true));
+        assertEquals("b", entry.get("owners"));
+        
+        entry = new JSONObject("{\"x\":1}");
+        assertSame(entry, ESScripts.applyRemoveFromArray(entry, "owners",
+            "a", true));
+        assertEquals(1, entry.length());
+        
+        assertNull(ESScripts.applyRemoveFromArray(null, "owners", "a", true));
+    }
+    
+    /**
+     * Tests that a single value instead of an array is treated like an array.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void singleValueTest() throws Exception
+    {
+        JSONObject entry = new JSONObject("{\"owners\":\"a\"}");
+        
+        JSONObject result = ESScripts.applyRemoveFromArray(entry, "owners",
+            "a", false);
+        assertSame(entry, result);
+        assertEquals(0, result.getJSONArray("owners").length());
+    }
+    
+    /**
+     * Tests that entries are only deleted if requested and if the array is
+     * empty afterwards.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void deleteIfEmptyTest() throws Exception
+    {
+        assertNull(ESScripts.applyRemoveFromArray(
+            new JSONObject("{\"owners\":[\"a\",\"a\"]}"), "owners", "a", true));
+        assertNull(ESScripts.applyRemoveFromArray(
+            new JSONObject("{\"owners\":\"a\"}"), "owners", "a", true));
+        
+        JSONObject entry = new JSONObject("{\"owners\":[\"a\",\"b\"]}");
+        assertSame(entry, ESScripts.applyRemoveFromArray(entry, "owners",
+            "a", true));
+        assertEquals(1, entry.getJSONArray("owners").length());
+    }
+}
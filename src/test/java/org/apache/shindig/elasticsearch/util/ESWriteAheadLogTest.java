@@ -0,0 +1,209 @@
+package org.apache.shindig.elasticsearch.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.shindig.elasticsearch.ESConfig;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test for the write-ahead log, checking that segments are rolled, deleted
+ * once acknowledged and recovered after a restart.
+ */
+public class ESWriteAheadLogTest
+{
+    @Rule
+    public TemporaryFolder fFolder = new TemporaryFolder();
+    
+    private File fDir;
+    private ESConfig fConfig;
+    private ESWriteAheadLog fWal;
+    
+    /**
+     * Creates a log with two entries per segment in a temporary directory.
+     * 
+     * @throws Exception if creating the log fails
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        fDir = fFolder.newFolder("wal");
+        
+        fConfig = new ESConfig(true);
+        fConfig.setProperty("shindig.elasticsearch.bulking.wal.dir",
+            fDir.getAbsolutePath());
+        fConfig.setProperty(
+            "shindig.elasticsearch.bulking.wal.segment_entries", "2");
+        fConfig.setProperty("shindig.elasticsearch.bulking.wal.sync_millis",
+            "1");
+        
+        fWal = new ESWriteAheadLog(fConfig);
+    }
+    
+    /**
+     * Closes the log.
+     */
+    @After
+    public void tearDown()
+    {
+        fWal.close();
+    }
+    
+    /**
+     * Tests that all request types are recovered in order after a restart.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void recoverTest() throws Exception
+    {
+        fWal.append(new IndexRequest("index", "type", "1")
+            .source("{\"a\":1}"));
+        fWal.append(new UpdateRequest("index", "type", "2")
+            .doc("{\"b\":2}"));
+        fWal.append(new DeleteRequest("index", "type", "3"));
+        fWal.sync();
+        fWal.close();
+        
+        fWal = new ESWriteAheadLog(fConfig);
+        List<ActionRequest<?>> requests = fWal.recover();
+        
+        assertEquals(3, requests.size());
+        assertTrue(requests.get(0) instanceof IndexRequest);
+        assertEquals("1", ((IndexRequest) requests.get(0)).id());
+        assertEquals("{\"a\":1}",
+            ((IndexRequest) requests.get(0)).source().toUtf8());
+        assertTrue(requests.get(1) instanceof UpdateRequest);
+        assertEquals("2", ((UpdateRequest) requests.get(1)).id());
+        assertTrue(requests.get(2) instanceof DeleteRequest);
+        assertEquals("3", ((DeleteRequest) requests.get(2)).id());
+    }
+    
+    /**
+     * Tests that segments are rolled when full and deleted once all of their
+     * requests are acknowledged.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void rollAndAcknowledgeTest() throws Exception
+    {
+        long[] seqs = new long[4];
+        for(int i = 0; i < seqs.length; ++i)
+        {
+            seqs[i] = fWal.append(index(i));
+        }
+        fWal.sync();
+        
+        //two full segments
+        assertEquals(2, getSegments().length);
+        
+        //first segment is completed and deleted
+        fWal.acknowledge(seqs[0]);
+        assertEquals(2, getSegments().length);
+        fWal.acknowledge(seqs[1]);
+        assertEquals(1, getSegments().length);
+        
+        //completing the current segment replaces it with an empty one
+        fWal.acknowledge(seqs[2]);
+        fWal.acknowledge(seqs[3]);
+        fWal.close();
+        
+        fWal = new ESWriteAheadLog(fConfig);
+        assertEquals(0, fWal.recover().size());
+    }
+    
+    /**
+     * Tests that unacknowledged requests survive a restart while
+     * acknowledged segments don't.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void recoverUnacknowledgedTest() throws Exception
+    {
+        long first = fWal.append(index(0));
+        long second = fWal.append(index(1));
+        fWal.append(index(2));
+        fWal.sync();
+        fWal.acknowledge(first);
+        fWal.acknowledge(second);
+        fWal.close();
+        
+        fWal = new ESWriteAheadLog(fConfig);
+        List<ActionRequest<?>> requests = fWal.recover();
+        
+        assertEquals(1, requests.size());
+        assertEquals("2", ((IndexRequest) requests.get(0)).id());
+    }
+    
+    /**
+     * Tests that a trailing segment without readable entries is neither
+     * overwritten nor mistaken for a recovered one once new requests are
+     * written.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void recoverEmptySegmentTest() throws Exception
+    {
+        fWal.append(index(0));
+        fWal.append(index(1));
+        fWal.sync();
+        fWal.close();
+        
+        //empty segment directly following the last recovered entry
+        assertTrue(new File(fDir, String.format("wal-%020d.log", 3))
+            .createNewFile());
+        
+        fWal = new ESWriteAheadLog(fConfig);
+        List<ActionRequest<?>> requests = fWal.recover();
+        assertEquals(2, requests.size());
+        
+        //replay as the bulking connector does
+        for(ActionRequest<?> request : requests)
+        {
+            fWal.append(request);
+        }
+        fWal.sync();
+        fWal.deleteRecovered();
+        fWal.close();
+        
+        fWal = new ESWriteAheadLog(fConfig);
+        assertEquals(2, fWal.recover().size());
+    }
+    
+    private IndexRequest index(int id)
+    {
+        return new IndexRequest("index", "type", Integer.toString(id))
+            .source("{\"id\":\"" + id + "\"}");
+    }
+    
+    private File[] getSegments()
+    {
+        File[] files = fDir.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith("wal-") && name.endsWith(".log");
+            }
+        });
+        Arrays.sort(files);
+        
+        return files;
+    }
+}
@@ -0,0 +1,409 @@
+package org.apache.shindig.elasticsearch.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.script.ScriptService;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for the write coalescer, checking every combination of earlier and
+ * later requests for the same entry.
+ */
+public class ESWriteCoalescerTest
+{
+    private ESWriteCoalescer fCoalescer;
+    private List<ActionRequest<?>> fReady;
+    
+    /**
+     * Creates an empty coalescer.
+     */
+    @Before
+    public void setUp()
+    {
+        fCoalescer = new ESWriteCoalescer();
+        fReady = new ArrayList<ActionRequest<?>>();
+    }
+    
+    /**
+     * Tests that a stale versioned write is absorbed by the newer one.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void staleIndexTest() throws Exception
+    {
+        IndexRequest newer = index("{\"a\":1}").version(5)
+            .versionType(VersionType.EXTERNAL_GTE);
+        IndexRequest older = index("{\"a\":0}").version(3)
+            .versionType(VersionType.EXTERNAL_GTE);
+        
+        fCoalescer.add(newer, fReady);
+        assertTrue(fCoalescer.add(older, fReady));
+        
+        assertSame(newer, drainSingle());
+        assertAbsorbed(newer, older);
+    }
+    
+    /**
+     * Tests that an index request replaces an earlier one.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void indexAfterIndexTest() throws Exception
+    {
+        IndexRequest earlier = index("{\"a\":1}");
+        IndexRequest later = index("{\"b\":2}");
+        
+        fCoalescer.add(earlier, fReady);
+        assertTrue(fCoalescer.add(later, fReady));
+        
+        assertSame(later, drainSingle());
+        assertAbsorbed(later, earlier);
+    }
+    
+    /**
+     * Tests that a delete request replaces an earlier update.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void deleteAfterUpdateTest() throws Exception
+    {
+        UpdateRequest earlier = update("{\"a\":1}");
+        DeleteRequest later = new DeleteRequest("index", "type", "1");
+        
+        fCoalescer.add(earlier, fReady);
+        assertTrue(fCoalescer.add(later, fReady));
+        
+        assertSame(later, drainSingle());
+        assertAbsorbed(later, earlier);
+    }
+    
+    /**
+     * Tests that a partial update is merged into an earlier index request,
+     * keeping its routing.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void updateIntoIndexTest() throws Exception
+    {
+        IndexRequest earlier = index("{\"a\":1,\"n\":{\"x\":1}}")
+            .routing("owner");
+        UpdateRequest later = update("{\"b\":2,\"n\":{\"y\":2}}");
+        
+        fCoalescer.add(earlier, fReady);
+        assertTrue(fCoalescer.add(later, fReady));
+        
+        IndexRequest merged = (IndexRequest) drainSingle();
+        JSONObject source = new JSONObject(merged.source().toUtf8());
+        assertEquals(1, source.getInt("a"));
+        assertEquals(2, source.getInt("b"));
+        assertEquals(1, source.getJSONObject("n").getInt("x"));
+        assertEquals(2, source.getJSONObject("n").getInt("y"));
+        assertEquals("owner", merged.routing());
+        
+        assertAbsorbed(merged, earlier, later);
+    }
+    
+    /**
+     * Tests that a partial update is not merged into an earlier externally
+     * versioned index request, which may be rejected as stale.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void updateIntoVersionedIndexTest() throws Exception
+    {
+        IndexRequest earlier = index("{\"a\":1}").version(7)
+            .versionType(VersionType.EXTERNAL_GTE);
+        UpdateRequest later = update("{\"b\":2}");
+        
+        fCoalescer.add(earlier, fReady);
+        assertFalse(fCoalescer.add(later, fReady));
+        
+        assertEquals(1, fReady.size());
+        assertSame(earlier, fReady.get(0));
+        assertSame(later, drainSingle());
+    }
+    
+    /**
+     * Tests that two partial updates are merged into one.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void updateAfterUpdateTest() throws Exception
+    {
+        UpdateRequest earlier = update("{\"a\":1,\"c\":1}")
+            .retryOnConflict(2);
+        UpdateRequest later = update("{\"b\":2,\"c\":2}");
+        
+        fCoalescer.add(earlier, fReady);
+        assertTrue(fCoalescer.add(later, fReady));
+        
+        UpdateRequest merged = (UpdateRequest) drainSingle();
+        JSONObject doc = new JSONObject(merged.doc().source().toUtf8());
+        assertEquals(1, doc.getInt("a"));
+        assertEquals(2, doc.getInt("b"));
+        assertEquals(2, doc.getInt("c"));
+        assertEquals(2, merged.retryOnConflict());
+        assertFalse(merged.docAsUpsert());
+        assertNull(merged.upsertRequest());
+        
+        assertAbsorbed(merged, earlier, later);
+    }
+    
+    /**
+     * Tests that an update after a document-as-upsert update still creates
+     * the entry with the combined document.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void updateAfterDocAsUpsertTest() throws Exception
+    {
+        fCoalescer.add(docAsUpsert("{\"a\":1}"), fReady);
+        assertTrue(fCoalescer.add(update("{\"b\":2}"), fReady));
+        
+        UpdateRequest merged = (UpdateRequest) drainSingle();
+        assertTrue(merged.docAsUpsert());
+        JSONObject doc = new JSONObject(merged.doc().source().toUtf8());
+        assertEquals(1, doc.getInt("a"));
+        assertEquals(2, doc.getInt("b"));
+    }
+    
+    /**
+     * Tests that an update after an update with an initial entry also
+     * applies to the initial entry.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void updateAfterUpsertTest() throws Exception
+    {
+        fCoalescer.add(update("{\"a\":1}").upsert("{\"u\":1}"), fReady);
+        assertTrue(fCoalescer.add(update("{\"b\":2}"), fReady));
+        
+        UpdateRequest merged = (UpdateRequest) drainSingle();
+        JSONObject upsert = new JSONObject(
+            merged.upsertRequest().source().toUtf8());
+        assertEquals(1, upsert.getInt("u"));
+        assertEquals(2, upsert.getInt("b"));
+        assertFalse(upsert.has("a"));
+    }
+    
+    /**
+     * Tests that a document-as-upsert update after a plain update creates
+     * the entry with the later document only.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void docAsUpsertAfterUpdateTest() throws Exception
+    {
+        fCoalescer.add(update("{\"a\":1}"), fReady);
+        assertTrue(fCoalescer.add(docAsUpsert("{\"b\":2}"), fReady));
+        
+        UpdateRequest merged = (UpdateRequest) drainSingle();
+        JSONObject upsert = new JSONObject(
+            merged.upsertRequest().source().toUtf8());
+        assertEquals(2, upsert.getInt("b"));
+        assertFalse(upsert.has("a"));
+    }
+    
+    /**
+     * Tests that an update with an initial entry after a plain update keeps
+     * the later initial entry.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void upsertAfterUpdateTest() throws Exception
+    {
+        fCoalescer.add(update("{\"a\":1}"), fReady);
+        assertTrue(fCoalescer.add(update("{\"b\":2}").upsert("{\"u\":1}"),
+            fReady));
+        
+        UpdateRequest merged = (UpdateRequest) drainSingle();
+        JSONObject upsert = new JSONObject(
+            merged.upsertRequest().source().toUtf8());
+        assertEquals(1, upsert.getInt("u"));
+        assertFalse(upsert.has("b"));
+    }
+    
+    /**
+     * Tests that a document-as-upsert update after a deletion becomes an
+     * index request with the document.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void docAsUpsertAfterDeleteTest() throws Exception
+    {
+        fCoalescer.add(new DeleteRequest("index", "type", "1"), fReady);
+        assertTrue(fCoalescer.add(docAsUpsert("{\"a\":1}").routing("owner"),
+            fReady));
+        
+        IndexRequest merged = (IndexRequest) drainSingle();
+        assertEquals(1, new JSONObject(merged.source().toUtf8()).getInt("a"));
+        assertEquals("owner", merged.routing());
+    }
+    
+    /**
+     * Tests that an update with an initial entry after a deletion becomes an
+     * index request with the initial entry.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void upsertAfterDeleteTest() throws Exception
+    {
+        fCoalescer.add(new DeleteRequest("index", "type", "1"), fReady);
+        assertTrue(fCoalescer.add(update("{\"a\":1}").upsert("{\"u\":1}"),
+            fReady));
+        
+        IndexRequest merged = (IndexRequest) drainSingle();
+        JSONObject source = new JSONObject(merged.source().toUtf8());
+        assertEquals(1, source.getInt("u"));
+        assertFalse(source.has("a"));
+    }
+    
+    /**
+     * Tests that a plain update after a deletion is not combined, releasing
+     * the deletion first.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void updateAfterDeleteTest() throws Exception
+    {
+        DeleteRequest earlier = new DeleteRequest("index", "type", "1");
+        UpdateRequest later = update("{\"a\":1}");
+        
+        fCoalescer.add(earlier, fReady);
+        assertFalse(fCoalescer.add(later, fReady));
+        
+        assertEquals(1, fReady.size());
+        assertSame(earlier, fReady.get(0));
+        assertSame(later, drainSingle());
+    }
+    
+    /**
+     * Tests that scripted updates are not combined in either order.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void scriptedUpdateTest() throws Exception
+    {
+        IndexRequest first = index("{\"a\":1}");
+        UpdateRequest script = new UpdateRequest("index", "type", "1")
+            .script(ESScripts.REMOVE_FROM_ARRAY_FILE,
+                ScriptService.ScriptType.FILE);
+        UpdateRequest last = update("{\"b\":2}");
+        
+        fCoalescer.add(first, fReady);
+        assertFalse(fCoalescer.add(script, fReady));
+        assertFalse(fCoalescer.add(last, fReady));
+        
+        assertEquals(2, fReady.size());
+        assertSame(first, fReady.get(0));
+        assertSame(script, fReady.get(1));
+        assertSame(last, drainSingle());
+    }
+    
+    /**
+     * Tests that a combined request stands for all requests it absorbed,
+     * across several merges.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void absorbedChainTest() throws Exception
+    {
+        IndexRequest first = index("{\"a\":1}");
+        UpdateRequest second = update("{\"b\":2}");
+        UpdateRequest third = update("{\"c\":3}");
+        
+        fCoalescer.add(first, fReady);
+        fCoalescer.add(second, fReady);
+        fCoalescer.add(third, fReady);
+        
+        ActionRequest<?> merged = drainSingle();
+        assertAbsorbed(merged, first, second, third);
+    }
+    
+    /**
+     * Tests that requests for different entries are kept apart, in the order
+     * they were added.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void differentEntriesTest() throws Exception
+    {
+        IndexRequest first = index("{\"a\":1}");
+        IndexRequest second = new IndexRequest("index", "type", "2")
+            .source("{\"a\":2}");
+        
+        assertFalse(fCoalescer.add(first, fReady));
+        assertFalse(fCoalescer.add(second, fReady));
+        
+        assertEquals(2, fCoalescer.size());
+        List<ActionRequest<?>> pending = fCoalescer.drain();
+        assertSame(first, pending.get(0));
+        assertSame(second, pending.get(1));
+        assertEquals(0, fCoalescer.size());
+    }
+    
+    private IndexRequest index(String source)
+    {
+        return new IndexRequest("index", "type", "1").source(source);
+    }
+    
+    private UpdateRequest update(String doc)
+    {
+        return new UpdateRequest("index", "type", "1").doc(doc);
+    }
+    
+    private UpdateRequest docAsUpsert(String doc)
+    {
+        UpdateRequest request = update(doc);
+        request.docAsUpsert(true);
+        return request;
+    }
+    
+    private ActionRequest<?> drainSingle()
+    {
+        List<ActionRequest<?>> pending = fCoalescer.drain();
+        assertEquals(1, pending.size());
+        return pending.get(0);
+    }
+    
+    private void assertAbsorbed(ActionRequest<?> merged,
+        ActionRequest<?>... originals)
+    {
+        List<ActionRequest<?>> absorbed = fCoalescer.takeAbsorbed(merged);
+        assertEquals(originals.length, absorbed.size());
+        for(int i = 0; i < originals.length; ++i)
+        {
+            assertSame(originals[i], absorbed.get(i));
+        }
+    }
+}
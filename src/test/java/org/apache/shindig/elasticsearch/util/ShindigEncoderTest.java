@@ -0,0 +1,103 @@
+package org.apache.shindig.elasticsearch.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Test for the encoder's helpers, checking that fingerprints only depend on
+ * the content of encoded entries and that versions are derived from both
+ * forms of "updated" timestamps.
+ */
+public class ShindigEncoderTest
+{
+    /**
+     * Tests that the order of keys, also in nested objects, does not change
+     * the fingerprint.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void keyOrderTest() throws Exception
+    {
+        JSONObject first = new JSONObject(
+            "{\"a\":1,\"b\":\"x\",\"n\":{\"x\":true,\"y\":[1,2],\"z\":null}}");
+        JSONObject second = new JSONObject(
+            "{\"n\":{\"z\":null,\"y\":[1,2],\"x\":true},\"b\":\"x\",\"a\":1}");
+        
+        assertEquals(ShindigEncoder.getFingerprint(first),
+            ShindigEncoder.getFingerprint(second));
+    }
+    
+    /**
+     * Tests that changed values and reordered arrays change the fingerprint.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void contentTest() throws Exception
+    {
+        String fingerprint = ShindigEncoder.getFingerprint(
+            new JSONObject("{\"a\":1,\"n\":{\"y\":[1,2]}}"));
+        
+        assertFalse(fingerprint.equals(ShindigEncoder.getFingerprint(
+            new JSONObject("{\"a\":2,\"n\":{\"y\":[1,2]}}"))));
+        assertFalse(fingerprint.equals(ShindigEncoder.getFingerprint(
+            new JSONObject("{\"a\":1,\"n\":{\"y\":[2,1]}}"))));
+        assertFalse(fingerprint.equals(ShindigEncoder.getFingerprint(
+            new JSONObject("{\"a\":1,\"n\":{\"y\":[1,2],\"z\":3}}"))));
+    }
+    
+    /**
+     * Tests that the stored fingerprint is ignored when computing it again.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void addFingerprintTest() throws Exception
+    {
+        JSONObject entry = new JSONObject("{\"a\":1,\"n\":{\"b\":2}}");
+        
+        String fingerprint = ShindigEncoder.addFingerprint(entry);
+        assertEquals(fingerprint,
+            entry.getString(ShindigEncoder.FINGERPRINT_FIELD));
+        assertEquals(fingerprint, ShindigEncoder.getFingerprint(entry));
+        assertEquals(fingerprint, ShindigEncoder.addFingerprint(entry));
+    }
+    
+    /**
+     * Tests that versions are read from timestamps in epoch milliseconds and
+     * from ISO 8601 date strings, yielding the same version for both.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void versionTest() throws Exception
+    {
+        long millis = 1433160000123L;
+        
+        assertEquals(millis, ShindigEncoder.getVersion(
+            new JSONObject().put("updated", millis)));
+        assertEquals(millis, ShindigEncoder.getVersion(
+            new JSONObject().put("updated", "2015-06-01T12:00:00.123Z")));
+        assertEquals(millis, ShindigEncoder.getVersion(
+            new JSONObject().put("updated", "2015-06-01T14:00:00.123+02:00")));
+    }
+    
+    /**
+     * Tests that entries without a usable timestamp have no version.
+     * 
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void noVersionTest() throws Exception
+    {
+        assertEquals(-1, ShindigEncoder.getVersion(new JSONObject()));
+        assertEquals(-1, ShindigEncoder.getVersion(
+            new JSONObject().put("updated", "yesterday")));
+        assertEquals(-1, ShindigEncoder.getVersion(
+            new JSONObject().put("updated", true)));
+    }
+}